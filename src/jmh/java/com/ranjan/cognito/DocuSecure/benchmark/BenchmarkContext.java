@@ -0,0 +1,15 @@
+package com.ranjan.cognito.DocuSecure.benchmark;
+
+import java.util.Map;
+
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+/**
+ * The service context the benchmarks run in, see {@link ServiceContext}.
+ */
+public final class BenchmarkContext extends ServiceContext {
+
+    public BenchmarkContext(Map<String,Object> overrides){
+        super(overrides);
+    }
+}
@@ -0,0 +1,65 @@
+package com.ranjan.cognito.DocuSecure.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ranjan.cognito.DocuSecure.cache.CredentialCache;
+import com.ranjan.cognito.DocuSecure.service.AwsService;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * Credential acquisition for a request. {@code cached} is the common case of a token seen before,
+ * {@code exchange} drops the cached credentials first so every call goes through the identity pool
+ * exchange (the identity id stays cached, as it does for a returning user).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(1)
+public class CredentialBenchmark {
+
+    private BenchmarkContext context;
+    private AwsService awsService;
+    private CredentialCache credentialCache;
+    private String cacheKey;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        context=new BenchmarkContext(Map.of());
+        awsService=context.bean(AwsService.class);
+        credentialCache=context.bean(CredentialCache.class);
+        cacheKey=CredentialCache.key(BenchmarkContext.ID_TOKEN, BenchmarkContext.CONTROLLER);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+    }
+
+    @Benchmark
+    public AwsSessionCredentials cached(){
+        return awsService.getTemporaryCredentials(BenchmarkContext.ID_TOKEN, BenchmarkContext.CONTROLLER);
+    }
+
+    @Benchmark
+    public AwsSessionCredentials exchange(){
+        credentialCache.invalidate(cacheKey);
+        return awsService.getTemporaryCredentials(BenchmarkContext.ID_TOKEN, BenchmarkContext.CONTROLLER);
+    }
+}
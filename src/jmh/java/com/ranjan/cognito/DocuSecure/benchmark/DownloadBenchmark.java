@@ -0,0 +1,83 @@
+package com.ranjan.cognito.DocuSecure.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.service.AwsService;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * Downloads of one stored document. {@code download} is the buffering {@link AwsService#download},
+ * {@code stream} opens the document and copies it out the way the web controller does. With the
+ * document cache on, the document is served from local disk once it has been admitted during warmup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(value=1, jvmArgsAppend={"-Xms2g", "-Xmx2g"})
+public class DownloadBenchmark {
+
+    @Param({"1024", "1048576", "16777216", "104857600"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean documentCache;
+
+    private BenchmarkContext context;
+    private AwsService awsService;
+    private AwsSessionCredentials creds;
+    private String documentId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context=new BenchmarkContext(Map.of("docusecure.download.cache.enabled", documentCache));
+        awsService=context.bean(AwsService.class);
+        creds=context.credentials();
+        MockMultipartFile file=new MockMultipartFile("file", "document.bin", "application/octet-stream", BenchmarkContext.randomBytes(size));
+        documentId=awsService.upload(file, BenchmarkContext.BUCKET, BenchmarkContext.USER_ID, creds);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+    }
+
+    @Benchmark
+    public DocumentResponseTO download(){
+        return awsService.download(documentId, BenchmarkContext.BUCKET, BenchmarkContext.USER_ID, creds);
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        DocumentResponseTO document=awsService.openDownload(documentId, BenchmarkContext.BUCKET, BenchmarkContext.USER_ID, creds);
+        InputStream source=document.getContentFile()!=null
+                    ? DocumentFileCache.region(document.getContentFile(), document.getContentOffset(), document.getContentLength())
+                    : document.getContentStream();
+        try(InputStream content=source){
+            return content.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
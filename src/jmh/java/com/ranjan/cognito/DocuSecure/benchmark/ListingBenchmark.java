@@ -0,0 +1,88 @@
+package com.ranjan.cognito.DocuSecure.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.service.AwsService;
+import com.ranjan.cognito.DocuSecure.service.DocumentItems;
+import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentPage;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+/**
+ * Listing a user's documents for a range of document counts. The uncached variants drop the user's
+ * listing cache entry first, so every call queries DynamoDB and, for the full list, walks every page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(1)
+public class ListingBenchmark {
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int documents;
+
+    private BenchmarkContext context;
+    private AwsService awsService;
+    private ListingCache listingCache;
+    private AwsSessionCredentials creds;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        context=new BenchmarkContext(Map.of());
+        awsService=context.bean(AwsService.class);
+        listingCache=context.bean(ListingCache.class);
+        creds=context.credentials();
+        for(int i=0;i<documents;i++){
+            String documentId=UUID.randomUUID().toString();
+            context.aws().getDynamoDb().client().putItem(PutItemRequest.builder()
+                        .tableName(DocumentItems.TABLE_NAME)
+                        .item(DocumentItems.newItem(BenchmarkContext.USER_ID, documentId, "document-"+i+".pdf",
+                                    BenchmarkContext.USER_ID+"/document-"+i+".pdf", "application/pdf"))
+                        .build());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+    }
+
+    @Benchmark
+    public List<DocumentDetails> listAll(){
+        listingCache.invalidate(BenchmarkContext.USER_ID);
+        return awsService.listS3Objects(BenchmarkContext.BUCKET, BenchmarkContext.USER_ID, creds);
+    }
+
+    @Benchmark
+    public List<DocumentDetails> listAllCached(){
+        return awsService.listS3Objects(BenchmarkContext.BUCKET, BenchmarkContext.USER_ID, creds);
+    }
+
+    @Benchmark
+    public DocumentPage firstPage(){
+        listingCache.invalidate(BenchmarkContext.USER_ID);
+        return awsService.listDocuments(BenchmarkContext.USER_ID, creds, 100, null);
+    }
+}
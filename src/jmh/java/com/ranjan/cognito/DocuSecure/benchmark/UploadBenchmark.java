@@ -0,0 +1,73 @@
+package com.ranjan.cognito.DocuSecure.benchmark;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.service.AwsService;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * {@link AwsService#upload} from an already spooled file to the in-memory S3 and DynamoDB.
+ * Files of 8 MB and more go through the multipart path. With deduplication on, every upload after
+ * the first of an iteration only hashes the file and takes a reference on the stored blob.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(value=1, jvmArgsAppend={"-Xms2g", "-Xmx2g"})
+public class UploadBenchmark {
+
+    @Param({"1024", "1048576", "16777216", "104857600"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean dedup;
+
+    private BenchmarkContext context;
+    private AwsService awsService;
+    private AwsSessionCredentials creds;
+    private MockMultipartFile file;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        context=new BenchmarkContext(Map.of("docusecure.dedup.enabled", dedup));
+        awsService=context.bean(AwsService.class);
+        creds=context.credentials();
+        file=new MockMultipartFile("file", "document.bin", "application/octet-stream", BenchmarkContext.randomBytes(size));
+    }
+
+    //Every upload adds a row, start each iteration from empty stores so memory use stays flat
+    @TearDown(Level.Iteration)
+    public void clearStores(){
+        context.aws().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+    }
+
+    @Benchmark
+    public String upload() throws IOException {
+        return awsService.upload(file, BenchmarkContext.BUCKET, BenchmarkContext.USER_ID, creds);
+    }
+}
@@ -0,0 +1,41 @@
+package com.ranjan.cognito.DocuSecure.cache;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import com.ranjan.cognito.DocuSecure.to.Encryption;
+
+import lombok.Getter;
+
+/**
+ * A document body held on local disk together with the metadata needed to serve it without DynamoDB.
+ * Encrypted bodies are kept as stored, so the disk only holds ciphertext.
+ */
+@Getter
+public class CachedDocument {
+
+    private final String fileName;
+    private final String fileType;
+    private final String filePath;
+    private final String etag;
+    private final Instant lastModified;
+    private final long size;
+    private final Path file;
+    private final String codec;
+    private final Long originalSize;
+    private final Encryption encryption;
+
+    CachedDocument(String fileName,String fileType,String filePath,String etag,Instant lastModified,long size,Path file,
+                   String codec,Long originalSize,Encryption encryption){
+        this.fileName=fileName;
+        this.fileType=fileType;
+        this.filePath=filePath;
+        this.etag=etag;
+        this.lastModified=lastModified;
+        this.size=size;
+        this.file=file;
+        this.codec=codec;
+        this.originalSize=originalSize;
+        this.encryption=encryption;
+    }
+}
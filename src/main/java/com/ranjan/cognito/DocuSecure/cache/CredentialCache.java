@@ -0,0 +1,278 @@
+package com.ranjan.cognito.DocuSecure.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.nimbusds.jwt.JWTParser;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.cognitoidentity.model.Credentials;
+
+/**
+ * Caches identity pool credentials per id token and pool type.
+ * Concurrent misses for the same key share one Cognito exchange, and entries that are about
+ * to expire are refreshed in the background while the current credentials are still served.
+ * Identity ids never change for a user so they are cached separately and outlive the tokens.
+ * Both maps hold at most {@code maxEntries}, the least recently used entry is evicted first.
+ */
+@Component
+public class CredentialCache {
+
+    @Value("${aws.credentials.refreshAhead:5m}")
+    private Duration refreshAhead;
+
+    @Value("${aws.credentials.expirySkew:30s}")
+    private Duration expirySkew;
+
+    @Value("${aws.credentials.maxEntries:10000}")
+    private int maxEntries;
+
+    //A lock rather than synchronized, so a virtual thread does not pin its carrier
+    private final ReentrantLock lock=new ReentrantLock();
+    private final LinkedHashMap<String,Entry> entries=new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String,String> identityIds=new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String,CompletableFuture<Entry>> inFlight=new ConcurrentHashMap<>();
+
+    private final AtomicLong hits=new AtomicLong();
+    private final AtomicLong misses=new AtomicLong();
+    private final AtomicLong refreshes=new AtomicLong();
+    private final AtomicLong evictions=new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init(){
+        executor=Executors.newScheduledThreadPool(2, r->{
+            Thread thread=new Thread(r,"credential-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::evictExpired, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public static String key(String idToken,String controller){
+        return controller+":"+sha256(idToken);
+    }
+
+    /**
+     * Key for the identity id of the token's user. Identity ids are stable per user, so they are keyed
+     * by the token subject rather than the token itself.
+     */
+    public static String identityKey(String idToken,String controller){
+        try{
+            String subject=JWTParser.parse(idToken).getJWTClaimsSet().getSubject();
+            if(subject!=null){
+                return controller+":"+subject;
+            }
+        }catch(ParseException e){
+            //fall through and key by token
+        }
+        return key(idToken, controller);
+    }
+
+    public AwsSessionCredentials get(String key, Supplier<Credentials> loader){
+        return join(getAsync(key, ()->CompletableFuture.completedFuture(loader.get())));
+    }
+
+    /**
+     * Non blocking variant of {@link #get}, the loader is only invoked by the caller that wins the single flight.
+     */
+    public CompletableFuture<AwsSessionCredentials> getAsync(String key, Supplier<CompletableFuture<Credentials>> loader){
+        Entry entry=get(entries, key);
+        Instant now=Instant.now();
+        if(entry!=null && now.isBefore(entry.expiration.minus(expirySkew))){
+            hits.incrementAndGet();
+            if(now.isAfter(entry.expiration.minus(refreshAhead)) && !inFlight.containsKey(key)){
+                executor.execute(()->refresh(key, loader));
+            }
+            return CompletableFuture.completedFuture(entry.credentials);
+        }
+        misses.incrementAndGet();
+        return load(key, loader).thenApply(loaded->loaded.credentials);
+    }
+
+    public String identityId(String key, Supplier<String> loader){
+        String identityId=get(identityIds, key);
+        if(identityId!=null){
+            return identityId;
+        }
+        //Loaded outside the lock, holding it for the whole Cognito call would stall every other lookup
+        String loaded=loader.get();
+        put(identityIds, key, loaded);
+        return loaded;
+    }
+
+    public CompletableFuture<String> identityIdAsync(String key, Supplier<CompletableFuture<String>> loader){
+        String identityId=get(identityIds, key);
+        if(identityId!=null){
+            return CompletableFuture.completedFuture(identityId);
+        }
+        return loader.get().thenApply(loaded->{
+            put(identityIds, key, loaded);
+            return loaded;
+        });
+    }
+
+    public void invalidate(String key){
+        lock.lock();
+        try{
+            entries.remove(key);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private <V> V get(LinkedHashMap<String,V> map,String key){
+        lock.lock();
+        try{
+            return map.get(key);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private <V> void put(LinkedHashMap<String,V> map,String key,V value){
+        lock.lock();
+        try{
+            map.put(key, value);
+            Iterator<String> eldest=map.keySet().iterator();
+            while(map.size()>maxEntries && eldest.hasNext()){
+                eldest.next();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void refresh(String key, Supplier<CompletableFuture<Credentials>> loader){
+        load(key, loader).whenComplete((loaded,error)->{
+            // on failure the id token may have expired as well, the entry is dropped once it expires
+            if(error==null){
+                refreshes.incrementAndGet();
+            }
+        });
+    }
+
+    private CompletableFuture<Entry> load(String key, Supplier<CompletableFuture<Credentials>> loader){
+        CompletableFuture<Entry> mine=new CompletableFuture<>();
+        CompletableFuture<Entry> existing=inFlight.putIfAbsent(key, mine);
+        if(existing!=null){
+            return existing;
+        }
+        CompletableFuture<Credentials> source;
+        try{
+            source=loader.get();
+        }catch(RuntimeException e){
+            source=CompletableFuture.failedFuture(e);
+        }
+        source.whenComplete((credentials,error)->{
+            if(error!=null){
+                inFlight.remove(key, mine);
+                mine.completeExceptionally(error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error);
+                return;
+            }
+            Entry entry=new Entry(credentials);
+            put(entries, key, entry);
+            inFlight.remove(key, mine);
+            mine.complete(entry);
+        });
+        return mine;
+    }
+
+    private static <T> T join(CompletableFuture<T> future){
+        try{
+            return future.join();
+        }catch(CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+        }
+    }
+
+    void evictExpired(){
+        Instant now=Instant.now();
+        lock.lock();
+        try{
+            entries.values().removeIf(entry->now.isAfter(entry.expiration));
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size(){
+        lock.lock();
+        try{
+            return entries.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        executor.shutdownNow();
+    }
+
+    private static String sha256(String value){
+        try{
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+
+        private final AwsSessionCredentials credentials;
+        private final Instant expiration;
+
+        Entry(Credentials credentials){
+            this.credentials=AwsSessionCredentials.builder()
+                .accessKeyId(credentials.accessKeyId())
+                .secretAccessKey(credentials.secretKey())
+                .sessionToken(credentials.sessionToken())
+                .expirationTime(credentials.expiration())
+                .build();
+            this.expiration=credentials.expiration();
+        }
+    }
+}
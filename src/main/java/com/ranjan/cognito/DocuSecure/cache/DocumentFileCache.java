@@ -0,0 +1,375 @@
+package com.ranjan.cognito.DocuSecure.cache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+
+import jakarta.annotation.PostConstruct;
+import software.amazon.awssdk.http.Abortable;
+
+/**
+ * Local disk tier for hot documents, keyed by user and document id.
+ * A body is only admitted once the document has been asked for {@code admitAfter} times, so one-off
+ * downloads don't push out the shared documents that make up most of the traffic. It is written while
+ * the first admitted download streams to the client, so admission costs no extra S3 transfer.
+ * Entries are evicted least recently used first once the total size passes {@code maxBytes}.
+ * The index lives in memory, files left in the directory by a previous run are removed at startup.
+ * Callers validate an entry against the document row and the current S3 ETag before serving it.
+ */
+@Component
+public class DocumentFileCache {
+
+    @Value("${docusecure.download.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${docusecure.download.cache.directory:${java.io.tmpdir}/docusecure-cache}")
+    private Path directory;
+
+    @Value("${docusecure.download.cache.maxBytes:1GB}")
+    private DataSize maxBytes;
+
+    @Value("${docusecure.download.cache.maxEntryBytes:128MB}")
+    private DataSize maxEntryBytes;
+
+    @Value("${docusecure.download.cache.admitAfter:2}")
+    private int admitAfter;
+
+    @Value("${docusecure.download.cache.maxTracked:100000}")
+    private int maxTracked;
+
+    private final ReentrantLock lock=new ReentrantLock();
+    private final LinkedHashMap<String,CachedDocument> entries=new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String,Integer> frequencies=new ConcurrentHashMap<>();
+    private long totalBytes;
+
+    private final AtomicLong hits=new AtomicLong();
+    private final AtomicLong misses=new AtomicLong();
+    private final AtomicLong bytesSaved=new AtomicLong();
+    private final AtomicLong admissions=new AtomicLong();
+    private final AtomicLong evictions=new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        if(!enabled){
+            return;
+        }
+        Files.createDirectories(directory);
+        try(Stream<Path> leftovers=Files.list(directory)){
+            leftovers.forEach(DocumentFileCache::delete);
+        }
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Returns the cached document, or null. Every lookup counts towards the document's admission.
+     */
+    public CachedDocument lookup(String userId,String documentId){
+        if(!enabled){
+            return null;
+        }
+        String key=key(userId, documentId);
+        if(frequencies.size()>=maxTracked){
+            frequencies.clear();
+        }
+        frequencies.merge(key, 1, Integer::sum);
+        CachedDocument cached;
+        lock.lock();
+        try{
+            cached=entries.get(key);
+        }finally{
+            lock.unlock();
+        }
+        if(cached==null){
+            misses.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Records that a cached document was validated and served, {@code bytes} is what S3 did not have to send.
+     */
+    public void served(long bytes){
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(bytes);
+    }
+
+    public FileChannel open(CachedDocument cached) throws IOException {
+        return FileChannel.open(cached.getFile(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Wraps the content stream of a full download so the body is written to the cache as the client reads it,
+     * if the document is hot enough and small enough to be worth keeping. The entry is only published once
+     * the whole body has been read.
+     */
+    public void admit(String userId,String documentId,DocumentResponseTO document){
+        if(!enabled || document.getContentStream()==null || document.getContentRange()!=null || document.getRanges()!=null
+                || document.getEtag()==null || document.getContentLength()==null || document.getContentLength()>maxEntryBytes.toBytes()){
+            return;
+        }
+        String key=key(userId, documentId);
+        if(frequencies.getOrDefault(key, 0)<admitAfter){
+            return;
+        }
+        try{
+            Path temp=Files.createTempFile(directory, fileName(key), ".part");
+            CachedDocument pending=new CachedDocument(document.getFileName(), document.getFileType(), document.getFilePath(),
+                        document.getEtag(), document.getLastModified(), document.getContentLength(), directory.resolve(fileName(key)),
+                        document.getCodec(), document.getOriginalSize(), document.getEncryption());
+            document.setContentStream(new CachingInputStream(document.getContentStream(), temp, key, pending));
+        }catch(IOException e){
+            //A full or broken disk only costs us the cache
+        }
+    }
+
+    public void invalidate(String userId,String documentId){
+        String key=key(userId, documentId);
+        CachedDocument removed;
+        lock.lock();
+        try{
+            removed=entries.remove(key);
+            if(removed!=null){
+                totalBytes-=removed.getSize();
+            }
+        }finally{
+            lock.unlock();
+        }
+        if(removed!=null){
+            delete(removed.getFile());
+        }
+    }
+
+    private void publish(String key,Path temp,CachedDocument cached){
+        lock.lock();
+        try{
+            //Readers that already opened a replaced file keep reading the old one
+            Files.move(temp, cached.getFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            CachedDocument previous=entries.put(key, cached);
+            if(previous!=null){
+                totalBytes-=previous.getSize();
+            }
+            totalBytes+=cached.getSize();
+            admissions.incrementAndGet();
+            Iterator<Map.Entry<String,CachedDocument>> eldest=entries.entrySet().iterator();
+            while(totalBytes>maxBytes.toBytes() && eldest.hasNext()){
+                Map.Entry<String,CachedDocument> next=eldest.next();
+                eldest.remove();
+                totalBytes-=next.getValue().getSize();
+                evictions.incrementAndGet();
+                delete(next.getValue().getFile());
+            }
+        }catch(IOException e){
+            delete(temp);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long total=hits.get()+misses.get();
+        return total==0 ? 0 : (double)hits.get()/total;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getTotalBytes() {
+        lock.lock();
+        try{
+            return totalBytes;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private static String key(String userId,String documentId){
+        return userId+":"+documentId;
+    }
+
+    private static String fileName(String key){
+        try{
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void delete(Path file){
+        try{
+            Files.deleteIfExists(file);
+        }catch(IOException e){
+            //Left for the cleanup at the next startup
+        }
+    }
+
+    /**
+     * Copies what the client reads into the cache file. Abort and early close discard the partial file.
+     */
+    private final class CachingInputStream extends FilterInputStream implements Abortable {
+
+        private final Path temp;
+        private final String key;
+        private final CachedDocument pending;
+        private OutputStream file;
+        private long written;
+        private boolean finished;
+
+        CachingInputStream(InputStream content,Path temp,String key,CachedDocument pending) throws IOException {
+            super(content);
+            this.temp=temp;
+            this.key=key;
+            this.pending=pending;
+            this.file=Files.newOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single=new byte[1];
+            int read=read(single, 0, 1);
+            return read==-1 ? -1 : single[0]&0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer,int offset,int length) throws IOException {
+            int read=super.read(buffer, offset, length);
+            if(file!=null){
+                try{
+                    if(read==-1){
+                        finish();
+                    }else{
+                        file.write(buffer, offset, read);
+                        written+=read;
+                    }
+                }catch(IOException e){
+                    discard();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            discard();
+            return super.skip(n);
+        }
+
+        private void finish() throws IOException {
+            file.close();
+            file=null;
+            finished=true;
+            if(written==pending.getSize()){
+                publish(key, temp, pending);
+            }else{
+                delete(temp);
+            }
+        }
+
+        private void discard(){
+            if(file!=null){
+                try{
+                    file.close();
+                }catch(IOException e){
+                    //discarded anyway
+                }
+                file=null;
+            }
+            if(!finished){
+                finished=true;
+                delete(temp);
+            }
+        }
+
+        @Override
+        public void abort() {
+            discard();
+            if(in instanceof Abortable){
+                ((Abortable)in).abort();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            discard();
+            super.close();
+        }
+    }
+
+    /**
+     * Reads a region of a cached file, used for the parts of multi range responses.
+     */
+    public static InputStream region(FileChannel channel,long start,long length){
+        return new InputStream() {
+            private long position=start;
+            private final long end=start+length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single=new byte[1];
+                int read=read(single, 0, 1);
+                return read==-1 ? -1 : single[0]&0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer,int offset,int count) throws IOException {
+                if(position>=end){
+                    return -1;
+                }
+                int read=channel.read(ByteBuffer.wrap(buffer, offset, (int)Math.min(count, end-position)), position);
+                if(read>0){
+                    position+=read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,134 @@
+package com.ranjan.cognito.DocuSecure.cache;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process cache of document listings, keyed by user and then by listing view
+ * (the full list or a particular page). Listings only change through our own upload path,
+ * which invalidates the user's entry, so the TTL is only a safety net for rows written elsewhere.
+ * The number of users held is bounded and the least recently used user is evicted first.
+ */
+@Component
+public class ListingCache {
+
+    private static final int MAX_VIEWS_PER_USER=64;
+
+    @Value("${docusecure.listing.cache.maxUsers:10000}")
+    private int maxUsers;
+
+    @Value("${docusecure.listing.cache.ttl:5m}")
+    private Duration ttl;
+
+    private final ReentrantLock lock=new ReentrantLock();
+    private final LinkedHashMap<String,UserListings> users=new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits=new AtomicLong();
+    private final AtomicLong misses=new AtomicLong();
+    private final AtomicLong evictions=new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String userId,String view,Supplier<T> loader){
+        UserListings listings=listings(userId);
+        Object cached=listings.views.get(view);
+        if(cached!=null){
+            hits.incrementAndGet();
+            return (T)cached;
+        }
+        misses.incrementAndGet();
+        T loaded=loader.get();
+        //If the user was invalidated while loading, this lands in a detached entry and is never served
+        if(listings.views.size()>=MAX_VIEWS_PER_USER){
+            listings.views.clear();
+        }
+        listings.views.put(view, loaded);
+        return loaded;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> getAsync(String userId,String view,Supplier<CompletableFuture<T>> loader){
+        UserListings listings=listings(userId);
+        Object cached=listings.views.get(view);
+        if(cached!=null){
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture((T)cached);
+        }
+        misses.incrementAndGet();
+        return loader.get().thenApply(loaded->{
+            if(listings.views.size()>=MAX_VIEWS_PER_USER){
+                listings.views.clear();
+            }
+            listings.views.put(view, loaded);
+            return loaded;
+        });
+    }
+
+    public void invalidate(String userId){
+        lock.lock();
+        try{
+            users.remove(userId);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private UserListings listings(String userId){
+        long now=System.nanoTime();
+        lock.lock();
+        try{
+            UserListings listings=users.get(userId);
+            if(listings==null || now-listings.createdAt>ttl.toNanos()){
+                listings=new UserListings(now);
+                users.put(userId, listings);
+                while(users.size()>maxUsers){
+                    Map.Entry<String,UserListings> eldest=users.entrySet().iterator().next();
+                    users.remove(eldest.getKey());
+                    evictions.incrementAndGet();
+                }
+            }
+            return listings;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size(){
+        lock.lock();
+        try{
+            return users.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private static final class UserListings {
+
+        private final long createdAt;
+        private final Map<String,Object> views=new ConcurrentHashMap<>();
+
+        UserListings(long createdAt){
+            this.createdAt=createdAt;
+        }
+    }
+}
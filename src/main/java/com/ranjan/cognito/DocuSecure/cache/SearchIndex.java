@@ -0,0 +1,274 @@
+package com.ranjan.cognito.DocuSecure.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.to.SearchCriteria;
+
+/**
+ * In-process search index of document metadata, per user a map sorted by lower-cased file name so a
+ * prefix search is a range lookup. A user's index is filled once, in the background, after their first
+ * search, and from then on kept current by our own upload and delete paths. Until it is ready, and for
+ * users with more than {@code maxDocuments} documents, searches go to the DynamoDB secondary indexes.
+ * The TTL only guards against rows written elsewhere, the least recently searched user is evicted first.
+ */
+@Component
+public class SearchIndex {
+
+    private static final char SEPARATOR='\u0000';
+    private static final Comparator<SearchHit> NEWEST_FIRST=Comparator.comparing(SearchHit::getUploadedAt,
+                    Comparator.nullsLast(Comparator.reverseOrder()));
+
+    @Value("${docusecure.search.index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${docusecure.search.index.maxUsers:1000}")
+    private int maxUsers;
+
+    @Value("${docusecure.search.index.maxDocuments:50000}")
+    private int maxDocuments;
+
+    @Value("${docusecure.search.index.ttl:30m}")
+    private Duration ttl;
+
+    private final ReentrantLock lock=new ReentrantLock();
+    private final LinkedHashMap<String,UserIndex> users=new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits=new AtomicLong();
+    private final AtomicLong misses=new AtomicLong();
+    private final AtomicLong evictions=new AtomicLong();
+
+    /**
+     * Answers from memory when the user's index is ready, otherwise returns null and starts filling it
+     * with the loader unless that is already under way.
+     */
+    public List<SearchHit> search(String userId,SearchCriteria criteria,int limit,Supplier<CompletableFuture<List<SearchHit>>> loader){
+        if(!enabled){
+            return null;
+        }
+        UserIndex index;
+        boolean load=false;
+        long now=System.nanoTime();
+        lock.lock();
+        try{
+            index=users.get(userId);
+            if(index==null || now-index.createdAt>ttl.toNanos()){
+                index=new UserIndex(now);
+                users.put(userId, index);
+                load=true;
+                while(users.size()>maxUsers){
+                    Map.Entry<String,UserIndex> eldest=users.entrySet().iterator().next();
+                    users.remove(eldest.getKey());
+                    evictions.incrementAndGet();
+                }
+            }
+        }finally{
+            lock.unlock();
+        }
+        if(index.ready && !index.oversized){
+            hits.incrementAndGet();
+            return index.search(criteria, limit);
+        }
+        misses.incrementAndGet();
+        if(load){
+            fill(userId, index, loader);
+        }
+        return null;
+    }
+
+    private void fill(String userId,UserIndex index,Supplier<CompletableFuture<List<SearchHit>>> loader){
+        CompletableFuture<List<SearchHit>> loaded;
+        try{
+            loaded=loader.get();
+        }catch(RuntimeException e){
+            discard(userId, index);
+            return;
+        }
+        loaded.whenComplete((documents,error)->{
+            if(error!=null){
+                discard(userId, index);
+                return;
+            }
+            index.fill(documents, maxDocuments);
+        });
+    }
+
+    //A failed fill is forgotten so the next search tries again
+    private void discard(String userId,UserIndex index){
+        lock.lock();
+        try{
+            users.remove(userId, index);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public void add(String userId,SearchHit hit){
+        UserIndex index=peek(userId);
+        if(index!=null){
+            index.put(hit);
+        }
+    }
+
+    public void remove(String userId,String documentId){
+        UserIndex index=peek(userId);
+        if(index!=null){
+            index.remove(documentId);
+        }
+    }
+
+    private UserIndex peek(String userId){
+        lock.lock();
+        try{
+            return users.get(userId);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size(){
+        lock.lock();
+        try{
+            return users.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private static String sortKey(SearchHit hit){
+        return (hit.getName()==null ? "" : hit.getName().toLowerCase(Locale.ROOT))+SEPARATOR+hit.getFileId();
+    }
+
+    /**
+     * Writes that arrive while the index is being filled are applied straight away, the fill then only adds
+     * documents it has not seen written or deleted meanwhile.
+     */
+    private static final class UserIndex {
+
+        private final long createdAt;
+        private final ReentrantLock lock=new ReentrantLock();
+        private final ConcurrentSkipListMap<String,SearchHit> byName=new ConcurrentSkipListMap<>();
+        private final Map<String,String> keysById=new ConcurrentHashMap<>();
+        private final Set<String> deletedWhileFilling=new HashSet<>();
+        private volatile boolean ready;
+        private volatile boolean oversized;
+
+        UserIndex(long createdAt){
+            this.createdAt=createdAt;
+        }
+
+        void fill(List<SearchHit> documents,int maxDocuments){
+            lock.lock();
+            try{
+                if(documents.size()>maxDocuments){
+                    oversized=true;
+                    byName.clear();
+                    keysById.clear();
+                }else{
+                    for(SearchHit hit:documents){
+                        if(!deletedWhileFilling.contains(hit.getFileId()) && !keysById.containsKey(hit.getFileId())){
+                            index(hit);
+                        }
+                    }
+                }
+                deletedWhileFilling.clear();
+                ready=true;
+            }finally{
+                lock.unlock();
+            }
+        }
+
+        void put(SearchHit hit){
+            lock.lock();
+            try{
+                if(!oversized){
+                    String previous=keysById.get(hit.getFileId());
+                    if(previous!=null){
+                        byName.remove(previous);
+                    }
+                    index(hit);
+                }
+            }finally{
+                lock.unlock();
+            }
+        }
+
+        void remove(String documentId){
+            lock.lock();
+            try{
+                String key=keysById.remove(documentId);
+                if(key!=null){
+                    byName.remove(key);
+                }
+                if(!ready){
+                    deletedWhileFilling.add(documentId);
+                }
+            }finally{
+                lock.unlock();
+            }
+        }
+
+        private void index(SearchHit hit){
+            String key=sortKey(hit);
+            byName.put(key, hit);
+            keysById.put(hit.getFileId(), key);
+        }
+
+        /**
+         * Name matches come back in file name order, searches without a name prefix newest first.
+         */
+        List<SearchHit> search(SearchCriteria criteria,int limit){
+            if(criteria.hasPrefix()){
+                List<SearchHit> found=new ArrayList<>();
+                for(SearchHit hit:byName.subMap(criteria.getPrefix(), criteria.getPrefix()+Character.MAX_VALUE).values()){
+                    if(criteria.matches(hit)){
+                        found.add(hit);
+                        if(found.size()>=limit){
+                            break;
+                        }
+                    }
+                }
+                return found;
+            }
+            return byName.values().stream()
+                        .filter(criteria::matches)
+                        .sorted(NEWEST_FIRST)
+                        .limit(limit)
+                        .collect(Collectors.toList());
+        }
+    }
+}
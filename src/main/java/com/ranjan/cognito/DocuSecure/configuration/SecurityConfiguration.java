@@ -4,8 +4,11 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.autoconfigure.web.server.ManagementPortType;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
@@ -21,6 +24,10 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 @EnableWebSecurity
 
 public class SecurityConfiguration {
+
+    @Autowired
+    private Environment environment;
+
      @Bean
     public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
         
@@ -38,7 +45,14 @@ public class SecurityConfiguration {
                                     "/error",
                                     "/swagger-ui/**",
                                     "/v3/api-docs/**",
-                                    "/swagger-ui.html").permitAll();
+                                    "/swagger-ui.html",
+                                    "/actuator/health").permitAll();
+                //Metrics are open only on a separate management port, which the application port never serves
+                if(ManagementPortType.get(environment)==ManagementPortType.DIFFERENT){
+                    c.requestMatchers("/actuator/prometheus").permitAll();
+                }else{
+                    c.requestMatchers("/actuator/prometheus").authenticated();
+                }
                 c.requestMatchers(
                                             "/upload",
                                             "/download/**",
@@ -59,6 +73,7 @@ public class SecurityConfiguration {
         configuration.setAllowedOrigins(Arrays.asList("http://localhost:5173"));
         configuration.setAllowedMethods(Arrays.asList("GET", "POST", "PUT", "DELETE"));
         configuration.setAllowedHeaders(Arrays.asList("Authorization", "Content-Type"));
+        configuration.setExposedHeaders(Arrays.asList("X-Next-Page-Token"));
         configuration.setAllowCredentials(true);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
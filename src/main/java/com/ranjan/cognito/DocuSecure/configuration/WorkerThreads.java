@@ -0,0 +1,47 @@
+package com.ranjan.cognito.DocuSecure.configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the executors our services hand blocking SDK calls to. When {@code spring.threads.virtual.enabled}
+ * is set and the runtime is Java 21 or later, Tomcat already serves requests on virtual threads and these
+ * executors start a virtual thread per task too. Concurrency is then bounded by the callers' own lanes,
+ * semaphores and buffer pools instead of by a pool size. Otherwise each executor is a fixed pool of daemon
+ * platform threads. The project still builds for Java 17, so the Java 21 executor is looked up reflectively.
+ */
+@Component
+public class WorkerThreads {
+
+    @Autowired
+    private Environment environment;
+
+    public boolean isVirtual(){
+        return Threading.VIRTUAL.isActive(environment);
+    }
+
+    public ExecutorService newExecutor(String namePrefix,int platformThreads){
+        if(isVirtual()){
+            ThreadFactory factory=new VirtualThreadTaskExecutor(namePrefix).getVirtualThreadFactory();
+            try{
+                return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+            }catch(ReflectiveOperationException e){
+                throw new IllegalStateException("Virtual threads need a Java 21 runtime", e);
+            }
+        }
+        AtomicInteger threadCount=new AtomicInteger();
+        return Executors.newFixedThreadPool(platformThreads, r->{
+            Thread thread=new Thread(r,namePrefix+threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
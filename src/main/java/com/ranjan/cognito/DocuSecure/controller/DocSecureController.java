@@ -5,6 +5,7 @@ import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,16 +21,28 @@ import org.springframework.security.oauth2.core.oidc.user.OidcUser;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.util.MimeType;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.nimbusds.jose.proc.SecurityContext;
+import com.ranjan.cognito.DocuSecure.exception.DeadlineExceededException;
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.exception.OverloadedException;
+import com.ranjan.cognito.DocuSecure.exception.RangeNotSatisfiableException;
+import com.ranjan.cognito.DocuSecure.handler.DownloadResponseHandler;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
 import com.ranjan.cognito.DocuSecure.service.AwsService;
 import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentPage;
+import com.ranjan.cognito.DocuSecure.to.Deadline;
 import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -37,6 +50,7 @@ import jakarta.servlet.http.HttpSession;
 import lombok.Getter;
 import lombok.Setter;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
 
 
 @Controller
@@ -47,9 +61,21 @@ public class DocSecureController {
     @Autowired
     private AwsService awsService;
 
+    @Autowired
+    private DownloadResponseHandler downloadResponseHandler;
+
+    @Autowired
+    private DocumentMetrics metrics;
+
     @Value("${docusecure.bucketName}")
     private String bucketName;
 
+    @Value("${docusecure.listing.webPageSize:50}")
+    private int pageSize;
+
+    @Value("${docusecure.download.deadline:10s}")
+    private Duration downloadDeadline;
+
     private String controllerType="WEB";
     
     @GetMapping("/custom-logout")
@@ -69,7 +95,8 @@ public class DocSecureController {
     }
 
     @GetMapping("/")
-    public String getFileList(Model model, @AuthenticationPrincipal OidcUser oidcUser) {
+    public String getFileList(Model model, @AuthenticationPrincipal OidcUser oidcUser,
+                              @RequestParam(value = "pageToken", required = false) String pageToken) {
         
         if (oidcUser == null) {
             return "redirect:/oauth2/authorization/cognito";
@@ -79,16 +106,22 @@ public class DocSecureController {
         String username=oidcUser.getEmail();
         AwsSessionCredentials sessionCredentials=awsService.getTemporaryCredentials(idToken,controllerType);
         String userId=SecurityContextHolder.getContext().getAuthentication().getName();
-        List<DocumentDetails> fileList=awsService.listS3Objects(bucketName,userId, sessionCredentials);
+        DocumentPage page;
+        try{
+            page=metrics.time(DocumentMetrics.LIST, controllerType, ()->awsService.listDocuments(userId, sessionCredentials, pageSize, pageToken));
+        }catch(IllegalArgumentException e){
+            return "redirect:/";
+        }
         model.addAttribute("username", username);
-        model.addAttribute("fileList", fileList);
+        model.addAttribute("fileList", page.getDocuments());
+        model.addAttribute("nextPageToken", page.getNextPageToken());
 
         return "home";
     }
 
     @GetMapping("/download/{documentId}")
-    public ResponseEntity<byte[]> download(Model model, @AuthenticationPrincipal OidcUser oidcUser
-                             ,@PathVariable("documentId") String  documentId) {
+    public ResponseEntity<StreamingResponseBody> download(Model model, @AuthenticationPrincipal OidcUser oidcUser
+                             ,@PathVariable("documentId") String  documentId, @RequestHeader HttpHeaders requestHeaders) {
         
         if (oidcUser == null) {
             HttpHeaders headers = new HttpHeaders();
@@ -97,16 +130,22 @@ public class DocSecureController {
         }
 
         String idToken=oidcUser.getIdToken().getTokenValue();
+        DownloadOptions options=downloadResponseHandler.downloadOptions(requestHeaders);
+        options.setDeadline(Deadline.after(downloadDeadline));
     
         AwsSessionCredentials sessionCredentials=awsService.getTemporaryCredentials(idToken,controllerType);
         String userId=SecurityContextHolder.getContext().getAuthentication().getName();
-        DocumentResponseTO documentResponseTO=awsService.download(documentId, bucketName, userId, sessionCredentials);
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_PDF);
-        headers.setContentDisposition(ContentDisposition.attachment().filename(documentResponseTO.getFileName()).build());
-
-        return new ResponseEntity<>(documentResponseTO.getContent(), headers, HttpStatus.OK);
+        try{
+            DocumentResponseTO documentResponseTO=metrics.time(DocumentMetrics.DOWNLOAD, controllerType, ()->awsService.openDownload(documentId,
+                                                bucketName, userId, sessionCredentials, options));
+            return downloadResponseHandler.toResponse(documentResponseTO);
+        }catch(DocumentNotFoundException e){
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }catch(RangeNotSatisfiableException e){
+            return downloadResponseHandler.rangeNotSatisfiable(e.getContentLength());
+        }catch(DeadlineExceededException|ApiCallTimeoutException e){
+            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).build();
+        }
     }
 
     @PostMapping("/upload")
@@ -122,13 +161,21 @@ public class DocSecureController {
     
         AwsSessionCredentials sessionCredentials=awsService.getTemporaryCredentials(idToken,controllerType);
         
-        awsService.upload(multipartFile, bucketName, userId, sessionCredentials);
+        metrics.timeIO(DocumentMetrics.UPLOAD, controllerType, ()->awsService.upload(multipartFile, bucketName, userId, sessionCredentials));
 
-        List<DocumentDetails> fileList=awsService.listS3Objects(bucketName,userId, sessionCredentials);
-        model.addAttribute("fileList", fileList);
+        DocumentPage page=awsService.listDocuments(userId, sessionCredentials, pageSize, null);
+        model.addAttribute("fileList", page.getDocuments());
+        model.addAttribute("nextPageToken", page.getNextPageToken());
 
         return "home";
     }
-    
+
+    //A bulkhead is full, the browser is told when to try again instead of waiting on a dependency that is already slow
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<Void> overloaded(OverloadedException e){
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, e.getRetryAfter().toSeconds())))
+                    .build();
+    }
     
 }
@@ -0,0 +1,8 @@
+package com.ranjan.cognito.DocuSecure.exception;
+
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String operation) {
+        super("Deadline passed before "+operation+" could be sent");
+    }
+}
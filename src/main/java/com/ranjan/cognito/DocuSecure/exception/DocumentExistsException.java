@@ -0,0 +1,8 @@
+package com.ranjan.cognito.DocuSecure.exception;
+
+public class DocumentExistsException extends RuntimeException {
+
+    public DocumentExistsException(String documentId) {
+        super("Document already exists: "+documentId);
+    }
+}
@@ -0,0 +1,8 @@
+package com.ranjan.cognito.DocuSecure.exception;
+
+public class DocumentNotFoundException extends RuntimeException {
+
+    public DocumentNotFoundException(String documentId) {
+        super("Document not found: "+documentId);
+    }
+}
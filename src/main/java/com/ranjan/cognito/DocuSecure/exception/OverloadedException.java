@@ -0,0 +1,18 @@
+package com.ranjan.cognito.DocuSecure.exception;
+
+import java.time.Duration;
+
+import lombok.Getter;
+
+@Getter
+public class OverloadedException extends RuntimeException {
+
+    private final String dependency;
+    private final Duration retryAfter;
+
+    public OverloadedException(String dependency,Duration retryAfter) {
+        super("Too many concurrent "+dependency+" calls, retry later");
+        this.dependency=dependency;
+        this.retryAfter=retryAfter;
+    }
+}
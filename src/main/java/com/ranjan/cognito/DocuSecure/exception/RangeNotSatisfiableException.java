@@ -0,0 +1,14 @@
+package com.ranjan.cognito.DocuSecure.exception;
+
+import lombok.Getter;
+
+@Getter
+public class RangeNotSatisfiableException extends RuntimeException {
+
+    private final long contentLength;
+
+    public RangeNotSatisfiableException(long contentLength) {
+        super("Requested range not satisfiable, length is "+contentLength);
+        this.contentLength=contentLength;
+    }
+}
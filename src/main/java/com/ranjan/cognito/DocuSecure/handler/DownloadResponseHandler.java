@@ -0,0 +1,266 @@
+package com.ranjan.cognito.DocuSecure.handler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.to.DocumentRange;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+
+import software.amazon.awssdk.http.Abortable;
+
+/**
+ * Turns an opened document into a streamed response shared by the web and REST controllers.
+ * The S3 body is copied to the servlet output through a fixed size buffer so memory per
+ * download does not depend on the document size. Byte ranges are answered with 206, several
+ * ranges as a multipart/byteranges body.
+ */
+@Component
+public class DownloadResponseHandler {
+
+    @Autowired
+    private DocumentMetrics metrics;
+
+    @Value("${docusecure.download.bufferSize:65536}")
+    private int bufferSize;
+
+    @Value("${docusecure.download.maxRanges:16}")
+    private int maxRanges;
+
+    /**
+     * Reads the validators and ranges a client sent with a download request. A malformed Range or If-Range,
+     * or more ranges than we are willing to serve, is ignored and the whole document is sent.
+     */
+    public DownloadOptions downloadOptions(HttpHeaders requestHeaders){
+        DownloadOptions options=new DownloadOptions();
+        options.setIfNoneMatch(requestHeaders.getIfNoneMatch());
+        long ifModifiedSince=requestHeaders.getIfModifiedSince();
+        if(ifModifiedSince>=0){
+            options.setIfModifiedSince(Instant.ofEpochMilli(ifModifiedSince));
+        }
+        List<HttpRange> ranges;
+        try{
+            ranges=requestHeaders.getRange();
+        }catch(IllegalArgumentException e){
+            ranges=List.of();
+        }
+        if(ranges.size()>maxRanges){
+            ranges=List.of();
+        }
+        String ifRange=requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if(ifRange!=null && !ranges.isEmpty()){
+            if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+                options.setIfRangeEtag(ifRange);
+            }else{
+                try{
+                    options.setIfRangeDate(requestHeaders.getFirstZonedDateTime(HttpHeaders.IF_RANGE).toInstant());
+                }catch(IllegalArgumentException e){
+                    ranges=List.of();
+                }
+            }
+        }
+        options.setRanges(ranges);
+        options.setAcceptsDeflate(acceptsDeflate(requestHeaders.get(HttpHeaders.ACCEPT_ENCODING)));
+        return options;
+    }
+
+    public ResponseEntity<StreamingResponseBody> toResponse(DocumentResponseTO document){
+
+        HttpHeaders headers = new HttpHeaders();
+        validators(document, headers);
+        if(document.isNotModified()){
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setContentDisposition(ContentDisposition.attachment().filename(document.getFileName()).build());
+        if(document.getContentEncoding()!=null){
+            headers.set(HttpHeaders.CONTENT_ENCODING, document.getContentEncoding());
+        }
+        MediaType contentType=mediaType(document.getFileType());
+        if(document.getRanges()!=null){
+            return multipartRanges(document, contentType, headers);
+        }
+        headers.setContentType(contentType);
+        if(document.getContentLength()!=null){
+            headers.setContentLength(document.getContentLength());
+        }
+
+        StreamingResponseBody body;
+        if(document.getContentFile()!=null){
+            body=out->transfer(document.getContentFile(), document.getContentOffset(), document.getContentLength(), out);
+        }else{
+            InputStream content=document.getContentStream();
+            body=out->copy(content, out);
+        }
+        if(document.getContentRange()!=null){
+            headers.set(HttpHeaders.CONTENT_RANGE, document.getContentRange());
+            return new ResponseEntity<>(body, headers, HttpStatus.PARTIAL_CONTENT);
+        }
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    public <T> ResponseEntity<T> rangeNotSatisfiable(long contentLength){
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */"+contentLength)
+                    .build();
+    }
+
+    /**
+     * multipart/byteranges body, each part is fetched from S3 only once the previous one has been written.
+     */
+    private ResponseEntity<StreamingResponseBody> multipartRanges(DocumentResponseTO document, MediaType contentType, HttpHeaders headers){
+        String boundary=MimeTypeUtils.generateMultipartBoundaryString();
+        List<byte[]> partHeaders=new ArrayList<>();
+        long contentLength=0;
+        for(DocumentRange range:document.getRanges()){
+            byte[] partHeader=("\r\n--"+boundary+"\r\n"
+                        +HttpHeaders.CONTENT_TYPE+": "+contentType+"\r\n"
+                        +HttpHeaders.CONTENT_RANGE+": bytes "+range.getStart()+"-"+range.getEnd()+"/"+document.getTotalLength()+"\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength+=partHeader.length+range.getEnd()-range.getStart()+1;
+        }
+        byte[] closing=("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.US_ASCII);
+        headers.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary="+boundary));
+        headers.setContentLength(contentLength+closing.length);
+
+        return new ResponseEntity<>(out->{
+            for(int i=0;i<document.getRanges().size();i++){
+                out.write(partHeaders.get(i));
+                InputStream content;
+                try{
+                    content=document.getRanges().get(i).getContent().get();
+                }catch(CompletionException | UncheckedIOException e){
+                    throw new IOException("Failed to fetch range", e.getCause());
+                }
+                copy(content, out);
+            }
+            out.write(closing);
+            out.flush();
+        }, headers, HttpStatus.PARTIAL_CONTENT);
+    }
+
+    public void copy(InputStream content, OutputStream out) throws IOException {
+        boolean completed=false;
+        metrics.transferStarted(DocumentMetrics.DOWNLOAD);
+        try{
+            byte[] buffer=new byte[bufferSize];
+            int read;
+            while((read=content.read(buffer))!=-1){
+                out.write(buffer, 0, read);
+                metrics.bytesDownloaded(read);
+            }
+            out.flush();
+            completed=true;
+        }finally{
+            metrics.transferEnded(DocumentMetrics.DOWNLOAD);
+            //Don't drain the rest of an object the client no longer wants, drop the connection instead
+            if(!completed && content instanceof Abortable){
+                ((Abortable)content).abort();
+            }
+            content.close();
+        }
+    }
+
+    /**
+     * Serves a region of a locally cached document. The servlet output is not a channel, so the bytes still pass through a heap buffer.
+     */
+    public void transfer(FileChannel file, long position, long count, OutputStream out) throws IOException {
+        metrics.transferStarted(DocumentMetrics.DOWNLOAD);
+        try(file){
+            WritableByteChannel target=Channels.newChannel(out);
+            long end=position+count;
+            while(position<end){
+                long sent=file.transferTo(position, end-position, target);
+                if(sent<=0){
+                    throw new EOFException("Cached document is shorter than expected");
+                }
+                position+=sent;
+                metrics.bytesDownloaded(sent);
+            }
+            out.flush();
+        }finally{
+            metrics.transferEnded(DocumentMetrics.DOWNLOAD);
+        }
+    }
+
+    private static boolean acceptsDeflate(List<String> acceptEncoding){
+        if(acceptEncoding==null){
+            return false;
+        }
+        for(String header:acceptEncoding){
+            for(String coding:header.split(",")){
+                String[] parts=coding.trim().split(";");
+                String name=parts[0].trim();
+                if(!name.equalsIgnoreCase("deflate") && !name.equals("*")){
+                    continue;
+                }
+                boolean refused=false;
+                for(int i=1;i<parts.length;i++){
+                    String parameter=parts[i].trim();
+                    if(parameter.startsWith("q=")){
+                        try{
+                            refused=Double.parseDouble(parameter.substring(2))<=0;
+                        }catch(NumberFormatException e){
+                            refused=true;
+                        }
+                    }
+                }
+                if(!refused){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void validators(DocumentResponseTO document, HttpHeaders headers){
+        //Documents are per user and may be replaced under the same name, so caches keep them private and revalidate
+        headers.setCacheControl(CacheControl.noCache().cachePrivate());
+        //Stored-compressed documents are sent encoded or not depending on the client
+        headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+        if(document.getEtag()!=null){
+            headers.setETag(DownloadOptions.encodedEtag(document.getEtag(), document.getContentEncoding()));
+        }
+        if(document.getLastModified()!=null){
+            headers.setLastModified(document.getLastModified());
+        }
+    }
+
+    private MediaType mediaType(String fileType){
+        if(fileType==null || fileType.isBlank()){
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+        try{
+            return MediaType.parseMediaType(fileType);
+        }catch(InvalidMediaTypeException e){
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+}
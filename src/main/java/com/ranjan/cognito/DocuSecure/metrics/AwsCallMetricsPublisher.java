@@ -0,0 +1,60 @@
+package com.ranjan.cognito.DocuSecure.metrics;
+
+import java.time.Duration;
+import java.util.List;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+/**
+ * Records every SDK API call, including its retries, as a timer tagged by AWS service, operation and outcome.
+ */
+public class AwsCallMetricsPublisher implements MetricPublisher {
+
+    private final MeterRegistry registry;
+
+    public AwsCallMetricsPublisher(MeterRegistry registry){
+        this.registry=registry;
+    }
+
+    @Override
+    public void publish(MetricCollection metrics) {
+        Duration duration=first(metrics, CoreMetric.API_CALL_DURATION);
+        if(duration==null){
+            return;
+        }
+        String service=String.valueOf(first(metrics, CoreMetric.SERVICE_ID));
+        String operation=String.valueOf(first(metrics, CoreMetric.OPERATION_NAME));
+        String outcome=Boolean.TRUE.equals(first(metrics, CoreMetric.API_CALL_SUCCESSFUL)) ? "success" : "error";
+        Timer.builder("docusecure.aws.call")
+                    .description("AWS SDK API calls, retries included")
+                    .tag("service", service)
+                    .tag("operation", operation)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(duration);
+        Integer retries=first(metrics, CoreMetric.RETRY_COUNT);
+        if(retries!=null && retries>0){
+            Counter.builder("docusecure.aws.call.retries")
+                    .tag("service", service)
+                    .tag("operation", operation)
+                    .register(registry)
+                    .increment(retries);
+        }
+    }
+
+    private static <T> T first(MetricCollection metrics,SdkMetric<T> metric){
+        List<T> values=metrics.metricValues(metric);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public void close() {
+    }
+}
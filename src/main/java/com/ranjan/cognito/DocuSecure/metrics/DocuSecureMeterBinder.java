@@ -0,0 +1,110 @@
+package com.ranjan.cognito.DocuSecure.metrics;
+
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.ranjan.cognito.DocuSecure.cache.CredentialCache;
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.service.AdaptiveLimiter;
+import com.ranjan.cognito.DocuSecure.service.AwsClientRegistry;
+import com.ranjan.cognito.DocuSecure.service.BlobService;
+import com.ranjan.cognito.DocuSecure.service.Bulkheads;
+import com.ranjan.cognito.DocuSecure.service.HedgedReads;
+import com.ranjan.cognito.DocuSecure.service.MetadataJournal;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Exposes the statistics our pools and caches already keep as meters, read when the registry is scraped.
+ */
+@Component
+public class DocuSecureMeterBinder implements MeterBinder {
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private CredentialCache credentialCache;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private DocumentFileCache fileCache;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private MetadataJournal journal;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private HedgedReads hedgedReads;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("docusecure.http.pool.max", clientRegistry, r->r.poolStats().getMaxConnections()).register(registry);
+        Gauge.builder("docusecure.http.pool.leased", clientRegistry, r->r.poolStats().getLeasedConnections()).register(registry);
+        Gauge.builder("docusecure.http.pool.available", clientRegistry, r->r.poolStats().getAvailableConnections()).register(registry);
+        Gauge.builder("docusecure.http.pool.pending", clientRegistry, r->r.poolStats().getPendingAcquires()).register(registry);
+
+        cacheCounters(registry, "credentials", credentialCache, CredentialCache::getHits, CredentialCache::getMisses);
+        FunctionCounter.builder("docusecure.cache.refreshes", credentialCache, CredentialCache::getRefreshes).tag("cache", "credentials").register(registry);
+        FunctionCounter.builder("docusecure.cache.evictions", credentialCache, CredentialCache::getEvictions).tag("cache", "credentials").register(registry);
+        Gauge.builder("docusecure.cache.size", credentialCache, CredentialCache::size).tag("cache", "credentials").register(registry);
+
+        cacheCounters(registry, "listing", listingCache, ListingCache::getHits, ListingCache::getMisses);
+        FunctionCounter.builder("docusecure.cache.evictions", listingCache, ListingCache::getEvictions).tag("cache", "listing").register(registry);
+        Gauge.builder("docusecure.cache.size", listingCache, ListingCache::size).tag("cache", "listing").register(registry);
+
+        cacheCounters(registry, "search", searchIndex, SearchIndex::getHits, SearchIndex::getMisses);
+        FunctionCounter.builder("docusecure.cache.evictions", searchIndex, SearchIndex::getEvictions).tag("cache", "search").register(registry);
+        Gauge.builder("docusecure.cache.size", searchIndex, SearchIndex::size).tag("cache", "search").register(registry);
+
+        cacheCounters(registry, "documents", fileCache, DocumentFileCache::getHits, DocumentFileCache::getMisses);
+        FunctionCounter.builder("docusecure.cache.evictions", fileCache, DocumentFileCache::getEvictions).tag("cache", "documents").register(registry);
+        FunctionCounter.builder("docusecure.cache.bytes.saved", fileCache, DocumentFileCache::getBytesSaved).baseUnit("bytes").tag("cache", "documents").register(registry);
+        Gauge.builder("docusecure.cache.bytes", fileCache, DocumentFileCache::getTotalBytes).baseUnit("bytes").tag("cache", "documents").register(registry);
+
+        FunctionCounter.builder("docusecure.dedup.reused", blobService, BlobService::getReused).register(registry);
+        FunctionCounter.builder("docusecure.dedup.bytes.skipped", blobService, BlobService::getBytesSkipped).baseUnit("bytes").register(registry);
+
+        Gauge.builder("docusecure.journal.pending", journal, MetadataJournal::getPending).register(registry);
+        Gauge.builder("docusecure.journal.parked", journal, MetadataJournal::getParked).register(registry);
+        FunctionCounter.builder("docusecure.journal.rows", journal, MetadataJournal::getFlushed).tag("result", "flushed").register(registry);
+        FunctionCounter.builder("docusecure.journal.rows", journal, MetadataJournal::getDiscarded).tag("result", "discarded").register(registry);
+
+        for(AdaptiveLimiter limiter:bulkheads.all()){
+            Gauge.builder("docusecure.limiter.limit", limiter, AdaptiveLimiter::getLimit).tag("dependency", limiter.getName()).register(registry);
+            Gauge.builder("docusecure.limiter.inflight", limiter, AdaptiveLimiter::getInflight).tag("dependency", limiter.getName()).register(registry);
+            FunctionCounter.builder("docusecure.limiter.rejected", limiter, AdaptiveLimiter::getRejected).tag("dependency", limiter.getName()).register(registry);
+        }
+
+        FunctionCounter.builder("docusecure.hedge.requests", hedgedReads, HedgedReads::getSent).tag("result", "sent").register(registry);
+        FunctionCounter.builder("docusecure.hedge.requests", hedgedReads, HedgedReads::getWon).tag("result", "won").register(registry);
+        FunctionCounter.builder("docusecure.hedge.requests", hedgedReads, HedgedReads::getSkipped).tag("result", "over_budget").register(registry);
+        for(String operation:List.of(HedgedReads.GET_ITEM, HedgedReads.GET_OBJECT)){
+            Gauge.builder("docusecure.hedge.delay", hedgedReads, h->h.delayMillis(operation)).baseUnit("milliseconds").tag("operation", operation).register(registry);
+        }
+    }
+
+    private static <T> void cacheCounters(MeterRegistry registry,String cache,T source,
+                                          ToDoubleFunction<T> hits,ToDoubleFunction<T> misses){
+        FunctionCounter.builder("docusecure.cache.requests", source, hits).tag("cache", cache).tag("result", "hit").register(registry);
+        FunctionCounter.builder("docusecure.cache.requests", source, misses).tag("cache", cache).tag("result", "miss").register(registry);
+    }
+}
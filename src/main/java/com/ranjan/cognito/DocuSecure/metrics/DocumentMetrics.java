@@ -0,0 +1,158 @@
+package com.ranjan.cognito.DocuSecure.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.ranjan.cognito.DocuSecure.exception.DeadlineExceededException;
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.exception.OverloadedException;
+import com.ranjan.cognito.DocuSecure.exception.RangeNotSatisfiableException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+
+/**
+ * Timers for the document operations as seen by the controllers, tagged by operation, controller type
+ * (WEB or REST) and outcome, plus byte counters and in-flight gauges for the transfers themselves.
+ * Calls to AWS are timed per hop by {@link AwsCallMetricsPublisher}.
+ */
+@Component
+public class DocumentMetrics {
+
+    public static final String CREDENTIALS="credentials";
+    public static final String LIST="list";
+    public static final String SEARCH="search";
+    public static final String SYNC="sync";
+    public static final String UPLOAD="upload";
+    public static final String DOWNLOAD="download";
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private final AtomicInteger uploadsInFlight=new AtomicInteger();
+    private final AtomicInteger downloadsInFlight=new AtomicInteger();
+
+    private Counter bytesUploaded;
+    private Counter bytesDownloaded;
+
+    @PostConstruct
+    public void init(){
+        bytesUploaded=transferBytes(UPLOAD);
+        bytesDownloaded=transferBytes(DOWNLOAD);
+        Gauge.builder("docusecure.transfers.inflight", uploadsInFlight, AtomicInteger::get)
+                    .description("Transfers currently moving bytes")
+                    .tag("direction", UPLOAD)
+                    .register(registry);
+        Gauge.builder("docusecure.transfers.inflight", downloadsInFlight, AtomicInteger::get)
+                    .description("Transfers currently moving bytes")
+                    .tag("direction", DOWNLOAD)
+                    .register(registry);
+    }
+
+    public <T> CompletableFuture<T> timeAsync(String operation,String controller,Supplier<CompletableFuture<T>> call){
+        Timer.Sample sample=Timer.start(registry);
+        CompletableFuture<T> result;
+        try{
+            result=call.get();
+        }catch(RuntimeException e){
+            sample.stop(timer(operation, controller, outcome(e)));
+            throw e;
+        }
+        return result.whenComplete((value,error)->sample.stop(timer(operation, controller, outcome(error))));
+    }
+
+    public <T> T time(String operation,String controller,Supplier<T> call){
+        Timer.Sample sample=Timer.start(registry);
+        String outcome="success";
+        try{
+            return call.get();
+        }catch(RuntimeException e){
+            outcome=outcome(e);
+            throw e;
+        }finally{
+            sample.stop(timer(operation, controller, outcome));
+        }
+    }
+
+    public <T> T timeIO(String operation,String controller,MeteredCall<T> call) throws IOException {
+        Timer.Sample sample=Timer.start(registry);
+        String outcome="success";
+        try{
+            return call.call();
+        }catch(IOException|RuntimeException e){
+            outcome=outcome(e);
+            throw e;
+        }finally{
+            sample.stop(timer(operation, controller, outcome));
+        }
+    }
+
+    public void transferStarted(String direction){
+        (UPLOAD.equals(direction) ? uploadsInFlight : downloadsInFlight).incrementAndGet();
+    }
+
+    public void transferEnded(String direction){
+        (UPLOAD.equals(direction) ? uploadsInFlight : downloadsInFlight).decrementAndGet();
+    }
+
+    public void bytesUploaded(long bytes){
+        bytesUploaded.increment(bytes);
+    }
+
+    public void bytesDownloaded(long bytes){
+        bytesDownloaded.increment(bytes);
+    }
+
+    private Timer timer(String operation,String controller,String outcome){
+        return Timer.builder("docusecure.operation")
+                    .description("Document operations as served to the controllers")
+                    .tag("operation", operation)
+                    .tag("controller", controller)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry);
+    }
+
+    private Counter transferBytes(String direction){
+        return Counter.builder("docusecure.transfer.bytes")
+                    .description("Document bytes moved to S3 on upload and to clients on download")
+                    .baseUnit("bytes")
+                    .tag("direction", direction)
+                    .register(registry);
+    }
+
+    private static String outcome(Throwable error){
+        if(error==null){
+            return "success";
+        }
+        Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+        if(cause instanceof DocumentNotFoundException){
+            return "not_found";
+        }
+        if(cause instanceof IllegalArgumentException || cause instanceof RangeNotSatisfiableException){
+            return "client_error";
+        }
+        if(cause instanceof OverloadedException){
+            return "rejected";
+        }
+        if(cause instanceof DeadlineExceededException || cause instanceof ApiCallTimeoutException){
+            return "timeout";
+        }
+        return "error";
+    }
+
+    @FunctionalInterface
+    public interface MeteredCall<T> {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,92 @@
+package com.ranjan.cognito.DocuSecure.metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.ranjan.cognito.DocuSecure.configuration.WorkerThreads;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Watches for virtual threads pinned to their carrier thread through the JDK's {@code jdk.VirtualThreadPinned}
+ * JFR event. A virtual thread that blocks while holding a monitor, in our code or in the SDK's HTTP client,
+ * keeps its carrier busy, and a few of those stall every other request. Each pin longer than the threshold
+ * is timed in {@code docusecure.threads.pinned}. The first pin from each call site is logged with its stack.
+ * Only runs while virtual threads are active.
+ */
+@Component
+public class PinningMonitor {
+
+    private static final Logger log=LoggerFactory.getLogger(PinningMonitor.class);
+    private static final String PINNED_EVENT="jdk.VirtualThreadPinned";
+
+    @Autowired
+    private WorkerThreads workerThreads;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${docusecure.threads.pinning.enabled:true}")
+    private boolean enabled;
+
+    @Value("${docusecure.threads.pinning.threshold:20ms}")
+    private Duration threshold;
+
+    @Value("${docusecure.threads.pinning.stackDepth:16}")
+    private int stackDepth;
+
+    private final Map<String,Boolean> reportedSites=new ConcurrentHashMap<>();
+
+    private RecordingStream stream;
+    private Timer pinned;
+
+    @PostConstruct
+    public void start(){
+        if(!enabled || !workerThreads.isVirtual()){
+            return;
+        }
+        pinned=Timer.builder("docusecure.threads.pinned")
+                    .description("Time virtual threads spent pinned to their carrier")
+                    .register(registry);
+        stream=new RecordingStream();
+        stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        stream.onEvent(PINNED_EVENT, this::onPinned);
+        stream.startAsync();
+    }
+
+    private void onPinned(RecordedEvent event){
+        pinned.record(event.getDuration());
+        List<RecordedFrame> frames=event.getStackTrace()==null ? List.of() : event.getStackTrace().getFrames();
+        StringBuilder stack=new StringBuilder();
+        for(RecordedFrame frame:frames.subList(0, Math.min(stackDepth, frames.size()))){
+            stack.append("\n\tat ").append(frame.getMethod().getType().getName()).append('.').append(frame.getMethod().getName())
+                 .append(':').append(frame.getLineNumber());
+        }
+        //The same site pins again and again under load, log it once and let the timer count the rest
+        if(reportedSites.putIfAbsent(stack.toString(), Boolean.TRUE)==null){
+            log.warn("Virtual thread {} pinned for {} ms{}", event.getThread()==null ? "?" : event.getThread().getJavaName(),
+                        event.getDuration().toMillis(), stack);
+        }
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(stream!=null){
+            stream.close();
+        }
+    }
+}
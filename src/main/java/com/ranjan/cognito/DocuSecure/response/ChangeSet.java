@@ -0,0 +1,17 @@
+package com.ranjan.cognito.DocuSecure.response;
+
+import java.util.List;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class ChangeSet {
+
+    private List<SearchHit> documents;
+    private List<String> deleted;
+    private String syncToken;
+    private boolean hasMore;
+
+}
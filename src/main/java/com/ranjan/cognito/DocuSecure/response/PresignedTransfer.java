@@ -0,0 +1,19 @@
+package com.ranjan.cognito.DocuSecure.response;
+
+import java.time.Instant;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class PresignedTransfer {
+    private String name;
+    private String fileId;
+    private String key;
+    private String method;
+    private String url;
+    private Instant expiresAt;
+    private Map<String,String> headers;
+}
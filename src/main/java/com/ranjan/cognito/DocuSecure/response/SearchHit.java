@@ -0,0 +1,17 @@
+package com.ranjan.cognito.DocuSecure.response;
+
+import java.time.Instant;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class SearchHit {
+
+    private String fileId;
+    private String name;
+    private String fileType;
+    private Instant uploadedAt;
+
+}
@@ -0,0 +1,17 @@
+package com.ranjan.cognito.DocuSecure.response;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class UploadResult {
+
+    public enum Status { UPLOADED, FAILED }
+
+    private String name;
+    private String fileId;
+    private Status status;
+    private String error;
+
+}
@@ -2,12 +2,19 @@ package com.ranjan.cognito.DocuSecure.restcontroller;
 
 import java.io.IOException;
 import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -16,18 +23,41 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.ranjan.cognito.DocuSecure.exception.DeadlineExceededException;
+import com.ranjan.cognito.DocuSecure.exception.DocumentExistsException;
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.exception.OverloadedException;
+import com.ranjan.cognito.DocuSecure.exception.RangeNotSatisfiableException;
+import com.ranjan.cognito.DocuSecure.handler.DownloadResponseHandler;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.response.ChangeSet;
 import com.ranjan.cognito.DocuSecure.response.FileResponse;
-import com.ranjan.cognito.DocuSecure.service.AwsService;
+import com.ranjan.cognito.DocuSecure.response.PresignedTransfer;
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.response.UploadResult;
+import com.ranjan.cognito.DocuSecure.service.AsyncAwsService;
+import com.ranjan.cognito.DocuSecure.service.BatchUploadService;
+import com.ranjan.cognito.DocuSecure.service.ChangeFeedService;
+import com.ranjan.cognito.DocuSecure.service.DirectTransferService;
+import com.ranjan.cognito.DocuSecure.service.ExportService;
+import com.ranjan.cognito.DocuSecure.service.SearchService;
+import com.ranjan.cognito.DocuSecure.to.Deadline;
 import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentPage;
 import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+import com.ranjan.cognito.DocuSecure.to.SearchCriteria;
 
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
@@ -40,6 +70,7 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.Getter;
 import lombok.Setter;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
 
 
 
@@ -52,65 +83,156 @@ import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
 public class DocRestController {
 
     @Autowired
-    private AwsService awsService;
+    private AsyncAwsService asyncAwsService;
+
+    @Autowired
+    private DownloadResponseHandler downloadResponseHandler;
+
+    @Autowired
+    private BatchUploadService batchUploadService;
+
+    @Autowired
+    private DirectTransferService directTransferService;
+
+    @Autowired
+    private ExportService exportService;
+
+    @Autowired
+    private SearchService searchService;
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    @Autowired
+    private DocumentMetrics metrics;
     
     @Value("${docusecure.bucketName}")
     private String bucketName;
 
+    public static final String NEXT_PAGE_TOKEN_HEADER="X-Next-Page-Token";
+
+    @Value("${docusecure.listing.defaultPageSize:100}")
+    private int defaultPageSize;
+
+    @Value("${docusecure.direct.enabled:false}")
+    private boolean directTransferEnabled;
+
+    @Value("${docusecure.download.deadline:10s}")
+    private Duration downloadDeadline;
+
     private String controllerType="REST";
 
+    private static final Logger log=LoggerFactory.getLogger(DocRestController.class);
+
     @GetMapping("/")
-    @Operation(summary = "Get all files", description = "Get all files")
+    @Operation(summary = "Get all files", description = "Get all files, or one page of them when pageSize or pageToken is given. "
+                        +"The token for the following page is returned in the "+NEXT_PAGE_TOKEN_HEADER+" header.")
     @ApiResponses(value={
         @ApiResponse(responseCode = "200",description = "Get all files"),
+        @ApiResponse(responseCode = "400",description = "Invalid page token"),
         @ApiResponse(responseCode = "500",description = "Problem encountered while fetching files")
     })
-    public ResponseEntity<List<FileResponse>> getFileList(@AuthenticationPrincipal Jwt jwt) {
-        List<FileResponse> file=null;
-            try{
-                String idToken=jwt.getTokenValue();
-                AwsSessionCredentials sessionCredentials=awsService.getTemporaryCredentials(idToken,controllerType);
-                String userId=jwt.getClaimAsString("cognito:username");
-                List<DocumentDetails> fileList=awsService.listS3Objects(bucketName,userId, sessionCredentials);
-                file=fileList.stream().map((fileDetails)->{
-                    FileResponse fileResponse=new FileResponse();
-                    fileResponse.setFileId(fileDetails.getDocumentId());
-                    fileResponse.setName(fileDetails.getDocumentName());
-                    return fileResponse;
-                }).collect(Collectors.toList());
-            return ResponseEntity.ok().body(file);
-            } catch (Exception e) {
-                    e.printStackTrace();
-                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
+    public CompletableFuture<ResponseEntity<List<FileResponse>>> getFileList(@AuthenticationPrincipal Jwt jwt,
+                                                        @Parameter(description = "Maximum number of files to return")
+                                                        @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                                        @Parameter(description = "Token returned with the previous page")
+                                                        @RequestParam(value = "pageToken", required = false) String pageToken) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType).thenCompose(sessionCredentials->{
+            if(pageSize==null && pageToken==null){
+                return metrics.timeAsync(DocumentMetrics.LIST, controllerType, ()->asyncAwsService.listS3Objects(bucketName,userId, sessionCredentials))
+                            .thenApply(fileList->ResponseEntity.ok().body(toFileResponses(fileList)));
             }
-        
+            return metrics.timeAsync(DocumentMetrics.LIST, controllerType,
+                            ()->asyncAwsService.listDocuments(userId, sessionCredentials, pageSize==null ? defaultPageSize : pageSize, pageToken))
+                        .thenApply(page->{
+                            ResponseEntity.BodyBuilder response=ResponseEntity.ok();
+                            if(page.getNextPageToken()!=null){
+                                response.header(NEXT_PAGE_TOKEN_HEADER, page.getNextPageToken());
+                            }
+                            return response.body(toFileResponses(page.getDocuments()));
+                        });
+        }).exceptionally(this::failure);
+    }
+
+    private List<FileResponse> toFileResponses(List<DocumentDetails> fileList){
+        return fileList.stream().map((fileDetails)->{
+            FileResponse fileResponse=new FileResponse();
+            fileResponse.setFileId(fileDetails.getDocumentId());
+            fileResponse.setName(fileDetails.getDocumentName());
+            return fileResponse;
+        }).collect(Collectors.toList());
+    }
+
+    @GetMapping("/search")
+    @Operation(summary = "Search files", description = "Find files by name prefix, content type and upload time. "
+                        +"Name matches are returned in name order, other searches newest first.")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200",description = "Matching files"),
+        @ApiResponse(responseCode = "400",description = "Invalid content type or time window"),
+        @ApiResponse(responseCode = "500",description = "Problem encountered while searching files")
+    })
+    public CompletableFuture<ResponseEntity<List<SearchHit>>> search(@AuthenticationPrincipal Jwt jwt,
+                                                        @Parameter(description = "Case-insensitive start of the file name")
+                                                        @RequestParam(value = "q", required = false) String query,
+                                                        @Parameter(description = "Content type, such as application/pdf or image/*")
+                                                        @RequestParam(value = "type", required = false) String type,
+                                                        @Parameter(description = "Uploaded at or after this ISO-8601 instant")
+                                                        @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                                        @Parameter(description = "Uploaded before this ISO-8601 instant")
+                                                        @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->metrics.timeAsync(DocumentMetrics.SEARCH, controllerType,
+                            ()->searchService.search(userId, SearchCriteria.of(query, type, from, to), sessionCredentials)))
+                    .thenApply(hits->ResponseEntity.ok().body(hits))
+                    .exceptionally(this::failure);
+    }
+
+    @GetMapping("/changes")
+    @Operation(summary = "Get file changes", description = "Files uploaded and ids of files deleted since the sync token was issued, together with the token for the next poll. "
+                        +"Without a token every file is returned. While hasMore is set, call again straight away with the returned token.")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200",description = "Files uploaded and deleted since the token, and the next token"),
+        @ApiResponse(responseCode = "400",description = "Invalid sync token, or one older than the deletions kept"),
+        @ApiResponse(responseCode = "500",description = "Problem encountered while fetching changes")
+    })
+    public CompletableFuture<ResponseEntity<ChangeSet>> getChanges(@AuthenticationPrincipal Jwt jwt,
+                                                        @Parameter(description = "Token returned by the previous call")
+                                                        @RequestParam(value = "syncToken", required = false) String syncToken) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->metrics.timeAsync(DocumentMetrics.SYNC, controllerType,
+                            ()->changeFeedService.changes(userId, syncToken, sessionCredentials)))
+                    .thenApply(changes->ResponseEntity.ok().body(changes))
+                    .exceptionally(this::failure);
     }
 
     @GetMapping("/download/{documentId}")
     @Operation(summary = "Download file", description = "Download file")
     @ApiResponses(value={
         @ApiResponse(responseCode = "200", description = "Download file"),
-        @ApiResponse(responseCode = "500", description = "Problem encountered while downloading file")
+        @ApiResponse(responseCode = "206", description = "Requested byte ranges of the file"),
+        @ApiResponse(responseCode = "304", description = "The client's copy is current"),
+        @ApiResponse(responseCode = "404", description = "File not found"),
+        @ApiResponse(responseCode = "416", description = "Requested range not satisfiable"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while downloading file"),
+        @ApiResponse(responseCode = "504", description = "File could not be opened within the download deadline")
     })
-    public ResponseEntity<byte[]> download(@AuthenticationPrincipal Jwt jwt
-                             ,@PathVariable("documentId") String  documentId) {
-        try{
-            String idToken=jwt.getTokenValue();
-            AwsSessionCredentials sessionCredentials=awsService.getTemporaryCredentials(idToken,controllerType);
-            String userId=jwt.getClaimAsString("cognito:username");
-            DocumentResponseTO documentResponseTO=awsService.download(documentId, bucketName, userId, sessionCredentials);
-    
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_PDF);
-            headers.setContentDisposition(ContentDisposition.attachment().filename(documentResponseTO.getFileName()).build());
-    
-            return new ResponseEntity<>(documentResponseTO.getContent(), headers, HttpStatus.OK);
-
-        }catch(Exception e){
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
-        }
-       
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> download(@AuthenticationPrincipal Jwt jwt
+                             ,@PathVariable("documentId") String  documentId, @RequestHeader HttpHeaders requestHeaders) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        DownloadOptions options=downloadResponseHandler.downloadOptions(requestHeaders);
+        options.setDeadline(Deadline.after(downloadDeadline));
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->metrics.timeAsync(DocumentMetrics.DOWNLOAD, controllerType,
+                            ()->asyncAwsService.openDownload(documentId, bucketName, userId, sessionCredentials, options)))
+                    .thenApply(downloadResponseHandler::toResponse)
+                    .exceptionally(this::failure);
     }
 
     @PostMapping(value="/upload",consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
@@ -120,37 +242,187 @@ public class DocRestController {
         @ApiResponse(responseCode = "200", description = "Upload file"),
         @ApiResponse(responseCode = "500", description = "Problem encountered while uploading file")
     })
-    public ResponseEntity<List<FileResponse>> upload(@Parameter(description = "The file to be uploaded", required = true)
+    public CompletableFuture<ResponseEntity<List<FileResponse>>> upload(@Parameter(description = "The file to be uploaded", required = true)
                                                     @RequestParam("file") List<MultipartFile> multipartFile, 
                                                     @AuthenticationPrincipal Jwt jwt
-                                                    ) throws IOException {
+                                                    ) {
         
-        List<FileResponse> file=null;
-        try{
-            String idToken=jwt.getTokenValue();
-            AwsSessionCredentials sessionCredentials=awsService.getTemporaryCredentials(idToken,controllerType);
-            String userId=jwt.getClaimAsString("cognito:username");
-            for(MultipartFile uploadFile:multipartFile){
-                awsService.upload(uploadFile, bucketName, userId, sessionCredentials);
-            }
-            List<DocumentDetails> fileList=awsService.listS3Objects(bucketName,userId, sessionCredentials);
-            file=fileList.stream().map((fileDetails)->{
-                FileResponse fileResponse=new FileResponse();
-                fileResponse.setFileId(fileDetails.getDocumentId());
-                fileResponse.setName(fileDetails.getDocumentName());
-                return fileResponse;
-            }).collect(Collectors.toList());
-
-            return ResponseEntity.ok().body(file);
-
-        }catch(IOException e){
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
-        }   
-        catch(Exception e){
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType).thenCompose(sessionCredentials->
+            metrics.timeAsync(DocumentMetrics.UPLOAD, controllerType,
+                    ()->batchUploadService.uploadBatchAsync(multipartFile, bucketName, userId, sessionCredentials)).thenCompose(results->{
+                if(results.stream().anyMatch(result->result.getStatus()==UploadResult.Status.FAILED)){
+                    return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).<List<FileResponse>>body(null));
+                }
+                return asyncAwsService.listS3Objects(bucketName,userId, sessionCredentials)
+                            .thenApply(fileList->ResponseEntity.ok().body(toFileResponses(fileList)));
+            })
+        ).exceptionally(this::failure);
+    }
+
+    @PostMapping(value="/upload/batch",consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @Operation(summary = "Upload files in batch", 
+            description = "Upload several files concurrently and report the outcome of each file")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200", description = "All files uploaded"),
+        @ApiResponse(responseCode = "207", description = "Some files failed, see the per-file status"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while uploading files")
+    })
+    public CompletableFuture<ResponseEntity<List<UploadResult>>> uploadBatch(@Parameter(description = "The files to be uploaded", required = true)
+                                                    @RequestParam("file") List<MultipartFile> multipartFile, 
+                                                    @AuthenticationPrincipal Jwt jwt
+                                                    ) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->metrics.timeAsync(DocumentMetrics.UPLOAD, controllerType,
+                            ()->batchUploadService.uploadBatchAsync(multipartFile, bucketName, userId, sessionCredentials)))
+                    .thenApply(results->{
+                        long failed=results.stream().filter(result->result.getStatus()==UploadResult.Status.FAILED).count();
+                        if(failed==0){
+                            return ResponseEntity.ok().body(results);
+                        }
+                        HttpStatus status=failed==results.size() ? HttpStatus.INTERNAL_SERVER_ERROR : HttpStatus.MULTI_STATUS;
+                        return ResponseEntity.status(status).body(results);
+                    })
+                    .exceptionally(this::failure);
+    }
+
+    @GetMapping("/export")
+    @Operation(summary = "Export files", description = "Streams the given files as one ZIP archive, pass "+ExportService.ALL+" to export every file")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200", description = "ZIP archive of the files"),
+        @ApiResponse(responseCode = "400", description = "No files, or too many files, requested"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while exporting files")
+    })
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> export(@AuthenticationPrincipal Jwt jwt,
+                                                    @Parameter(description = "Ids of the files to export, or "+ExportService.ALL, required = true)
+                                                    @RequestParam("documentIds") List<String> documentIds) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->exportService.resolve(documentIds, bucketName, userId, sessionCredentials)
+                        .thenApply(resolved->{
+                            HttpHeaders headers=new HttpHeaders();
+                            headers.setContentType(MediaType.parseMediaType("application/zip"));
+                            headers.setContentDisposition(ContentDisposition.attachment().filename("docusecure-export.zip").build());
+                            StreamingResponseBody body=out->exportService.writeZip(resolved, bucketName, userId, sessionCredentials, out);
+                            return new ResponseEntity<>(body, headers, HttpStatus.OK);
+                        }))
+                    .exceptionally(this::failure);
+    }
+
+    @DeleteMapping("/{documentId}")
+    @Operation(summary = "Delete file", description = "Delete file, its stored content is removed once no other file shares it")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "204", description = "File deleted"),
+        @ApiResponse(responseCode = "404", description = "File not found"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while deleting file")
+    })
+    public CompletableFuture<ResponseEntity<Void>> delete(@AuthenticationPrincipal Jwt jwt
+                             ,@PathVariable("documentId") String  documentId) {
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->asyncAwsService.deleteDocument(documentId, bucketName, userId, sessionCredentials))
+                    .thenApply(done->ResponseEntity.noContent().<Void>build())
+                    .exceptionally(this::failure);
+    }
+
+    @GetMapping("/direct/download/{documentId}")
+    @Operation(summary = "Presign file download", description = "Returns a short lived S3 URL the client downloads the file from directly")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200", description = "Presigned download URL"),
+        @ApiResponse(responseCode = "404", description = "File not found, or direct transfer is disabled"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while presigning the download")
+    })
+    public CompletableFuture<ResponseEntity<PresignedTransfer>> presignDownload(@AuthenticationPrincipal Jwt jwt
+                             ,@PathVariable("documentId") String  documentId) {
+        if(!directTransferEnabled){
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
         }
-        
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->directTransferService.presignDownload(documentId, bucketName, userId, sessionCredentials))
+                    .thenApply(transfer->ResponseEntity.ok().body(transfer))
+                    .exceptionally(this::failure);
+    }
+
+    @PostMapping("/direct/upload")
+    @Operation(summary = "Presign file upload", 
+            description = "Returns a short lived S3 URL the client PUTs the file to directly, together with the headers it must send "
+                        +"and the key to commit. The file is listed once the upload is committed.")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200", description = "Presigned upload URL"),
+        @ApiResponse(responseCode = "400", description = "Invalid file name"),
+        @ApiResponse(responseCode = "404", description = "Direct transfer is disabled"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while presigning the upload")
+    })
+    public CompletableFuture<ResponseEntity<PresignedTransfer>> presignUpload(@AuthenticationPrincipal Jwt jwt,
+                                                    @Parameter(description = "Name of the file to be uploaded", required = true)
+                                                    @RequestParam("fileName") String fileName,
+                                                    @Parameter(description = "Content type of the file")
+                                                    @RequestParam(value = "contentType", defaultValue = MediaType.APPLICATION_OCTET_STREAM_VALUE) String contentType) {
+        if(!directTransferEnabled){
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
+        }
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenApply(sessionCredentials->directTransferService.presignUpload(fileName, contentType, bucketName, userId, sessionCredentials))
+                    .thenApply(transfer->ResponseEntity.ok().body(transfer))
+                    .exceptionally(this::failure);
+    }
+
+    @PostMapping("/direct/commit")
+    @Operation(summary = "Commit direct upload", description = "Records a file the client uploaded through a presigned URL")
+    @ApiResponses(value={
+        @ApiResponse(responseCode = "200", description = "File recorded"),
+        @ApiResponse(responseCode = "400", description = "Invalid upload key"),
+        @ApiResponse(responseCode = "404", description = "The file was not uploaded, or direct transfer is disabled"),
+        @ApiResponse(responseCode = "409", description = "The upload was already committed"),
+        @ApiResponse(responseCode = "500", description = "Problem encountered while recording the file")
+    })
+    public CompletableFuture<ResponseEntity<FileResponse>> commitUpload(@AuthenticationPrincipal Jwt jwt,
+                                                    @Parameter(description = "Key returned when the upload was presigned", required = true)
+                                                    @RequestParam("key") String key) {
+        if(!directTransferEnabled){
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
+        }
+        String idToken=jwt.getTokenValue();
+        String userId=jwt.getClaimAsString("cognito:username");
+        return asyncAwsService.getTemporaryCredentials(idToken,controllerType)
+                    .thenCompose(sessionCredentials->directTransferService.commitUpload(key, bucketName, userId, sessionCredentials))
+                    .thenApply(fileResponse->ResponseEntity.ok().body(fileResponse))
+                    .exceptionally(this::failure);
+    }
+
+    private <T> ResponseEntity<T> failure(Throwable error){
+        Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+        if(cause instanceof DocumentNotFoundException){
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        if(cause instanceof DocumentExistsException){
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        if(cause instanceof RangeNotSatisfiableException){
+            return downloadResponseHandler.rangeNotSatisfiable(((RangeNotSatisfiableException)cause).getContentLength());
+        }
+        if(cause instanceof IllegalArgumentException){
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        if(cause instanceof DeadlineExceededException || cause instanceof ApiCallTimeoutException){
+            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).build();
+        }
+        if(cause instanceof OverloadedException){
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, ((OverloadedException)cause).getRetryAfter().toSeconds())))
+                        .build();
+        }
+        log.error("Request failed", cause);
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
     }
     
 }
@@ -0,0 +1,228 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import com.ranjan.cognito.DocuSecure.exception.OverloadedException;
+
+import lombok.Getter;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.http.Abortable;
+
+/**
+ * Concurrency limit for the calls to one AWS dependency, adjusted by additive increase and multiplicative decrease.
+ * An answer within the latency target, while at least half the limit is in use, raises the limit by 1/limit,
+ * about one per limit's worth of calls. A slower answer, throttling, a 5xx or a timeout multiplies it by the
+ * backoff ratio, at most once per latency target so one burst of slow answers counts once.
+ * A call over the limit is rejected at once with an {@link OverloadedException} rather than queued behind calls
+ * that are already slow. Client errors such as a missing key or a denied request leave the limit alone.
+ */
+public class AdaptiveLimiter {
+
+    @Getter
+    private final String name;
+    private final boolean enforced;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private final double backoffRatio;
+    private final Duration retryAfter;
+
+    private final ReentrantLock lock=new ReentrantLock();
+    private final AtomicInteger inflight=new AtomicInteger();
+    private final AtomicLong rejected=new AtomicLong();
+    private volatile double limit;
+    private long lastDecrease;
+
+    public AdaptiveLimiter(String name,boolean enforced,int initialLimit,int minLimit,int maxLimit,
+                           Duration latencyTarget,double backoffRatio,Duration retryAfter){
+        this.name=name;
+        this.enforced=enforced;
+        this.minLimit=Math.max(1, minLimit);
+        this.maxLimit=Math.max(this.minLimit, maxLimit);
+        this.targetNanos=latencyTarget.toNanos();
+        this.backoffRatio=backoffRatio;
+        this.retryAfter=retryAfter;
+        this.limit=Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.lastDecrease=System.nanoTime()-targetNanos;
+    }
+
+    /**
+     * Takes a slot or fails fast. The caller must complete or release the permit exactly once it is done.
+     */
+    public Permit acquire(){
+        while(true){
+            int current=inflight.get();
+            if(enforced && current>=(int)limit){
+                rejected.incrementAndGet();
+                throw new OverloadedException(name, retryAfter);
+            }
+            if(inflight.compareAndSet(current, current+1)){
+                return new Permit();
+            }
+        }
+    }
+
+    public <T> T call(Supplier<T> call){
+        Permit permit=acquire();
+        try{
+            T result=call.get();
+            permit.complete(null);
+            return result;
+        }catch(RuntimeException e){
+            permit.complete(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Rejections come back as a failed future so callers handle them with every other failure.
+     * Cancelling the returned future cancels the call's own future.
+     */
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> call){
+        Permit permit;
+        try{
+            permit=acquire();
+        }catch(OverloadedException e){
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> result;
+        try{
+            result=call.get();
+        }catch(RuntimeException e){
+            permit.complete(e);
+            throw e;
+        }
+        CompletableFuture<T> limited=result.whenComplete((value,error)->permit.complete(error));
+        limited.whenComplete((value,error)->{
+            if(limited.isCancelled()){
+                result.cancel(true);
+            }
+        });
+        return limited;
+    }
+
+    public int getLimit(){
+        return (int)limit;
+    }
+
+    public int getInflight(){
+        return inflight.get();
+    }
+
+    public long getRejected(){
+        return rejected.get();
+    }
+
+    private void sample(long latency,Throwable error){
+        boolean overloaded=isOverloadSignal(error);
+        if(error!=null && !overloaded){
+            return;
+        }
+        long now=System.nanoTime();
+        lock.lock();
+        try{
+            if(overloaded || latency>targetNanos){
+                if(now-lastDecrease>=targetNanos){
+                    limit=Math.max(minLimit, limit*backoffRatio);
+                    lastDecrease=now;
+                }
+            }else if(inflight.get()*2>=limit){
+                //An idle dependency tells us nothing about how much more it could take
+                limit=Math.min(maxLimit, limit+1/limit);
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    static boolean isOverloadSignal(Throwable error){
+        Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+        if(cause instanceof SdkServiceException){
+            SdkServiceException serviceException=(SdkServiceException)cause;
+            return serviceException.isThrottlingException() || serviceException.statusCode()>=500;
+        }
+        //Timeouts and connection failures
+        return cause instanceof SdkClientException;
+    }
+
+    public final class Permit {
+
+        private final long startedAt=System.nanoTime();
+        private final AtomicBoolean sampled=new AtomicBoolean();
+        private final AtomicBoolean released=new AtomicBoolean();
+
+        private Permit(){
+        }
+
+        /**
+         * Feeds the latency so far into the limit while keeping the slot, for streams whose first byte is the signal.
+         */
+        public void sample(Throwable error){
+            if(sampled.compareAndSet(false, true)){
+                AdaptiveLimiter.this.sample(System.nanoTime()-startedAt, error);
+            }
+        }
+
+        public void complete(Throwable error){
+            sample(error);
+            release();
+        }
+
+        /**
+         * Gives the slot back, without a latency sample when none was taken, as for transfers whose duration follows their size.
+         */
+        public void release(){
+            if(released.compareAndSet(false, true)){
+                inflight.decrementAndGet();
+            }
+        }
+
+        /**
+         * Holds the slot until the returned stream is closed or aborted.
+         */
+        public InputStream guard(InputStream content){
+            return new GuardedInputStream(content, this);
+        }
+    }
+
+    private static final class GuardedInputStream extends FilterInputStream implements Abortable {
+
+        private final Permit permit;
+
+        GuardedInputStream(InputStream content,Permit permit){
+            super(content);
+            this.permit=permit;
+        }
+
+        @Override
+        public void abort(){
+            try{
+                if(in instanceof Abortable){
+                    ((Abortable)in).abort();
+                }
+            }finally{
+                permit.release();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try{
+                super.close();
+            }finally{
+                permit.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import com.ranjan.cognito.DocuSecure.cache.CachedDocument;
+import com.ranjan.cognito.DocuSecure.cache.CredentialCache;
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.exception.OverloadedException;
+import com.ranjan.cognito.DocuSecure.exception.RangeNotSatisfiableException;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.to.Deadline;
+import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentPage;
+import com.ranjan.cognito.DocuSecure.to.DocumentRange;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+import com.ranjan.cognito.DocuSecure.to.Encryption;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityAsyncClient;
+import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityRequest;
+import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityResponse;
+import software.amazon.awssdk.services.cognitoidentity.model.GetIdRequest;
+import software.amazon.awssdk.services.cognitoidentity.model.GetIdResponse;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.Select;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Non-blocking counterpart of {@link AwsService} built on the SDK async clients.
+ * Nothing here parks the calling thread, futures are completed by the SDK once the Netty client
+ * has a response, so a small request thread pool can carry many document requests waiting on AWS.
+ */
+@Service
+public class AsyncAwsService {
+
+    private static final Logger log=LoggerFactory.getLogger(AsyncAwsService.class);
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private CredentialCache credentialCache;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private DocumentFileCache fileCache;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private EnvelopeEncryptionService encryptionService;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private MetadataJournal journal;
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private HedgedReads hedgedReads;
+
+    @Autowired
+    private DocumentMetrics metrics;
+
+    @Value("${aws.web.identityPoolId}")
+    private String webIdentityPoolId;
+
+    @Value("${aws.web.userPoolProvider}")
+    private String webUserPoolProvider;
+
+    @Value("${aws.rest.identityPoolId}")
+    private String restIdentityPoolId;
+
+    @Value("${aws.rest.userPoolProvider}")
+    private String restUserPoolProvider;
+
+    @Value("${docusecure.listing.maxPageSize:1000}")
+    private int maxPageSize;
+
+    public CompletableFuture<AwsSessionCredentials> getTemporaryCredentials(String idToken,String controller) {
+
+        String identityPoolId = controller.equals("WEB") ? webIdentityPoolId : restIdentityPoolId;
+        String provider = controller.equals("WEB") ? webUserPoolProvider : restUserPoolProvider;
+
+        CognitoIdentityAsyncClient identityClient = clientRegistry.cognitoAsync();
+
+        Map<String, String> logins = Map.of(provider, idToken);
+
+        return metrics.timeAsync(DocumentMetrics.CREDENTIALS, controller, () -> credentialCache.getAsync(CredentialCache.key(idToken, controller), () ->
+            credentialCache.identityIdAsync(CredentialCache.identityKey(idToken, controller),
+                    () -> bulkheads.getCognito().callAsync(() -> identityClient.getId(GetIdRequest.builder()
+                            .identityPoolId(identityPoolId)
+                            .logins(logins)
+                            .build())).thenApply(GetIdResponse::identityId))
+                .thenCompose(identityId -> bulkheads.getCognito().callAsync(() -> identityClient.getCredentialsForIdentity(GetCredentialsForIdentityRequest.builder()
+                            .identityId(identityId)
+                            .logins(logins)
+                            .build())))
+                .thenApply(GetCredentialsForIdentityResponse::credentials)))
+                .thenApply(creds -> {
+                    journal.resumeForToken(idToken, creds);
+                    return creds;
+                });
+    }
+
+    public CompletableFuture<List<DocumentDetails>> listS3Objects(String bucketName,String userId, AwsSessionCredentials creds) {
+
+        journal.resume(userId, creds);
+        return listingCache.getAsync(userId, "all", () -> {
+            List<DocumentDetails> documents=new ArrayList<>();
+            DynamoDbAsyncClient dynamoClient=clientRegistry.dynamoAsync();
+            return bulkheads.getDynamodb().callAsync(() -> dynamoClient.queryPaginator(AwsClientRegistry.asUser(DocumentItems.listingQuery(userId).build(), creds))
+                        .items()
+                        .subscribe(item -> documents.add(DocumentItems.toDocumentDetails(item))))
+                        .thenApply(done -> List.copyOf(documents));
+        }).thenApply(listed -> journal.withPending(userId, listed));
+    }
+
+    public CompletableFuture<DocumentPage> listDocuments(String userId, AwsSessionCredentials creds, int pageSize, String pageToken) {
+
+        String view="page:"+pageSize+":"+(pageToken==null ? "" : pageToken);
+        journal.resume(userId, creds);
+        boolean firstPage=pageToken==null || pageToken.isBlank();
+        return listingCache.getAsync(userId, view, () -> {
+            QueryRequest.Builder request=DocumentItems.listingQuery(userId).limit(Math.min(Math.max(pageSize,1), maxPageSize));
+            if(pageToken!=null && !pageToken.isBlank()){
+                request.exclusiveStartKey(DocumentItems.exclusiveStartKey(userId, pageToken));
+            }
+            return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().query(AwsClientRegistry.asUser(request.build(), creds))).thenApply(response -> {
+                DocumentPage page=new DocumentPage();
+                page.setDocuments(response.items().stream().map(DocumentItems::toDocumentDetails).collect(Collectors.toList()));
+                if(response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()){
+                    page.setNextPageToken(DocumentItems.encodePageToken(response.lastEvaluatedKey().get("DocumentId").s()));
+                }
+                return page;
+            });
+        }).thenApply(page -> journal.withPending(userId, page, firstPage));
+    }
+
+    public CompletableFuture<DocumentResponseTO> openDownload(String documentId,String bucketName,String userId, AwsSessionCredentials creds){
+        return openDownload(documentId, bucketName, userId, creds, new DownloadOptions());
+    }
+
+    /**
+     * Looks up the document and opens the S3 object. The future completes once the response headers
+     * have arrived, the body is then pulled from the returned content stream as the client reads it.
+     * Conditional requests are checked with a HeadObject first, when the client's copy is current the
+     * returned document is marked not modified and has no content stream.
+     * A single range is a ranged GetObject, several ranges become one ranged GetObject per part, each
+     * pinned to the ETag seen by the HeadObject so the parts cannot come from different versions.
+     * Ranges of an encrypted document always go through the HeadObject, they are resolved against the plaintext
+     * length and each fetches only the segments holding it.
+     */
+    public CompletableFuture<DocumentResponseTO> openDownload(String documentId,String bucketName,String userId, AwsSessionCredentials creds,
+                                                              DownloadOptions options){
+
+        CachedDocument cached=fileCache.lookup(userId, documentId);
+        if(cached==null){
+            return openFromS3(documentId, bucketName, userId, creds, options);
+        }
+        //A hot document costs a GetItem and a HeadObject, side by side. The row must still exist and point at the cached
+        //object, which catches deletes made through another instance even when a shared blob lives on, and the object must
+        //still be the current version.
+        HeadObjectRequest headRequest=HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(cached.getFilePath())
+                    .overrideConfiguration(timeout(options.getDeadline()))
+                    .build();
+        CompletableFuture<HeadObjectResponse> head=bulkheads.getS3().callAsync(() -> clientRegistry.s3Async().headObject(AwsClientRegistry.asUser(headRequest, creds)));
+        return getDocumentDetails(documentId, userId, creds, options.getDeadline()).handle((row,rowError) -> {
+            if(rowError!=null){
+                Throwable cause=rowError instanceof CompletionException && rowError.getCause()!=null ? rowError.getCause() : rowError;
+                if(cause instanceof DocumentNotFoundException){
+                    fileCache.invalidate(userId, documentId);
+                }
+                return CompletableFuture.<DocumentResponseTO>failedFuture(cause);
+            }
+            return head.handle((current,error) -> {
+                if(error==null && cached.getFilePath().equals(row.getFilePath()) && cached.getEtag().equals(current.eTag())){
+                    try{
+                        return CompletableFuture.completedFuture(decode(decrypt(openCached(cached, options)), options));
+                    }catch(IOException e){
+                        //evicted since the lookup, fall back to S3
+                    }
+                }
+                fileCache.invalidate(userId, documentId);
+                return openFromS3(documentId, bucketName, userId, creds, options);
+            }).thenCompose(result -> result);
+        }).thenCompose(result -> result);
+    }
+
+    private CompletableFuture<DocumentResponseTO> openFromS3(String documentId,String bucketName,String userId, AwsSessionCredentials creds,
+                                                             DownloadOptions requested){
+
+        return getDocumentDetails(documentId, userId, creds, requested.getDeadline()).thenCompose(documentResponseTO -> {
+            //Ranges of a stored-compressed document would address the compressed bytes, so it is always sent whole
+            DownloadOptions options=documentResponseTO.getCodec()!=null ? requested.withoutRanges() : requested;
+            Encryption encryption=documentResponseTO.getEncryption();
+            if(!options.needsObjectMetadata() && (encryption==null || !options.hasRanges())){
+                String range=options.hasRanges() ? HttpRange.toString(options.getRanges()) : null;
+                return getObject(bucketName, documentResponseTO, range, null, creds, options.getDeadline());
+            }
+            HeadObjectRequest headRequest=HeadObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(documentResponseTO.getFilePath())
+                        .overrideConfiguration(timeout(options.getDeadline()))
+                        .build();
+            return bulkheads.getS3().callAsync(() -> clientRegistry.s3Async().headObject(AwsClientRegistry.asUser(headRequest, creds))).thenCompose(head -> {
+                documentResponseTO.setEtag(head.eTag());
+                documentResponseTO.setLastModified(head.lastModified());
+                if(options.isNotModified(DownloadOptions.encodedEtag(head.eTag(), contentEncoding(documentResponseTO.getCodec(), options)), head.lastModified())){
+                    documentResponseTO.setNotModified(true);
+                    return CompletableFuture.completedFuture(documentResponseTO);
+                }
+                if(!options.rangesApply(head.eTag(), head.lastModified())){
+                    return getObject(bucketName, documentResponseTO, null, null, creds, options.getDeadline());
+                }
+                long storedLength=head.contentLength();
+                long length=encryption!=null ? EnvelopeEncryptionService.plaintextLength(encryption, storedLength) : storedLength;
+                List<DocumentRange> ranges=resolveRanges(options, length);
+                if(ranges.size()==1){
+                    DocumentRange range=ranges.get(0);
+                    if(encryption==null){
+                        return getObject(bucketName, documentResponseTO, byteRange(range), head.eTag(), creds, options.getDeadline());
+                    }
+                    return getObject(bucketName, documentResponseTO, storedRange(encryption, storedLength, range), head.eTag(), creds, options.getDeadline())
+                                .thenApply(opened -> {
+                                    opened.setContentStream(decryptRange(opened.getContentStream(), encryption, storedLength, range));
+                                    opened.setContentLength(range.getEnd()-range.getStart()+1);
+                                    opened.setContentRange("bytes "+range.getStart()+"-"+range.getEnd()+"/"+length);
+                                    opened.setEncryption(null);
+                                    return opened;
+                                });
+                }
+                for(DocumentRange range:ranges){
+                    GetObjectRequest partRequest=GetObjectRequest.builder()
+                                .bucket(bucketName)
+                                .key(documentResponseTO.getFilePath())
+                                .range(encryption!=null ? storedRange(encryption, storedLength, range) : byteRange(range))
+                                .ifMatch(head.eTag())
+                                .build();
+                    //Fetched when the body reaches the part, so it takes its S3 slot and what is left of the deadline only then
+                    range.setContent(() -> {
+                        InputStream part=fetchObject(partRequest.toBuilder().overrideConfiguration(timeout(options.getDeadline())).build(), creds).join();
+                        return encryption!=null ? decryptRange(part, encryption, storedLength, range) : part;
+                    });
+                }
+                documentResponseTO.setTotalLength(length);
+                documentResponseTO.setRanges(ranges);
+                documentResponseTO.setEncryption(null);
+                return CompletableFuture.completedFuture(documentResponseTO);
+            });
+        }).thenApply(documentResponseTO -> {
+            fileCache.admit(userId, documentId, documentResponseTO);
+            return decode(decrypt(documentResponseTO), requested);
+        });
+    }
+
+    /**
+     * Opens the plaintext of a whole encrypted body, segment by segment as the client reads it.
+     * The stored length is all that is needed to find the last segment.
+     */
+    private DocumentResponseTO decrypt(DocumentResponseTO documentResponseTO){
+        Encryption encryption=documentResponseTO.getEncryption();
+        if(encryption==null || documentResponseTO.isNotModified()){
+            return documentResponseTO;
+        }
+        long storedLength=documentResponseTO.getContentLength();
+        InputStream sealed=documentResponseTO.getContentFile()!=null
+                    ? DocumentFileCache.region(documentResponseTO.getContentFile(), documentResponseTO.getContentOffset(), storedLength)
+                    : documentResponseTO.getContentStream();
+        documentResponseTO.setContentFile(null);
+        documentResponseTO.setContentStream(encryptionService.decrypt(sealed, encryption, storedLength));
+        documentResponseTO.setContentLength(EnvelopeEncryptionService.plaintextLength(encryption, storedLength));
+        documentResponseTO.setEncryption(null);
+        return documentResponseTO;
+    }
+
+    private InputStream decryptRange(InputStream sealed,Encryption encryption,long storedLength,DocumentRange range){
+        return encryptionService.decrypt(sealed, encryption, storedLength, range.getStart(), range.getEnd()-range.getStart()+1);
+    }
+
+    private static String storedRange(Encryption encryption,long storedLength,DocumentRange range){
+        long[] stored=EnvelopeEncryptionService.storedRange(encryption, storedLength, range.getStart(), range.getEnd());
+        return "bytes="+stored[0]+"-"+stored[1];
+    }
+
+    /**
+     * Stored-compressed bodies go out as they are with a Content-Encoding when the client accepts the codec,
+     * otherwise they are inflated while streaming. A not modified answer still carries the coding, its entity tag depends on it.
+     */
+    private DocumentResponseTO decode(DocumentResponseTO documentResponseTO,DownloadOptions options){
+        String contentEncoding=contentEncoding(documentResponseTO.getCodec(), options);
+        if(contentEncoding!=null){
+            documentResponseTO.setContentEncoding(contentEncoding);
+            return documentResponseTO;
+        }
+        if(documentResponseTO.getCodec()==null || documentResponseTO.isNotModified()){
+            return documentResponseTO;
+        }
+        InputStream stored=documentResponseTO.getContentFile()!=null
+                    ? DocumentFileCache.region(documentResponseTO.getContentFile(), documentResponseTO.getContentOffset(), documentResponseTO.getContentLength())
+                    : documentResponseTO.getContentStream();
+        documentResponseTO.setContentFile(null);
+        documentResponseTO.setContentStream(compressionService.decompress(stored, documentResponseTO.getCodec()));
+        documentResponseTO.setContentLength(documentResponseTO.getOriginalSize());
+        return documentResponseTO;
+    }
+
+    private static String contentEncoding(String codec,DownloadOptions options){
+        return options.isAcceptsDeflate() && CompressionService.DEFLATE.equals(codec) ? codec : null;
+    }
+
+    private DocumentResponseTO openCached(CachedDocument cached,DownloadOptions requested) throws IOException {
+
+        DownloadOptions options=cached.getCodec()!=null ? requested.withoutRanges() : requested;
+        DocumentResponseTO documentResponseTO=new DocumentResponseTO();
+        documentResponseTO.setCodec(cached.getCodec());
+        documentResponseTO.setOriginalSize(cached.getOriginalSize());
+        documentResponseTO.setEncryption(cached.getEncryption());
+        documentResponseTO.setFileName(cached.getFileName());
+        documentResponseTO.setFileType(cached.getFileType());
+        documentResponseTO.setFilePath(cached.getFilePath());
+        documentResponseTO.setEtag(cached.getEtag());
+        documentResponseTO.setLastModified(cached.getLastModified());
+        Encryption encryption=cached.getEncryption();
+        long storedLength=cached.getSize();
+        long length=encryption!=null ? EnvelopeEncryptionService.plaintextLength(encryption, storedLength) : storedLength;
+        if(options.isNotModified(DownloadOptions.encodedEtag(cached.getEtag(), contentEncoding(cached.getCodec(), options)), cached.getLastModified())){
+            documentResponseTO.setNotModified(true);
+            fileCache.served(length);
+            return documentResponseTO;
+        }
+        if(!options.rangesApply(cached.getEtag(), cached.getLastModified())){
+            documentResponseTO.setContentFile(fileCache.open(cached));
+            documentResponseTO.setContentLength(storedLength);
+            fileCache.served(length);
+            return documentResponseTO;
+        }
+        List<DocumentRange> ranges=resolveRanges(options, length);
+        long served=0;
+        for(DocumentRange range:ranges){
+            served+=range.getEnd()-range.getStart()+1;
+        }
+        fileCache.served(served);
+        documentResponseTO.setEncryption(null);
+        if(ranges.size()==1){
+            DocumentRange range=ranges.get(0);
+            if(encryption==null){
+                documentResponseTO.setContentFile(fileCache.open(cached));
+                documentResponseTO.setContentOffset(range.getStart());
+            }else{
+                documentResponseTO.setContentStream(cachedRange(cached, storedLength, range));
+            }
+            documentResponseTO.setContentLength(served);
+            documentResponseTO.setContentRange("bytes "+range.getStart()+"-"+range.getEnd()+"/"+length);
+            return documentResponseTO;
+        }
+        for(DocumentRange range:ranges){
+            range.setContent(() -> {
+                try{
+                    return cachedRange(cached, storedLength, range);
+                }catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        documentResponseTO.setTotalLength(length);
+        documentResponseTO.setRanges(ranges);
+        return documentResponseTO;
+    }
+
+    private InputStream cachedRange(CachedDocument cached,long storedLength,DocumentRange range) throws IOException {
+        Encryption encryption=cached.getEncryption();
+        if(encryption==null){
+            return DocumentFileCache.region(fileCache.open(cached), range.getStart(), range.getEnd()-range.getStart()+1);
+        }
+        long[] stored=EnvelopeEncryptionService.storedRange(encryption, storedLength, range.getStart(), range.getEnd());
+        return decryptRange(DocumentFileCache.region(fileCache.open(cached), stored[0], stored[1]-stored[0]+1), encryption, storedLength, range);
+    }
+
+    /**
+     * Ranges starting past the end are left out, the request is only unsatisfiable when none of them remain.
+     */
+    private static List<DocumentRange> resolveRanges(DownloadOptions options,long length){
+        List<DocumentRange> ranges=new ArrayList<>();
+        for(HttpRange httpRange:options.getRanges()){
+            long start;
+            long end;
+            try{
+                start=httpRange.getRangeStart(length);
+                end=httpRange.getRangeEnd(length);
+            }catch(IllegalArgumentException e){
+                continue;
+            }
+            if(start>=length || start>end){
+                continue;
+            }
+            DocumentRange range=new DocumentRange();
+            range.setStart(start);
+            range.setEnd(end);
+            ranges.add(range);
+        }
+        if(ranges.isEmpty()){
+            throw new RangeNotSatisfiableException(length);
+        }
+        return ranges;
+    }
+
+    /**
+     * Opens the object, hedged when S3 is slow to answer. The deadline bounds the wait for the response headers,
+     * the body is then read at the client's pace.
+     */
+    private CompletableFuture<DocumentResponseTO> getObject(String bucketName,DocumentResponseTO documentResponseTO,
+                                                            String range,String ifMatch, AwsSessionCredentials creds,Deadline deadline){
+        GetObjectRequest.Builder objectRequest= GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(documentResponseTO.getFilePath())
+                    .range(range)
+                    .ifMatch(ifMatch);
+        return hedgedReads.hedge(HedgedReads.GET_OBJECT, deadline,
+                    () -> fetchObject(objectRequest.overrideConfiguration(timeout(deadline)).build(), creds),
+                    ResponseInputStream::abort).handle((content,error) -> {
+            if(error!=null){
+                Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+                if(cause instanceof S3Exception && ((S3Exception)cause).statusCode()==HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()){
+                    return bulkheads.getS3().callAsync(() -> clientRegistry.s3Async()
+                                .headObject(AwsClientRegistry.asUser(HeadObjectRequest.builder().bucket(bucketName).key(documentResponseTO.getFilePath()).build(), creds)))
+                                .<DocumentResponseTO>thenApply(head -> {
+                                    throw new RangeNotSatisfiableException(head.contentLength());
+                                });
+                }
+                return CompletableFuture.<DocumentResponseTO>failedFuture(cause);
+            }
+            documentResponseTO.setContentLength(content.response().contentLength());
+            documentResponseTO.setContentRange(content.response().contentRange());
+            documentResponseTO.setEtag(content.response().eTag());
+            documentResponseTO.setLastModified(content.response().lastModified());
+            documentResponseTO.setContentStream(content);
+            return CompletableFuture.completedFuture(documentResponseTO);
+        }).thenCompose(result -> result);
+    }
+
+    /**
+     * One GetObject attempt. It holds an S3 slot until the headers arrive, which is also what the S3 limit learns
+     * from, and a transfer slot until the body has been read or dropped. Cancelling the returned future aborts the
+     * request, a body that arrives anyway is dropped.
+     */
+    private CompletableFuture<ResponseInputStream<GetObjectResponse>> fetchObject(GetObjectRequest objectRequest, AwsSessionCredentials creds){
+        AdaptiveLimiter.Permit transfer;
+        AdaptiveLimiter.Permit permit;
+        try{
+            transfer=bulkheads.getTransfers().acquire();
+        }catch(OverloadedException e){
+            return CompletableFuture.failedFuture(e);
+        }
+        try{
+            permit=bulkheads.getS3().acquire();
+        }catch(OverloadedException e){
+            transfer.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<ResponseInputStream<GetObjectResponse>> response=clientRegistry.s3Async()
+                    .getObject(AwsClientRegistry.asUser(objectRequest, creds), AsyncResponseTransformer.toBlockingInputStream());
+        CompletableFuture<ResponseInputStream<GetObjectResponse>> attempt=new CompletableFuture<>();
+        response.whenComplete((content,error) -> {
+            permit.complete(error);
+            if(error!=null){
+                transfer.release();
+                attempt.completeExceptionally(error);
+                return;
+            }
+            ResponseInputStream<GetObjectResponse> guarded=new ResponseInputStream<>(content.response(), transfer.guard(content));
+            if(!attempt.complete(guarded)){
+                guarded.abort();
+            }
+        });
+        attempt.whenComplete((content,error) -> {
+            if(attempt.isCancelled()){
+                response.cancel(true);
+            }
+        });
+        return attempt;
+    }
+
+    //Bounds one AWS call by what is left of the request's deadline
+    private static AwsRequestOverrideConfiguration timeout(Deadline deadline){
+        if(!deadline.isBounded()){
+            return null;
+        }
+        Duration remaining=deadline.remaining();
+        return AwsRequestOverrideConfiguration.builder()
+                    .apiCallTimeout(remaining.isZero() ? Duration.ofMillis(1) : remaining)
+                    .build();
+    }
+
+    private static String byteRange(DocumentRange range){
+        return "bytes="+range.getStart()+"-"+range.getEnd();
+    }
+
+    /**
+     * Removes the document row, then leaves a tombstone for the change feed and gives up its hold on the stored body. Rows written before deduplication
+     * own no blob, their object is deleted unless it sits at a legacy {@code userId/filename} key another row of the user still points at.
+     */
+    public CompletableFuture<Void> deleteDocument(String documentId,String bucketName,String userId, AwsSessionCredentials creds){
+
+        DeleteItemRequest request=DeleteItemRequest.builder()
+                    .tableName(DocumentItems.TABLE_NAME)
+                    .key(DocumentItems.key(userId, documentId))
+                    .returnValues(ReturnValue.ALL_OLD)
+                    .build();
+        //A row still waiting in the write-behind journal is dropped there, the delete then only finds it if it was mid-flush
+        Map<String, AttributeValue> journaled;
+        try{
+            journaled=journal.cancel(userId, documentId);
+        }catch(IOException e){
+            return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        }
+        return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().deleteItem(AwsClientRegistry.asUser(request, creds)))
+                    .thenApply(response -> response.hasAttributes() && !response.attributes().isEmpty() ? response.attributes() : journaled)
+                    .thenCompose(item -> {
+            if(item==null){
+                throw new DocumentNotFoundException(documentId);
+            }
+            //Only a document that is really gone is reported, a lost tombstone leaves clients a stale copy rather than dropping a live one
+            return changeFeedService.recordDeletion(userId, documentId, creds).handle((recorded, error) -> {
+                if(error!=null){
+                    log.warn("Could not record the deletion of document {} of user {} for the change feed", documentId, userId, error);
+                }
+                return item;
+            });
+        }).thenCompose(item -> {
+            listingCache.invalidate(userId);
+            searchIndex.remove(userId, documentId);
+            fileCache.invalidate(userId, documentId);
+            if(item.containsKey("ContentHash")){
+                return blobService.release(userId, item.get("ContentHash").s(), bucketName, creds);
+            }
+            return deleteUnsharedObject(bucketName, userId, item.get("FilePath").s(), creds);
+        });
+    }
+
+    private CompletableFuture<Void> deleteUnsharedObject(String bucketName,String userId,String filePath, AwsSessionCredentials creds){
+
+        DeleteObjectRequest deleteRequest=DeleteObjectRequest.builder().bucket(bucketName).key(filePath).build();
+        if(hasDocumentKey(userId, filePath)){
+            return clientRegistry.s3Async().deleteObject(AwsClientRegistry.asUser(deleteRequest, creds)).thenApply(deleted -> (Void)null);
+        }
+        QueryRequest request=QueryRequest.builder()
+                    .tableName(DocumentItems.TABLE_NAME)
+                    .keyConditionExpression("CustomerId= :cid")
+                    .filterExpression("FilePath = :path")
+                    .expressionAttributeValues(Map.of(":cid",AttributeValue.fromS(userId),":path",AttributeValue.fromS(filePath)))
+                    .select(Select.COUNT)
+                    .build();
+        AtomicInteger references=new AtomicInteger();
+        return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().queryPaginator(AwsClientRegistry.asUser(request, creds))
+                    .subscribe(page -> references.addAndGet(page.count())))
+                    .thenCompose(done -> {
+                        if(references.get()>0){
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        return clientRegistry.s3Async().deleteObject(AwsClientRegistry.asUser(deleteRequest, creds)).thenApply(deleted -> (Void)null);
+                    });
+    }
+
+    //userId/uuid/filename and userId/direct/uuid/filename keys are made for a single document, only legacy userId/filename keys can be shared
+    private static boolean hasDocumentKey(String userId,String filePath){
+        String prefix=userId+"/";
+        if(!filePath.startsWith(prefix)){
+            return false;
+        }
+        String rest=filePath.substring(prefix.length());
+        if(rest.startsWith("direct/")){
+            rest=rest.substring("direct/".length());
+        }
+        int slash=rest.indexOf('/');
+        if(slash<0){
+            return false;
+        }
+        try{
+            UUID.fromString(rest.substring(0, slash));
+            return true;
+        }catch(IllegalArgumentException e){
+            return false;
+        }
+    }
+
+    public CompletableFuture<DocumentResponseTO> getDocumentDetails(String documentId,String userId, AwsSessionCredentials creds){
+        return getDocumentDetails(documentId, userId, creds, Deadline.none());
+    }
+
+    /**
+     * Reads the document row, hedged when DynamoDB is slow to answer.
+     */
+    public CompletableFuture<DocumentResponseTO> getDocumentDetails(String documentId,String userId, AwsSessionCredentials creds,Deadline deadline){
+
+        GetItemRequest request=DocumentItems.getItemRequest(userId, documentId);
+        return hedgedReads.hedge(HedgedReads.GET_ITEM, deadline,
+                    () -> bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync()
+                                .getItem(AwsClientRegistry.asUser(request.toBuilder().overrideConfiguration(timeout(deadline)).build(), creds))),
+                    response -> {}).thenApply(response -> {
+            if(!response.hasItem() || response.item().isEmpty()){
+                //Uploaded but still waiting in the write-behind journal
+                Map<String, AttributeValue> pending=journal.pendingItem(userId, documentId);
+                if(pending!=null){
+                    return DocumentItems.toDocumentResponse(pending);
+                }
+                throw new DocumentNotFoundException(documentId);
+            }
+            Map<String, AttributeValue> item=response.item();
+            return DocumentItems.toDocumentResponse(item);
+        });
+    }
+}
@@ -0,0 +1,235 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.time.Duration;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.ranjan.cognito.DocuSecure.metrics.AwsCallMetricsPublisher;
+import com.ranjan.cognito.DocuSecure.to.HttpPoolStats;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequest;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityAsyncClient;
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+/**
+ * Holds one long lived SDK client per service, so every request reuses the same warm HTTP connection pool.
+ * The blocking clients share one {@link SdkHttpClient} and the async clients one Netty {@link SdkAsyncHttpClient}.
+ * Identity pool credentials are per user and rotate hourly, so they are not built into the clients. Each
+ * request carries the caller's credentials in its override configuration instead, added with {@link #asUser}.
+ * The shared clients are anonymous, a request that lacks credentials is refused by AWS rather than signed as the server.
+ */
+@Component
+public class AwsClientRegistry {
+
+    @Value("${aws.region}")
+    private String region;
+
+    @Value("${aws.http.maxConnections:100}")
+    private int maxConnections;
+
+    @Value("${aws.http.connectionTimeout:2s}")
+    private Duration connectionTimeout;
+
+    @Value("${aws.http.socketTimeout:30s}")
+    private Duration socketTimeout;
+
+    @Value("${aws.http.connectionMaxIdleTime:60s}")
+    private Duration connectionMaxIdleTime;
+
+    @Value("${aws.http.async.maxConcurrency:500}")
+    private int maxConcurrency;
+
+    @Value("${aws.http.async.connectionAcquisitionTimeout:10s}")
+    private Duration connectionAcquisitionTimeout;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final HttpPoolMetricsPublisher poolMetrics=new HttpPoolMetricsPublisher();
+
+    private SdkHttpClient httpClient;
+    private SdkAsyncHttpClient asyncHttpClient;
+    private CognitoIdentityClient cognitoClient;
+    private CognitoIdentityAsyncClient cognitoAsyncClient;
+    private S3Client s3Client;
+    private DynamoDbClient dynamoClient;
+    private S3AsyncClient s3AsyncClient;
+    private DynamoDbAsyncClient dynamoAsyncClient;
+    private S3Presigner presigner;
+    private AwsCallMetricsPublisher callMetrics;
+
+    @PostConstruct
+    public void init(){
+        callMetrics=new AwsCallMetricsPublisher(meterRegistry);
+
+        httpClient=ApacheHttpClient.builder()
+                    .maxConnections(maxConnections)
+                    .connectionTimeout(connectionTimeout)
+                    .socketTimeout(socketTimeout)
+                    .connectionMaxIdleTime(connectionMaxIdleTime)
+                    .tcpKeepAlive(true)
+                    .useIdleConnectionReaper(true)
+                    .build();
+
+        asyncHttpClient=NettyNioAsyncHttpClient.builder()
+                    .maxConcurrency(maxConcurrency)
+                    .connectionTimeout(connectionTimeout)
+                    .connectionAcquisitionTimeout(connectionAcquisitionTimeout)
+                    .readTimeout(socketTimeout)
+                    .connectionMaxIdleTime(connectionMaxIdleTime)
+                    .tcpKeepAlive(true)
+                    .build();
+
+        cognitoClient=CognitoIdentityClient.builder()
+                    .region(Region.of(region))
+                    .httpClient(httpClient)
+                    .overrideConfiguration(overrideConfiguration())
+                    .build();
+
+        cognitoAsyncClient=CognitoIdentityAsyncClient.builder()
+                    .region(Region.of(region))
+                    .httpClient(asyncHttpClient)
+                    .overrideConfiguration(asyncOverrideConfiguration())
+                    .build();
+
+        s3Client=S3Client.builder()
+                    .region(Region.of(region))
+                    .credentialsProvider(AnonymousCredentialsProvider.create())
+                    .httpClient(httpClient)
+                    .overrideConfiguration(overrideConfiguration())
+                    .build();
+
+        dynamoClient=DynamoDbClient.builder()
+                    .region(Region.of(region))
+                    .credentialsProvider(AnonymousCredentialsProvider.create())
+                    .httpClient(httpClient)
+                    .overrideConfiguration(overrideConfiguration())
+                    .build();
+
+        s3AsyncClient=S3AsyncClient.builder()
+                    .region(Region.of(region))
+                    .credentialsProvider(AnonymousCredentialsProvider.create())
+                    .httpClient(asyncHttpClient)
+                    .overrideConfiguration(asyncOverrideConfiguration())
+                    .build();
+
+        dynamoAsyncClient=DynamoDbAsyncClient.builder()
+                    .region(Region.of(region))
+                    .credentialsProvider(AnonymousCredentialsProvider.create())
+                    .httpClient(asyncHttpClient)
+                    .overrideConfiguration(asyncOverrideConfiguration())
+                    .build();
+
+        presigner=S3Presigner.builder()
+                    .region(Region.of(region))
+                    .credentialsProvider(AnonymousCredentialsProvider.create())
+                    .build();
+    }
+
+    public CognitoIdentityClient cognito(){
+        return cognitoClient;
+    }
+
+    public CognitoIdentityAsyncClient cognitoAsync(){
+        return cognitoAsyncClient;
+    }
+
+    public S3Client s3(){
+        return s3Client;
+    }
+
+    public DynamoDbClient dynamo(){
+        return dynamoClient;
+    }
+
+    public S3AsyncClient s3Async(){
+        return s3AsyncClient;
+    }
+
+    public DynamoDbAsyncClient dynamoAsync(){
+        return dynamoAsyncClient;
+    }
+
+    /**
+     * The shared presigner, requests to sign must carry {@link #credentials} or the URL is anonymous.
+     */
+    public S3Presigner presigner(){
+        return presigner;
+    }
+
+    /**
+     * Per request configuration signing the call with the user's identity pool credentials.
+     */
+    public static AwsRequestOverrideConfiguration credentials(AwsSessionCredentials creds){
+        return AwsRequestOverrideConfiguration.builder().credentialsProvider(StaticCredentialsProvider.create(creds)).build();
+    }
+
+    public HttpPoolStats poolStats(){
+        HttpPoolStats stats=new HttpPoolStats();
+        stats.setMaxConnections(maxConnections);
+        stats.setLeasedConnections(poolMetrics.getLeased());
+        stats.setAvailableConnections(poolMetrics.getAvailable());
+        stats.setPendingAcquires(poolMetrics.getPending());
+        return stats;
+    }
+
+    /**
+     * The request signed with the user's identity pool credentials, keeping any other override the caller set
+     * such as an API call timeout. Pages a paginator fetches after the first are built from it and stay signed.
+     */
+    @SuppressWarnings("unchecked")
+    public static <R extends AwsRequest> R asUser(R request,AwsSessionCredentials creds){
+        AwsRequestOverrideConfiguration.Builder configuration=request.overrideConfiguration()
+                    .map(AwsRequestOverrideConfiguration::toBuilder)
+                    .orElseGet(AwsRequestOverrideConfiguration::builder);
+        return (R)request.toBuilder().overrideConfiguration(configuration.credentialsProvider(StaticCredentialsProvider.create(creds)).build()).build();
+    }
+
+    private ClientOverrideConfiguration overrideConfiguration(){
+        return ClientOverrideConfiguration.builder()
+                    .addMetricPublisher(poolMetrics)
+                    .addMetricPublisher(callMetrics)
+                    .build();
+    }
+
+    //The pool statistics describe the Apache pool, the Netty clients only report their calls
+    private ClientOverrideConfiguration asyncOverrideConfiguration(){
+        return ClientOverrideConfiguration.builder()
+                    .addMetricPublisher(callMetrics)
+                    .build();
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        s3Client.close();
+        dynamoClient.close();
+        s3AsyncClient.close();
+        dynamoAsyncClient.close();
+        presigner.close();
+        cognitoClient.close();
+        cognitoAsyncClient.close();
+        httpClient.close();
+        asyncHttpClient.close();
+    }
+}
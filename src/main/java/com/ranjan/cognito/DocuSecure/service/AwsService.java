@@ -2,48 +2,75 @@ package com.ranjan.cognito.DocuSecure.service;
 
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.ranjan.cognito.DocuSecure.cache.CredentialCache;
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.to.Deadline;
 import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentPage;
 import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+import com.ranjan.cognito.DocuSecure.to.StoredBlob;
 
-import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityClient;
-import software.amazon.awssdk.services.cognitoidentity.model.Credentials;
 import software.amazon.awssdk.services.cognitoidentity.model.GetIdRequest;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
-import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
-import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
 @Service
 public class AwsService {
 
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private CredentialCache credentialCache;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private MetadataJournal journal;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private DocumentMetrics metrics;
+
+    @Autowired
+    private AsyncAwsService asyncAwsService;
+
     @Value("${aws.web.identityPoolId}")
     private String webIdentityPoolId;
 
-    @Value("${aws.region}")
-    private String region;
-
     @Value("${aws.web.userPoolProvider}")
     private String webUserPoolProvider;
 
@@ -53,143 +80,197 @@ public class AwsService {
     @Value("${aws.rest.userPoolProvider}")
     private String restUserPoolProvider;
 
+    @Value("${docusecure.listing.maxPageSize:1000}")
+    private int maxPageSize;
+
+    @Value("${docusecure.download.deadline:10s}")
+    private Duration downloadDeadline;
+
     public AwsSessionCredentials getTemporaryCredentials(String idToken,String controller) {
 
         String identityPoolId = controller.equals("WEB") ? webIdentityPoolId : restIdentityPoolId;
         String provider = controller.equals("WEB") ? webUserPoolProvider : restUserPoolProvider;
 
-        CognitoIdentityClient identityClient = CognitoIdentityClient.builder()
-            .region(Region.of(region))
-            .build();
+        CognitoIdentityClient identityClient = clientRegistry.cognito();
 
         Map<String, String> logins = Map.of(provider, idToken);
 
-        String identityId = identityClient.getId(GetIdRequest.builder()
-                .identityPoolId(identityPoolId)
-                .logins(logins)
-                .build()).identityId();
-
-        Credentials credentials=identityClient.getCredentialsForIdentity(builder -> builder
-                .identityId(identityId)
-                .logins(logins))
-            .credentials();
-
-        return AwsSessionCredentials.create(
-                credentials.accessKeyId(),
-                credentials.secretKey(),
-                credentials.sessionToken()
-        );
+        AwsSessionCredentials creds=metrics.time(DocumentMetrics.CREDENTIALS, controller, () -> credentialCache.get(CredentialCache.key(idToken, controller), () -> {
+            String identityId = credentialCache.identityId(CredentialCache.identityKey(idToken, controller),
+                    () -> bulkheads.getCognito().call(() -> identityClient.getId(GetIdRequest.builder()
+                            .identityPoolId(identityPoolId)
+                            .logins(logins)
+                            .build())).identityId());
+
+            return bulkheads.getCognito().call(() -> identityClient.getCredentialsForIdentity(builder -> builder
+                    .identityId(identityId)
+                    .logins(logins)))
+                .credentials();
+        }));
+        journal.resumeForToken(idToken, creds);
+        return creds;
     }
 
     public List<DocumentDetails> listS3Objects(String bucketName,String userId, AwsSessionCredentials creds) {
 
-        DynamoDbClient dynamoClient=DynamoDbClient.builder()
-        .region(Region.of(region))
-        .credentialsProvider(StaticCredentialsProvider.create(creds))
-        .build();
-
-        Map<String,AttributeValue> item=new HashMap<>();
-        item.put("CustomerId",AttributeValue.builder().s(userId).build());
-
-        QueryRequest request=QueryRequest.builder()
-                                         .tableName("Docusecure")
-                                         .keyConditionExpression("CustomerId= :cid")
-                                         .expressionAttributeValues(Map.of(":cid",AttributeValue.fromS(userId)))
-                                         .build();
-        QueryResponse response= dynamoClient.query(request);
-
-        List<Map<String, AttributeValue>> items = response.items();
-        List<DocumentDetails> documentDetails=items.stream().map(s->{
-            DocumentDetails document=new DocumentDetails();
-            document.setDocumentId(s.get("DocumentId").s());
-            document.setDocumentName(s.get("Filename").s());
-            return document;
-        }).collect(Collectors.toList());
-
-        return documentDetails;
+        journal.resume(userId, creds);
+        return journal.withPending(userId, listingCache.get(userId, "all", ()->{
+            return bulkheads.getDynamodb().call(()->{
+                try(Stream<DocumentDetails> documents=streamDocuments(userId, creds)){
+                    return List.copyOf(documents.collect(Collectors.toList()));
+                }
+            });
+        }));
+    }
+
+    /**
+     * Lazily walks every document of the user, fetching further DynamoDB pages only as the stream is consumed.
+     */
+    public Stream<DocumentDetails> streamDocuments(String userId, AwsSessionCredentials creds) {
+
+        DynamoDbClient dynamoClient=clientRegistry.dynamo();
+
+        return dynamoClient.queryPaginator(AwsClientRegistry.asUser(DocumentItems.listingQuery(userId).build(), creds))
+                    .items()
+                    .stream()
+                    .map(DocumentItems::toDocumentDetails);
+    }
+
+    /**
+     * Returns one page of the user's documents. The page token is opaque to callers, it only carries
+     * the DocumentId to resume after since the partition key always comes from the authenticated user.
+     */
+    public DocumentPage listDocuments(String userId, AwsSessionCredentials creds, int pageSize, String pageToken) {
+
+        String view="page:"+pageSize+":"+(pageToken==null ? "" : pageToken);
+        journal.resume(userId, creds);
+        return journal.withPending(userId, listingCache.get(userId, view, ()->queryPage(userId, creds, pageSize, pageToken)),
+                    pageToken==null || pageToken.isBlank());
+    }
+
+    private DocumentPage queryPage(String userId, AwsSessionCredentials creds, int pageSize, String pageToken) {
+
+        DynamoDbClient dynamoClient=clientRegistry.dynamo();
+
+        QueryRequest.Builder request=DocumentItems.listingQuery(userId).limit(Math.min(Math.max(pageSize,1), maxPageSize));
+        if(pageToken!=null && !pageToken.isBlank()){
+            request.exclusiveStartKey(DocumentItems.exclusiveStartKey(userId, pageToken));
+        }
+        QueryResponse response= bulkheads.getDynamodb().call(()->dynamoClient.query(AwsClientRegistry.asUser(request.build(), creds)));
+
+        DocumentPage page=new DocumentPage();
+        page.setDocuments(response.items().stream().map(DocumentItems::toDocumentDetails).collect(Collectors.toList()));
+        if(response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()){
+            page.setNextPageToken(DocumentItems.encodePageToken(response.lastEvaluatedKey().get("DocumentId").s()));
+        }
+        return page;
     }
 
     public String upload(MultipartFile file,String bucketName,String userId, AwsSessionCredentials creds) throws IOException {
         
-       
-        S3Client s3 = S3Client.builder()
-                .region(Region.of(region))
-                .credentialsProvider(StaticCredentialsProvider.create(creds))
-                .build();
-       
-        String key=userId+"/"+file.getOriginalFilename();
-        PutObjectRequest putObjectRequest=PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(key)
-                    .contentType(file.getContentType())
-                    .build();
-       
-        s3.putObject(putObjectRequest, RequestBody.fromBytes(file.getBytes()));
+        Map<String,AttributeValue> item=storeDocument(file, bucketName, userId, creds);
+
+        try{
+            if(journal.isEnabled()){
+                journal.append(userId, List.of(item), creds);
+            }else{
+                DynamoDbClient dynamoClient=clientRegistry.dynamo();
+
+                PutItemRequest request=PutItemRequest.builder()
+                                                    .tableName(DocumentItems.TABLE_NAME)
+                                                    .item(item)
+                                                    .build();
+                bulkheads.getDynamodb().call(()->dynamoClient.putItem(AwsClientRegistry.asUser(request, creds)));
+            }
+        }catch(IOException|RuntimeException e){
+            releaseQuietly(item, bucketName, userId, creds);
+            throw e;
+        }
+        listingCache.invalidate(userId);
+        searchIndex.add(userId, DocumentItems.toSearchHit(item));
+
+        return item.get("DocumentId").s();
+    }
+
+    /**
+     * Transfers the file to S3 and returns the Docusecure item describing it, without writing the item.
+     * With deduplication, unless the journal is enabled, the item points at the user's blob for the content and holds a reference on it,
+     * callers that fail to write the item give it back with {@link #releaseQuietly}.
+     * Compressible files are deflated on the way, the item then records the codec and the original size.
+     * With encryption on the body is sealed after compression and the item carries its wrapped data key.
+     */
+    public Map<String,AttributeValue> storeDocument(MultipartFile file,String bucketName,String userId, AwsSessionCredentials creds) throws IOException {
+
         //Generate UUID and save file details with userID in DynamoDB
 
         UUID uuid=UUID.randomUUID();
 
-        DynamoDbClient dynamoClient=DynamoDbClient.builder()
-                                    .region(Region.of(region))
-                                    .credentialsProvider(StaticCredentialsProvider.create(creds))
-                                    .build();
-
-        Map<String,AttributeValue> item=new HashMap<>();
-        item.put("CustomerId",AttributeValue.builder().s(userId).build());
-        item.put("DocumentId",AttributeValue.builder().s(uuid.toString()).build());
-        item.put("Filename",AttributeValue.builder().s(file.getOriginalFilename()).build());
-        item.put("FilePath",AttributeValue.builder().s(key).build());
-        item.put("FileType",AttributeValue.builder().s(file.getContentType()).build());
-
-        PutItemRequest request=PutItemRequest.builder()
-                                            .tableName("Docusecure")
-                                            .item(item)
-                                            .build();
-        dynamoClient.putItem(request);
-
-        return uuid.toString();
+        //A transfer takes as long as the file is big, so it holds a transfer slot rather than one cheap S3 calls need
+        AdaptiveLimiter.Permit permit=bulkheads.getTransfers().acquire();
+        StoredBlob blob;
+        try{
+            //Without deduplication every upload gets its own key, so a second file of the same name never replaces the first.
+            //Journaled uploads skip it, the blob reference is a synchronous DynamoDB write the journal exists to avoid
+            blob=blobService.isEnabled() && !journal.isEnabled()
+                        ? blobService.acquire(file, bucketName, userId, creds)
+                        : blobService.storeBody(file, bucketName, userId+"/"+uuid+"/"+file.getOriginalFilename(), creds);
+        }finally{
+            permit.release();
+        }
+
+        Map<String,AttributeValue> item=DocumentItems.newItem(userId, uuid.toString(), file.getOriginalFilename(), blob.getFilePath(), file.getContentType());
+        if(blob.getCodec()!=null){
+            item.put("Codec",AttributeValue.builder().s(blob.getCodec()).build());
+            item.put("OriginalSize",AttributeValue.builder().n(Long.toString(blob.getOriginalSize())).build());
+        }
+        DocumentItems.putEncryption(item, blob.getEncryption());
+        if(blob.getContentHash()!=null){
+            item.put("ContentHash",AttributeValue.builder().s(blob.getContentHash()).build());
+        }
+        return item;
     }
 
-    public DocumentResponseTO download(String documentId,String bucketName,String userId, AwsSessionCredentials creds){
-        
-        DocumentResponseTO documentResponseTO=new DocumentResponseTO();
-        
-        DynamoDbClient dynamoClient=DynamoDbClient.builder()
-                                    .region(Region.of(region))
-                                    .credentialsProvider(StaticCredentialsProvider.create(creds))
-                                    .build();
-
-        Map<String,AttributeValue> queryKeys=new HashMap<>();
-        queryKeys.put("CustomerId",AttributeValue.builder().s(userId).build());
-        queryKeys.put("DocumentId",AttributeValue.builder().s(documentId).build());
-
-        GetItemRequest request=GetItemRequest.builder().tableName("Docusecure").key(queryKeys).build();
-        GetItemResponse response= dynamoClient.getItem(request);
-        Map<String, AttributeValue> item=response.item();
-        if(item==null){
-            //throw exception
-        }else{
-            documentResponseTO.setFileName(item.get("Filename").s());
-            documentResponseTO.setFileType(item.get("FileType").s());
-            documentResponseTO.setFilePath(item.get("FilePath").s());
+    public void releaseQuietly(Map<String,AttributeValue> item,String bucketName,String userId, AwsSessionCredentials creds){
+        if(item.containsKey("ContentHash")){
+            blobService.release(userId, item.get("ContentHash").s(), bucketName, creds)
+                        .exceptionally(error -> null);
         }
+    }
 
-        S3Client s3 = S3Client.builder()
-        .region(Region.of(region))
-        .credentialsProvider(StaticCredentialsProvider.create(creds))
-        .build();
-
-        if(documentResponseTO.getFilePath()!=null){
-            String key=documentResponseTO.getFilePath();
-            GetObjectRequest objectRequest= GetObjectRequest.builder().bucket(bucketName).key(key).build();
-            ResponseBytes<GetObjectResponse> content= s3.getObjectAsBytes(objectRequest);
-            if(content==null){
-                throw new RuntimeException("File not found");
-            }
-            documentResponseTO.setContent(content.asByteArray());
+    public DocumentResponseTO download(String documentId,String bucketName,String userId, AwsSessionCredentials creds){
+
+        DownloadOptions options=new DownloadOptions();
+        options.setDeadline(Deadline.after(downloadDeadline));
+        DocumentResponseTO documentResponseTO=openDownload(documentId, bucketName, userId, creds, options);
+        InputStream source=documentResponseTO.getContentFile()!=null
+                    ? DocumentFileCache.region(documentResponseTO.getContentFile(), 0, documentResponseTO.getContentLength())
+                    : documentResponseTO.getContentStream();
+        try(InputStream content=source){
+            documentResponseTO.setContent(content.readAllBytes());
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
         }
+        documentResponseTO.setContentStream(null);
+        documentResponseTO.setContentFile(null);
 
         return documentResponseTO;
     }
-}
 
+    /**
+     * Looks up the document and opens the S3 object without reading it.
+     * The caller owns the returned content stream and must close it, or abort it when it stops early.
+     * This waits on the same pipeline the async service runs for the REST API.
+     */
+    public DocumentResponseTO openDownload(String documentId,String bucketName,String userId, AwsSessionCredentials creds){
+        return openDownload(documentId, bucketName, userId, creds, new DownloadOptions());
+    }
+
+    public DocumentResponseTO openDownload(String documentId,String bucketName,String userId, AwsSessionCredentials creds,DownloadOptions options){
+
+        try{
+            return asyncAwsService.openDownload(documentId, bucketName, userId, creds, options).join();
+        }catch(CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+        }
+    }
+}
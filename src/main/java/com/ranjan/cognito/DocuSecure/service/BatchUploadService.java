@@ -0,0 +1,244 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.configuration.WorkerThreads;
+import com.ranjan.cognito.DocuSecure.exception.OverloadedException;
+import com.ranjan.cognito.DocuSecure.response.UploadResult;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/**
+ * Uploads several files for one user at once.
+ * S3 transfers run concurrently, at most {@code docusecure.upload.batchParallelism} per batch,
+ * and the metadata rows are then written with BatchWriteItem in groups of 25. Every file gets
+ * its own result so one bad file does not fail the whole batch.
+ */
+@Service
+public class BatchUploadService {
+
+    private static final int BATCH_WRITE_LIMIT=25;
+
+    @Autowired
+    private AwsService awsService;
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private MetadataJournal journal;
+
+    @Autowired
+    private WorkerThreads workerThreads;
+
+    @Value("${docusecure.upload.batchParallelism:8}")
+    private int batchParallelism;
+
+    @Value("${docusecure.upload.batchThreads:32}")
+    private int batchThreads;
+
+    @Value("${docusecure.upload.batchWriteRetries:5}")
+    private int batchWriteRetries;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init(){
+        executor=workerThreads.newExecutor("batch-upload-", batchThreads);
+    }
+
+    public List<UploadResult> uploadBatch(List<MultipartFile> files,String bucketName,String userId, AwsSessionCredentials creds){
+        return uploadBatchAsync(files, bucketName, userId, creds).join();
+    }
+
+    /**
+     * Runs the batch without blocking the caller. Files are spread over {@code batchParallelism} lanes,
+     * each lane transfers its files one after another, so at most that many transfers run for the batch.
+     */
+    public CompletableFuture<List<UploadResult>> uploadBatchAsync(List<MultipartFile> files,String bucketName,String userId, AwsSessionCredentials creds){
+
+        List<UploadResult> results=new ArrayList<>();
+        List<Map<String,AttributeValue>> items=new ArrayList<>();
+        for(MultipartFile file:files){
+            UploadResult result=new UploadResult();
+            result.setName(file.getOriginalFilename());
+            results.add(result);
+            items.add(null);
+        }
+
+        AtomicReference<OverloadedException> rejected=new AtomicReference<>();
+        int lanes=Math.max(1, Math.min(batchParallelism, files.size()));
+        List<CompletableFuture<Void>> transfers=new ArrayList<>();
+        for(int lane=0;lane<lanes;lane++){
+            CompletableFuture<Void> chain=CompletableFuture.completedFuture(null);
+            for(int i=lane;i<files.size();i+=lanes){
+                int index=i;
+                chain=chain.thenRunAsync(()->{
+                    try{
+                        items.set(index, awsService.storeDocument(files.get(index), bucketName, userId, creds));
+                    }catch(OverloadedException e){
+                        rejected.set(e);
+                        fail(results.get(index), e);
+                    }catch(IOException|RuntimeException e){
+                        fail(results.get(index), e);
+                    }
+                }, executor);
+            }
+            transfers.add(chain);
+        }
+
+        return CompletableFuture.allOf(transfers.toArray(new CompletableFuture[0]))
+                    .thenApplyAsync(done->{
+                        //Nothing got through the S3 bulkhead, the whole batch is better retried later
+                        if(rejected.get()!=null && items.stream().allMatch(item->item==null)){
+                            throw rejected.get();
+                        }
+                        return writeMetadata(results, items, bucketName, userId, creds);
+                    }, executor);
+    }
+
+    private List<UploadResult> writeMetadata(List<UploadResult> results,List<Map<String,AttributeValue>> items,
+                                             String bucketName,String userId, AwsSessionCredentials creds){
+
+        Map<String,UploadResult> pending=new HashMap<>();
+        List<Map<String,AttributeValue>> stored=new ArrayList<>();
+        for(int i=0;i<items.size();i++){
+            Map<String,AttributeValue> item=items.get(i);
+            if(item!=null){
+                pending.put(item.get("DocumentId").s(), results.get(i));
+                stored.add(item);
+            }
+        }
+
+        //Stamped when the rows are written rather than when each transfer ended, so delta sync's settle window covers them
+        AttributeValue uploadedAt=AttributeValue.fromN(Long.toString(System.currentTimeMillis()));
+        stored.forEach(item->item.put("UploadedAt", uploadedAt));
+        if(journal.isEnabled()){
+            journalMetadata(pending, stored, bucketName, userId, creds);
+        }else{
+            batchWriteMetadata(pending, stored, bucketName, userId, creds);
+        }
+        if(!stored.isEmpty()){
+            listingCache.invalidate(userId);
+        }
+        stored.stream()
+                    .filter(item->pending.containsKey(item.get("DocumentId").s()))
+                    .forEach(item->searchIndex.add(userId, DocumentItems.toSearchHit(item)));
+        pending.forEach((documentId,result)->{
+            result.setFileId(documentId);
+            result.setStatus(UploadResult.Status.UPLOADED);
+        });
+
+        return results;
+    }
+
+    private void batchWriteMetadata(Map<String,UploadResult> pending,List<Map<String,AttributeValue>> stored,
+                                    String bucketName,String userId, AwsSessionCredentials creds){
+        for(int from=0;from<stored.size();from+=BATCH_WRITE_LIMIT){
+            List<Map<String,AttributeValue>> chunk=stored.subList(from, Math.min(stored.size(), from+BATCH_WRITE_LIMIT));
+            List<String> unwritten;
+            try{
+                unwritten=writeChunk(chunk, creds);
+            }catch(SdkException e){
+                chunk.forEach(item->{
+                    fail(pending.remove(item.get("DocumentId").s()), e);
+                    awsService.releaseQuietly(item, bucketName, userId, creds);
+                });
+                continue;
+            }
+            Map<String,Map<String,AttributeValue>> byId=new HashMap<>();
+            chunk.forEach(item->byId.put(item.get("DocumentId").s(), item));
+            unwritten.forEach(documentId->{
+                UploadResult result=pending.remove(documentId);
+                result.setStatus(UploadResult.Status.FAILED);
+                result.setError("Metadata write was throttled");
+                awsService.releaseQuietly(byId.get(documentId), bucketName, userId, creds);
+            });
+        }
+    }
+
+    //One durable journal append for the whole batch, the flusher writes the rows to DynamoDB later
+    private void journalMetadata(Map<String,UploadResult> pending,List<Map<String,AttributeValue>> stored,
+                                 String bucketName,String userId, AwsSessionCredentials creds){
+        if(stored.isEmpty()){
+            return;
+        }
+        try{
+            journal.append(userId, stored, creds);
+        }catch(IOException|RuntimeException e){
+            stored.forEach(item->{
+                fail(pending.remove(item.get("DocumentId").s()), e);
+                awsService.releaseQuietly(item, bucketName, userId, creds);
+            });
+        }
+    }
+
+    //Returns the document ids that were still unprocessed after all retries
+    private List<String> writeChunk(List<Map<String,AttributeValue>> chunk, AwsSessionCredentials creds){
+        List<WriteRequest> requests=chunk.stream()
+                    .map(item->WriteRequest.builder().putRequest(PutRequest.builder().item(item).build()).build())
+                    .collect(Collectors.toList());
+
+        for(int attempt=0;!requests.isEmpty() && attempt<=batchWriteRetries;attempt++){
+            if(attempt>0){
+                backoff(attempt);
+            }
+            BatchWriteItemResponse response=clientRegistry.dynamo().batchWriteItem(AwsClientRegistry.asUser(BatchWriteItemRequest.builder()
+                                                .requestItems(Map.of(DocumentItems.TABLE_NAME, requests))
+                                                .build(), creds));
+            requests=response.unprocessedItems().getOrDefault(DocumentItems.TABLE_NAME, List.of());
+        }
+
+        return requests.stream()
+                    .map(request->request.putRequest().item().get("DocumentId").s())
+                    .collect(Collectors.toList());
+    }
+
+    private void fail(UploadResult result,Throwable cause){
+        result.setStatus(UploadResult.Status.FAILED);
+        result.setError(cause.getMessage());
+    }
+
+    private static void backoff(int attempt){
+        try{
+            Thread.sleep(Math.min(5000L, 50L<<attempt));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying metadata write", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        executor.shutdownNow();
+    }
+}
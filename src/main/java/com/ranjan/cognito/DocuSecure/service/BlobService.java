@@ -0,0 +1,245 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.ranjan.cognito.DocuSecure.to.StoredBlob;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+
+/**
+ * Stores document bodies content addressed per user, so identical uploads share one S3 object.
+ * The blob table maps a user's SHA-256 content hash to the object and counts the Docusecure rows that
+ * point at it. A reference can only be taken while the count is above zero, so once it drops to zero
+ * the object is unreachable and is deleted. A later upload of the same content writes a fresh object
+ * under a new key and replaces the zero count record, which keeps it safe from the collector of the old one.
+ * Blobs are not shared between users, each user's identity pool role only reaches their own prefix.
+ */
+@Service
+public class BlobService {
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private MultipartUploadEngine uploadEngine;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private EnvelopeEncryptionService encryptionService;
+
+    @Value("${docusecure.dedup.enabled:false}")
+    private boolean enabled;
+
+    @Value("${docusecure.dedup.blobTable:DocusecureBlobs}")
+    private String blobTable;
+
+    @Value("${docusecure.dedup.attempts:3}")
+    private int attempts;
+
+    private final AtomicLong reused=new AtomicLong();
+    private final AtomicLong bytesSkipped=new AtomicLong();
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Takes a reference on the blob holding the file's content, uploading it only when the user has no such blob yet.
+     */
+    public StoredBlob acquire(MultipartFile file,String bucketName,String userId, AwsSessionCredentials creds) throws IOException {
+
+        String hash=sha256(file);
+        for(int attempt=0;attempt<attempts;attempt++){
+            StoredBlob existing=reference(userId, hash, creds);
+            if(existing!=null){
+                reused.incrementAndGet();
+                bytesSkipped.addAndGet(file.getSize());
+                return existing;
+            }
+            String key=userId+"/blobs/"+hash+"/"+UUID.randomUUID();
+            StoredBlob blob=storeBody(file, bucketName, key, creds);
+            blob.setContentHash(hash);
+            if(register(userId, blob, creds)){
+                return blob;
+            }
+            //Someone stored the same content meanwhile, drop ours and reference theirs
+            clientRegistry.s3().deleteObject(AwsClientRegistry.asUser(DeleteObjectRequest.builder().bucket(bucketName).key(key).build(), creds));
+        }
+        throw new IllegalStateException("Could not store content "+hash);
+    }
+
+    /**
+     * Writes the file to the given key, deflated when the compression policy picks a codec for it and then
+     * encrypted under a fresh data key.
+     */
+    public StoredBlob storeBody(MultipartFile file,String bucketName,String key, AwsSessionCredentials creds) throws IOException {
+
+        StoredBlob blob=new StoredBlob();
+        blob.setFilePath(key);
+        try(BufferedInputStream content=compressionService.sniffable(file.getInputStream())){
+            String codec=compressionService.selectCodec(file.getContentType(), file.getSize(), content);
+            InputStream encoded=content;
+            CompressionService.CompressedInputStream compressed=null;
+            if(codec!=null){
+                compressed=compressionService.compress(content, codec);
+                encoded=compressed;
+            }
+            if(encryptionService.isEnabled()){
+                EnvelopeEncryptionService.DataKey dataKey=encryptionService.newDataKey();
+                encoded=encryptionService.encrypt(encoded, dataKey);
+                blob.setEncryption(dataKey.getEncryption());
+            }
+            uploadEngine.upload(bucketName, key, file.getContentType(), encoded, creds);
+            if(compressed!=null){
+                blob.setCodec(codec);
+                blob.setOriginalSize(compressed.getOriginalSize());
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Drops a reference and deletes the object once nothing points at it. Releasing a blob that is already
+     * unreferenced is a no-op.
+     */
+    public CompletableFuture<Void> release(String userId,String contentHash,String bucketName, AwsSessionCredentials creds){
+
+        UpdateItemRequest request=UpdateItemRequest.builder()
+                    .tableName(blobTable)
+                    .key(key(userId, contentHash))
+                    .updateExpression("SET RefCount = RefCount - :one")
+                    .conditionExpression("RefCount > :zero")
+                    .expressionAttributeValues(Map.of(":one",AttributeValue.fromN("1"),":zero",AttributeValue.fromN("0")))
+                    .returnValues(ReturnValue.ALL_NEW)
+                    .build();
+        return clientRegistry.dynamoAsync().updateItem(AwsClientRegistry.asUser(request, creds)).handle((response,error) -> {
+            if(error!=null){
+                Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+                if(cause instanceof ConditionalCheckFailedException){
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                return CompletableFuture.<Void>failedFuture(cause);
+            }
+            Map<String,AttributeValue> blob=response.attributes();
+            if(Long.parseLong(blob.get("RefCount").n())>0){
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            String filePath=blob.get("FilePath").s();
+            return clientRegistry.s3Async().deleteObject(AwsClientRegistry.asUser(DeleteObjectRequest.builder().bucket(bucketName).key(filePath).build(), creds))
+                        .thenCompose(deleted -> clientRegistry.dynamoAsync().deleteItem(AwsClientRegistry.asUser(DeleteItemRequest.builder()
+                                    .tableName(blobTable)
+                                    .key(key(userId, contentHash))
+                                    .conditionExpression("RefCount = :zero AND FilePath = :path")
+                                    .expressionAttributeValues(Map.of(":zero",AttributeValue.fromN("0"),":path",AttributeValue.fromS(filePath)))
+                                    .build(), creds)))
+                        .handle((deleted,deleteError) -> {
+                            //A replaced record belongs to a newer upload of the same content and is left alone
+                            Throwable deleteCause=deleteError instanceof CompletionException && deleteError.getCause()!=null ? deleteError.getCause() : deleteError;
+                            if(deleteCause!=null && !(deleteCause instanceof ConditionalCheckFailedException)){
+                                throw new CompletionException(deleteCause);
+                            }
+                            return (Void)null;
+                        });
+        }).thenCompose(result -> result);
+    }
+
+    private StoredBlob reference(String userId,String hash, AwsSessionCredentials creds){
+        try{
+            UpdateItemResponse response=clientRegistry.dynamo().updateItem(AwsClientRegistry.asUser(UpdateItemRequest.builder()
+                        .tableName(blobTable)
+                        .key(key(userId, hash))
+                        .updateExpression("SET RefCount = RefCount + :one")
+                        .conditionExpression("attribute_exists(ContentHash) AND RefCount > :zero")
+                        .expressionAttributeValues(Map.of(":one",AttributeValue.fromN("1"),":zero",AttributeValue.fromN("0")))
+                        .returnValues(ReturnValue.ALL_NEW)
+                        .build(), creds));
+            Map<String,AttributeValue> item=response.attributes();
+            StoredBlob blob=new StoredBlob();
+            blob.setContentHash(hash);
+            blob.setFilePath(item.get("FilePath").s());
+            if(item.containsKey("Codec")){
+                blob.setCodec(item.get("Codec").s());
+                blob.setOriginalSize(Long.valueOf(item.get("OriginalSize").n()));
+            }
+            blob.setEncryption(DocumentItems.encryption(item));
+            return blob;
+        }catch(ConditionalCheckFailedException e){
+            return null;
+        }
+    }
+
+    private boolean register(String userId,StoredBlob blob, AwsSessionCredentials creds){
+        Map<String,AttributeValue> item=key(userId, blob.getContentHash());
+        item.put("FilePath",AttributeValue.fromS(blob.getFilePath()));
+        item.put("RefCount",AttributeValue.fromN("1"));
+        if(blob.getCodec()!=null){
+            item.put("Codec",AttributeValue.fromS(blob.getCodec()));
+            item.put("OriginalSize",AttributeValue.fromN(Long.toString(blob.getOriginalSize())));
+        }
+        DocumentItems.putEncryption(item, blob.getEncryption());
+        try{
+            clientRegistry.dynamo().putItem(AwsClientRegistry.asUser(PutItemRequest.builder()
+                        .tableName(blobTable)
+                        .item(item)
+                        .conditionExpression("attribute_not_exists(ContentHash) OR RefCount = :zero")
+                        .expressionAttributeValues(Map.of(":zero",AttributeValue.fromN("0")))
+                        .build(), creds));
+            return true;
+        }catch(ConditionalCheckFailedException e){
+            return false;
+        }
+    }
+
+    private static Map<String,AttributeValue> key(String userId,String contentHash){
+        Map<String,AttributeValue> key=new HashMap<>();
+        key.put("CustomerId",AttributeValue.fromS(userId));
+        key.put("ContentHash",AttributeValue.fromS(contentHash));
+        return key;
+    }
+
+    //The upload is already spooled locally by the container, so hashing first costs a local read and lets us skip the S3 transfer
+    private static String sha256(MultipartFile file) throws IOException {
+        try(DigestInputStream content=new DigestInputStream(file.getInputStream(), MessageDigest.getInstance("SHA-256"))){
+            content.transferTo(OutputStream.nullOutputStream());
+            return HexFormat.of().formatHex(content.getMessageDigest().digest());
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getBytesSkipped() {
+        return bytesSkipped.get();
+    }
+}
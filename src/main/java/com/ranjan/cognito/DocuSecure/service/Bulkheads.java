@@ -0,0 +1,102 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+
+/**
+ * One {@link AdaptiveLimiter} per AWS dependency, so a slow Cognito or S3 cannot take the slots DynamoDB
+ * calls need. Limits are read from {@code docusecure.limits.<dependency>.*}, with {@code enabled} off the
+ * limiters only track and report.
+ * <p>
+ * Uploads and download bodies take a slot of {@link #getTransfers()} for as long as they run. That limit is
+ * fixed, a transfer's duration follows its size and says nothing about S3's health, and it keeps slow
+ * transfers from taking the S3 slots cheap calls such as HeadObject need.
+ */
+@Component
+public class Bulkheads {
+
+    public static final String COGNITO="cognito";
+    public static final String DYNAMODB="dynamodb";
+    public static final String S3="s3";
+    public static final String TRANSFERS="transfers";
+
+    @Value("${docusecure.limits.enabled:true}")
+    private boolean enabled;
+
+    @Value("${docusecure.limits.backoffRatio:0.9}")
+    private double backoffRatio;
+
+    @Value("${docusecure.limits.retryAfter:1s}")
+    private Duration retryAfter;
+
+    @Value("${docusecure.limits.cognito.initialLimit:64}")
+    private int cognitoInitialLimit;
+
+    @Value("${docusecure.limits.cognito.minLimit:8}")
+    private int cognitoMinLimit;
+
+    @Value("${docusecure.limits.cognito.maxLimit:256}")
+    private int cognitoMaxLimit;
+
+    @Value("${docusecure.limits.cognito.latencyTarget:1s}")
+    private Duration cognitoLatencyTarget;
+
+    @Value("${docusecure.limits.dynamodb.initialLimit:128}")
+    private int dynamodbInitialLimit;
+
+    @Value("${docusecure.limits.dynamodb.minLimit:16}")
+    private int dynamodbMinLimit;
+
+    @Value("${docusecure.limits.dynamodb.maxLimit:1024}")
+    private int dynamodbMaxLimit;
+
+    @Value("${docusecure.limits.dynamodb.latencyTarget:200ms}")
+    private Duration dynamodbLatencyTarget;
+
+    @Value("${docusecure.limits.s3.initialLimit:64}")
+    private int s3InitialLimit;
+
+    @Value("${docusecure.limits.s3.minLimit:8}")
+    private int s3MinLimit;
+
+    @Value("${docusecure.limits.s3.maxLimit:512}")
+    private int s3MaxLimit;
+
+    @Value("${docusecure.limits.s3.latencyTarget:1s}")
+    private Duration s3LatencyTarget;
+
+    @Value("${docusecure.limits.transfers.limit:256}")
+    private int transferLimit;
+
+    @Getter
+    private AdaptiveLimiter cognito;
+
+    @Getter
+    private AdaptiveLimiter dynamodb;
+
+    @Getter
+    private AdaptiveLimiter s3;
+
+    @Getter
+    private AdaptiveLimiter transfers;
+
+    @PostConstruct
+    public void init(){
+        cognito=new AdaptiveLimiter(COGNITO, enabled, cognitoInitialLimit, cognitoMinLimit, cognitoMaxLimit, cognitoLatencyTarget, backoffRatio, retryAfter);
+        dynamodb=new AdaptiveLimiter(DYNAMODB, enabled, dynamodbInitialLimit, dynamodbMinLimit, dynamodbMaxLimit, dynamodbLatencyTarget, backoffRatio, retryAfter);
+        //S3 requests are sampled at the first byte and give their slot back there, the body then holds a transfer slot
+        s3=new AdaptiveLimiter(S3, enabled, s3InitialLimit, s3MinLimit, s3MaxLimit, s3LatencyTarget, backoffRatio, retryAfter);
+        //Never sampled, so the limit stays where it starts
+        transfers=new AdaptiveLimiter(TRANSFERS, enabled, transferLimit, transferLimit, transferLimit, Duration.ZERO, backoffRatio, retryAfter);
+    }
+
+    public List<AdaptiveLimiter> all(){
+        return List.of(cognito, dynamodb, s3, transfers);
+    }
+}
@@ -0,0 +1,262 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ranjan.cognito.DocuSecure.response.ChangeSet;
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+/**
+ * Delta sync for polling clients. A sync token is a watermark on UploadedAt, each call reads only the
+ * {@link DocumentItems#UPLOADED_AT_INDEX} key range between the caller's watermark and now, so a poll
+ * costs what was uploaded since the last one rather than the whole archive.
+ * <p>
+ * Deletes leave a tombstone under {@link DocumentItems#tombstonePartition}, stamped with the deletion time
+ * and read for the same key range once the uploads are paged through. Tombstones are kept for
+ * {@code docusecure.sync.tombstoneRetention}, older tokens are refused and the client syncs again from scratch.
+ * <p>
+ * The new watermark trails the clock by {@code docusecure.sync.settleTime} so rows whose write was still
+ * under way, or not yet visible in the index, are picked up by the next poll. Rows still waiting in the
+ * {@link MetadataJournal} are returned with every poll until they are flushed, and are stamped when they are
+ * flushed so polls served by other instances see them too. Clients apply documents by id, so seeing one twice
+ * is harmless.
+ * <p>
+ * Without a token the whole archive is returned page by page from the base table rather than the index, so rows
+ * written before {@code UploadedAt} existed are included. Later polls do not need them, they are older than any token.
+ */
+@Service
+public class ChangeFeedService {
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private MetadataJournal journal;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Value("${docusecure.sync.maxChanges:500}")
+    private int maxChanges;
+
+    @Value("${docusecure.sync.settleTime:5s}")
+    private Duration settleTime;
+
+    @Value("${docusecure.sync.tombstoneRetention:30d}")
+    private Duration tombstoneRetention;
+
+    public CompletableFuture<ChangeSet> changes(String userId,String syncToken, AwsSessionCredentials creds){
+
+        journal.resume(userId, creds);
+        long now=System.currentTimeMillis();
+        if(syncToken==null || syncToken.isBlank()){
+            return archive(userId, new SyncToken(-1, now-settleTime.toMillis(), SyncToken.ARCHIVE, null, null), creds);
+        }
+        SyncToken token=SyncToken.decode(syncToken);
+        if(token.phase==SyncToken.ARCHIVE){
+            return archive(userId, token, creds);
+        }
+        if(token.since<now-tombstoneRetention.toMillis()){
+            throw new IllegalArgumentException("Sync token is older than the deletions kept, sync again without a token");
+        }
+        //A fresh poll moves the upper bound to now, a paged one keeps the bound it started with
+        long until=token.isPaging() ? token.until : now-settleTime.toMillis();
+        if(until<=token.since){
+            return CompletableFuture.completedFuture(changeSet(userId, List.of(), List.of(), new SyncToken(token.since, token.since, SyncToken.UPLOADS, null, null), false));
+        }
+        if(token.phase==SyncToken.DELETIONS){
+            return deletions(userId, List.of(), token, until, maxChanges, creds);
+        }
+
+        return query(userId, token, until, maxChanges, creds).thenCompose(response -> {
+            List<SearchHit> documents=response.items().stream().map(DocumentItems::toSearchHit).collect(Collectors.toList());
+            if(response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()){
+                Map<String,AttributeValue> last=response.lastEvaluatedKey();
+                SyncToken next=new SyncToken(token.since, until, SyncToken.UPLOADS, Long.parseLong(last.get("UploadedAt").n()), last.get("DocumentId").s());
+                return CompletableFuture.completedFuture(changeSet(userId, documents, List.of(), next, true));
+            }
+            //The deletions of the range follow in the same call while the page has room
+            SyncToken deletions=new SyncToken(token.since, until, SyncToken.DELETIONS, null, null);
+            if(documents.size()>=maxChanges){
+                return CompletableFuture.completedFuture(changeSet(userId, documents, List.of(), deletions, true));
+            }
+            return deletions(userId, documents, deletions, until, maxChanges-documents.size(), creds);
+        });
+    }
+
+    /**
+     * Leaves the tombstone the feed reports a deletion by. Callers write it once the row is deleted, so the feed
+     * never reports a document that still exists.
+     */
+    public CompletableFuture<Void> recordDeletion(String userId,String documentId, AwsSessionCredentials creds){
+
+        long now=System.currentTimeMillis();
+        PutItemRequest request=PutItemRequest.builder()
+                    .tableName(DocumentItems.TABLE_NAME)
+                    .item(DocumentItems.tombstone(userId, documentId, now, (now+tombstoneRetention.toMillis())/1000))
+                    .build();
+        return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().putItem(AwsClientRegistry.asUser(request, creds))).thenApply(put -> null);
+    }
+
+    /**
+     * A page of the user's whole partition, the watermark the first poll will start from is fixed when the first page is read.
+     */
+    private CompletableFuture<ChangeSet> archive(String userId,SyncToken token, AwsSessionCredentials creds){
+
+        QueryRequest.Builder request=DocumentItems.searchFieldsQuery(userId).limit(maxChanges);
+        if(token.startId!=null){
+            request.exclusiveStartKey(DocumentItems.key(userId, token.startId));
+        }
+        QueryRequest built=AwsClientRegistry.asUser(request.build(), creds);
+        return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().query(built)).thenApply(response -> {
+            List<SearchHit> documents=response.items().stream().map(DocumentItems::toSearchHit).collect(Collectors.toList());
+            if(response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()){
+                SyncToken next=new SyncToken(-1, token.until, SyncToken.ARCHIVE, null, response.lastEvaluatedKey().get("DocumentId").s());
+                return changeSet(userId, documents, List.of(), next, true);
+            }
+            return changeSet(userId, documents, List.of(), new SyncToken(token.until, token.until, SyncToken.UPLOADS, null, null), false);
+        });
+    }
+
+    private CompletableFuture<ChangeSet> deletions(String userId,List<SearchHit> documents,SyncToken token,long until,int limit, AwsSessionCredentials creds){
+        return query(DocumentItems.tombstonePartition(userId), token, until, limit, creds).thenApply(response -> {
+            List<String> deleted=response.items().stream().map(item -> item.get("DocumentId").s()).collect(Collectors.toList());
+            if(response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()){
+                Map<String,AttributeValue> last=response.lastEvaluatedKey();
+                SyncToken next=new SyncToken(token.since, until, SyncToken.DELETIONS, Long.parseLong(last.get("UploadedAt").n()), last.get("DocumentId").s());
+                return changeSet(userId, documents, deleted, next, true);
+            }
+            return changeSet(userId, documents, deleted, new SyncToken(until, until, SyncToken.UPLOADS, null, null), false);
+        });
+    }
+
+    private CompletableFuture<QueryResponse> query(String partition,SyncToken token,long until,int limit, AwsSessionCredentials creds){
+
+        Map<String,AttributeValue> values=new HashMap<>();
+        values.put(":cid", AttributeValue.fromS(partition));
+        values.put(":from", AttributeValue.fromN(Long.toString(token.since+1)));
+        values.put(":until", AttributeValue.fromN(Long.toString(until)));
+        QueryRequest.Builder request=QueryRequest.builder()
+                    .tableName(DocumentItems.TABLE_NAME)
+                    .indexName(DocumentItems.UPLOADED_AT_INDEX)
+                    .keyConditionExpression("#cid = :cid AND #at BETWEEN :from AND :until")
+                    .expressionAttributeNames(Map.of("#cid","CustomerId","#at","UploadedAt"))
+                    .expressionAttributeValues(values)
+                    .limit(limit);
+        if(token.startId!=null){
+            request.exclusiveStartKey(Map.of(
+                "CustomerId",AttributeValue.fromS(partition),
+                "DocumentId",AttributeValue.fromS(token.startId),
+                "UploadedAt",AttributeValue.fromN(Long.toString(token.startAt))));
+        }
+        QueryRequest built=AwsClientRegistry.asUser(request.build(), creds);
+        return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().query(built));
+    }
+
+    private ChangeSet changeSet(String userId,List<SearchHit> documents,List<String> deleted,SyncToken next,boolean hasMore){
+        ChangeSet changeSet=new ChangeSet();
+        changeSet.setDocuments(hasMore ? documents : withPending(userId, documents));
+        changeSet.setDeleted(deleted);
+        changeSet.setSyncToken(next.encode());
+        changeSet.setHasMore(hasMore);
+        return changeSet;
+    }
+
+    private List<SearchHit> withPending(String userId,List<SearchHit> documents){
+        List<SearchHit> pending=journal.pendingHits(userId);
+        if(pending.isEmpty()){
+            return documents;
+        }
+        Set<String> seen=documents.stream().map(SearchHit::getFileId).collect(Collectors.toSet());
+        List<SearchHit> merged=new ArrayList<>(documents);
+        pending.stream().filter(hit -> !seen.contains(hit.getFileId())).forEach(merged::add);
+        return merged;
+    }
+
+    /**
+     * Changes after {@code since} and up to {@code until}, in epoch millis. While a range is being paged the
+     * token also carries whether uploads, deletions or, on a first sync, the whole archive are being read and
+     * the key to resume after. An archive page has no lower bound and resumes after a document id only.
+     */
+    private static final class SyncToken {
+
+        private static final char UPLOADS='u';
+        private static final char DELETIONS='d';
+        private static final char ARCHIVE='a';
+
+        private final long since;
+        private final long until;
+        private final char phase;
+        private final Long startAt;
+        private final String startId;
+
+        SyncToken(long since,long until,char phase,Long startAt,String startId){
+            this.since=since;
+            this.until=until;
+            this.phase=phase;
+            this.startAt=startAt;
+            this.startId=startId;
+        }
+
+        boolean isPaging(){
+            return phase!=UPLOADS || startId!=null;
+        }
+
+        String encode(){
+            String value="2:"+since+":"+until;
+            if(phase==ARCHIVE){
+                value+=":"+phase+":"+startId;
+            }else if(isPaging()){
+                value+=":"+phase+(startId!=null ? ":"+startAt+":"+startId : "");
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static SyncToken decode(String token){
+            try{
+                String[] parts=new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(":");
+                if(!parts[0].equals("2") || (parts.length!=3 && parts.length!=4 && parts.length!=5 && parts.length!=6)){
+                    throw new IllegalArgumentException("Invalid sync token");
+                }
+                long since=Long.parseLong(parts[1]);
+                long until=Long.parseLong(parts[2]);
+                if(parts.length>3 && !parts[3].matches("[uda]")){
+                    throw new IllegalArgumentException("Invalid sync token");
+                }
+                char phase=parts.length>3 ? parts[3].charAt(0) : UPLOADS;
+                if(phase==ARCHIVE){
+                    if(parts.length!=5){
+                        throw new IllegalArgumentException("Invalid sync token");
+                    }
+                    return new SyncToken(-1, until, ARCHIVE, null, parts[4]);
+                }
+                if(parts.length==5 || since<0){
+                    throw new IllegalArgumentException("Invalid sync token");
+                }
+                return parts.length==6
+                            ? new SyncToken(since, until, phase, Long.parseLong(parts[4]), parts[5])
+                            : new SyncToken(since, until, phase, null, null);
+            }catch(IllegalArgumentException|ArrayIndexOutOfBoundsException e){
+                throw new IllegalArgumentException("Invalid sync token", e);
+            }
+        }
+    }
+}
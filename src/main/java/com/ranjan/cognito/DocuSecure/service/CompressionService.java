@@ -0,0 +1,204 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import software.amazon.awssdk.http.Abortable;
+
+/**
+ * Picks a codec for a stored document and applies it as a stream.
+ * Documents are compressed when the declared type is known to shrink, or when an unlabelled body looks
+ * like text. Bodies that start with the signature of an already compressed format are always stored as is.
+ * The only codec is deflate (zlib), which every HTTP client accepts as a Content-Encoding.
+ */
+@Service
+public class CompressionService {
+
+    public static final String DEFLATE="deflate";
+
+    private static final int SNIFF_BYTES=512;
+
+    private static final byte[][] COMPRESSED_SIGNATURES={
+        {0x1f,(byte)0x8b},                          //gzip
+        {'P','K',0x03,0x04},                        //zip and the office formats built on it
+        {0x28,(byte)0xb5,0x2f,(byte)0xfd},          //zstd
+        {'B','Z','h'},                              //bzip2
+        {(byte)0xfd,'7','z','X','Z',0x00},          //xz
+        {'7','z',(byte)0xbc,(byte)0xaf,0x27,0x1c},  //7z
+        {'R','a','r','!'},                          //rar
+        {(byte)0x89,'P','N','G'},                   //png
+        {(byte)0xff,(byte)0xd8,(byte)0xff},         //jpeg
+        {'G','I','F','8'},                          //gif
+        {'%','P','D','F'}                           //pdf, its streams are compressed already
+    };
+
+    @Value("${docusecure.compression.enabled:true}")
+    private boolean enabled;
+
+    @Value("${docusecure.compression.minSize:1KB}")
+    private DataSize minSize;
+
+    @Value("${docusecure.compression.types:text/*,application/json,application/xml,application/*+xml,application/javascript,application/x-yaml,application/rtf,application/msword,application/vnd.ms-excel,application/vnd.ms-powerpoint}")
+    private List<String> types;
+
+    /**
+     * Chooses the codec for a body, or null to store it as is. The stream must support mark, only its
+     * first bytes are looked at and it is reset afterwards.
+     */
+    public String selectCodec(String contentType,long size,InputStream content) throws IOException {
+        if(!enabled || size<minSize.toBytes()){
+            return null;
+        }
+        content.mark(SNIFF_BYTES);
+        byte[] head=content.readNBytes(SNIFF_BYTES);
+        content.reset();
+        for(byte[] signature:COMPRESSED_SIGNATURES){
+            if(head.length>=signature.length && Arrays.equals(head, 0, signature.length, signature, 0, signature.length)){
+                return null;
+            }
+        }
+        MediaType mediaType=mediaType(contentType);
+        if(mediaType==null || mediaType.equals(MediaType.APPLICATION_OCTET_STREAM)){
+            return looksLikeText(head) ? DEFLATE : null;
+        }
+        for(String type:types){
+            if(MediaType.parseMediaType(type).includes(mediaType)){
+                return DEFLATE;
+            }
+        }
+        return null;
+    }
+
+    public BufferedInputStream sniffable(InputStream content){
+        return new BufferedInputStream(content, SNIFF_BYTES*2);
+    }
+
+    public CompressedInputStream compress(InputStream content,String codec){
+        if(!DEFLATE.equals(codec)){
+            throw new IllegalArgumentException("Unsupported codec "+codec);
+        }
+        return new CompressedInputStream(content);
+    }
+
+    public InputStream decompress(InputStream content,String codec){
+        if(!DEFLATE.equals(codec)){
+            throw new IllegalArgumentException("Unsupported codec "+codec);
+        }
+        return new DecompressingInputStream(content);
+    }
+
+    private static boolean looksLikeText(byte[] head){
+        if(head.length==0){
+            return false;
+        }
+        int control=0;
+        for(byte b:head){
+            if(b==0){
+                return false;
+            }
+            if(b<0x20 && b!='\n' && b!='\r' && b!='\t' && b!='\f'){
+                control++;
+            }
+        }
+        return control*10<head.length;
+    }
+
+    private static MediaType mediaType(String contentType){
+        if(contentType==null || contentType.isBlank()){
+            return null;
+        }
+        try{
+            return MediaType.parseMediaType(contentType);
+        }catch(InvalidMediaTypeException e){
+            return null;
+        }
+    }
+
+    /**
+     * Deflates what it reads and counts the uncompressed bytes that went in.
+     */
+    public static final class CompressedInputStream extends FilterInputStream {
+
+        private final Counter counter;
+
+        private CompressedInputStream(InputStream content){
+            this(new Counter(content));
+        }
+
+        private CompressedInputStream(Counter counter){
+            super(new DeflaterInputStream(counter));
+            this.counter=counter;
+        }
+
+        public long getOriginalSize(){
+            return counter.count;
+        }
+    }
+
+    /**
+     * Inflates a stored body. It reads its source to the end so wrappers that act on end of stream still see it,
+     * and keeps the source abortable.
+     */
+    private static final class DecompressingInputStream extends InflaterInputStream implements Abortable {
+
+        DecompressingInputStream(InputStream content){
+            super(content);
+        }
+
+        @Override
+        public int read(byte[] buffer,int offset,int length) throws IOException {
+            int read=super.read(buffer, offset, length);
+            if(read==-1){
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return read;
+        }
+
+        @Override
+        public void abort() {
+            if(in instanceof Abortable){
+                ((Abortable)in).abort();
+            }
+        }
+    }
+
+    private static final class Counter extends FilterInputStream {
+
+        private long count;
+
+        Counter(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read=super.read();
+            if(read!=-1){
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer,int offset,int length) throws IOException {
+            int read=super.read(buffer, offset, length);
+            if(read>0){
+                count+=read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.stereotype.Service;
+
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.exception.DocumentExistsException;
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.response.FileResponse;
+import com.ranjan.cognito.DocuSecure.response.PresignedTransfer;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+
+/**
+ * Direct transfer mode, clients move document bytes to and from S3 themselves using presigned URLs
+ * signed with their own identity pool credentials, so the application only serves small JSON requests.
+ * An upload is only listed once the client commits it, which checks the object exists and writes the
+ * Docusecure row. Every presigned upload gets its own key, so a commit can only ever record one row. A URL never outlives the credentials that signed it, whatever the configured ttl.
+ */
+@Service
+public class DirectTransferService {
+
+    private static final String DIRECT_PREFIX="/direct/";
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private AsyncAwsService asyncAwsService;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Value("${docusecure.direct.urlTtl:15m}")
+    private Duration urlTtl;
+
+    public CompletableFuture<PresignedTransfer> presignDownload(String documentId,String bucketName,String userId, AwsSessionCredentials creds){
+
+        return asyncAwsService.getDocumentDetails(documentId, userId, creds).thenApply(document -> {
+            if(document.getEncryption()!=null){
+                //S3 only holds the ciphertext, the data key never leaves the application
+                throw new IllegalArgumentException("Document is encrypted and can only be downloaded through the API");
+            }
+            GetObjectRequest objectRequest=GetObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(document.getFilePath())
+                        .responseContentType(document.getFileType())
+                        .responseContentDisposition(ContentDisposition.attachment().filename(document.getFileName()).build().toString())
+                        .responseContentEncoding(document.getCodec())
+                        .overrideConfiguration(AwsClientRegistry.credentials(creds))
+                        .build();
+            PresignedGetObjectRequest presigned=clientRegistry.presigner()
+                        .presignGetObject(request -> request.signatureDuration(urlTtl).getObjectRequest(objectRequest));
+
+            PresignedTransfer transfer=new PresignedTransfer();
+            transfer.setFileId(documentId);
+            transfer.setName(document.getFileName());
+            transfer.setMethod(presigned.httpRequest().method().name());
+            transfer.setUrl(presigned.url().toString());
+            transfer.setExpiresAt(presigned.expiration());
+            transfer.setHeaders(Map.of());
+            return transfer;
+        });
+    }
+
+    /**
+     * Signs a PUT for a fresh key, userId/direct/uploadId/fileName, so two uploads of the same name never share
+     * an object. The upload id becomes the document id on commit. The content type is part of the signature,
+     * so the client must send the returned headers unchanged.
+     */
+    public PresignedTransfer presignUpload(String fileName,String contentType,String bucketName,String userId, AwsSessionCredentials creds){
+
+        validateFileName(fileName);
+        String uploadId=UUID.randomUUID().toString();
+        String key=userId+DIRECT_PREFIX+uploadId+"/"+fileName;
+        PutObjectRequest objectRequest=PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .contentType(contentType)
+                    .overrideConfiguration(AwsClientRegistry.credentials(creds))
+                    .build();
+        PresignedPutObjectRequest presigned=clientRegistry.presigner()
+                    .presignPutObject(request -> request.signatureDuration(urlTtl).putObjectRequest(objectRequest));
+
+        PresignedTransfer transfer=new PresignedTransfer();
+        transfer.setFileId(uploadId);
+        transfer.setKey(key);
+        transfer.setName(fileName);
+        transfer.setMethod(presigned.httpRequest().method().name());
+        transfer.setUrl(presigned.url().toString());
+        transfer.setExpiresAt(presigned.expiration());
+        transfer.setHeaders(Map.of("Content-Type", contentType));
+        return transfer;
+    }
+
+    /**
+     * Records the object uploaded to a key handed out by {@link #presignUpload}. A key is recorded once,
+     * committing it again fails with {@link DocumentExistsException}.
+     */
+    public CompletableFuture<FileResponse> commitUpload(String key,String bucketName,String userId, AwsSessionCredentials creds){
+
+        String[] parts=parseKey(key, userId);
+        String documentId=parts[0];
+        String fileName=parts[1];
+        HeadObjectRequest headRequest=HeadObjectRequest.builder().bucket(bucketName).key(key).build();
+        return bulkheads.getS3().callAsync(() -> clientRegistry.s3Async().headObject(AwsClientRegistry.asUser(headRequest, creds)))
+                    .exceptionally(error -> {
+                        Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+                        if(cause instanceof S3Exception && ((S3Exception)cause).statusCode()==404){
+                            throw new DocumentNotFoundException(key);
+                        }
+                        throw error instanceof CompletionException ? (CompletionException)error : new CompletionException(error);
+                    })
+                    .thenCompose(head -> {
+                        String contentType=head.contentType()==null ? "application/octet-stream" : head.contentType();
+                        Map<String,AttributeValue> item=DocumentItems.newItem(userId, documentId, fileName, key, contentType);
+                        PutItemRequest request=PutItemRequest.builder()
+                                    .tableName(DocumentItems.TABLE_NAME)
+                                    .item(item)
+                                    .conditionExpression("attribute_not_exists(DocumentId)")
+                                    .build();
+                        return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().putItem(AwsClientRegistry.asUser(request, creds)))
+                                    .exceptionally(error -> {
+                                        Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+                                        if(cause instanceof ConditionalCheckFailedException){
+                                            throw new DocumentExistsException(documentId);
+                                        }
+                                        throw error instanceof CompletionException ? (CompletionException)error : new CompletionException(error);
+                                    })
+                                    .thenApply(done -> {
+                                        listingCache.invalidate(userId);
+                                        searchIndex.add(userId, DocumentItems.toSearchHit(item));
+                                        FileResponse fileResponse=new FileResponse();
+                                        fileResponse.setFileId(documentId);
+                                        fileResponse.setName(fileName);
+                                        return fileResponse;
+                                    });
+                    });
+    }
+
+    //Returns the upload id and file name of a key under the user's direct upload prefix
+    private static String[] parseKey(String key,String userId){
+        String prefix=userId+DIRECT_PREFIX;
+        if(key==null || !key.startsWith(prefix)){
+            throw new IllegalArgumentException("Invalid upload key");
+        }
+        String rest=key.substring(prefix.length());
+        int slash=rest.indexOf('/');
+        if(slash<0){
+            throw new IllegalArgumentException("Invalid upload key");
+        }
+        String uploadId=rest.substring(0, slash);
+        try{
+            UUID.fromString(uploadId);
+        }catch(IllegalArgumentException e){
+            throw new IllegalArgumentException("Invalid upload key", e);
+        }
+        String fileName=rest.substring(slash+1);
+        validateFileName(fileName);
+        return new String[]{uploadId, fileName};
+    }
+
+    private static void validateFileName(String fileName){
+        if(fileName==null || fileName.isBlank() || fileName.contains("/") || fileName.contains("\\") || fileName.equals("..")){
+            throw new IllegalArgumentException("Invalid file name");
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.Encryption;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+
+/**
+ * Layout of the Docusecure table, shared by the blocking and the async service so both read and
+ * write items the same way.
+ */
+public final class DocumentItems {
+
+    public static final String TABLE_NAME="Docusecure";
+    //Sparse secondary indexes, rows written before UploadedAt and FilenameLower existed are only found through the base table
+    public static final String UPLOADED_AT_INDEX="CustomerId-UploadedAt-index";
+    public static final String FILENAME_INDEX="CustomerId-FilenameLower-index";
+
+    private DocumentItems() {
+    }
+
+    public static Map<String,AttributeValue> key(String userId,String documentId){
+        Map<String,AttributeValue> queryKeys=new HashMap<>();
+        queryKeys.put("CustomerId",AttributeValue.builder().s(userId).build());
+        queryKeys.put("DocumentId",AttributeValue.builder().s(documentId).build());
+        return queryKeys;
+    }
+
+    public static Map<String,AttributeValue> newItem(String userId,String documentId,String fileName,String filePath,String fileType){
+        Map<String,AttributeValue> item=new HashMap<>();
+        item.put("CustomerId",AttributeValue.builder().s(userId).build());
+        item.put("DocumentId",AttributeValue.builder().s(documentId).build());
+        item.put("Filename",AttributeValue.builder().s(fileName).build());
+        item.put("FilePath",AttributeValue.builder().s(filePath).build());
+        item.put("FileType",AttributeValue.builder().s(fileType).build());
+        item.put("FilenameLower",AttributeValue.builder().s(lowerName(fileName)).build());
+        item.put("UploadedAt",AttributeValue.builder().n(Long.toString(System.currentTimeMillis())).build());
+        return item;
+    }
+
+    /**
+     * Deletions are recorded under their own partition, so listings and searches of the user never read them
+     * while the change feed finds them through {@link #UPLOADED_AT_INDEX}.
+     */
+    public static String tombstonePartition(String userId){
+        return userId+"#deleted";
+    }
+
+    //UploadedAt is the deletion time here, ExpiresAt the epoch seconds the table's TTL removes the tombstone at
+    public static Map<String,AttributeValue> tombstone(String userId,String documentId,long deletedAt,long expiresAt){
+        Map<String,AttributeValue> item=new HashMap<>();
+        item.put("CustomerId",AttributeValue.fromS(tombstonePartition(userId)));
+        item.put("DocumentId",AttributeValue.fromS(documentId));
+        item.put("UploadedAt",AttributeValue.fromN(Long.toString(deletedAt)));
+        item.put("ExpiresAt",AttributeValue.fromN(Long.toString(expiresAt)));
+        return item;
+    }
+
+    public static GetItemRequest getItemRequest(String userId,String documentId){
+        return GetItemRequest.builder().tableName(TABLE_NAME).key(key(userId, documentId)).build();
+    }
+
+    public static QueryRequest.Builder listingQuery(String userId){
+        return QueryRequest.builder()
+                    .tableName(TABLE_NAME)
+                    .keyConditionExpression("CustomerId= :cid")
+                    .projectionExpression("#id, #name")
+                    .expressionAttributeNames(Map.of("#id","DocumentId","#name","Filename"))
+                    .expressionAttributeValues(Map.of(":cid",AttributeValue.fromS(userId)));
+    }
+
+    /**
+     * Walks the whole partition for the fields search needs, used to fill the in-memory search index.
+     */
+    public static QueryRequest.Builder searchFieldsQuery(String userId){
+        return QueryRequest.builder()
+                    .tableName(TABLE_NAME)
+                    .keyConditionExpression("CustomerId= :cid")
+                    .projectionExpression("#id, #name, #type, #at")
+                    .expressionAttributeNames(Map.of("#id","DocumentId","#name","Filename","#type","FileType","#at","UploadedAt"))
+                    .expressionAttributeValues(Map.of(":cid",AttributeValue.fromS(userId)));
+    }
+
+    /**
+     * Rows missing from the sparse secondary indexes, read from the base table.
+     */
+    public static QueryRequest.Builder unindexedQuery(String userId){
+        return QueryRequest.builder()
+                    .tableName(TABLE_NAME)
+                    .keyConditionExpression("CustomerId= :cid")
+                    .filterExpression("attribute_not_exists(#lower) OR attribute_not_exists(#at)")
+                    .projectionExpression("#id, #name, #type, #at, #path")
+                    .expressionAttributeNames(Map.of("#id","DocumentId","#name","Filename","#type","FileType","#at","UploadedAt",
+                                "#lower","FilenameLower","#path","FilePath"))
+                    .expressionAttributeValues(Map.of(":cid",AttributeValue.fromS(userId)));
+    }
+
+    public static String lowerName(String fileName){
+        return fileName==null ? "" : fileName.toLowerCase(Locale.ROOT);
+    }
+
+    public static SearchHit toSearchHit(Map<String,AttributeValue> item){
+        SearchHit hit=new SearchHit();
+        hit.setFileId(item.get("DocumentId").s());
+        hit.setName(item.get("Filename").s());
+        hit.setFileType(item.containsKey("FileType") ? item.get("FileType").s() : null);
+        hit.setUploadedAt(item.containsKey("UploadedAt") ? Instant.ofEpochMilli(Long.parseLong(item.get("UploadedAt").n())) : null);
+        return hit;
+    }
+
+    public static DocumentDetails toDocumentDetails(Map<String,AttributeValue> item){
+        DocumentDetails document=new DocumentDetails();
+        document.setDocumentId(item.get("DocumentId").s());
+        document.setDocumentName(item.get("Filename").s());
+        return document;
+    }
+
+    public static DocumentResponseTO toDocumentResponse(Map<String,AttributeValue> item){
+        DocumentResponseTO documentResponseTO=new DocumentResponseTO();
+        documentResponseTO.setFileName(item.get("Filename").s());
+        documentResponseTO.setFileType(item.get("FileType").s());
+        documentResponseTO.setFilePath(item.get("FilePath").s());
+        if(item.containsKey("Codec")){
+            documentResponseTO.setCodec(item.get("Codec").s());
+            documentResponseTO.setOriginalSize(Long.valueOf(item.get("OriginalSize").n()));
+        }
+        documentResponseTO.setEncryption(encryption(item));
+        return documentResponseTO;
+    }
+
+    /**
+     * Records the wrapped data key of an encrypted body, shared by the Docusecure and the blob table.
+     * The key is kept as base64 text so journaled items round trip through JSON.
+     */
+    public static void putEncryption(Map<String,AttributeValue> item,Encryption encryption){
+        if(encryption!=null){
+            item.put("KeyId",AttributeValue.fromS(encryption.getKeyId()));
+            item.put("WrappedKey",AttributeValue.fromS(encryption.getWrappedKey()));
+            item.put("ChunkSize",AttributeValue.fromN(Integer.toString(encryption.getChunkSize())));
+        }
+    }
+
+    public static Encryption encryption(Map<String,AttributeValue> item){
+        if(!item.containsKey("WrappedKey")){
+            return null;
+        }
+        Encryption encryption=new Encryption();
+        encryption.setKeyId(item.get("KeyId").s());
+        encryption.setWrappedKey(item.get("WrappedKey").s());
+        encryption.setChunkSize(Integer.parseInt(item.get("ChunkSize").n()));
+        return encryption;
+    }
+
+    public static String encodePageToken(String documentId){
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(documentId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String decodePageToken(String pageToken){
+        try{
+            return new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+        }catch(IllegalArgumentException e){
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+
+    public static Map<String,AttributeValue> exclusiveStartKey(String userId,String pageToken){
+        return Map.of(
+            "CustomerId",AttributeValue.fromS(userId),
+            "DocumentId",AttributeValue.fromS(decodePageToken(pageToken)));
+    }
+}
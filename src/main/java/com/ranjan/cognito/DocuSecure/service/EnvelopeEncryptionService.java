@@ -0,0 +1,335 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import com.ranjan.cognito.DocuSecure.to.Encryption;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import software.amazon.awssdk.http.Abortable;
+
+/**
+ * Envelope encryption of stored bodies. Every stored object gets its own AES-256 data key, which is kept in
+ * the Docusecure item wrapped by a master key of the {@link KeyProvider}, so S3 only ever holds ciphertext.
+ * <p>
+ * The body is cut into segments of {@code chunkSize} plaintext bytes, each sealed on its own with AES-GCM
+ * and followed by its 16 byte tag. The nonce is the segment index plus a flag on the last segment, so segments
+ * can be sealed and opened independently and in any order, a byte range is read by fetching only the segments
+ * covering it, and a truncated or reordered object fails authentication. Streams hold one segment at a time.
+ */
+@Service
+public class EnvelopeEncryptionService {
+
+    public static final int TAG_BYTES=16;
+
+    private static final int NONCE_BYTES=12;
+
+    @Autowired
+    private KeyProvider keyProvider;
+
+    @Value("${docusecure.encryption.enabled:false}")
+    private boolean enabled;
+
+    @Value("${docusecure.encryption.chunkSize:64KB}")
+    private DataSize chunkSize;
+
+    @PostConstruct
+    public void init(){
+        if(enabled){
+            //Fail at startup rather than on the first upload when the master keys are unreadable
+            keyProvider.activeKeyId();
+        }
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    public DataKey newDataKey(){
+        SecretKey key;
+        try{
+            KeyGenerator generator=KeyGenerator.getInstance("AES");
+            generator.init(256);
+            key=generator.generateKey();
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }
+        String keyId=keyProvider.activeKeyId();
+        Encryption encryption=new Encryption();
+        encryption.setKeyId(keyId);
+        encryption.setWrappedKey(Base64.getEncoder().encodeToString(keyProvider.wrap(keyId, key)));
+        encryption.setChunkSize(Math.toIntExact(chunkSize.toBytes()));
+        return new DataKey(key, encryption);
+    }
+
+    public InputStream encrypt(InputStream plaintext,DataKey dataKey){
+        return new EncryptingInputStream(plaintext, dataKey.getKey(), dataKey.getEncryption().getChunkSize());
+    }
+
+    /**
+     * Opens a whole stored object of {@code storedLength} bytes.
+     */
+    public InputStream decrypt(InputStream sealed,Encryption encryption,long storedLength){
+        return new DecryptingInputStream(sealed, unwrap(encryption), encryption.getChunkSize(), storedLength, 0, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens {@code length} plaintext bytes from {@code start}. The sealed stream must begin at the segment holding
+     * {@code start}, as fetched with {@link #storedRange}.
+     */
+    public InputStream decrypt(InputStream sealed,Encryption encryption,long storedLength,long start,long length){
+        int size=encryption.getChunkSize();
+        long segment=start/size;
+        return new DecryptingInputStream(sealed, unwrap(encryption), size, storedLength, segment, start-segment*size, length);
+    }
+
+    public static long plaintextLength(Encryption encryption,long storedLength){
+        long sealedSize=encryption.getChunkSize()+TAG_BYTES;
+        long segments=Math.max(1, (storedLength+sealedSize-1)/sealedSize);
+        return storedLength-segments*TAG_BYTES;
+    }
+
+    /**
+     * First and last stored byte of the segments covering plaintext bytes {@code start} to {@code end}.
+     */
+    public static long[] storedRange(Encryption encryption,long storedLength,long start,long end){
+        long size=encryption.getChunkSize();
+        long sealedSize=size+TAG_BYTES;
+        return new long[]{(start/size)*sealedSize, Math.min(storedLength-1, (end/size+1)*sealedSize-1)};
+    }
+
+    private SecretKey unwrap(Encryption encryption){
+        return keyProvider.unwrap(encryption.getKeyId(), Base64.getDecoder().decode(encryption.getWrappedKey()));
+    }
+
+    private static GCMParameterSpec nonce(long segment,boolean last){
+        ByteBuffer nonce=ByteBuffer.allocate(NONCE_BYTES);
+        nonce.position(NONCE_BYTES-5);
+        nonce.putInt(Math.toIntExact(segment));
+        nonce.put((byte)(last ? 1 : 0));
+        return new GCMParameterSpec(TAG_BYTES*8, nonce.array());
+    }
+
+    private static Cipher newCipher(){
+        try{
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int readFully(InputStream in,byte[] buffer,int offset,int length) throws IOException {
+        int total=0;
+        while(total<length){
+            int read=in.read(buffer, offset+total, length-total);
+            if(read==-1){
+                break;
+            }
+            total+=read;
+        }
+        return total;
+    }
+
+    /**
+     * A fresh data key and how it is stored. The key itself is only held while the body is being sealed.
+     */
+    @Getter
+    public static final class DataKey {
+
+        private final SecretKey key;
+        private final Encryption encryption;
+
+        private DataKey(SecretKey key,Encryption encryption){
+            this.key=key;
+            this.encryption=encryption;
+        }
+    }
+
+    private static final class EncryptingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final SecretKey key;
+        private final Cipher cipher=newCipher();
+        private final byte[] plain;
+        private final byte[] sealed;
+        private int position;
+        private int limit;
+        private long segment;
+        private int carry=-1;
+        private boolean sealedLast;
+
+        EncryptingInputStream(InputStream in,SecretKey key,int chunkSize){
+            this.in=in;
+            this.key=key;
+            this.plain=new byte[chunkSize];
+            this.sealed=new byte[chunkSize+TAG_BYTES];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single=new byte[1];
+            int read=read(single, 0, 1);
+            return read==-1 ? -1 : single[0]&0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer,int offset,int length) throws IOException {
+            if(length==0){
+                return 0;
+            }
+            if(position==limit && !seal()){
+                return -1;
+            }
+            int count=Math.min(length, limit-position);
+            System.arraycopy(sealed, position, buffer, offset, count);
+            position+=count;
+            return count;
+        }
+
+        //Reads one byte past a full segment to learn whether it is the last one
+        private boolean seal() throws IOException {
+            if(sealedLast){
+                return false;
+            }
+            int filled=0;
+            if(carry>=0){
+                plain[filled++]=(byte)carry;
+                carry=-1;
+            }
+            filled+=readFully(in, plain, filled, plain.length-filled);
+            boolean last=filled<plain.length || (carry=in.read())==-1;
+            try{
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonce(segment, last));
+                limit=cipher.doFinal(plain, 0, filled, sealed, 0);
+            }catch(GeneralSecurityException e){
+                throw new IOException("Could not encrypt segment "+segment, e);
+            }
+            position=0;
+            segment++;
+            sealedLast=last;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens segments as they are read and hands out the plaintext between {@code skip} and {@code skip+remaining}.
+     * A whole object is read to its end, so wrappers that act on end of stream still see it.
+     */
+    private static final class DecryptingInputStream extends InputStream implements Abortable {
+
+        private final InputStream in;
+        private final SecretKey key;
+        private final Cipher cipher=newCipher();
+        private final byte[] sealed;
+        private final byte[] plain;
+        private final long storedLength;
+        private final long lastSegment;
+        private long segment;
+        private long skip;
+        private long remaining;
+        private int position;
+        private int limit;
+
+        DecryptingInputStream(InputStream in,SecretKey key,int chunkSize,long storedLength,long firstSegment,long skip,long remaining){
+            this.in=in;
+            this.key=key;
+            this.sealed=new byte[chunkSize+TAG_BYTES];
+            this.plain=new byte[chunkSize];
+            this.storedLength=storedLength;
+            this.lastSegment=Math.max(1, (storedLength+sealed.length-1)/sealed.length)-1;
+            this.segment=firstSegment;
+            this.skip=skip;
+            this.remaining=remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single=new byte[1];
+            int read=read(single, 0, 1);
+            return read==-1 ? -1 : single[0]&0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer,int offset,int length) throws IOException {
+            if(length==0){
+                return 0;
+            }
+            if(remaining==0){
+                return -1;
+            }
+            while(position==limit){
+                if(!open()){
+                    return -1;
+                }
+            }
+            int count=(int)Math.min(Math.min(length, limit-position), remaining);
+            System.arraycopy(plain, position, buffer, offset, count);
+            position+=count;
+            remaining-=count;
+            return count;
+        }
+
+        private boolean open() throws IOException {
+            if(segment>lastSegment){
+                if(in.read()!=-1){
+                    throw new IOException("Stored document is longer than its segments");
+                }
+                return false;
+            }
+            boolean last=segment==lastSegment;
+            int expected=last ? (int)(storedLength-segment*sealed.length) : sealed.length;
+            if(readFully(in, sealed, 0, expected)<expected){
+                throw new EOFException("Stored document ended inside segment "+segment);
+            }
+            try{
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(segment, last));
+                limit=cipher.doFinal(sealed, 0, expected, plain, 0);
+            }catch(AEADBadTagException e){
+                throw new IOException("Segment "+segment+" failed authentication", e);
+            }catch(GeneralSecurityException e){
+                throw new IOException("Could not decrypt segment "+segment, e);
+            }
+            position=(int)Math.min(skip, limit);
+            skip-=position;
+            segment++;
+            if(remaining==Long.MAX_VALUE && last){
+                //Drain the end of stream now so a whole object is reported complete with its last byte
+                open();
+            }
+            return true;
+        }
+
+        @Override
+        public void abort() {
+            if(in instanceof Abortable){
+                ((Abortable)in).abort();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
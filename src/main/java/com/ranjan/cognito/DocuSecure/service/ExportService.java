@@ -0,0 +1,211 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.http.Abortable;
+
+/**
+ * Streams several documents to the client as one ZIP archive.
+ * Documents are opened ahead of the one being written, at most {@code prefetch} at a time, so S3 latency
+ * overlaps with the transfer while memory stays bounded by the SDK's per stream buffers. Nothing is
+ * staged on disk, entries are deflated straight into the response.
+ */
+@Service
+public class ExportService {
+
+    public static final String ALL="all";
+
+    private static final int BUFFER_SIZE=8192;
+
+    @Autowired
+    private AsyncAwsService asyncAwsService;
+
+    @Autowired
+    private DocumentMetrics metrics;
+
+    @Value("${docusecure.export.prefetch:4}")
+    private int prefetch;
+
+    @Value("${docusecure.export.maxDocuments:10000}")
+    private int maxDocuments;
+
+    /**
+     * Resolves the documents to export, {@link #ALL} selects every document of the user. Either way at most
+     * {@code maxDocuments} are exported in one archive.
+     */
+    public CompletableFuture<List<String>> resolve(List<String> documentIds,String bucketName,String userId, AwsSessionCredentials creds){
+        if(documentIds.size()==1 && ALL.equalsIgnoreCase(documentIds.get(0))){
+            return asyncAwsService.listS3Objects(bucketName, userId, creds).thenApply(documents -> {
+                if(documents.size()>maxDocuments){
+                    throw new IllegalArgumentException("At most "+maxDocuments+" documents can be exported, there are "+documents.size());
+                }
+                return documents.stream().map(DocumentDetails::getDocumentId).collect(Collectors.toList());
+            });
+        }
+        List<String> distinct=documentIds.stream().distinct().collect(Collectors.toList());
+        if(distinct.isEmpty() || distinct.size()>maxDocuments){
+            throw new IllegalArgumentException("Between 1 and "+maxDocuments+" documents can be exported");
+        }
+        return CompletableFuture.completedFuture(distinct);
+    }
+
+    /**
+     * Writes the archive. Documents that cannot be opened, or whose body breaks off while it is copied, are listed
+     * in a trailing export-errors.txt entry rather than failing the whole export. A broken off entry keeps what was
+     * read before the failure. Only failing to write to the client ends the export.
+     */
+    public void writeZip(List<String> documentIds,String bucketName,String userId, AwsSessionCredentials creds,OutputStream out) throws IOException {
+
+        Iterator<String> remaining=documentIds.iterator();
+        Deque<CompletableFuture<DocumentResponseTO>> window=new ArrayDeque<>();
+        Deque<String> windowIds=new ArrayDeque<>();
+        Set<String> names=new HashSet<>();
+        List<String> failures=new ArrayList<>();
+        ZipOutputStream zip=new ZipOutputStream(out, StandardCharsets.UTF_8);
+        try{
+            fill(window, windowIds, remaining, bucketName, userId, creds);
+            while(!window.isEmpty()){
+                CompletableFuture<DocumentResponseTO> next=window.poll();
+                String documentId=windowIds.poll();
+                fill(window, windowIds, remaining, bucketName, userId, creds);
+                DocumentResponseTO document;
+                try{
+                    document=next.join();
+                }catch(CompletionException e){
+                    Throwable cause=e.getCause()!=null ? e.getCause() : e;
+                    failures.add(documentId+": "+cause.getMessage());
+                    continue;
+                }
+                ZipEntry entry=new ZipEntry(entryName(document.getFileName(), names));
+                if(document.getLastModified()!=null){
+                    entry.setLastModifiedTime(FileTime.from(document.getLastModified()));
+                }
+                //Bodies we did not compress on upload are mostly compressed formats already, don't spend CPU on them
+                zip.setLevel(document.getCodec()!=null ? Deflater.DEFAULT_COMPRESSION : Deflater.BEST_SPEED);
+                zip.putNextEntry(entry);
+                String failure=copy(content(document), zip);
+                zip.closeEntry();
+                if(failure!=null){
+                    failures.add(documentId+": "+entry.getName()+" is incomplete, "+failure);
+                }
+            }
+            if(!failures.isEmpty()){
+                zip.putNextEntry(new ZipEntry(entryName("export-errors.txt", names)));
+                zip.write(String.join("\n", failures).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.finish();
+            zip.flush();
+        }finally{
+            //The client went away or a copy failed, drop the connections opened ahead
+            window.forEach(pending -> pending.thenAccept(document -> abort(content(document))));
+        }
+    }
+
+    private void fill(Deque<CompletableFuture<DocumentResponseTO>> window,Deque<String> windowIds,Iterator<String> remaining,
+                      String bucketName,String userId, AwsSessionCredentials creds){
+        while(window.size()<prefetch && remaining.hasNext()){
+            String documentId=remaining.next();
+            windowIds.add(documentId);
+            window.add(asyncAwsService.openDownload(documentId, bucketName, userId, creds));
+        }
+    }
+
+    private static InputStream content(DocumentResponseTO document){
+        if(document.getContentFile()!=null){
+            return DocumentFileCache.region(document.getContentFile(), document.getContentOffset(), document.getContentLength());
+        }
+        return document.getContentStream();
+    }
+
+    /**
+     * Copies one body, returns null once it is complete or why reading it failed. A prefetched stream may have sat idle
+     * long enough for S3 to drop it, that only costs this entry. Failures writing to the client are thrown.
+     */
+    private String copy(InputStream content,OutputStream out) throws IOException {
+        boolean completed=false;
+        long copied=0;
+        metrics.transferStarted(DocumentMetrics.DOWNLOAD);
+        try{
+            byte[] buffer=new byte[BUFFER_SIZE];
+            while(true){
+                int read;
+                try{
+                    read=content.read(buffer);
+                }catch(IOException | RuntimeException e){
+                    return e.getMessage()!=null ? e.getMessage() : e.getClass().getSimpleName();
+                }
+                if(read==-1){
+                    break;
+                }
+                out.write(buffer, 0, read);
+                copied+=read;
+            }
+            completed=true;
+            return null;
+        }finally{
+            metrics.bytesDownloaded(copied);
+            metrics.transferEnded(DocumentMetrics.DOWNLOAD);
+            if(completed){
+                content.close();
+            }else{
+                abort(content);
+            }
+        }
+    }
+
+    private static void abort(InputStream content){
+        if(content instanceof Abortable){
+            ((Abortable)content).abort();
+        }
+        try{
+            content.close();
+        }catch(IOException e){
+            //nothing left to release
+        }
+    }
+
+    //Entry names are flattened and made unique, "report.pdf" then becomes "report (2).pdf"
+    private static String entryName(String fileName,Set<String> names){
+        String name=fileName==null || fileName.isBlank() ? "document" : fileName.replace('\\', '_').replace('/', '_');
+        if(names.add(name)){
+            return name;
+        }
+        int dot=name.lastIndexOf('.');
+        String base=dot>0 ? name.substring(0, dot) : name;
+        String extension=dot>0 ? name.substring(dot) : "";
+        for(int copy=2;;copy++){
+            String candidate=base+" ("+copy+")"+extension;
+            if(names.add(candidate)){
+                return candidate;
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.ranjan.cognito.DocuSecure.exception.DeadlineExceededException;
+import com.ranjan.cognito.DocuSecure.to.Deadline;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Hedged requests for idempotent reads. When the first attempt has not answered by the {@code percentile}
+ * latency recently seen for the operation, a second identical attempt is sent and whichever answers first wins,
+ * the other is cancelled and anything it still returns is handed to the caller's discard. An error from an
+ * attempt is not hedged, the other attempt is only waited for when it is already in flight.
+ * <p>
+ * Each first attempt earns {@code maxExtraRatio} of a hedge, up to {@code burst} saved, so hedges never add
+ * more than that share of requests even when the dependency as a whole slows down. No hedge is sent once the
+ * request's deadline has passed.
+ */
+@Component
+public class HedgedReads {
+
+    public static final String GET_ITEM="GetItem";
+    public static final String GET_OBJECT="GetObject";
+
+    private static final int WINDOW=1024;
+    private static final int RECOMPUTE_EVERY=64;
+    private static final long TOKEN=1000;
+
+    @Value("${docusecure.hedge.enabled:true}")
+    private boolean enabled;
+
+    @Value("${docusecure.hedge.percentile:0.95}")
+    private double percentile;
+
+    @Value("${docusecure.hedge.minDelay:20ms}")
+    private Duration minDelay;
+
+    @Value("${docusecure.hedge.initialDelay:500ms}")
+    private Duration initialDelay;
+
+    @Value("${docusecure.hedge.minSamples:100}")
+    private int minSamples;
+
+    @Value("${docusecure.hedge.maxExtraRatio:0.05}")
+    private double maxExtraRatio;
+
+    @Value("${docusecure.hedge.burst:10}")
+    private int burst;
+
+    private final Map<String,LatencyWindow> windows=new ConcurrentHashMap<>();
+    private final AtomicLong budget=new AtomicLong();
+
+    private final AtomicLong sent=new AtomicLong();
+    private final AtomicLong won=new AtomicLong();
+    private final AtomicLong skipped=new AtomicLong();
+
+    private ScheduledExecutorService timer;
+
+    @PostConstruct
+    public void init(){
+        timer=Executors.newSingleThreadScheduledExecutor(r->{
+            Thread thread=new Thread(r,"hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the read, hedging it when it is slow. Every attempt must be safe to repeat and cancelling its
+     * future must abort it. Cancelling the returned future cancels every attempt.
+     */
+    public <T> CompletableFuture<T> hedge(String operation,Deadline deadline,Supplier<CompletableFuture<T>> attempt,Consumer<T> discard){
+        if(deadline.isExpired()){
+            return CompletableFuture.failedFuture(new DeadlineExceededException(operation));
+        }
+        LatencyWindow window=windows.computeIfAbsent(operation, name->new LatencyWindow());
+        Race<T> race=new Race<>(window, discard);
+        if(!race.enter(attempt, false)){
+            return race.result;
+        }
+        if(enabled){
+            budget.updateAndGet(tokens->Math.min(burst*TOKEN, tokens+(long)(maxExtraRatio*TOKEN)));
+            long delay=window.delayNanos();
+            ScheduledFuture<?> scheduled=timer.schedule(()->{
+                if(race.result.isDone() || deadline.isExpired()){
+                    return;
+                }
+                if(!withdraw()){
+                    skipped.incrementAndGet();
+                    return;
+                }
+                sent.incrementAndGet();
+                race.enter(attempt, true);
+            }, delay, TimeUnit.NANOSECONDS);
+            race.result.whenComplete((value,error)->scheduled.cancel(false));
+        }
+        return race.result;
+    }
+
+    public long getSent(){
+        return sent.get();
+    }
+
+    public long getWon(){
+        return won.get();
+    }
+
+    public long getSkipped(){
+        return skipped.get();
+    }
+
+    /**
+     * Current wait before a hedge is sent, in milliseconds.
+     */
+    public double delayMillis(String operation){
+        LatencyWindow window=windows.get(operation);
+        return (window!=null ? window.delayNanos() : initialDelay.toNanos())/1_000_000.0;
+    }
+
+    private boolean withdraw(){
+        while(true){
+            long tokens=budget.get();
+            if(tokens<TOKEN){
+                return false;
+            }
+            if(budget.compareAndSet(tokens, tokens-TOKEN)){
+                return true;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        timer.shutdownNow();
+    }
+
+    private final class Race<T> {
+
+        private final CompletableFuture<T> result=new CompletableFuture<>();
+        private final List<CompletableFuture<T>> attempts=new CopyOnWriteArrayList<>();
+        private final AtomicInteger running=new AtomicInteger();
+        private final AtomicReference<Throwable> firstError=new AtomicReference<>();
+        private final LatencyWindow window;
+        private final Consumer<T> discard;
+
+        Race(LatencyWindow window,Consumer<T> discard){
+            this.window=window;
+            this.discard=discard;
+            result.whenComplete((value,error)->{
+                if(result.isCancelled()){
+                    attempts.forEach(attempt->attempt.cancel(true));
+                }
+            });
+        }
+
+        //Returns false when the attempt could not even be started, the race then holds its error
+        boolean enter(Supplier<CompletableFuture<T>> call,boolean hedged){
+            running.incrementAndGet();
+            long startedAt=System.nanoTime();
+            CompletableFuture<T> attempt;
+            try{
+                attempt=call.get();
+            }catch(RuntimeException e){
+                attempt=CompletableFuture.failedFuture(e);
+            }
+            attempts.add(attempt);
+            CompletableFuture<T> self=attempt;
+            attempt.whenComplete((value,error)->{
+                if(error==null){
+                    window.record(System.nanoTime()-startedAt);
+                    if(result.complete(value)){
+                        if(hedged){
+                            won.incrementAndGet();
+                        }
+                        attempts.stream().filter(other->other!=self).forEach(other->other.cancel(true));
+                    }else{
+                        discard.accept(value);
+                    }
+                    return;
+                }
+                firstError.compareAndSet(null, error);
+                if(running.decrementAndGet()==0){
+                    result.completeExceptionally(firstError.get());
+                }
+            });
+            return !result.isCompletedExceptionally();
+        }
+    }
+
+    /**
+     * The latest {@code WINDOW} successful attempt latencies of one operation, the percentile is worked out
+     * again every {@code RECOMPUTE_EVERY} samples rather than per request.
+     */
+    private final class LatencyWindow {
+
+        private final long[] samples=new long[WINDOW];
+        private final AtomicLong count=new AtomicLong();
+        private volatile long delay=-1;
+
+        void record(long latency){
+            long index=count.getAndIncrement();
+            samples[(int)(index%WINDOW)]=latency;
+            if((index+1)%RECOMPUTE_EVERY==0){
+                long[] sorted=Arrays.copyOf(samples, (int)Math.min(index+1, WINDOW));
+                Arrays.sort(sorted);
+                delay=sorted[(int)Math.min(sorted.length-1, Math.max(0, Math.ceil(percentile*sorted.length)-1))];
+            }
+        }
+
+        long delayNanos(){
+            if(count.get()<minSamples || delay<0){
+                return initialDelay.toNanos();
+            }
+            return Math.max(minDelay.toNanos(), delay);
+        }
+    }
+}
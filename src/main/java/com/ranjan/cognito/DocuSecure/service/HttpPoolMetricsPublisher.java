@@ -0,0 +1,58 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+/**
+ * Keeps the most recent connection pool figures reported by the shared HTTP client.
+ * The SDK publishes one metric collection per API call, the pool values sit in the
+ * HttpClient child collection of every attempt.
+ */
+public class HttpPoolMetricsPublisher implements MetricPublisher {
+
+    private final AtomicInteger maxConnections=new AtomicInteger();
+    private final AtomicInteger leased=new AtomicInteger();
+    private final AtomicInteger available=new AtomicInteger();
+    private final AtomicInteger pending=new AtomicInteger();
+
+    @Override
+    public void publish(MetricCollection metricCollection) {
+        record(metricCollection);
+    }
+
+    private void record(MetricCollection collection){
+        update(collection, HttpMetric.MAX_CONCURRENCY, maxConnections);
+        update(collection, HttpMetric.LEASED_CONCURRENCY, leased);
+        update(collection, HttpMetric.AVAILABLE_CONCURRENCY, available);
+        update(collection, HttpMetric.PENDING_CONCURRENCY_ACQUIRES, pending);
+        collection.children().forEach(this::record);
+    }
+
+    private void update(MetricCollection collection, SdkMetric<Integer> metric, AtomicInteger target){
+        collection.metricValues(metric).forEach(target::set);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections.get();
+    }
+
+    public int getLeased() {
+        return leased.get();
+    }
+
+    public int getAvailable() {
+        return available.get();
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,20 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Holds the master keys that wrap document data keys. {@link LocalKeyProvider} keeps them in a local file,
+ * a deployment can plug in another store, such as a KMS or an HSM, by declaring a {@code @Primary} bean.
+ * Unwrapping is called on every encrypted download, remote providers should cache what they unwrap.
+ */
+public interface KeyProvider {
+
+    /**
+     * Id of the master key new data keys are wrapped with.
+     */
+    String activeKeyId();
+
+    byte[] wrap(String keyId,SecretKey dataKey);
+
+    SecretKey unwrap(String keyId,byte[] wrappedKey);
+}
@@ -0,0 +1,172 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Master keys kept in a properties file readable only by the service account: {@code active} names the key
+ * new data keys are wrapped with and each {@code key.<id>} holds a base64 AES-256 key. Data keys are wrapped
+ * with AES Key Wrap (RFC 3394). To rotate, add a key and point {@code active} at it, documents wrapped
+ * under older keys stay readable as long as their key is in the file. Losing it makes every encrypted document
+ * unreadable, and every instance has to read the same keys.
+ * <p>
+ * A missing file is an error, so an instance never quietly starts with keys of its own. Only with
+ * {@code docusecure.encryption.createIfMissing} is it created with one fresh key, for a first setup.
+ */
+@Component
+public class LocalKeyProvider implements KeyProvider {
+
+    private static final Logger log=LoggerFactory.getLogger(LocalKeyProvider.class);
+
+    @Value("${docusecure.encryption.keyFile:}")
+    private String keyFileName;
+
+    @Value("${docusecure.encryption.createIfMissing:false}")
+    private boolean createIfMissing;
+
+    private Path keyFile;
+
+    private final ReentrantLock lock=new ReentrantLock();
+    private volatile Map<String,SecretKey> keys;
+    private volatile String activeKeyId;
+
+    @Override
+    public String activeKeyId() {
+        load();
+        return activeKeyId;
+    }
+
+    @Override
+    public byte[] wrap(String keyId, SecretKey dataKey) {
+        try{
+            Cipher cipher=Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.WRAP_MODE, masterKey(keyId));
+            return cipher.wrap(dataKey);
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException("Could not wrap data key with "+keyId, e);
+        }
+    }
+
+    @Override
+    public SecretKey unwrap(String keyId, byte[] wrappedKey) {
+        try{
+            Cipher cipher=Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.UNWRAP_MODE, masterKey(keyId));
+            Key key=cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+            return (SecretKey)key;
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException("Could not unwrap data key with "+keyId, e);
+        }
+    }
+
+    private SecretKey masterKey(String keyId){
+        load();
+        SecretKey key=keys.get(keyId);
+        if(key==null){
+            throw new IllegalStateException("Master key "+keyId+" is not in "+keyFile);
+        }
+        return key;
+    }
+
+    private void load(){
+        if(keys!=null){
+            return;
+        }
+        lock.lock();
+        try{
+            if(keys!=null){
+                return;
+            }
+            if(keyFileName.isBlank()){
+                throw new IllegalStateException("docusecure.encryption.keyFile must be set, on a disk every instance reads the same file from");
+            }
+            keyFile=Path.of(keyFileName);
+            if(!Files.exists(keyFile)){
+                if(!createIfMissing){
+                    throw new IllegalStateException("Master key file "+keyFile+" does not exist, restore it or set docusecure.encryption.createIfMissing to create a new one");
+                }
+                create();
+            }
+            Properties properties=new Properties();
+            try(InputStream in=Files.newInputStream(keyFile)){
+                properties.load(in);
+            }
+            Map<String,SecretKey> loaded=new HashMap<>();
+            for(String name:properties.stringPropertyNames()){
+                if(name.startsWith("key.")){
+                    loaded.put(name.substring("key.".length()), new SecretKeySpec(Base64.getDecoder().decode(properties.getProperty(name)), "AES"));
+                }
+            }
+            String active=properties.getProperty("active");
+            if(active==null || !loaded.containsKey(active)){
+                throw new IllegalStateException("Active master key is missing from "+keyFile);
+            }
+            activeKeyId=active;
+            keys=loaded;
+        }catch(IOException e){
+            throw new UncheckedIOException("Could not read master keys from "+keyFile, e);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void create() throws IOException {
+        SecretKey key;
+        try{
+            KeyGenerator generator=KeyGenerator.getInstance("AES");
+            generator.init(256);
+            key=generator.generateKey();
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }
+        String keyId=UUID.randomUUID().toString().substring(0, 8);
+        Properties properties=new Properties();
+        properties.setProperty("active", keyId);
+        properties.setProperty("key."+keyId, Base64.getEncoder().encodeToString(key.getEncoded()));
+
+        Path directory=keyFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp=Files.createTempFile(directory, "master-keys", ".tmp");
+        try{
+            try{
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            }catch(UnsupportedOperationException e){
+                //Not a POSIX file system, the directory's permissions have to protect the file
+            }
+            try(OutputStream out=Files.newOutputStream(temp)){
+                properties.store(out, "DocuSecure master keys, back this file up, documents cannot be decrypted without it");
+            }
+            //Never replaces an existing file, that would orphan every key wrapped under it
+            Files.move(temp, keyFile);
+            log.warn("Created master key {} in {}, back this file up", keyId, keyFile);
+        }catch(FileAlreadyExistsException e){
+            //Another instance sharing the directory created it first
+        }finally{
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,869 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.nimbusds.jwt.JWTParser;
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.configuration.WorkerThreads;
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentPage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/**
+ * Write-behind store for Docusecure rows, used when {@code docusecure.journal.enabled} is set.
+ * An upload appends its row to a local append-only journal and forces it to disk, and returns once
+ * that and the S3 object are durable. A background flusher drains the journal to DynamoDB with
+ * BatchWriteItem, backing off per user while writes are throttled or failing, and the journal is
+ * replayed at startup so rows written before a crash still reach the table.
+ * <p>
+ * Rows are written with the uploading user's own identity pool credentials, which are only held in
+ * memory. Rows whose user has no current credentials, for instance after a restart, are parked until
+ * that user's next request resolves credentials, see {@link #resumeForToken}. Until a row is flushed,
+ * listings, downloads and deletes see it through {@link #withPending}, {@link #pendingItem} and {@link #cancel}.
+ * <p>
+ * Journaled uploads are not deduplicated, taking a blob reference would make them wait on DynamoDB again.
+ * <p>
+ * The journal is a series of segment files of checksummed JSON lines: {@code put} records carry a row,
+ * {@code done} records the rows flushed, {@code cancel} the rows deleted before they were flushed.
+ * A segment is deleted once every row it holds is settled, a torn last line is ignored on replay.
+ * Records are appended under the lock but forced to disk outside it, one force covers every record
+ * appended before it, so concurrent uploads share an fsync and listings never wait for one.
+ */
+@Component
+public class MetadataJournal {
+
+    private static final Logger log=LoggerFactory.getLogger(MetadataJournal.class);
+
+    private static final int BATCH_WRITE_LIMIT=25;
+    private static final String PREFIX="journal-";
+    private static final String SUFFIX=".log";
+    //Credentials this close to expiry are not used for a flush
+    private static final Duration CREDENTIAL_MARGIN=Duration.ofSeconds(30);
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private WorkerThreads workerThreads;
+
+    @Value("${docusecure.bucketName}")
+    private String bucketName;
+
+    @Value("${docusecure.journal.enabled:false}")
+    private boolean enabled;
+
+    //No default, a journal that does not survive a reboot loses the rows in it
+    @Value("${docusecure.journal.directory:}")
+    private String journalDirectory;
+
+    @Value("${docusecure.journal.segmentSize:8MB}")
+    private DataSize segmentSize;
+
+    @Value("${docusecure.journal.flushInterval:200ms}")
+    private Duration flushInterval;
+
+    @Value("${docusecure.journal.maxBackoff:1m}")
+    private Duration maxBackoff;
+
+    @Value("${docusecure.journal.writeThreads:8}")
+    private int writeThreads;
+
+    private Path directory;
+    private final ObjectMapper mapper=new ObjectMapper();
+    private final ReentrantLock lock=new ReentrantLock();
+    private final Map<String,UserRows> users=new HashMap<>();
+    private final List<Segment> segments=new ArrayList<>();
+    private Segment active;
+    private long nextSequence;
+    private ScheduledExecutorService flusher;
+    private ExecutorService writers;
+
+    private final AtomicLong pending=new AtomicLong();
+    private final AtomicLong flushed=new AtomicLong();
+    private final AtomicLong discarded=new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        if(!enabled){
+            return;
+        }
+        if(journalDirectory.isBlank()){
+            throw new IllegalStateException("docusecure.journal.directory must be set when the journal is enabled, on a disk that survives restarts");
+        }
+        directory=Path.of(journalDirectory);
+        Files.createDirectories(directory);
+        replay();
+        writers=workerThreads.newExecutor("metadata-journal-writer-", writeThreads);
+        flusher=Executors.newSingleThreadScheduledExecutor(r->{
+            Thread thread=new Thread(r,"metadata-journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Durably records the rows, they reach DynamoDB in the background. The credentials are kept to write them.
+     */
+    public void append(String userId,List<Map<String,AttributeValue>> items,AwsSessionCredentials creds) throws IOException {
+        StringBuilder records=new StringBuilder();
+        for(Map<String,AttributeValue> item:items){
+            ObjectNode record=mapper.createObjectNode().put("op", "put").put("user", userId);
+            record.set("item", toJson(item));
+            records.append(line(record));
+        }
+        Segment segment;
+        long end;
+        lock.lock();
+        try{
+            segment=write(records.toString());
+            end=segment.size;
+            //Counted before the rows are registered so the segment is not deleted under them
+            segment.unsettled+=items.size();
+        }finally{
+            lock.unlock();
+        }
+        try{
+            sync(segment, end);
+        }catch(IOException e){
+            lock.lock();
+            try{
+                segment.unsettled-=items.size();
+            }finally{
+                lock.unlock();
+            }
+            throw e;
+        }
+        lock.lock();
+        try{
+            UserRows rows=users.computeIfAbsent(userId, key->new UserRows());
+            rows.credentials=creds;
+            for(Map<String,AttributeValue> item:items){
+                rows.rows.put(item.get("DocumentId").s(), new Row(item, segment));
+                pending.incrementAndGet();
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the journal fresh credentials for the user, letting rows parked since a restart or an expiry flush.
+     */
+    public void resume(String userId,AwsSessionCredentials creds){
+        if(!enabled){
+            return;
+        }
+        lock.lock();
+        try{
+            UserRows rows=users.get(userId);
+            if(rows!=null){
+                rows.credentials=creds;
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@link #resume} for the user the id token was issued to, called whenever a request resolves credentials.
+     */
+    public void resumeForToken(String idToken,AwsSessionCredentials creds){
+        if(!enabled){
+            return;
+        }
+        lock.lock();
+        try{
+            if(users.isEmpty()){
+                return;
+            }
+        }finally{
+            lock.unlock();
+        }
+        try{
+            String userId=JWTParser.parse(idToken).getJWTClaimsSet().getStringClaim("cognito:username");
+            if(userId!=null){
+                resume(userId, creds);
+            }
+        }catch(ParseException e){
+            //Not a user token, nothing of it can be waiting
+        }
+    }
+
+    public Map<String,AttributeValue> pendingItem(String userId,String documentId){
+        if(!enabled){
+            return null;
+        }
+        lock.lock();
+        try{
+            UserRows rows=users.get(userId);
+            Row row=rows==null ? null : rows.rows.get(documentId);
+            return row==null || row.cancelled ? null : row.item;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops a row that has not been flushed yet and returns it, or returns null when there is none.
+     * A row already being written is deleted again by the flusher once its write lands.
+     */
+    public Map<String,AttributeValue> cancel(String userId,String documentId) throws IOException {
+        if(!enabled){
+            return null;
+        }
+        Segment segment;
+        long end;
+        Map<String,AttributeValue> item;
+        lock.lock();
+        try{
+            UserRows rows=users.get(userId);
+            Row row=rows==null ? null : rows.rows.get(documentId);
+            if(row==null || row.cancelled){
+                return null;
+            }
+            segment=write(line(mapper.createObjectNode().put("op", "cancel").put("user", userId).put("id", documentId)));
+            end=segment.size;
+            row.cancelled=true;
+            if(!row.inFlight){
+                settle(userId, rows, List.of(documentId));
+            }
+            item=row.item;
+        }finally{
+            lock.unlock();
+        }
+        sync(segment, end);
+        return item;
+    }
+
+    /**
+     * The user's listing with the rows still waiting in the journal added, pending rows come last.
+     */
+    public List<DocumentDetails> withPending(String userId,List<DocumentDetails> listed){
+        List<DocumentDetails> waiting=pendingDocuments(userId);
+        if(waiting.isEmpty()){
+            return listed;
+        }
+        List<DocumentDetails> merged=new ArrayList<>(listed);
+        List<String> listedIds=listed.stream().map(DocumentDetails::getDocumentId).collect(Collectors.toList());
+        waiting.stream().filter(document->!listedIds.contains(document.getDocumentId())).forEach(merged::add);
+        return merged;
+    }
+
+    /**
+     * Pending rows are shown on the first page only, so paging never repeats them.
+     */
+    public DocumentPage withPending(String userId,DocumentPage page,boolean firstPage){
+        if(!firstPage){
+            return page;
+        }
+        List<DocumentDetails> documents=withPending(userId, page.getDocuments());
+        if(documents==page.getDocuments()){
+            return page;
+        }
+        DocumentPage merged=new DocumentPage();
+        merged.setDocuments(documents);
+        merged.setNextPageToken(page.getNextPageToken());
+        return merged;
+    }
+
+    public List<SearchHit> pendingHits(String userId){
+        return pendingItems(userId).stream().map(DocumentItems::toSearchHit).collect(Collectors.toList());
+    }
+
+    private List<DocumentDetails> pendingDocuments(String userId){
+        return pendingItems(userId).stream().map(DocumentItems::toDocumentDetails).collect(Collectors.toList());
+    }
+
+    private List<Map<String,AttributeValue>> pendingItems(String userId){
+        if(!enabled){
+            return List.of();
+        }
+        lock.lock();
+        try{
+            UserRows rows=users.get(userId);
+            if(rows==null){
+                return List.of();
+            }
+            return rows.rows.values().stream()
+                        .filter(row->!row.cancelled)
+                        .map(row->row.item)
+                        .collect(Collectors.toList());
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void flushQuietly(){
+        try{
+            flush();
+        }catch(RuntimeException e){
+            log.warn("Metadata journal flush failed", e);
+        }
+    }
+
+    /**
+     * One pass over the users with rows waiting: at most one BatchWriteItem per user whose backoff has passed
+     * and whose credentials are still valid.
+     */
+    void flush(){
+        Map<String,List<Row>> batches=new LinkedHashMap<>();
+        Map<String,AwsSessionCredentials> credentials=new HashMap<>();
+        long now=System.nanoTime();
+        lock.lock();
+        try{
+            for(Map.Entry<String,UserRows> entry:new ArrayList<>(users.entrySet())){
+                String userId=entry.getKey();
+                UserRows rows=entry.getValue();
+                //Rows cancelled while a failed write was in flight are settled here, their cancel record is already on disk
+                List<String> cancelled=rows.rows.entrySet().stream()
+                            .filter(row->row.getValue().cancelled && !row.getValue().inFlight)
+                            .map(Map.Entry::getKey)
+                            .collect(Collectors.toList());
+                if(!cancelled.isEmpty()){
+                    settle(userId, rows, cancelled);
+                }
+                if(rows.rows.isEmpty() || now<rows.retryAt || !usable(rows.credentials)){
+                    continue;
+                }
+                List<Row> batch=rows.rows.values().stream()
+                            .filter(row->!row.cancelled)
+                            .limit(BATCH_WRITE_LIMIT)
+                            .collect(Collectors.toList());
+                if(batch.isEmpty()){
+                    continue;
+                }
+                batch.forEach(row->row.inFlight=true);
+                batches.put(userId, batch);
+                credentials.put(userId, rows.credentials);
+            }
+        }finally{
+            lock.unlock();
+        }
+        //Users are written side by side, one slow or throttled user does not hold up the others
+        List<CompletableFuture<Void>> writes=new ArrayList<>();
+        batches.forEach((userId,batch)->writes.add(CompletableFuture.runAsync(()->write(userId, batch, credentials.get(userId)), writers)));
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+    }
+
+    private void write(String userId,List<Row> batch,AwsSessionCredentials creds){
+        //Stamped when the rows reach the table, a change feed poll served by another instance has moved past the upload time
+        AttributeValue uploadedAt=AttributeValue.fromN(Long.toString(System.currentTimeMillis()));
+        List<WriteRequest> requests=batch.stream()
+                    .map(row->{
+                        Map<String,AttributeValue> item=new HashMap<>(row.item);
+                        item.put("UploadedAt", uploadedAt);
+                        return WriteRequest.builder().putRequest(PutRequest.builder().item(item).build()).build();
+                    })
+                    .collect(Collectors.toList());
+        List<String> unprocessed=List.of();
+        SdkException failure=null;
+        try{
+            BatchWriteItemResponse response=clientRegistry.dynamo().batchWriteItem(AwsClientRegistry.asUser(BatchWriteItemRequest.builder()
+                        .requestItems(Map.of(DocumentItems.TABLE_NAME, requests))
+                        .build(), creds));
+            unprocessed=response.unprocessedItems().getOrDefault(DocumentItems.TABLE_NAME, List.of()).stream()
+                        .map(request->request.putRequest().item().get("DocumentId").s())
+                        .collect(Collectors.toList());
+        }catch(SdkException e){
+            failure=e;
+        }
+        if(failure!=null && !retryable(failure)){
+            if(expired(failure)){
+                park(userId, creds, batch);
+            }else{
+                discard(userId, batch, creds, failure);
+            }
+            return;
+        }
+        List<String> written=new ArrayList<>();
+        List<String> cancelled=new ArrayList<>();
+        if(failure==null){
+            for(Row row:batch){
+                String documentId=row.item.get("DocumentId").s();
+                if(!unprocessed.contains(documentId)){
+                    written.add(documentId);
+                    if(row.cancelled){
+                        cancelled.add(documentId);
+                    }
+                }
+            }
+        }
+        //A row deleted while it was being written has just been put back, remove it again
+        cancelled.forEach(documentId->deleteQuietly(userId, documentId, creds));
+        lock.lock();
+        try{
+            UserRows rows=users.get(userId);
+            batch.forEach(row->row.inFlight=false);
+            if(!written.isEmpty()){
+                appendQuietly(line(mapper.createObjectNode().put("op", "done").put("user", userId)
+                            .set("ids", mapper.valueToTree(written))));
+                settle(userId, rows, written);
+                flushed.addAndGet(written.size());
+            }
+            if(written.size()<batch.size()){
+                rows.attempts++;
+                long backoff=Math.min(maxBackoff.toNanos(), TimeUnit.MILLISECONDS.toNanos(50L<<Math.min(rows.attempts, 20)));
+                rows.retryAt=System.nanoTime()+backoff;
+            }else{
+                rows.attempts=0;
+                rows.retryAt=0;
+            }
+        }finally{
+            lock.unlock();
+        }
+        if(!written.isEmpty()){
+            listingCache.invalidate(userId);
+        }
+    }
+
+    //Expired or revoked credentials, the rows wait for the user's next credentials
+    private void park(String userId,AwsSessionCredentials creds,List<Row> batch){
+        lock.lock();
+        try{
+            UserRows rows=users.get(userId);
+            batch.forEach(row->row.inFlight=false);
+            if(rows.credentials==creds){
+                rows.credentials=null;
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    //Rows DynamoDB will never accept are dropped so they don't block the user's other rows
+    private void discard(String userId,List<Row> batch,AwsSessionCredentials creds,SdkException failure){
+        log.error("Dropping {} journaled rows of user {} rejected by DynamoDB", batch.size(), userId, failure);
+        List<String> ids=batch.stream().map(row->row.item.get("DocumentId").s()).collect(Collectors.toList());
+        lock.lock();
+        try{
+            batch.forEach(row->row.inFlight=false);
+            appendQuietly(line(mapper.createObjectNode().put("op", "done").put("user", userId).set("ids", mapper.valueToTree(ids))));
+            settle(userId, users.get(userId), ids);
+        }finally{
+            lock.unlock();
+        }
+        discarded.addAndGet(batch.size());
+        batch.stream()
+                    .filter(row->row.item.containsKey("ContentHash"))
+                    .forEach(row->blobService.release(userId, row.item.get("ContentHash").s(), bucketName, creds).exceptionally(error->null));
+    }
+
+    private void deleteQuietly(String userId,String documentId,AwsSessionCredentials creds){
+        try{
+            clientRegistry.dynamo().deleteItem(AwsClientRegistry.asUser(DeleteItemRequest.builder()
+                        .tableName(DocumentItems.TABLE_NAME)
+                        .key(DocumentItems.key(userId, documentId))
+                        .build(), creds));
+        }catch(SdkException e){
+            log.warn("Could not remove row {} of user {} deleted while it was flushed", documentId, userId, e);
+        }
+    }
+
+    private static boolean usable(AwsSessionCredentials creds){
+        return creds!=null && creds.expirationTime()
+                    .map(expiry->expiry.isAfter(Instant.now().plus(CREDENTIAL_MARGIN)))
+                    .orElse(true);
+    }
+
+    //Throttling, 5xx and client side errors such as timeouts are worth another attempt, other service errors are not
+    static boolean retryable(SdkException e){
+        if(e.retryable() || !(e instanceof SdkServiceException)){
+            return true;
+        }
+        SdkServiceException error=(SdkServiceException)e;
+        return error.isThrottlingException() || error.statusCode()>=500;
+    }
+
+    private static boolean expired(SdkException e){
+        if(!(e instanceof DynamoDbException) || ((DynamoDbException)e).awsErrorDetails()==null){
+            return false;
+        }
+        String code=((DynamoDbException)e).awsErrorDetails().errorCode();
+        //A denied permission is not an expiry, fresh credentials for the same role are denied again
+        return "ExpiredTokenException".equals(code) || "UnrecognizedClientException".equals(code);
+    }
+
+    //Called under the lock
+    private void settle(String userId,UserRows rows,List<String> documentIds){
+        for(String documentId:documentIds){
+            Row row=rows.rows.remove(documentId);
+            if(row!=null){
+                pending.decrementAndGet();
+                row.segment.unsettled--;
+            }
+        }
+        if(rows.rows.isEmpty()){
+            users.remove(userId);
+        }
+        segments.removeIf(segment->{
+            if(segment==active || segment.unsettled>0){
+                return false;
+            }
+            deleteFile(segment.path);
+            return true;
+        });
+    }
+
+    //Called under the lock, returns the segment the records landed in, they are durable once it is synced past its size
+    private Segment write(String records) throws IOException {
+        if(active==null || active.size>=segmentSize.toBytes()){
+            roll();
+        }
+        ByteBuffer buffer=StandardCharsets.UTF_8.encode(records);
+        while(buffer.hasRemaining()){
+            active.size+=active.channel.write(buffer);
+        }
+        return active;
+    }
+
+    //Called without the lock, returns at once when another caller's force already covered the records
+    private void sync(Segment segment,long end) throws IOException {
+        if(segment.synced>=end){
+            return;
+        }
+        segment.syncLock.lock();
+        try{
+            if(segment.synced>=end){
+                return;
+            }
+            long written=segment.size;
+            try{
+                segment.channel.force(false);
+            }catch(ClosedChannelException e){
+                //Rolled meanwhile, a segment is forced before it is closed
+                if(segment.synced<end){
+                    throw e;
+                }
+                return;
+            }
+            segment.synced=written;
+        }finally{
+            segment.syncLock.unlock();
+        }
+    }
+
+    private void appendQuietly(String records){
+        try{
+            write(records);
+        }catch(IOException e){
+            //Without the marker the rows are written again after a restart, the put is idempotent
+            log.warn("Could not journal flushed rows", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        Segment previous=active;
+        Path path=directory.resolve(String.format("%s%016d%s", PREFIX, nextSequence++, SUFFIX));
+        active=new Segment(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        segments.add(active);
+        if(previous!=null){
+            previous.channel.force(false);
+            previous.synced=previous.size;
+            previous.channel.close();
+            if(previous.unsettled==0){
+                segments.remove(previous);
+                deleteFile(previous.path);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the waiting rows from the segments left by the previous run, in write order.
+     */
+    private void replay() throws IOException {
+        List<Path> files;
+        try(Stream<Path> listing=Files.list(directory)){
+            files=listing.filter(path->path.getFileName().toString().startsWith(PREFIX) && path.getFileName().toString().endsWith(SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+        for(Path file:files){
+            Segment segment=new Segment(file, null);
+            segments.add(segment);
+            String name=file.getFileName().toString();
+            nextSequence=Math.max(nextSequence, Long.parseLong(name.substring(PREFIX.length(), name.length()-SUFFIX.length()))+1);
+            try(BufferedReader reader=Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+                String line;
+                while((line=reader.readLine())!=null){
+                    JsonNode record=parse(line);
+                    if(record==null){
+                        log.warn("Ignoring damaged record at the end of {}", file);
+                        break;
+                    }
+                    apply(record, segment);
+                }
+            }
+        }
+        segments.removeIf(segment->{
+            if(segment.unsettled>0){
+                return false;
+            }
+            deleteFile(segment.path);
+            return true;
+        });
+        if(pending.get()>0){
+            log.info("Replayed {} journaled rows waiting for DynamoDB, each user's rows flush on their next request", pending.get());
+        }
+    }
+
+    private void apply(JsonNode record,Segment segment){
+        String userId=record.get("user").asText();
+        switch(record.get("op").asText()){
+            case "put":
+                Map<String,AttributeValue> item=fromJson(record.get("item"));
+                UserRows rows=users.computeIfAbsent(userId, key->new UserRows());
+                Row previous=rows.rows.put(item.get("DocumentId").s(), new Row(item, segment));
+                if(previous!=null){
+                    previous.segment.unsettled--;
+                }else{
+                    pending.incrementAndGet();
+                }
+                segment.unsettled++;
+                break;
+            case "done":
+                List<String> ids=new ArrayList<>();
+                record.get("ids").forEach(id->ids.add(id.asText()));
+                settleReplayed(userId, ids);
+                break;
+            case "cancel":
+                settleReplayed(userId, List.of(record.get("id").asText()));
+                break;
+            default:
+                log.warn("Ignoring unknown journal record {}", record.get("op").asText());
+        }
+    }
+
+    private void settleReplayed(String userId,List<String> documentIds){
+        UserRows rows=users.get(userId);
+        if(rows==null){
+            return;
+        }
+        for(String documentId:documentIds){
+            Row row=rows.rows.remove(documentId);
+            if(row!=null){
+                pending.decrementAndGet();
+                row.segment.unsettled--;
+            }
+        }
+        if(rows.rows.isEmpty()){
+            users.remove(userId);
+        }
+    }
+
+    private String line(JsonNode record){
+        String json;
+        try{
+            json=mapper.writeValueAsString(record);
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+        CRC32 crc=new CRC32();
+        crc.update(json.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x %s%n", crc.getValue(), json);
+    }
+
+    //Null for a line that was only partly written
+    private JsonNode parse(String line){
+        int space=line.indexOf(' ');
+        if(space!=8){
+            return null;
+        }
+        String json=line.substring(space+1);
+        CRC32 crc=new CRC32();
+        crc.update(json.getBytes(StandardCharsets.UTF_8));
+        if(!String.format("%08x", crc.getValue()).equals(line.substring(0, space))){
+            return null;
+        }
+        try{
+            return mapper.readTree(json);
+        }catch(IOException e){
+            return null;
+        }
+    }
+
+    //Docusecure rows only hold strings and numbers
+    private ObjectNode toJson(Map<String,AttributeValue> item){
+        ObjectNode node=mapper.createObjectNode();
+        item.forEach((name,value)->{
+            if(value.s()!=null){
+                node.putObject(name).put("S", value.s());
+            }else if(value.n()!=null){
+                node.putObject(name).put("N", value.n());
+            }else{
+                throw new IllegalArgumentException("Unsupported attribute type for "+name);
+            }
+        });
+        return node;
+    }
+
+    private static Map<String,AttributeValue> fromJson(JsonNode node){
+        Map<String,AttributeValue> item=new HashMap<>();
+        node.fields().forEachRemaining(field->{
+            JsonNode value=field.getValue();
+            item.put(field.getKey(), value.has("S") ? AttributeValue.fromS(value.get("S").asText()) : AttributeValue.fromN(value.get("N").asText()));
+        });
+        return item;
+    }
+
+    private static void deleteFile(Path path){
+        try{
+            Files.deleteIfExists(path);
+        }catch(IOException e){
+            log.warn("Could not delete journal segment {}", path, e);
+        }
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Rows waiting for their user to come back with fresh credentials.
+     */
+    public long getParked() {
+        if(!enabled){
+            return 0;
+        }
+        lock.lock();
+        try{
+            return users.values().stream().filter(rows->rows.credentials==null).mapToLong(rows->rows.rows.size()).sum();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Stops the flusher after one last pass, whatever is still waiting stays in the journal for the next start.
+     */
+    @PreDestroy
+    public void shutdown(){
+        if(!enabled){
+            return;
+        }
+        flusher.shutdown();
+        try{
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+        writers.shutdown();
+        lock.lock();
+        try{
+            if(active!=null){
+                active.channel.close();
+            }
+        }catch(IOException e){
+            log.warn("Could not close the metadata journal", e);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final FileChannel channel;
+        private final ReentrantLock syncLock=new ReentrantLock();
+        //Written under the journal lock, read by sync without it
+        private volatile long size;
+        private volatile long synced;
+        private int unsettled;
+
+        Segment(Path path,FileChannel channel){
+            this.path=path;
+            this.channel=channel;
+        }
+    }
+
+    private static final class UserRows {
+
+        //Insertion ordered so rows are flushed in the order they were uploaded
+        private final Map<String,Row> rows=new LinkedHashMap<>();
+        private AwsSessionCredentials credentials;
+        private long retryAt;
+        private int attempts;
+    }
+
+    private static final class Row {
+
+        private final Map<String,AttributeValue> item;
+        private final Segment segment;
+        private boolean cancelled;
+        private boolean inFlight;
+
+        Row(Map<String,AttributeValue> item,Segment segment){
+            this.item=item;
+            this.segment=segment;
+        }
+    }
+}
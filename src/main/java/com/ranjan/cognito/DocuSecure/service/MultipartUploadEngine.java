@@ -0,0 +1,343 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.ranjan.cognito.DocuSecure.configuration.WorkerThreads;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * Streams an upload into S3 without holding the whole file in memory.
+ * Input is cut into fixed size parts that are uploaded concurrently. Part buffers are allocated as they are
+ * needed and counted against {@code docusecure.upload.bufferBudget}, shared by all uploads, so heap use is
+ * capped whatever the file size and nothing is held while no upload runs. The first buffer grows with the
+ * file, a file smaller than a part only takes about its own size. A failed part is retried on its own while
+ * the failure is transient, and an upload that still fails is aborted so no orphaned parts are left behind.
+ */
+@Component
+public class MultipartUploadEngine {
+
+    //Buffers start at this size and double until they are a whole part
+    private static final int FIRST_READ=64*1024;
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private DocumentMetrics metrics;
+
+    @Autowired
+    private WorkerThreads workerThreads;
+
+    @Value("${docusecure.upload.partSize:8MB}")
+    private DataSize partSize;
+
+    @Value("${docusecure.upload.bufferBudget:256MB}")
+    private DataSize bufferBudget;
+
+    @Value("${docusecure.upload.maxPartsInFlight:4}")
+    private int maxPartsInFlight;
+
+    @Value("${docusecure.upload.partConcurrency:16}")
+    private int partConcurrency;
+
+    @Value("${docusecure.upload.partRetries:3}")
+    private int partRetries;
+
+    //One permit per KB of buffer
+    private Semaphore budget;
+    private int budgetKilobytes;
+    private ExecutorService partExecutor;
+
+    @PostConstruct
+    public void init(){
+        int partKilobytes=kilobytes(Math.toIntExact(partSize.toBytes()));
+        budgetKilobytes=Math.max(partKilobytes, (int)Math.min(Integer.MAX_VALUE, bufferBudget.toBytes()/1024));
+        budget=new Semaphore(budgetKilobytes);
+        partExecutor=workerThreads.newExecutor("s3-part-upload-", partConcurrency);
+    }
+
+    /**
+     * Uploads the stream to {@code bucket/key} and returns the object ETag.
+     * Content that fits in a single part is sent with a plain PutObject.
+     */
+    public String upload(String bucket,String key,String contentType,InputStream in, AwsSessionCredentials creds) throws IOException {
+        metrics.transferStarted(DocumentMetrics.UPLOAD);
+        try{
+            return transfer(bucket, key, contentType, in, creds);
+        }finally{
+            metrics.transferEnded(DocumentMetrics.UPLOAD);
+        }
+    }
+
+    private String transfer(String bucket,String key,String contentType,InputStream in, AwsSessionCredentials creds) throws IOException {
+
+        int size=Math.toIntExact(partSize.toBytes());
+        Buffer first=allocate(Math.min(size, FIRST_READ));
+        try{
+            fill(in, first);
+            while(first.isFull() && first.bytes.length<size){
+                grow(first, Math.min(size, first.bytes.length*2));
+                fill(in, first);
+            }
+        }catch(IOException e){
+            free(first);
+            throw e;
+        }
+
+        if(!first.isFull()){
+            try{
+                PutObjectRequest putObjectRequest=PutObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .contentType(contentType)
+                            .build();
+                String eTag=clientRegistry.s3().putObject(AwsClientRegistry.asUser(putObjectRequest, creds), body(first)).eTag();
+                metrics.bytesUploaded(first.length);
+                return eTag;
+            }finally{
+                free(first);
+            }
+        }
+
+        String uploadId;
+        try{
+            uploadId=clientRegistry.s3().createMultipartUpload(AwsClientRegistry.asUser(CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .contentType(contentType)
+                        .checksumAlgorithm(ChecksumAlgorithm.CRC32)
+                        .build(), creds)).uploadId();
+        }catch(RuntimeException e){
+            free(first);
+            throw e;
+        }
+
+        Semaphore inFlight=new Semaphore(maxPartsInFlight);
+        List<CompletableFuture<CompletedPart>> parts=new ArrayList<>();
+        try{
+            Buffer buffer=first;
+            int partNumber=1;
+            while(buffer.length>0){
+                try{
+                    acquire(inFlight, 1);
+                }catch(IOException e){
+                    free(buffer);
+                    throw e;
+                }
+                parts.add(submitPart(bucket, key, uploadId, partNumber++, buffer, inFlight, creds));
+                if(!buffer.isFull() || parts.stream().anyMatch(CompletableFuture::isCompletedExceptionally)){
+                    break;
+                }
+                buffer=allocate(size);
+                try{
+                    fill(in, buffer);
+                }catch(IOException e){
+                    free(buffer);
+                    throw e;
+                }
+                if(buffer.length==0){
+                    free(buffer);
+                }
+            }
+
+            List<CompletedPart> completedParts=new ArrayList<>();
+            for(CompletableFuture<CompletedPart> part:parts){
+                completedParts.add(part.join());
+            }
+            completedParts.sort(Comparator.comparing(CompletedPart::partNumber));
+
+            return clientRegistry.s3().completeMultipartUpload(AwsClientRegistry.asUser(CompleteMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .multipartUpload(m->m.parts(completedParts))
+                        .build(), creds)).eTag();
+
+        }catch(IOException|RuntimeException e){
+            //Parts still running hold buffers, they are given back as each one ends
+            abort(bucket, key, uploadId, creds);
+            if(e instanceof CompletionException && e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<CompletedPart> submitPart(String bucket,String key,String uploadId,
+                                                        int partNumber,Buffer buffer,Semaphore inFlight, AwsSessionCredentials creds){
+        return CompletableFuture.supplyAsync(()->{
+            try{
+                UploadPartResponse response=uploadPart(bucket, key, uploadId, partNumber, buffer, creds);
+                return CompletedPart.builder()
+                            .partNumber(partNumber)
+                            .eTag(response.eTag())
+                            .checksumCRC32(response.checksumCRC32())
+                            .build();
+            }finally{
+                free(buffer);
+                inFlight.release();
+            }
+        }, partExecutor);
+    }
+
+    private UploadPartResponse uploadPart(String bucket,String key,String uploadId,
+                                          int partNumber,Buffer buffer, AwsSessionCredentials creds){
+        UploadPartRequest request=AwsClientRegistry.asUser(UploadPartRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .partNumber(partNumber)
+                    .contentLength((long)buffer.length)
+                    .checksumAlgorithm(ChecksumAlgorithm.CRC32)
+                    .build(), creds);
+        for(int attempt=1;;attempt++){
+            try{
+                UploadPartResponse response=clientRegistry.s3().uploadPart(request, body(buffer));
+                metrics.bytesUploaded(buffer.length);
+                return response;
+            }catch(SdkException e){
+                //Denied, missing or malformed requests fail the same way every time
+                if(attempt>partRetries || !MetadataJournal.retryable(e)){
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    private void abort(String bucket,String key,String uploadId, AwsSessionCredentials creds){
+        try{
+            clientRegistry.s3().abortMultipartUpload(AwsClientRegistry.asUser(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .build(), creds));
+        }catch(SdkException e){
+            //The bucket lifecycle rule for incomplete uploads cleans up whatever is left
+        }
+    }
+
+    //The body is replayable so the SDK and our part retries can resend it without copying the buffer
+    private RequestBody body(Buffer buffer){
+        byte[] bytes=buffer.bytes;
+        int length=buffer.length;
+        return RequestBody.fromContentProvider(()->new ByteArrayInputStream(bytes, 0, length), length, "application/octet-stream");
+    }
+
+    //Reads until the buffer is full or the stream ends
+    private static void fill(InputStream in,Buffer buffer) throws IOException {
+        while(buffer.length<buffer.bytes.length){
+            int read=in.read(buffer.bytes, buffer.length, buffer.bytes.length-buffer.length);
+            if(read==-1){
+                break;
+            }
+            buffer.length+=read;
+        }
+    }
+
+    private Buffer allocate(int size) throws IOException {
+        int kilobytes=kilobytes(size);
+        acquire(budget, kilobytes);
+        return new Buffer(new byte[size], kilobytes);
+    }
+
+    /**
+     * Never waits while holding the smaller buffer's share of the budget, uploads growing at the same time could
+     * otherwise wait on each other for good. Its bytes are kept while it waits for the larger share.
+     */
+    private void grow(Buffer buffer,int size) throws IOException {
+        int kilobytes=kilobytes(size);
+        if(!budget.tryAcquire(kilobytes-buffer.kilobytes)){
+            free(buffer);
+            acquire(budget, kilobytes);
+        }
+        buffer.kilobytes=kilobytes;
+        buffer.bytes=Arrays.copyOf(buffer.bytes, size);
+    }
+
+    private void free(Buffer buffer){
+        budget.release(buffer.kilobytes);
+        buffer.kilobytes=0;
+    }
+
+    private static int kilobytes(int size){
+        return (size+1023)/1024;
+    }
+
+    private static void acquire(Semaphore semaphore,int permits) throws IOException {
+        try{
+            semaphore.acquire(permits);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload buffer space");
+        }
+    }
+
+    private static void backoff(int attempt){
+        try{
+            Thread.sleep(Math.min(2000L, 100L<<attempt));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying upload part", e);
+        }
+    }
+
+    /**
+     * Bytes of upload buffers currently allocated, rounded up to whole KB per buffer.
+     */
+    public long getBufferedBytes(){
+        return (budgetKilobytes-(long)budget.availablePermits())*1024;
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        partExecutor.shutdownNow();
+    }
+
+    private static final class Buffer {
+
+        private byte[] bytes;
+        private int length;
+        //Share of the budget still held, none once freed
+        private int kilobytes;
+
+        Buffer(byte[] bytes,int kilobytes){
+            this.bytes=bytes;
+            this.kilobytes=kilobytes;
+        }
+
+        boolean isFull(){
+            return length==bytes.length;
+        }
+    }
+}
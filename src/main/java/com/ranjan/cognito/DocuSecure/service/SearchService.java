@@ -0,0 +1,265 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.to.SearchCriteria;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Finds a user's documents by file name prefix, content type and upload time.
+ * Users whose in-memory {@link SearchIndex} is ready are answered without calling AWS. Everyone else is
+ * answered from a DynamoDB secondary index: {@link DocumentItems#FILENAME_INDEX} when a name prefix is
+ * given, {@link DocumentItems#UPLOADED_AT_INDEX} otherwise, so a lookup reads the matching key range
+ * rather than the user's whole partition.
+ * <p>
+ * Rows written before {@code FilenameLower} and {@code UploadedAt} existed are not in those indexes. The first
+ * index-served search of a user reads them from the base table and merges them into its answer, then writes the
+ * missing attributes, {@code UploadedAt} taken from the object's Last-Modified, so later searches find them through
+ * the indexes. Users whose rows have been brought up to date are remembered, at most {@code backfill.maxUsers}.
+ */
+@Service
+public class SearchService {
+
+    @Autowired
+    private AwsClientRegistry clientRegistry;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Value("${docusecure.bucketName}")
+    private String bucketName;
+
+    @Value("${docusecure.search.maxResults:100}")
+    private int maxResults;
+
+    @Value("${docusecure.search.backfill.maxUsers:10000}")
+    private int maxBackfilledUsers;
+
+    private static final CompletableFuture<List<SearchHit>> BACKFILLED=CompletableFuture.completedFuture(List.of());
+
+    private final ReentrantLock lock=new ReentrantLock();
+    //Per user the unindexed rows found while their backfill runs, BACKFILLED once it is done
+    private final LinkedHashMap<String,CompletableFuture<List<SearchHit>>> backfills=new LinkedHashMap<>(16, 0.75f, true);
+
+    public CompletableFuture<List<SearchHit>> search(String userId,SearchCriteria criteria, AwsSessionCredentials creds){
+
+        List<SearchHit> indexed=searchIndex.search(userId, criteria, maxResults, () -> loadIndex(userId, creds));
+        if(indexed!=null){
+            return CompletableFuture.completedFuture(indexed);
+        }
+        return unindexed(userId, creds).thenCompose(unindexed -> {
+            List<SearchHit> found=new ArrayList<>();
+            //The filter expression only narrows what is read, parameters and wildcards are matched exactly here
+            return clientRegistry.dynamoAsync().queryPaginator(AwsClientRegistry.asUser(indexQuery(userId, criteria), creds))
+                        .items()
+                        .map(DocumentItems::toSearchHit)
+                        .filter(criteria::matches)
+                        .limit(maxResults)
+                        .subscribe(found::add)
+                        .thenApply(done -> merge(found, unindexed, criteria));
+        });
+    }
+
+    /**
+     * Adds the matching unindexed rows to what the index returned, in the index's order. A row just backfilled may
+     * already be in the index too, index updates are eventually consistent.
+     */
+    private List<SearchHit> merge(List<SearchHit> found,List<SearchHit> unindexed,SearchCriteria criteria){
+        if(unindexed.isEmpty()){
+            return List.copyOf(found);
+        }
+        Set<String> ids=found.stream().map(SearchHit::getFileId).collect(Collectors.toSet());
+        List<SearchHit> merged=new ArrayList<>(found);
+        unindexed.stream().filter(criteria::matches).filter(hit -> !ids.contains(hit.getFileId())).forEach(merged::add);
+        merged.sort(criteria.hasPrefix()
+                    ? Comparator.comparing(hit -> DocumentItems.lowerName(hit.getName()))
+                    : Comparator.comparing(SearchHit::getUploadedAt, Comparator.nullsLast(Comparator.reverseOrder())));
+        return List.copyOf(merged.subList(0, Math.min(merged.size(), maxResults)));
+    }
+
+    /**
+     * The user's rows the secondary indexes miss, starting their backfill on first use. Empty once it is done.
+     */
+    CompletableFuture<List<SearchHit>> unindexed(String userId, AwsSessionCredentials creds){
+        CompletableFuture<List<SearchHit>> rows;
+        lock.lock();
+        try{
+            rows=backfills.get(userId);
+            if(rows!=null){
+                return rows;
+            }
+            rows=new CompletableFuture<>();
+            backfills.put(userId, rows);
+            while(backfills.size()>maxBackfilledUsers){
+                backfills.remove(backfills.keySet().iterator().next());
+            }
+        }finally{
+            lock.unlock();
+        }
+        CompletableFuture<List<SearchHit>> started=rows;
+        List<Map<String,AttributeValue>> items=new ArrayList<>();
+        bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().queryPaginator(AwsClientRegistry.asUser(DocumentItems.unindexedQuery(userId).build(), creds))
+                    .items()
+                    .subscribe(items::add)).whenComplete((done,error) -> {
+            if(error!=null){
+                forget(userId, started);
+                started.completeExceptionally(error);
+                return;
+            }
+            started.complete(items.stream().map(DocumentItems::toSearchHit).collect(Collectors.toList()));
+            backfill(userId, items, creds).whenComplete((backfilled,backfillError) -> {
+                if(backfillError!=null){
+                    //Tried again on the next search
+                    forget(userId, started);
+                    return;
+                }
+                lock.lock();
+                try{
+                    backfills.replace(userId, started, BACKFILLED);
+                }finally{
+                    lock.unlock();
+                }
+            });
+        });
+        return started;
+    }
+
+    //One row after the other, so a user with many old rows does not flood the bulkheads
+    private CompletableFuture<Void> backfill(String userId,List<Map<String,AttributeValue>> items, AwsSessionCredentials creds){
+        CompletableFuture<Void> chain=CompletableFuture.completedFuture(null);
+        for(Map<String,AttributeValue> item:items){
+            chain=chain.thenCompose(done -> backfill(userId, item, creds));
+        }
+        return chain;
+    }
+
+    private CompletableFuture<Void> backfill(String userId,Map<String,AttributeValue> item, AwsSessionCredentials creds){
+        CompletableFuture<AttributeValue> uploadedAt;
+        if(item.containsKey("UploadedAt")){
+            uploadedAt=CompletableFuture.completedFuture(item.get("UploadedAt"));
+        }else{
+            HeadObjectRequest request=HeadObjectRequest.builder().bucket(bucketName).key(item.get("FilePath").s()).build();
+            uploadedAt=bulkheads.getS3().callAsync(() -> clientRegistry.s3Async().headObject(AwsClientRegistry.asUser(request, creds)))
+                        .thenApply(head -> AttributeValue.fromN(Long.toString(head.lastModified().toEpochMilli())));
+        }
+        return uploadedAt.thenCompose(at -> {
+            //Only fills in what is missing, and never brings back a row deleted meanwhile
+            UpdateItemRequest request=UpdateItemRequest.builder()
+                        .tableName(DocumentItems.TABLE_NAME)
+                        .key(DocumentItems.key(userId, item.get("DocumentId").s()))
+                        .updateExpression("SET #lower = if_not_exists(#lower, :lower), #at = if_not_exists(#at, :at)")
+                        .conditionExpression("attribute_exists(#id)")
+                        .expressionAttributeNames(Map.of("#lower","FilenameLower","#at","UploadedAt","#id","DocumentId"))
+                        .expressionAttributeValues(Map.of(":lower",AttributeValue.fromS(DocumentItems.lowerName(item.get("Filename").s())),":at",at))
+                        .build();
+            return bulkheads.getDynamodb().callAsync(() -> clientRegistry.dynamoAsync().updateItem(AwsClientRegistry.asUser(request, creds)));
+        }).handle((updated,error) -> {
+            Throwable cause=error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+            if(cause==null || cause instanceof ConditionalCheckFailedException || cause instanceof NoSuchKeyException){
+                return null;
+            }
+            throw error instanceof CompletionException ? (CompletionException)error : new CompletionException(error);
+        });
+    }
+
+    private void forget(String userId,CompletableFuture<List<SearchHit>> rows){
+        lock.lock();
+        try{
+            backfills.remove(userId, rows);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Every document of the user, stopping one past the index's size limit since such users are not indexed.
+     */
+    private CompletableFuture<List<SearchHit>> loadIndex(String userId, AwsSessionCredentials creds){
+        List<SearchHit> documents=new ArrayList<>();
+        return clientRegistry.dynamoAsync().queryPaginator(AwsClientRegistry.asUser(DocumentItems.searchFieldsQuery(userId).build(), creds))
+                    .items()
+                    .map(DocumentItems::toSearchHit)
+                    .limit(searchIndex.getMaxDocuments()+1)
+                    .subscribe(documents::add)
+                    .thenApply(done -> documents);
+    }
+
+    static QueryRequest indexQuery(String userId,SearchCriteria criteria){
+
+        Map<String,String> names=new HashMap<>();
+        Map<String,AttributeValue> values=new HashMap<>();
+        List<String> filters=new ArrayList<>();
+        names.put("#cid", "CustomerId");
+        values.put(":cid", AttributeValue.fromS(userId));
+        StringBuilder keyCondition=new StringBuilder("#cid = :cid");
+        QueryRequest.Builder request=QueryRequest.builder().tableName(DocumentItems.TABLE_NAME);
+
+        if(criteria.hasTimeWindow()){
+            names.put("#at", "UploadedAt");
+        }
+        if(criteria.getFrom()!=null){
+            values.put(":from", AttributeValue.fromN(Long.toString(criteria.getFrom().toEpochMilli())));
+        }
+        if(criteria.getTo()!=null){
+            values.put(":to", AttributeValue.fromN(Long.toString(criteria.getTo().toEpochMilli()-1)));
+        }
+        String timeCondition=criteria.getFrom()!=null && criteria.getTo()!=null ? "#at BETWEEN :from AND :to"
+                    : criteria.getFrom()!=null ? "#at >= :from"
+                    : criteria.getTo()!=null ? "#at <= :to"
+                    : null;
+
+        if(criteria.hasPrefix()){
+            names.put("#name", "FilenameLower");
+            values.put(":prefix", AttributeValue.fromS(criteria.getPrefix()));
+            keyCondition.append(" AND begins_with(#name, :prefix)");
+            request.indexName(DocumentItems.FILENAME_INDEX);
+            if(timeCondition!=null){
+                filters.add(timeCondition);
+            }
+        }else{
+            //Newest first, the time window if any is the key range
+            if(timeCondition!=null){
+                keyCondition.append(" AND ").append(timeCondition);
+            }
+            request.indexName(DocumentItems.UPLOADED_AT_INDEX).scanIndexForward(false);
+        }
+        if(criteria.getType()!=null && !criteria.getType().isWildcardType()){
+            names.put("#type", "FileType");
+            values.put(":type", AttributeValue.fromS(criteria.typePrefix()));
+            filters.add("begins_with(#type, :type)");
+        }
+        if(!filters.isEmpty()){
+            request.filterExpression(String.join(" AND ", filters));
+        }
+        return request.keyConditionExpression(keyCondition.toString())
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+                    .build();
+    }
+}
@@ -0,0 +1,49 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import java.time.Duration;
+
+/**
+ * Point in time by which a request must have its answer, taken when the controller receives the request and
+ * carried down to every AWS call made for it, so time spent earlier in the request is not granted again later.
+ */
+public final class Deadline {
+
+    private static final Deadline NONE=new Deadline(0, false);
+
+    private final long expiresAt;
+    private final boolean bounded;
+
+    private Deadline(long expiresAt,boolean bounded){
+        this.expiresAt=expiresAt;
+        this.bounded=bounded;
+    }
+
+    /**
+     * A zero or negative timeout means no deadline.
+     */
+    public static Deadline after(Duration timeout){
+        if(timeout==null || timeout.isZero() || timeout.isNegative()){
+            return NONE;
+        }
+        return new Deadline(System.nanoTime()+timeout.toNanos(), true);
+    }
+
+    public static Deadline none(){
+        return NONE;
+    }
+
+    public boolean isBounded(){
+        return bounded;
+    }
+
+    public boolean isExpired(){
+        return bounded && expiresAt-System.nanoTime()<=0;
+    }
+
+    /**
+     * Time left, null when there is no deadline.
+     */
+    public Duration remaining(){
+        return bounded ? Duration.ofNanos(Math.max(0, expiresAt-System.nanoTime())) : null;
+    }
+}
@@ -0,0 +1,15 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import java.util.List;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class DocumentPage {
+
+    private List<DocumentDetails> documents;
+    private String nextPageToken;
+
+}
@@ -0,0 +1,20 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * One part of a multi range download. The part is only fetched from S3 when the response body reaches it.
+ */
+@Getter
+@Setter
+public class DocumentRange {
+
+    private long start;
+    private long end;
+    private Supplier<InputStream> content;
+
+}
@@ -1,5 +1,10 @@
 package com.ranjan.cognito.DocuSecure.to;
 
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.util.List;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -11,5 +16,20 @@ public class DocumentResponseTO {
     private String fileType;
     private String filePath;
     private byte[] content;
+    private Long contentLength;
+    private InputStream contentStream;
+    private FileChannel contentFile;
+    private long contentOffset;
+    private String etag;
+    private Instant lastModified;
+    private boolean notModified;
+    private String contentRange;
+    private Long totalLength;
+    private List<DocumentRange> ranges;
+    private String codec;
+    private Long originalSize;
+    private String contentEncoding;
+    //Set while the content is still the stored ciphertext
+    private Encryption encryption;
     
 }
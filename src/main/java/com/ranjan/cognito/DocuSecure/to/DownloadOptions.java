@@ -0,0 +1,103 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import org.springframework.http.HttpRange;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Request side validators and byte ranges of a download, taken from If-None-Match, If-Modified-Since,
+ * Range and If-Range, and the deadline the document has to be opened by.
+ */
+@Getter
+@Setter
+public class DownloadOptions {
+
+    private List<String> ifNoneMatch=List.of();
+    private Instant ifModifiedSince;
+    private List<HttpRange> ranges=List.of();
+    private String ifRangeEtag;
+    private Instant ifRangeDate;
+    private boolean acceptsDeflate;
+    private Deadline deadline=Deadline.none();
+
+    public boolean isConditional(){
+        return !ifNoneMatch.isEmpty() || ifModifiedSince!=null;
+    }
+
+    /**
+     * Same request without its ranges, used for stored-compressed documents whose offsets don't match what the client sees.
+     */
+    public DownloadOptions withoutRanges(){
+        DownloadOptions options=new DownloadOptions();
+        options.setIfNoneMatch(ifNoneMatch);
+        options.setIfModifiedSince(ifModifiedSince);
+        options.setAcceptsDeflate(acceptsDeflate);
+        options.setDeadline(deadline);
+        return options;
+    }
+
+    public boolean hasRanges(){
+        return !ranges.isEmpty();
+    }
+
+    /**
+     * Whether the ranges can be served without knowing the object first, a lone range without If-Range
+     * is handed to S3 as is.
+     */
+    public boolean needsObjectMetadata(){
+        return isConditional() || ranges.size()>1 || ifRangeEtag!=null || ifRangeDate!=null;
+    }
+
+    /**
+     * If-Range only lets the ranges through when the client's copy is the current one, entity tags are compared strongly.
+     */
+    public boolean rangesApply(String etag,Instant lastModified){
+        if(ranges.isEmpty()){
+            return false;
+        }
+        if(ifRangeEtag!=null){
+            return etag!=null && !ifRangeEtag.startsWith("W/") && ifRangeEtag.equals(etag);
+        }
+        if(ifRangeDate!=null){
+            return lastModified!=null && lastModified.truncatedTo(ChronoUnit.SECONDS).equals(ifRangeDate);
+        }
+        return true;
+    }
+
+    /**
+     * If-None-Match takes precedence, If-Modified-Since is only looked at when no entity tags were sent.
+     */
+    public boolean isNotModified(String etag,Instant lastModified){
+        if(!ifNoneMatch.isEmpty()){
+            if(etag==null){
+                return false;
+            }
+            return ifNoneMatch.stream().anyMatch(candidate->candidate.equals("*") || opaqueTag(candidate).equals(opaqueTag(etag)));
+        }
+        if(ifModifiedSince!=null && lastModified!=null){
+            return !lastModified.truncatedTo(ChronoUnit.SECONDS).isAfter(ifModifiedSince);
+        }
+        return false;
+    }
+
+    /**
+     * Entity tag of a document sent with a content coding. The encoded body is a different representation, so it gets
+     * its own strong validator with the coding appended inside the quotes.
+     */
+    public static String encodedEtag(String etag,String contentEncoding){
+        if(etag==null || contentEncoding==null || !etag.endsWith("\"")){
+            return etag;
+        }
+        return etag.substring(0, etag.length()-1)+"-"+contentEncoding+"\"";
+    }
+
+    private static String opaqueTag(String etag){
+        //Weak comparison, W/"x" matches "x"
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
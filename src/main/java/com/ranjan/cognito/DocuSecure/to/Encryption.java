@@ -0,0 +1,18 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * How a stored body was encrypted: the id of the master key, the document's data key wrapped by it
+ * (base64) and the plaintext size of each AES-GCM segment.
+ */
+@Getter
+@Setter
+public class Encryption {
+
+    private String keyId;
+    private String wrappedKey;
+    private int chunkSize;
+
+}
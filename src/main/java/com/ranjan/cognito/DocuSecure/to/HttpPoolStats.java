@@ -0,0 +1,15 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class HttpPoolStats {
+
+    private int maxConnections;
+    private int leasedConnections;
+    private int availableConnections;
+    private int pendingAcquires;
+
+}
@@ -0,0 +1,82 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import java.time.Instant;
+import java.util.Locale;
+
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Filters of a document search: a case-insensitive file name prefix, a content type that may be a
+ * wildcard such as {@code image/*}, and an upload time window, from inclusive and to exclusive.
+ */
+@Getter
+@Setter
+public class SearchCriteria {
+
+    private String prefix="";
+    private MimeType type;
+    private Instant from;
+    private Instant to;
+
+    public static SearchCriteria of(String query,String type,Instant from,Instant to){
+        if(from!=null && to!=null && !from.isBefore(to)){
+            throw new IllegalArgumentException("from must be before to");
+        }
+        SearchCriteria criteria=new SearchCriteria();
+        criteria.setPrefix(query==null ? "" : query.trim().toLowerCase(Locale.ROOT));
+        if(type!=null && !type.isBlank() && !type.equals("*/*")){
+            criteria.setType(MimeTypeUtils.parseMimeType(type));
+        }
+        criteria.setFrom(from);
+        criteria.setTo(to);
+        return criteria;
+    }
+
+    public boolean hasPrefix(){
+        return !prefix.isEmpty();
+    }
+
+    public boolean hasTimeWindow(){
+        return from!=null || to!=null;
+    }
+
+    /**
+     * What the stored FileType has to start with, the type itself or {@code image/} for {@code image/*}.
+     */
+    public String typePrefix(){
+        return type.isWildcardSubtype() ? type.getType()+"/" : type.getType()+"/"+type.getSubtype();
+    }
+
+    public boolean matches(SearchHit hit){
+        if(hasPrefix() && (hit.getName()==null || !hit.getName().toLowerCase(Locale.ROOT).startsWith(prefix))){
+            return false;
+        }
+        if(type!=null && !matchesType(hit.getFileType())){
+            return false;
+        }
+        if(hasTimeWindow()){
+            Instant uploadedAt=hit.getUploadedAt();
+            if(uploadedAt==null || (from!=null && uploadedAt.isBefore(from)) || (to!=null && !uploadedAt.isBefore(to))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesType(String fileType){
+        if(fileType==null){
+            return false;
+        }
+        try{
+            return type.includes(MimeTypeUtils.parseMimeType(fileType));
+        }catch(IllegalArgumentException e){
+            return false;
+        }
+    }
+}
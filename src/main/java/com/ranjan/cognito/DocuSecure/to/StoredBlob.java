@@ -0,0 +1,19 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Where a document body landed in S3 and how it was encoded and encrypted there.
+ */
+@Getter
+@Setter
+public class StoredBlob {
+
+    private String filePath;
+    private String contentHash;
+    private String codec;
+    private Long originalSize;
+    private Encryption encryption;
+
+}
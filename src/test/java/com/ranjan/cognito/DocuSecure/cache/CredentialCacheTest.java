@@ -0,0 +1,122 @@
+package com.ranjan.cognito.DocuSecure.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.cognitoidentity.model.Credentials;
+
+/**
+ * Misses for one key share a single exchange, the cache stays within its bound and credentials close to expiry are refreshed ahead.
+ */
+class CredentialCacheTest {
+
+    private CredentialCache cache;
+    private final AtomicInteger exchanges=new AtomicInteger();
+
+    @BeforeEach
+    void setUp(){
+        cache=new CredentialCache();
+        ReflectionTestUtils.setField(cache, "refreshAhead", Duration.ofMinutes(5));
+        ReflectionTestUtils.setField(cache, "expirySkew", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(cache, "maxEntries", 2);
+        cache.init();
+    }
+
+    @AfterEach
+    void tearDown(){
+        cache.shutdown();
+    }
+
+    @Test
+    void concurrentMissesShareOneExchange(){
+        CompletableFuture<Credentials> exchange=new CompletableFuture<>();
+        CompletableFuture<AwsSessionCredentials> first=cache.getAsync("a", () -> {
+            exchanges.incrementAndGet();
+            return exchange;
+        });
+        CompletableFuture<AwsSessionCredentials> second=cache.getAsync("a", () -> {
+            exchanges.incrementAndGet();
+            return exchange;
+        });
+        exchange.complete(credentials("a", Duration.ofHours(1)));
+
+        assertThat(exchanges.get()).isEqualTo(1);
+        assertThat(first.join().accessKeyId()).isEqualTo("a");
+        assertThat(second.join()).isSameAs(first.join());
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    void failedExchangeIsNotCached(){
+        assertThatThrownBy(() -> cache.get("a", () -> {
+            throw new IllegalStateException("Cognito is down");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(get("a", Duration.ofHours(1)).accessKeyId()).isEqualTo("a");
+        assertThat(exchanges.get()).isEqualTo(1);
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvicted(){
+        get("a", Duration.ofHours(1));
+        get("b", Duration.ofHours(1));
+        get("a", Duration.ofHours(1));
+        get("c", Duration.ofHours(1));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(exchanges.get()).isEqualTo(3);
+
+        //a was used after b, so b went
+        get("a", Duration.ofHours(1));
+        assertThat(exchanges.get()).isEqualTo(3);
+        get("b", Duration.ofHours(1));
+        assertThat(exchanges.get()).isEqualTo(4);
+    }
+
+    @Test
+    void expiringEntryIsRefreshedAhead(){
+        AwsSessionCredentials expiring=get("a", Duration.ofMinutes(2));
+
+        //Still valid, so served while the refresh runs in the background
+        assertThat(get("a", Duration.ofHours(1))).isSameAs(expiring);
+        long until=System.nanoTime()+Duration.ofSeconds(5).toNanos();
+        while(cache.getRefreshes()==0){
+            assertThat(System.nanoTime()).as("Timed out waiting for the refresh").isLessThan(until);
+            Thread.onSpinWait();
+        }
+
+        AwsSessionCredentials refreshed=get("a", Duration.ofHours(1));
+        assertThat(refreshed).isNotSameAs(expiring);
+        assertThat(refreshed.expirationTime().get()).isAfter(expiring.expirationTime().get());
+        assertThat(exchanges.get()).isEqualTo(2);
+        assertThat(cache.getHits()).isEqualTo(2);
+    }
+
+    private AwsSessionCredentials get(String key,Duration validFor){
+        return cache.get(key, () -> {
+            exchanges.incrementAndGet();
+            return credentials(key, validFor);
+        });
+    }
+
+    private static Credentials credentials(String accessKeyId,Duration validFor){
+        return Credentials.builder()
+                    .accessKeyId(accessKeyId)
+                    .secretKey("secret")
+                    .sessionToken("token-"+System.nanoTime())
+                    .expiration(Instant.now().plus(validFor))
+                    .build();
+    }
+}
@@ -0,0 +1,217 @@
+package com.ranjan.cognito.DocuSecure.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.to.DocumentRange;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DownloadResponseHandlerTest {
+
+    private AnnotationConfigApplicationContext context;
+    private DownloadResponseHandler handler;
+
+    @BeforeEach
+    void setUp(){
+        context=new AnnotationConfigApplicationContext();
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.register(DocumentMetrics.class, DownloadResponseHandler.class);
+        context.refresh();
+        handler=context.getBean(DownloadResponseHandler.class);
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void readsRanges(){
+        DownloadOptions options=handler.downloadOptions(headers(HttpHeaders.RANGE, "bytes=0-9,20-,-5"));
+        assertThat(options.getRanges()).hasSize(3);
+        assertThat(options.getRanges().get(1).getRangeStart(100)).isEqualTo(20);
+        assertThat(options.getRanges().get(2).getRangeStart(100)).isEqualTo(95);
+    }
+
+    @Test
+    void ignoresMalformedRange(){
+        assertThat(handler.downloadOptions(headers(HttpHeaders.RANGE, "bytes=abc")).hasRanges()).isFalse();
+        assertThat(handler.downloadOptions(headers(HttpHeaders.RANGE, "items=0-9")).hasRanges()).isFalse();
+    }
+
+    @Test
+    void ignoresTooManyRanges(){
+        StringBuilder ranges=new StringBuilder("bytes=0-0");
+        for(int i=1;i<=16;i++){
+            ranges.append(',').append(i*10).append('-').append(i*10);
+        }
+        assertThat(handler.downloadOptions(headers(HttpHeaders.RANGE, ranges.toString())).hasRanges()).isFalse();
+    }
+
+    @Test
+    void readsIfRange(){
+        HttpHeaders etag=headers(HttpHeaders.RANGE, "bytes=0-9");
+        etag.set(HttpHeaders.IF_RANGE, "\"abc\"");
+        DownloadOptions byEtag=handler.downloadOptions(etag);
+        assertThat(byEtag.getIfRangeEtag()).isEqualTo("\"abc\"");
+        assertThat(byEtag.getIfRangeDate()).isNull();
+
+        HttpHeaders date=headers(HttpHeaders.RANGE, "bytes=0-9");
+        date.set(HttpHeaders.IF_RANGE, "Wed, 01 Jan 2025 10:00:00 GMT");
+        DownloadOptions byDate=handler.downloadOptions(date);
+        assertThat(byDate.getIfRangeDate()).isEqualTo(Instant.parse("2025-01-01T10:00:00Z"));
+        assertThat(byDate.hasRanges()).isTrue();
+    }
+
+    @Test
+    void malformedIfRangeSendsWholeDocument(){
+        HttpHeaders headers=headers(HttpHeaders.RANGE, "bytes=0-9");
+        headers.set(HttpHeaders.IF_RANGE, "yesterday");
+        assertThat(handler.downloadOptions(headers).hasRanges()).isFalse();
+    }
+
+    @Test
+    void ifRangeWithoutRangeIsIgnored(){
+        DownloadOptions options=handler.downloadOptions(headers(HttpHeaders.IF_RANGE, "\"abc\""));
+        assertThat(options.getIfRangeEtag()).isNull();
+        assertThat(options.needsObjectMetadata()).isFalse();
+    }
+
+    @Test
+    void singleRangeIsPartialContent() throws IOException {
+        DocumentResponseTO document=document();
+        document.setContentStream(new ByteArrayInputStream(bytes("0123")));
+        document.setContentLength(4L);
+        document.setContentRange("bytes 10-13/100");
+
+        ResponseEntity<StreamingResponseBody> response=handler.toResponse(document);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 10-13/100");
+        assertThat(response.getHeaders().getContentLength()).isEqualTo(4);
+        assertThat(body(response)).isEqualTo("0123");
+    }
+
+    @Test
+    void severalRangesAreMultipartByteranges() throws IOException {
+        DocumentResponseTO document=document();
+        document.setTotalLength(100L);
+        document.setRanges(List.of(range(0, 3, "abcd"), range(50, 51, "xy")));
+
+        ResponseEntity<StreamingResponseBody> response=handler.toResponse(document);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        MediaType contentType=response.getHeaders().getContentType();
+        assertThat(contentType.toString()).startsWith("multipart/byteranges");
+        String boundary=contentType.getParameter("boundary");
+        assertThat(boundary).isNotBlank();
+
+        String body=body(response);
+        assertThat(body).isEqualTo("\r\n--"+boundary+"\r\n"
+                    +"Content-Type: text/plain\r\n"
+                    +"Content-Range: bytes 0-3/100\r\n\r\n"
+                    +"abcd"
+                    +"\r\n--"+boundary+"\r\n"
+                    +"Content-Type: text/plain\r\n"
+                    +"Content-Range: bytes 50-51/100\r\n\r\n"
+                    +"xy"
+                    +"\r\n--"+boundary+"--\r\n");
+        assertThat(response.getHeaders().getContentLength()).isEqualTo(body.getBytes(StandardCharsets.US_ASCII).length);
+    }
+
+    @Test
+    void failedPartFailsTheBody(){
+        DocumentResponseTO document=document();
+        document.setTotalLength(100L);
+        DocumentRange failing=range(50, 51, "xy");
+        failing.setContent(() -> CompletableFuture.<InputStream>failedFuture(new IllegalStateException("S3 unavailable")).join());
+        document.setRanges(List.of(range(0, 3, "abcd"), failing));
+
+        ResponseEntity<StreamingResponseBody> response=handler.toResponse(document);
+        assertThatThrownBy(() -> body(response))
+                    .isInstanceOf(IOException.class)
+                    .hasRootCauseMessage("S3 unavailable");
+    }
+
+    @Test
+    void encodedBodyHasItsOwnEtag(){
+        DocumentResponseTO identity=document();
+        identity.setContentStream(new ByteArrayInputStream(bytes("abcd")));
+        assertThat(handler.toResponse(identity).getHeaders().getETag()).isEqualTo("\"abc\"");
+
+        DocumentResponseTO deflated=document();
+        deflated.setContentStream(new ByteArrayInputStream(bytes("abcd")));
+        deflated.setContentEncoding("deflate");
+        HttpHeaders headers=handler.toResponse(deflated).getHeaders();
+        assertThat(headers.getETag()).isEqualTo("\"abc-deflate\"");
+        assertThat(headers.getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("deflate");
+
+        DocumentResponseTO notModified=document();
+        notModified.setNotModified(true);
+        notModified.setContentEncoding("deflate");
+        assertThat(handler.toResponse(notModified).getHeaders().getETag()).isEqualTo("\"abc-deflate\"");
+    }
+
+    @Test
+    void rangeNotSatisfiableReportsLength(){
+        ResponseEntity<Void> response=handler.rangeNotSatisfiable(100);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes */100");
+    }
+
+    private static HttpHeaders headers(String name,String value){
+        HttpHeaders headers=new HttpHeaders();
+        headers.set(name, value);
+        return headers;
+    }
+
+    private static DocumentResponseTO document(){
+        DocumentResponseTO document=new DocumentResponseTO();
+        document.setFileName("notes.txt");
+        document.setFileType("text/plain");
+        document.setEtag("\"abc\"");
+        return document;
+    }
+
+    private static DocumentRange range(long start,long end,String content){
+        DocumentRange range=new DocumentRange();
+        range.setStart(start);
+        range.setEnd(end);
+        Supplier<InputStream> supplier=() -> new ByteArrayInputStream(bytes(content));
+        range.setContent(supplier);
+        return range;
+    }
+
+    private static byte[] bytes(String content){
+        return content.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String body(ResponseEntity<StreamingResponseBody> response) throws IOException {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+}
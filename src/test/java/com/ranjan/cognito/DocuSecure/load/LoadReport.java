@@ -0,0 +1,156 @@
+package com.ranjan.cognito.DocuSecure.load;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Latency and outcome of every request of a load test run, per operation and in total.
+ * Latencies are kept in HDR histograms so tail percentiles are exact to three significant digits.
+ * The summary is printed as a table and written as JSON, and can be compared against the JSON of an
+ * earlier run.
+ */
+public class LoadReport {
+
+    public static final String TOTAL="total";
+
+    private static final long MAX_LATENCY_MICROS=TimeUnit.MINUTES.toMicros(10);
+    private static final double[] PERCENTILES={50, 90, 95, 99, 99.9};
+
+    private final Map<String,Operation> operations=new ConcurrentHashMap<>();
+    private final ObjectMapper mapper=new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    public void record(String operation,long latencyNanos,int status){
+        boolean success=status>=200 && status<400;
+        operations.computeIfAbsent(operation, name->new Operation()).record(latencyNanos, success, status);
+        operations.computeIfAbsent(TOTAL, name->new Operation()).record(latencyNanos, success, status);
+    }
+
+    public void reset(){
+        operations.clear();
+    }
+
+    public double errorRate(){
+        Operation total=operations.get(TOTAL);
+        return total==null || total.histogram.getTotalCount()==0 ? 0 : (double)total.errors.get()/total.histogram.getTotalCount();
+    }
+
+    public Map<String,Object> summary(Duration measured,Map<String,Object> settings){
+        Map<String,Object> operationSummaries=new LinkedHashMap<>();
+        new TreeMap<>(operations).forEach((name,operation)->{
+            if(!name.equals(TOTAL)){
+                operationSummaries.put(name, operation.summary(measured));
+            }
+        });
+        if(operations.containsKey(TOTAL)){
+            operationSummaries.put(TOTAL, operations.get(TOTAL).summary(measured));
+        }
+        Map<String,Object> summary=new LinkedHashMap<>();
+        summary.put("finishedAt", Instant.now().toString());
+        summary.put("measuredSeconds", measured.toMillis()/1000.0);
+        summary.put("settings", settings);
+        summary.put("operations", operationSummaries);
+        return summary;
+    }
+
+    @SuppressWarnings("unchecked")
+    public String table(Map<String,Object> summary){
+        StringBuilder table=new StringBuilder(String.format("%-10s %9s %8s %9s %9s %9s %9s %9s %9s %9s%n",
+                    "operation", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms"));
+        ((Map<String,Map<String,Object>>)summary.get("operations")).forEach((name,operation)->{
+            Map<String,Double> latency=(Map<String,Double>)operation.get("latencyMillis");
+            table.append(String.format("%-10s %9d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                        name, operation.get("requests"), operation.get("errors"), operation.get("throughput"),
+                        latency.get("p50"), latency.get("p90"), latency.get("p95"), latency.get("p99"), latency.get("p99.9"), latency.get("max")));
+        });
+        return table.toString();
+    }
+
+    public Path write(Map<String,Object> summary,Path directory) throws IOException {
+        Files.createDirectories(directory);
+        String stamp=DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC).format(Instant.now());
+        Path report=directory.resolve("load-"+stamp+".json");
+        mapper.writeValue(report.toFile(), summary);
+        return report;
+    }
+
+    /**
+     * Throughput and p99 of this run next to those of the baseline report, per operation both runs have.
+     */
+    public String compare(Map<String,Object> summary,Path baseline) throws IOException {
+        JsonNode before=mapper.readTree(baseline.toFile()).path("operations");
+        JsonNode after=mapper.valueToTree(summary).path("operations");
+        StringBuilder comparison=new StringBuilder(String.format("Compared with %s%n%-10s %12s %12s %8s %12s %12s %8s%n",
+                    baseline, "operation", "req/s before", "req/s after", "change", "p99 before", "p99 after", "change"));
+        after.fieldNames().forEachRemaining(name->{
+            if(!before.has(name)){
+                return;
+            }
+            double throughputBefore=before.path(name).path("throughput").asDouble();
+            double throughputAfter=after.path(name).path("throughput").asDouble();
+            double p99Before=before.path(name).path("latencyMillis").path("p99").asDouble();
+            double p99After=after.path(name).path("latencyMillis").path("p99").asDouble();
+            comparison.append(String.format("%-10s %12.1f %12.1f %+7.1f%% %12.2f %12.2f %+7.1f%%%n",
+                        name, throughputBefore, throughputAfter, change(throughputBefore, throughputAfter),
+                        p99Before, p99After, change(p99Before, p99After)));
+        });
+        return comparison.toString();
+    }
+
+    private static double change(double before,double after){
+        return before==0 ? 0 : (after-before)*100/before;
+    }
+
+    private static final class Operation {
+
+        private final Histogram histogram=new ConcurrentHistogram(1, MAX_LATENCY_MICROS, 3);
+        private final AtomicLong errors=new AtomicLong();
+        private final Map<Integer,AtomicLong> statuses=new ConcurrentHashMap<>();
+
+        void record(long latencyNanos,boolean success,int status){
+            histogram.recordValue(Math.min(Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos)), MAX_LATENCY_MICROS));
+            if(!success){
+                errors.incrementAndGet();
+            }
+            statuses.computeIfAbsent(status, code->new AtomicLong()).incrementAndGet();
+        }
+
+        Map<String,Object> summary(Duration measured){
+            Map<String,Double> latency=new LinkedHashMap<>();
+            latency.put("mean", histogram.getMean()/1000);
+            for(double percentile:PERCENTILES){
+                latency.put("p"+(percentile==Math.rint(percentile) ? Long.toString((long)percentile) : Double.toString(percentile)),
+                            histogram.getValueAtPercentile(percentile)/1000.0);
+            }
+            latency.put("max", histogram.getMaxValue()/1000.0);
+            Map<String,Long> statusCounts=new TreeMap<>();
+            statuses.forEach((status,count)->statusCounts.put(status==0 ? "io-error" : Integer.toString(status), count.get()));
+
+            Map<String,Object> summary=new LinkedHashMap<>();
+            summary.put("requests", histogram.getTotalCount());
+            summary.put("errors", errors.get());
+            summary.put("errorRate", histogram.getTotalCount()==0 ? 0.0 : (double)errors.get()/histogram.getTotalCount());
+            summary.put("throughput", histogram.getTotalCount()/(measured.toMillis()/1000.0));
+            summary.put("latencyMillis", latency);
+            summary.put("statuses", statusCounts);
+            return summary;
+        }
+    }
+}
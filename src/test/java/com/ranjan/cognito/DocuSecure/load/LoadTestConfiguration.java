@@ -0,0 +1,48 @@
+package com.ranjan.cognito.DocuSecure.load;
+
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+import com.ranjan.cognito.DocuSecure.support.InMemoryAwsClientRegistry;
+
+/**
+ * Replaces everything the application reaches over the network. Tokens come from {@link StubTokenIssuer}
+ * instead of the user pool, the identity pool, S3 and DynamoDB are the in-memory stand-ins, and the
+ * browser login registration is declared locally so nothing is discovered from the Cognito issuer.
+ */
+@TestConfiguration
+public class LoadTestConfiguration {
+
+    @Bean
+    public StubTokenIssuer stubTokenIssuer(){
+        return new StubTokenIssuer();
+    }
+
+    @Bean
+    public JwtDecoder jwtDecoder(StubTokenIssuer stubTokenIssuer){
+        return stubTokenIssuer.decoder();
+    }
+
+    @Bean
+    @Primary
+    public InMemoryAwsClientRegistry inMemoryAwsClientRegistry(){
+        return new InMemoryAwsClientRegistry();
+    }
+
+    @Bean
+    public ClientRegistrationRepository clientRegistrationRepository(){
+        return new InMemoryClientRegistrationRepository(ClientRegistration.withRegistrationId("cognito")
+                    .clientId("load-test-client")
+                    .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                    .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                    .authorizationUri("http://localhost/oauth2/authorize")
+                    .tokenUri("http://localhost/oauth2/token")
+                    .build());
+    }
+}
@@ -0,0 +1,250 @@
+package com.ranjan.cognito.DocuSecure.load;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Import;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Drives a mixed workload of listings, downloads and uploads against the running REST API, with every
+ * external dependency replaced by {@link LoadTestConfiguration}. Each virtual user is a separate
+ * account with its own token, seeded with documents before the run, and issues requests back to back
+ * (or after {@code load.thinkTime}). Requests started during warmup are not reported.
+ * <p>
+ * Excluded from the normal build, run with {@code mvn -Ploadtest test}. Tuned with system properties:
+ * {@code load.users}, {@code load.duration}, {@code load.warmup}, {@code load.mix} (weights such as
+ * {@code list:60,download:30,upload:10}), {@code load.fileSize}, {@code load.seedDocuments},
+ * {@code load.thinkTime}, {@code load.maxErrorRate}, {@code load.reportDir} and {@code load.baseline},
+ * a previous report to compare against.
+ */
+@Tag("load")
+@SpringBootTest(webEnvironment=SpringBootTest.WebEnvironment.RANDOM_PORT, properties={
+    "docusecure.download.cache.directory=${java.io.tmpdir}/docusecure-load-test-cache",
+    "docusecure.encryption.enabled=true",
+    "docusecure.encryption.keyFile=${java.io.tmpdir}/docusecure-load-test-keys/master-keys.properties",
+    "docusecure.encryption.createIfMissing=true",
+    "logging.level.com.ranjan.cognito.DocuSecure=WARN"
+})
+@Import(LoadTestConfiguration.class)
+class RestApiLoadTest {
+
+    private static final String LIST="list";
+    private static final String DOWNLOAD="download";
+    private static final String UPLOAD="upload";
+
+    private static final int USERS=Integer.getInteger("load.users", 32);
+    private static final Duration DURATION=DurationStyle.detectAndParse(System.getProperty("load.duration", "60s"));
+    private static final Duration WARMUP=DurationStyle.detectAndParse(System.getProperty("load.warmup", "10s"));
+    private static final Duration THINK_TIME=DurationStyle.detectAndParse(System.getProperty("load.thinkTime", "0ms"));
+    private static final String MIX=System.getProperty("load.mix", "list:60,download:30,upload:10");
+    private static final DataSize FILE_SIZE=DataSize.parse(System.getProperty("load.fileSize", "64KB"));
+    private static final int SEED_DOCUMENTS=Integer.getInteger("load.seedDocuments", 20);
+    private static final double MAX_ERROR_RATE=Double.parseDouble(System.getProperty("load.maxErrorRate", "0.01"));
+    private static final Path REPORT_DIR=Path.of(System.getProperty("load.reportDir", "target/load-reports"));
+    private static final String BASELINE=System.getProperty("load.baseline");
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private StubTokenIssuer tokenIssuer;
+
+    private final HttpClient client=HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    private final ObjectMapper mapper=new ObjectMapper();
+
+    @Test
+    void mixedWorkload() throws Exception {
+        Map<String,Integer> weights=weights(MIX);
+        List<VirtualUser> users=new ArrayList<>();
+        for(int i=0;i<USERS;i++){
+            String username="load-user-"+i;
+            users.add(new VirtualUser(tokenIssuer.issue(username, DURATION.plus(WARMUP).plusHours(1))));
+        }
+
+        ExecutorService executor=Executors.newFixedThreadPool(USERS);
+        try{
+            LoadReport seeding=new LoadReport();
+            await(users.stream().map(user->executor.submit(()->{
+                user.seed(seeding);
+                return null;
+            })).toList());
+            assertThat(seeding.errorRate()).as("error rate while seeding").isZero();
+
+            LoadReport warmup=new LoadReport();
+            LoadReport report=new LoadReport();
+            long warmupEnd=System.nanoTime()+WARMUP.toNanos();
+            long end=warmupEnd+DURATION.toNanos();
+            await(users.stream().map(user->executor.submit(()->{
+                user.run(weights, warmup, report, warmupEnd, end);
+                return null;
+            })).toList());
+
+            Map<String,Object> summary=report.summary(DURATION, settings());
+            System.out.println(report.table(summary));
+            System.out.println("Report written to "+report.write(summary, REPORT_DIR));
+            if(BASELINE!=null){
+                System.out.println(report.compare(summary, Path.of(BASELINE)));
+            }
+            assertThat(report.errorRate()).as("error rate").isLessThanOrEqualTo(MAX_ERROR_RATE);
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(List<Future<Object>> futures) throws Exception {
+        for(Future<Object> future:futures){
+            future.get();
+        }
+    }
+
+    private static Map<String,Integer> weights(String mix){
+        Map<String,Integer> weights=new LinkedHashMap<>();
+        for(String entry:mix.split(",")){
+            String[] parts=entry.trim().split(":");
+            if(!List.of(LIST, DOWNLOAD, UPLOAD).contains(parts[0])){
+                throw new IllegalArgumentException("Unknown operation "+parts[0]+" in load.mix");
+            }
+            weights.put(parts[0], Integer.parseInt(parts[1]));
+        }
+        return weights;
+    }
+
+    private static Map<String,Object> settings(){
+        Map<String,Object> settings=new LinkedHashMap<>();
+        settings.put("users", USERS);
+        settings.put("duration", DURATION.toString());
+        settings.put("warmup", WARMUP.toString());
+        settings.put("thinkTime", THINK_TIME.toString());
+        settings.put("mix", MIX);
+        settings.put("fileSizeBytes", FILE_SIZE.toBytes());
+        settings.put("seedDocuments", SEED_DOCUMENTS);
+        settings.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        return settings;
+    }
+
+    private URI uri(String path){
+        return URI.create("http://localhost:"+port+path);
+    }
+
+    /**
+     * One account issuing requests from a single thread, so its document ids need no locking.
+     */
+    private final class VirtualUser {
+
+        private final String token;
+        private final List<String> documentIds=new ArrayList<>();
+
+        VirtualUser(String token){
+            this.token=token;
+        }
+
+        void seed(LoadReport seeding) throws IOException, InterruptedException {
+            for(int i=0;i<SEED_DOCUMENTS;i++){
+                upload(seeding);
+            }
+        }
+
+        void run(Map<String,Integer> weights,LoadReport warmup,LoadReport report,long warmupEnd,long end) throws IOException, InterruptedException {
+            int totalWeight=weights.values().stream().mapToInt(Integer::intValue).sum();
+            ThreadLocalRandom random=ThreadLocalRandom.current();
+            while(System.nanoTime()<end){
+                LoadReport target=System.nanoTime()<warmupEnd ? warmup : report;
+                int pick=random.nextInt(totalWeight);
+                for(Map.Entry<String,Integer> weight:weights.entrySet()){
+                    pick-=weight.getValue();
+                    if(pick<0){
+                        execute(weight.getKey(), target);
+                        break;
+                    }
+                }
+                if(!THINK_TIME.isZero()){
+                    Thread.sleep(THINK_TIME.toMillis());
+                }
+            }
+        }
+
+        private void execute(String operation,LoadReport target) throws IOException, InterruptedException {
+            switch(operation){
+                case LIST -> send(LIST, authorized(uri("/api/")).GET().build(), HttpResponse.BodyHandlers.discarding(), target);
+                case DOWNLOAD -> {
+                    if(documentIds.isEmpty()){
+                        upload(target);
+                        return;
+                    }
+                    String documentId=documentIds.get(ThreadLocalRandom.current().nextInt(documentIds.size()));
+                    send(DOWNLOAD, authorized(uri("/api/download/"+documentId)).GET().build(), HttpResponse.BodyHandlers.discarding(), target);
+                }
+                default -> upload(target);
+            }
+        }
+
+        private void upload(LoadReport target) throws IOException, InterruptedException {
+            byte[] content=new byte[Math.toIntExact(FILE_SIZE.toBytes())];
+            ThreadLocalRandom.current().nextBytes(content);
+            String boundary="docusecure-load-"+UUID.randomUUID();
+            byte[] head=("--"+boundary+"\r\nContent-Disposition: form-data; name=\"file\"; filename=\"load-"+UUID.randomUUID()+".bin\"\r\n"
+                        +"Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+            byte[] tail=("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.UTF_8);
+            HttpRequest request=authorized(uri("/api/upload"))
+                        .header("Content-Type", "multipart/form-data; boundary="+boundary)
+                        .POST(HttpRequest.BodyPublishers.ofByteArrays(List.of(head, content, tail)))
+                        .build();
+            HttpResponse<byte[]> response=send(UPLOAD, request, HttpResponse.BodyHandlers.ofByteArray(), target);
+            //The upload answers with the user's full listing, which becomes the set of ids to download
+            if(response!=null && response.statusCode()==200){
+                documentIds.clear();
+                for(JsonNode file:mapper.readTree(response.body())){
+                    documentIds.add(file.path("fileId").asText());
+                }
+            }
+        }
+
+        private <T> HttpResponse<T> send(String operation,HttpRequest request,HttpResponse.BodyHandler<T> handler,LoadReport target) throws InterruptedException {
+            long started=System.nanoTime();
+            try{
+                HttpResponse<T> response=client.send(request, handler);
+                target.record(operation, System.nanoTime()-started, response.statusCode());
+                return response;
+            }catch(IOException e){
+                target.record(operation, System.nanoTime()-started, 0);
+                return null;
+            }
+        }
+
+        private HttpRequest.Builder authorized(URI uri){
+            return HttpRequest.newBuilder(uri)
+                        .timeout(Duration.ofSeconds(30))
+                        .header("Authorization", "Bearer "+token);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.ranjan.cognito.DocuSecure.load;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.UUID;
+
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+/**
+ * Stands in for the Cognito user pool. Issues RS256 id tokens shaped like Cognito's, signed with a key
+ * generated at startup, and provides the decoder that checks them, so requests still pay for real
+ * signature and claim validation.
+ */
+public class StubTokenIssuer {
+
+    public static final String ISSUER="https://cognito-idp.eu-west-2.amazonaws.com/eu-west-2_loadtest";
+
+    private final RSAKey key;
+
+    public StubTokenIssuer(){
+        try{
+            key=new RSAKeyGenerator(2048).keyID("load-test").generate();
+        }catch(JOSEException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String issue(String username,Duration ttl){
+        Instant now=Instant.now();
+        JWTClaimsSet claims=new JWTClaimsSet.Builder()
+                    .subject(UUID.nameUUIDFromBytes(username.getBytes(StandardCharsets.UTF_8)).toString())
+                    .issuer(ISSUER)
+                    .audience("load-test-client")
+                    .claim("cognito:username", username)
+                    .claim("token_use", "id")
+                    .issueTime(Date.from(now))
+                    .expirationTime(Date.from(now.plus(ttl)))
+                    .build();
+        SignedJWT jwt=new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+        try{
+            jwt.sign(new RSASSASigner(key));
+            return jwt.serialize();
+        }catch(JOSEException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public JwtDecoder decoder(){
+        try{
+            NimbusJwtDecoder decoder=NimbusJwtDecoder.withPublicKey(key.toRSAPublicKey()).build();
+            decoder.setJwtValidator(JwtValidators.createDefaultWithIssuer(ISSUER));
+            return decoder;
+        }catch(JOSEException e){
+            throw new IllegalStateException(e);
+        }
+    }
+}
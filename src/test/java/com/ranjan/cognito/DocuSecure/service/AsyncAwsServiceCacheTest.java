@@ -0,0 +1,87 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * Downloads served from the document cache are checked against the row as well as the object.
+ */
+class AsyncAwsServiceCacheTest {
+
+    private static final int SIZE=10_000;
+
+    private ServiceContext context;
+    private AwsSessionCredentials creds;
+    private AsyncAwsService asyncAwsService;
+    private DocumentFileCache fileCache;
+
+    @BeforeEach
+    void setUp(){
+        context=new ServiceContext(Map.of("docusecure.download.cache.admitAfter", 1, "docusecure.dedup.enabled", true));
+        creds=context.credentials();
+        asyncAwsService=context.bean(AsyncAwsService.class);
+        fileCache=context.bean(DocumentFileCache.class);
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void servesValidatedCopy() throws IOException {
+        String documentId=cachedDocument("a.bin");
+        long hits=fileCache.getHits();
+        assertThat(download(documentId)).isEqualTo(ServiceContext.randomBytes(SIZE));
+        assertThat(fileCache.getHits()).isEqualTo(hits+1);
+    }
+
+    @Test
+    void rowDeletedElsewhereIsNotServed() throws IOException {
+        //Same content twice shares one blob, so the object and its ETag outlive the deleted row
+        String documentId=cachedDocument("a.bin");
+        upload("b.bin");
+        context.aws().dynamo().deleteItem(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).tableName(DocumentItems.TABLE_NAME).key(DocumentItems.key(ServiceContext.USER_ID, documentId)));
+
+        assertThatThrownBy(() -> download(documentId)).hasCauseInstanceOf(DocumentNotFoundException.class);
+        assertThat(fileCache.lookup(ServiceContext.USER_ID, documentId)).isNull();
+    }
+
+    private String cachedDocument(String fileName) throws IOException {
+        String documentId=upload(fileName);
+        download(documentId);
+        assertThat(fileCache.lookup(ServiceContext.USER_ID, documentId)).isNotNull();
+        return documentId;
+    }
+
+    private String upload(String fileName) throws IOException {
+        MockMultipartFile file=new MockMultipartFile("file", fileName, "application/octet-stream", ServiceContext.randomBytes(SIZE));
+        return context.bean(AwsService.class).upload(file, ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+    }
+
+    private byte[] download(String documentId) throws IOException {
+        DocumentResponseTO document=asyncAwsService.openDownload(documentId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds).join();
+        InputStream source=document.getContentFile()!=null
+                    ? DocumentFileCache.region(document.getContentFile(), document.getContentOffset(), document.getContentLength())
+                    : document.getContentStream();
+        try(InputStream content=source){
+            return content.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.support.InMemoryDynamoDb;
+import com.ranjan.cognito.DocuSecure.support.InMemoryS3;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/**
+ * Deleting a document stored without deduplication only looks for other rows sharing its object when the key can be shared.
+ */
+class AsyncAwsServiceDeleteTest {
+
+    private static final String LEGACY_KEY=ServiceContext.USER_ID+"/a.bin";
+
+    private ServiceContext context;
+    private AwsSessionCredentials creds;
+    private AsyncAwsService asyncAwsService;
+    private InMemoryDynamoDb dynamoDb;
+    private InMemoryS3 s3;
+
+    @BeforeEach
+    void setUp(){
+        context=new ServiceContext(Map.of());
+        creds=context.credentials();
+        asyncAwsService=context.bean(AsyncAwsService.class);
+        dynamoDb=context.aws().getDynamoDb();
+        s3=context.aws().getS3();
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void documentKeyIsDeletedWithoutQuery() throws IOException {
+        MockMultipartFile file=new MockMultipartFile("file", "a.bin", "application/octet-stream", ServiceContext.randomBytes(1000));
+        String documentId=context.bean(AwsService.class).upload(file, ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+        int queries=dynamoDb.calls("Query");
+
+        delete(documentId);
+
+        assertThat(dynamoDb.calls("Query")).isEqualTo(queries);
+        assertThat(s3.size()).isZero();
+    }
+
+    @Test
+    void sharedLegacyKeyIsKeptUntilTheLastRow(){
+        context.aws().s3().putObject(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).bucket(ServiceContext.BUCKET).key(LEGACY_KEY), RequestBody.fromString("legacy"));
+        legacyRow("first");
+        legacyRow("second");
+
+        delete("first");
+        assertThat(s3.size()).isEqualTo(1);
+
+        delete("second");
+        assertThat(s3.size()).isZero();
+    }
+
+    private void legacyRow(String documentId){
+        Map<String,AttributeValue> item=DocumentItems.newItem(ServiceContext.USER_ID, documentId, "a.bin", LEGACY_KEY, "application/octet-stream");
+        context.aws().dynamo().putItem(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).tableName(DocumentItems.TABLE_NAME).item(item));
+    }
+
+    private void delete(String documentId){
+        asyncAwsService.deleteDocument(documentId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds).join();
+    }
+}
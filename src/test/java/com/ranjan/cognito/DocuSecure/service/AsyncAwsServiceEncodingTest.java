@@ -0,0 +1,79 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * A stored-compressed document is sent deflated or inflated depending on the client, each with its own validator.
+ */
+class AsyncAwsServiceEncodingTest {
+
+    private static final byte[] TEXT="line of a compressible document\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+
+    private ServiceContext context;
+    private AwsSessionCredentials creds;
+    private String documentId;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        context=new ServiceContext(Map.of("docusecure.download.cache.enabled", false));
+        creds=context.credentials();
+        MockMultipartFile file=new MockMultipartFile("file", "notes.txt", "text/plain", TEXT);
+        documentId=context.bean(AwsService.class).upload(file, ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void encodedValidatorOnlyMatchesEncodedRequests() throws IOException {
+        String etag=open(options(false, List.of())).getEtag();
+        String deflated=DownloadOptions.encodedEtag(etag, CompressionService.DEFLATE);
+
+        DocumentResponseTO encoded=open(options(true, List.of(deflated)));
+        assertThat(encoded.isNotModified()).isTrue();
+        assertThat(encoded.getContentEncoding()).isEqualTo(CompressionService.DEFLATE);
+
+        DocumentResponseTO inflated=open(options(false, List.of(deflated)));
+        assertThat(inflated.isNotModified()).isFalse();
+        assertThat(inflated.getContentEncoding()).isNull();
+        try(InputStream content=inflated.getContentStream()){
+            assertThat(content.readAllBytes()).isEqualTo(TEXT);
+        }
+
+        DocumentResponseTO identityTag=open(options(true, List.of(etag)));
+        assertThat(identityTag.isNotModified()).isFalse();
+        identityTag.getContentStream().close();
+
+        assertThat(open(options(false, List.of(etag))).isNotModified()).isTrue();
+    }
+
+    private DocumentResponseTO open(DownloadOptions options){
+        return context.bean(AsyncAwsService.class).openDownload(documentId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds, options).join();
+    }
+
+    private static DownloadOptions options(boolean acceptsDeflate,List<String> ifNoneMatch){
+        DownloadOptions options=new DownloadOptions();
+        options.setAcceptsDeflate(acceptsDeflate);
+        options.setIfNoneMatch(ifNoneMatch);
+        return options;
+    }
+}
@@ -0,0 +1,184 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.http.HttpRange;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.exception.RangeNotSatisfiableException;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+import com.ranjan.cognito.DocuSecure.to.DocumentRange;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+import com.ranjan.cognito.DocuSecure.to.DownloadOptions;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.sync.RequestBody;
+
+/**
+ * Ranged downloads straight from S3, with the document cache off, for plain and encrypted documents.
+ * The document spans several encryption segments so ranges cross segment boundaries.
+ */
+class AsyncAwsServiceRangeTest {
+
+    private static final int SIZE=200_000;
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void singleRange(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            DocumentResponseTO document=download.open(options("bytes=65530-65545"));
+            assertThat(document.getContentRange()).isEqualTo("bytes 65530-65545/"+SIZE);
+            assertThat(document.getContentLength()).isEqualTo(16);
+            assertThat(read(document.getContentStream())).isEqualTo(slice(65530, 65545));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void severalRanges(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            DocumentResponseTO document=download.open(options("bytes=0-9,131070-131080,-5"));
+            assertThat(document.getTotalLength()).isEqualTo(SIZE);
+            List<DocumentRange> ranges=document.getRanges();
+            assertThat(ranges).extracting(DocumentRange::getStart).containsExactly(0L, 131070L, (long)SIZE-5);
+            assertThat(ranges).extracting(DocumentRange::getEnd).containsExactly(9L, 131080L, (long)SIZE-1);
+            for(DocumentRange range:ranges){
+                assertThat(read(range.getContent().get())).isEqualTo(slice(range.getStart(), range.getEnd()));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void partsHoldATransferSlot(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            DocumentResponseTO document=download.open(options("bytes=0-9,100-109"));
+            AdaptiveLimiter s3=download.context.bean(Bulkheads.class).getS3();
+            AdaptiveLimiter transfers=download.context.bean(Bulkheads.class).getTransfers();
+            assertThat(transfers.getInflight()).isZero();
+            try(InputStream part=document.getRanges().get(0).getContent().get()){
+                //The S3 slot is back once the headers are in, cheap S3 calls never wait behind a body
+                assertThat(s3.getInflight()).isZero();
+                assertThat(transfers.getInflight()).isEqualTo(1);
+                part.readAllBytes();
+            }
+            assertThat(transfers.getInflight()).isZero();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void partOfAReplacedObjectFails(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            DocumentResponseTO document=download.open(options("bytes=0-9,100-109"));
+            download.replaceObject();
+            assertThatThrownBy(() -> document.getRanges().get(0).getContent().get())
+                        .isInstanceOf(CompletionException.class);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void unsatisfiableRange(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            assertThatThrownBy(() -> download.open(options("bytes="+SIZE+"-")))
+                        .hasCauseInstanceOf(RangeNotSatisfiableException.class);
+            assertThatThrownBy(() -> download.open(options("bytes="+SIZE+"-,"+(SIZE+10)+"-")))
+                        .hasCauseInstanceOf(RangeNotSatisfiableException.class);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void unsatisfiableRangesAreLeftOut(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            DocumentResponseTO document=download.open(options("bytes=0-9,"+(SIZE+10)+"-"));
+            assertThat(document.getRanges()).isNull();
+            assertThat(document.getContentRange()).isEqualTo("bytes 0-9/"+SIZE);
+            assertThat(read(document.getContentStream())).isEqualTo(slice(0, 9));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void ifRangeMismatchSendsWholeDocument(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            DownloadOptions options=options("bytes=0-9,100-109");
+            options.setIfRangeEtag("\"stale\"");
+            DocumentResponseTO document=download.open(options);
+            assertThat(document.getRanges()).isNull();
+            assertThat(document.getContentRange()).isNull();
+            assertThat(document.getContentLength()).isEqualTo(SIZE);
+            assertThat(read(document.getContentStream())).isEqualTo(ServiceContext.randomBytes(SIZE));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void ifRangeMatchServesRanges(boolean encrypted) throws IOException {
+        try(Download download=new Download(encrypted)){
+            String etag=download.open(new DownloadOptions()).getEtag();
+            DownloadOptions options=options("bytes=10-19");
+            options.setIfRangeEtag(etag);
+            DocumentResponseTO document=download.open(options);
+            assertThat(document.getContentRange()).isEqualTo("bytes 10-19/"+SIZE);
+            assertThat(read(document.getContentStream())).isEqualTo(slice(10, 19));
+        }
+    }
+
+    private static DownloadOptions options(String range){
+        DownloadOptions options=new DownloadOptions();
+        options.setRanges(HttpRange.parseRanges(range));
+        return options;
+    }
+
+    private static byte[] slice(long start,long end){
+        return Arrays.copyOfRange(ServiceContext.randomBytes(SIZE), (int)start, (int)end+1);
+    }
+
+    private static byte[] read(InputStream content) throws IOException {
+        try(content){
+            return content.readAllBytes();
+        }
+    }
+
+    private static final class Download implements AutoCloseable {
+
+        private final ServiceContext context;
+        private final AwsSessionCredentials creds;
+        private final String documentId;
+
+        Download(boolean encrypted) throws IOException {
+            context=new ServiceContext(Map.of("docusecure.download.cache.enabled", false, "docusecure.encryption.enabled", encrypted));
+            creds=context.credentials();
+            MockMultipartFile file=new MockMultipartFile("file", "document.bin", "application/octet-stream", ServiceContext.randomBytes(SIZE));
+            documentId=context.bean(AwsService.class).upload(file, ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+        }
+
+        DocumentResponseTO open(DownloadOptions options){
+            return context.bean(AsyncAwsService.class).openDownload(documentId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds, options).join();
+        }
+
+        //Writes a new version under the same key, so parts pinned to the old ETag no longer match
+        void replaceObject(){
+            String key=context.bean(AsyncAwsService.class).getDocumentDetails(documentId, ServiceContext.USER_ID, creds).join().getFilePath();
+            context.aws().s3().putObject(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).bucket(ServiceContext.BUCKET).key(key),
+                        RequestBody.fromBytes(new byte[]{1, 2, 3}));
+        }
+
+        @Override
+        public void close(){
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+class AwsServiceUploadTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans={false, true})
+    void sameNameKeepsBothFiles(boolean dedup) throws IOException {
+        try(ServiceContext context=new ServiceContext(Map.of("docusecure.download.cache.enabled", false, "docusecure.dedup.enabled", dedup))){
+            AwsService awsService=context.bean(AwsService.class);
+            AwsSessionCredentials creds=context.credentials();
+            byte[] first=ServiceContext.randomBytes(1000);
+            byte[] second=ServiceContext.randomBytes(2000);
+
+            String firstId=awsService.upload(new MockMultipartFile("file", "report.bin", "application/octet-stream", first),
+                        ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+            String secondId=awsService.upload(new MockMultipartFile("file", "report.bin", "application/octet-stream", second),
+                        ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+
+            assertThat(awsService.download(firstId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds).getContent()).isEqualTo(first);
+            assertThat(awsService.download(secondId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds).getContent()).isEqualTo(second);
+        }
+    }
+}
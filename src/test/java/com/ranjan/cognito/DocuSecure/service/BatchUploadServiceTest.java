@@ -0,0 +1,95 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.ranjan.cognito.DocuSecure.response.UploadResult;
+import com.ranjan.cognito.DocuSecure.support.InMemoryDynamoDb;
+import com.ranjan.cognito.DocuSecure.support.InMemoryS3;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+
+/**
+ * Batch rows left unprocessed are retried, and files whose row is never written give their stored body back.
+ */
+class BatchUploadServiceTest {
+
+    private static final int FILES=3;
+
+    private ServiceContext context;
+    private AwsSessionCredentials creds;
+    private BatchUploadService batchUploadService;
+    private InMemoryDynamoDb dynamoDb;
+    private InMemoryS3 s3;
+
+    @BeforeEach
+    void setUp(){
+        context=new ServiceContext(Map.of("docusecure.dedup.enabled", true, "docusecure.upload.batchWriteRetries", 2));
+        creds=context.credentials();
+        batchUploadService=context.bean(BatchUploadService.class);
+        dynamoDb=context.aws().getDynamoDb();
+        s3=context.aws().getS3();
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void unprocessedRowsAreRetried(){
+        dynamoDb.leaveUnprocessed(2);
+
+        List<UploadResult> results=upload();
+
+        assertThat(results).allSatisfy(result -> assertThat(result.getStatus()).isEqualTo(UploadResult.Status.UPLOADED));
+        assertThat(dynamoDb.calls("BatchWriteItem")).isEqualTo(2);
+        assertThat(dynamoDb.size(DocumentItems.TABLE_NAME)).isEqualTo(FILES);
+        assertThat(s3.size()).isEqualTo(FILES);
+    }
+
+    @Test
+    void rowsStillUnprocessedReleaseTheirBlobs(){
+        dynamoDb.leaveUnprocessed(100);
+
+        List<UploadResult> results=upload();
+
+        assertThat(results).allSatisfy(result -> {
+            assertThat(result.getStatus()).isEqualTo(UploadResult.Status.FAILED);
+            assertThat(result.getError()).isEqualTo("Metadata write was throttled");
+        });
+        assertThat(dynamoDb.calls("BatchWriteItem")).isEqualTo(3);
+        assertThat(dynamoDb.size(DocumentItems.TABLE_NAME)).isZero();
+        assertThat(s3.size()).isZero();
+    }
+
+    @Test
+    void failedBatchWriteReleasesTheBlobs(){
+        dynamoDb.failNext("BatchWriteItem", DynamoDbException.builder().statusCode(403).message("Access denied").build());
+
+        List<UploadResult> results=upload();
+
+        assertThat(results).allSatisfy(result -> assertThat(result.getStatus()).isEqualTo(UploadResult.Status.FAILED));
+        assertThat(dynamoDb.size(DocumentItems.TABLE_NAME)).isZero();
+        assertThat(s3.size()).isZero();
+    }
+
+    private List<UploadResult> upload(){
+        List<MultipartFile> files=new ArrayList<>();
+        for(int i=1;i<=FILES;i++){
+            files.add(new MockMultipartFile("files", "file"+i+".bin", "application/octet-stream", ServiceContext.randomBytes(1000*i)));
+        }
+        return batchUploadService.uploadBatch(files, ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+    }
+}
@@ -0,0 +1,200 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.response.ChangeSet;
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+class ChangeFeedServiceTest {
+
+    @TempDir
+    Path journalDirectory;
+
+    private ServiceContext context;
+    private AwsSessionCredentials creds;
+    private ChangeFeedService changeFeedService;
+
+    @AfterEach
+    void tearDown(){
+        if(context!=null){
+            context.close();
+        }
+    }
+
+    @Test
+    void deletionsAreReported() throws Exception {
+        start(Map.of());
+        String kept=upload("kept.txt");
+        String deleted=upload("deleted.txt");
+        Changes first=poll(null);
+        assertThat(first.documents).containsExactlyInAnyOrder(kept, deleted);
+        assertThat(first.deleted).isEmpty();
+
+        delete(deleted);
+        Changes next=poll(first.syncToken);
+        assertThat(next.documents).isEmpty();
+        assertThat(next.deleted).containsExactly(deleted);
+        assertThat(poll(next.syncToken).deleted).isEmpty();
+    }
+
+    @Test
+    void failedDeleteIsNotReported() throws Exception {
+        start(Map.of());
+        String kept=upload("kept.txt");
+        Changes first=poll(null);
+
+        context.aws().getDynamoDb().failNext("DeleteItem", ProvisionedThroughputExceededException.builder().statusCode(400).message("Throttled").build());
+        assertThatThrownBy(() -> delete(kept)).hasCauseInstanceOf(ProvisionedThroughputExceededException.class);
+        assertThatThrownBy(() -> delete("unknown")).hasCauseInstanceOf(DocumentNotFoundException.class);
+        Changes next=poll(first.syncToken);
+        assertThat(next.deleted).isEmpty();
+
+        delete(kept);
+        assertThat(poll(next.syncToken).deleted).containsExactly(kept);
+    }
+
+    @Test
+    void uploadsAndDeletionsArePaged() throws Exception {
+        start(Map.of("docusecure.sync.maxChanges", 2));
+        List<String> documentIds=new ArrayList<>();
+        for(int i=0;i<3;i++){
+            documentIds.add(upload(i+".txt"));
+        }
+        Changes first=poll(null);
+        assertThat(first.documents).containsExactlyInAnyOrderElementsOf(documentIds);
+
+        String added=upload("added.txt");
+        for(String documentId:documentIds){
+            delete(documentId);
+        }
+        Changes next=poll(first.syncToken);
+        assertThat(next.documents).containsExactly(added);
+        assertThat(next.deleted).containsExactlyInAnyOrderElementsOf(documentIds);
+        assertThat(next.pages).isGreaterThan(1);
+    }
+
+    @Test
+    void lateFlushedRowIsNotSkipped() throws Exception {
+        start(Map.of("docusecure.journal.enabled", true, "docusecure.journal.directory", journalDirectory.toString(),
+                    "docusecure.journal.flushInterval", "1h"));
+        Changes first=poll(null);
+        String journaled=upload("late.txt");
+
+        //Served from the journal, the watermark then moves past the upload time
+        Changes pending=poll(first.syncToken);
+        assertThat(pending.documents).containsExactly(journaled);
+        Changes empty=poll(pending.syncToken);
+        context.bean(MetadataJournal.class).flush();
+        assertThat(context.bean(MetadataJournal.class).getPending()).isZero();
+
+        //What another instance, without the row in its journal, reads from the table
+        assertThat(poll(empty.syncToken).documents).containsExactly(journaled);
+    }
+
+    @Test
+    void staleTokenIsRefused(){
+        start(Map.of("docusecure.sync.tombstoneRetention", "1h"));
+        assertThatThrownBy(() -> changeFeedService.changes(ServiceContext.USER_ID, token("2:1000:1000"), creds))
+                    .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> changeFeedService.changes(ServiceContext.USER_ID, token("2:x"), creds))
+                    .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void firstSyncIncludesRowsMissingFromTheIndex() throws Exception {
+        start(Map.of("docusecure.sync.maxChanges", 2));
+        List<String> documentIds=new ArrayList<>();
+        for(int i=0;i<3;i++){
+            documentIds.add(upload(i+".txt"));
+        }
+        //Written before UploadedAt existed, so the index never held it
+        Map<String,AttributeValue> legacy=new HashMap<>(DocumentItems.key(ServiceContext.USER_ID, "legacy"));
+        legacy.put("Filename", AttributeValue.fromS("legacy.txt"));
+        legacy.put("FilePath", AttributeValue.fromS(ServiceContext.USER_ID+"/legacy.txt"));
+        context.aws().dynamo().putItem(AwsClientRegistry.asUser(PutItemRequest.builder().tableName(DocumentItems.TABLE_NAME).item(legacy).build(), creds));
+        documentIds.add("legacy");
+
+        Changes first=poll(null);
+        assertThat(first.documents).containsExactlyInAnyOrderElementsOf(documentIds);
+        assertThat(first.pages).isEqualTo(2);
+        String added=upload("added.txt");
+        assertThat(poll(first.syncToken).documents).containsExactly(added);
+    }
+
+    private void start(Map<String,Object> overrides){
+        Map<String,Object> properties=new HashMap<>(overrides);
+        properties.put("docusecure.sync.settleTime", "0ms");
+        properties.put("docusecure.download.cache.enabled", false);
+        context=new ServiceContext(properties);
+        creds=context.credentials();
+        changeFeedService=context.bean(ChangeFeedService.class);
+    }
+
+    private String upload(String fileName) throws IOException, InterruptedException {
+        MockMultipartFile file=new MockMultipartFile("file", fileName, "text/plain", fileName.getBytes(StandardCharsets.UTF_8));
+        String documentId=context.bean(AwsService.class).upload(file, ServiceContext.BUCKET, ServiceContext.USER_ID, creds);
+        tick();
+        return documentId;
+    }
+
+    private void delete(String documentId) throws InterruptedException {
+        context.bean(AsyncAwsService.class).deleteDocument(documentId, ServiceContext.BUCKET, ServiceContext.USER_ID, creds).join();
+        tick();
+    }
+
+    //Follows hasMore to the end, the watermarks are in milliseconds
+    private Changes poll(String syncToken) throws InterruptedException {
+        tick();
+        Changes changes=new Changes();
+        String token=syncToken;
+        ChangeSet page;
+        do{
+            page=changeFeedService.changes(ServiceContext.USER_ID, token, creds).join();
+            page.getDocuments().stream().map(SearchHit::getFileId).forEach(changes.documents::add);
+            changes.deleted.addAll(page.getDeleted());
+            changes.pages++;
+            token=page.getSyncToken();
+        }while(page.isHasMore());
+        changes.syncToken=token;
+        tick();
+        return changes;
+    }
+
+    private static void tick() throws InterruptedException {
+        Thread.sleep(5);
+    }
+
+    private static String token(String value){
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class Changes {
+
+        private final List<String> documents=new ArrayList<>();
+        private final List<String> deleted=new ArrayList<>();
+        private String syncToken;
+        private int pages;
+    }
+}
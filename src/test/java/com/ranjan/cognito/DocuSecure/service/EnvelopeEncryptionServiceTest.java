@@ -0,0 +1,163 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+import com.ranjan.cognito.DocuSecure.to.Encryption;
+
+class EnvelopeEncryptionServiceTest {
+
+    private static final int CHUNK_SIZE=1024;
+    private static final int SEALED_SIZE=CHUNK_SIZE+EnvelopeEncryptionService.TAG_BYTES;
+
+    @TempDir
+    Path directory;
+
+    private EnvelopeEncryptionService encryptionService;
+
+    @BeforeEach
+    void setUp(){
+        encryptionService=encryptionService(keyProvider(true));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints={0, 1, CHUNK_SIZE-1, CHUNK_SIZE, CHUNK_SIZE+1, 3*CHUNK_SIZE})
+    void roundTrip(int size) throws IOException {
+        byte[] plain=ServiceContext.randomBytes(size);
+        EnvelopeEncryptionService.DataKey dataKey=encryptionService.newDataKey();
+        byte[] sealed=seal(plain, dataKey);
+
+        int segments=Math.max(1, (size+CHUNK_SIZE-1)/CHUNK_SIZE);
+        assertThat(sealed).hasSize(size+segments*EnvelopeEncryptionService.TAG_BYTES);
+        assertThat(EnvelopeEncryptionService.plaintextLength(dataKey.getEncryption(), sealed.length)).isEqualTo(size);
+        assertThat(open(sealed, dataKey.getEncryption(), sealed.length)).isEqualTo(plain);
+    }
+
+    @Test
+    void rangesOpenOnlyTheirSegments() throws IOException {
+        byte[] plain=ServiceContext.randomBytes(3*CHUNK_SIZE+10);
+        EnvelopeEncryptionService.DataKey dataKey=encryptionService.newDataKey();
+        Encryption encryption=dataKey.getEncryption();
+        byte[] sealed=seal(plain, dataKey);
+
+        assertThat(EnvelopeEncryptionService.storedRange(encryption, sealed.length, 0, 0)).containsExactly(0, SEALED_SIZE-1);
+        assertThat(EnvelopeEncryptionService.storedRange(encryption, sealed.length, CHUNK_SIZE-1, CHUNK_SIZE))
+                    .containsExactly(0, 2L*SEALED_SIZE-1);
+        assertThat(EnvelopeEncryptionService.storedRange(encryption, sealed.length, 3*CHUNK_SIZE, plain.length-1))
+                    .containsExactly(3L*SEALED_SIZE, sealed.length-1);
+
+        long[][] ranges={{0, 0}, {5, CHUNK_SIZE-1}, {CHUNK_SIZE-5, 2*CHUNK_SIZE+3}, {CHUNK_SIZE, CHUNK_SIZE}, {2*CHUNK_SIZE+7, plain.length-1}};
+        for(long[] range:ranges){
+            long[] stored=EnvelopeEncryptionService.storedRange(encryption, sealed.length, range[0], range[1]);
+            byte[] segments=Arrays.copyOfRange(sealed, (int)stored[0], (int)stored[1]+1);
+            try(InputStream in=encryptionService.decrypt(new ByteArrayInputStream(segments), encryption, sealed.length, range[0], range[1]-range[0]+1)){
+                assertThat(in.readAllBytes()).isEqualTo(Arrays.copyOfRange(plain, (int)range[0], (int)range[1]+1));
+            }
+        }
+    }
+
+    @Test
+    void truncatedObjectIsRejected() throws IOException {
+        byte[] plain=ServiceContext.randomBytes(2*CHUNK_SIZE+10);
+        EnvelopeEncryptionService.DataKey dataKey=encryptionService.newDataKey();
+        byte[] sealed=seal(plain, dataKey);
+
+        //Cut at a segment boundary the shorter object is consistent, but its new last segment was not sealed as the last
+        byte[] lastSegmentDropped=Arrays.copyOf(sealed, 2*SEALED_SIZE);
+        assertThatThrownBy(() -> open(lastSegmentDropped, dataKey.getEncryption(), lastSegmentDropped.length))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("failed authentication");
+
+        byte[] cutShort=Arrays.copyOf(sealed, sealed.length-5);
+        assertThatThrownBy(() -> open(cutShort, dataKey.getEncryption(), sealed.length))
+                    .isInstanceOf(EOFException.class);
+        assertThatThrownBy(() -> open(cutShort, dataKey.getEncryption(), cutShort.length))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("failed authentication");
+    }
+
+    @Test
+    void reorderedSegmentsAreRejected() throws IOException {
+        byte[] plain=ServiceContext.randomBytes(3*CHUNK_SIZE);
+        EnvelopeEncryptionService.DataKey dataKey=encryptionService.newDataKey();
+        byte[] sealed=seal(plain, dataKey);
+
+        byte[] swapped=sealed.clone();
+        System.arraycopy(sealed, 0, swapped, SEALED_SIZE, SEALED_SIZE);
+        System.arraycopy(sealed, SEALED_SIZE, swapped, 0, SEALED_SIZE);
+        assertThatThrownBy(() -> open(swapped, dataKey.getEncryption(), swapped.length))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("Segment 0 failed authentication");
+    }
+
+    @Test
+    void missingKeyFileFailsStartup(){
+        EnvelopeEncryptionService service=encryptionService(keyProvider(false));
+        assertThatThrownBy(service::init)
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("createIfMissing");
+        assertThat(Files.exists(directory.resolve("master-keys.properties"))).isFalse();
+
+        LocalKeyProvider unset=new LocalKeyProvider();
+        ReflectionTestUtils.setField(unset, "keyFileName", "");
+        assertThatThrownBy(encryptionService(unset)::init).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void createdKeyFileIsReadBack() throws IOException {
+        EnvelopeEncryptionService.DataKey dataKey=encryptionService.newDataKey();
+        byte[] plain=ServiceContext.randomBytes(100);
+        byte[] sealed=seal(plain, dataKey);
+
+        //Another instance reading the same file, without permission to create one
+        EnvelopeEncryptionService other=encryptionService(keyProvider(false));
+        other.init();
+        try(InputStream in=other.decrypt(new ByteArrayInputStream(sealed), dataKey.getEncryption(), sealed.length)){
+            assertThat(in.readAllBytes()).isEqualTo(plain);
+        }
+    }
+
+    private LocalKeyProvider keyProvider(boolean createIfMissing){
+        LocalKeyProvider keyProvider=new LocalKeyProvider();
+        ReflectionTestUtils.setField(keyProvider, "keyFileName", directory.resolve("master-keys.properties").toString());
+        ReflectionTestUtils.setField(keyProvider, "createIfMissing", createIfMissing);
+        return keyProvider;
+    }
+
+    private static EnvelopeEncryptionService encryptionService(KeyProvider keyProvider){
+        EnvelopeEncryptionService service=new EnvelopeEncryptionService();
+        ReflectionTestUtils.setField(service, "keyProvider", keyProvider);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "chunkSize", DataSize.ofBytes(CHUNK_SIZE));
+        return service;
+    }
+
+    private byte[] seal(byte[] plain,EnvelopeEncryptionService.DataKey dataKey) throws IOException {
+        try(InputStream in=encryptionService.encrypt(new ByteArrayInputStream(plain), dataKey)){
+            return in.readAllBytes();
+        }
+    }
+
+    private byte[] open(byte[] sealed,Encryption encryption,long storedLength) throws IOException {
+        try(InputStream in=encryptionService.decrypt(new ByteArrayInputStream(sealed), encryption, storedLength)){
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ranjan.cognito.DocuSecure.exception.DocumentNotFoundException;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.to.DocumentDetails;
+import com.ranjan.cognito.DocuSecure.to.DocumentResponseTO;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ExportServiceTest {
+
+    private static final String BUCKET="bucket";
+    private static final String USER_ID="user";
+
+    private final AsyncAwsService asyncAwsService=mock(AsyncAwsService.class);
+    private final ExportService exportService=new ExportService();
+
+    @BeforeEach
+    void setUp(){
+        DocumentMetrics metrics=new DocumentMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        metrics.init();
+        ReflectionTestUtils.setField(exportService, "asyncAwsService", asyncAwsService);
+        ReflectionTestUtils.setField(exportService, "metrics", metrics);
+        ReflectionTestUtils.setField(exportService, "prefetch", 2);
+        ReflectionTestUtils.setField(exportService, "maxDocuments", 3);
+    }
+
+    @Test
+    void brokenOffBodyOnlyCostsItsEntry() throws IOException {
+        document("a", "a.txt", new ByteArrayInputStream(bytes("first")));
+        document("b", "b.txt", new SequenceInputStream(new ByteArrayInputStream(bytes("sec")), failing("Connection reset")));
+        document("c", "c.txt", new ByteArrayInputStream(bytes("third")));
+
+        Map<String,String> entries=export(List.of("a", "b", "c"));
+        assertThat(entries).containsOnlyKeys("a.txt", "b.txt", "c.txt", "export-errors.txt");
+        assertThat(entries.get("a.txt")).isEqualTo("first");
+        assertThat(entries.get("b.txt")).isEqualTo("sec");
+        assertThat(entries.get("c.txt")).isEqualTo("third");
+        assertThat(entries.get("export-errors.txt")).isEqualTo("b: b.txt is incomplete, Connection reset");
+    }
+
+    @Test
+    void unopenedDocumentIsListed() throws IOException {
+        document("a", "a.txt", new ByteArrayInputStream(bytes("first")));
+        when(asyncAwsService.openDownload(eq("gone"), eq(BUCKET), eq(USER_ID), any()))
+                    .thenReturn(CompletableFuture.failedFuture(new DocumentNotFoundException("gone")));
+
+        Map<String,String> entries=export(List.of("gone", "a"));
+        assertThat(entries).containsOnlyKeys("a.txt", "export-errors.txt");
+        assertThat(entries.get("export-errors.txt")).startsWith("gone: ");
+    }
+
+    @Test
+    void failingClientEndsExport(){
+        document("a", "a.txt", new ByteArrayInputStream(bytes("first")));
+        OutputStream closed=new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        assertThatThrownBy(() -> exportService.writeZip(List.of("a"), BUCKET, USER_ID, null, closed))
+                    .isInstanceOf(IOException.class)
+                    .hasMessage("Broken pipe");
+    }
+
+    @Test
+    void allIsCapped(){
+        when(asyncAwsService.listS3Objects(eq(BUCKET), eq(USER_ID), any()))
+                    .thenReturn(CompletableFuture.completedFuture(details("a", "b", "c", "d")));
+        assertThatThrownBy(() -> exportService.resolve(List.of(ExportService.ALL), BUCKET, USER_ID, null).join())
+                    .hasCauseInstanceOf(IllegalArgumentException.class);
+
+        when(asyncAwsService.listS3Objects(eq(BUCKET), eq(USER_ID), any()))
+                    .thenReturn(CompletableFuture.completedFuture(details("a", "b", "c")));
+        assertThat(exportService.resolve(List.of(ExportService.ALL), BUCKET, USER_ID, null).join()).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    void explicitListIsCapped(){
+        assertThatThrownBy(() -> exportService.resolve(List.of("a", "b", "c", "d"), BUCKET, USER_ID, null))
+                    .isInstanceOf(IllegalArgumentException.class);
+        assertThat(exportService.resolve(List.of("a", "a", "b"), BUCKET, USER_ID, null).join()).containsExactly("a", "b");
+    }
+
+    private void document(String documentId,String fileName,InputStream content){
+        DocumentResponseTO document=new DocumentResponseTO();
+        document.setFileName(fileName);
+        document.setContentStream(content);
+        when(asyncAwsService.openDownload(eq(documentId), eq(BUCKET), eq(USER_ID), any())).thenReturn(CompletableFuture.completedFuture(document));
+    }
+
+    private Map<String,String> export(List<String> documentIds) throws IOException {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        exportService.writeZip(documentIds, BUCKET, USER_ID, null, out);
+        Map<String,String> entries=new LinkedHashMap<>();
+        try(ZipInputStream zip=new ZipInputStream(new ByteArrayInputStream(out.toByteArray()), StandardCharsets.UTF_8)){
+            ZipEntry entry;
+            while((entry=zip.getNextEntry())!=null){
+                entries.put(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    private static List<DocumentDetails> details(String... documentIds){
+        return Stream.of(documentIds).map(documentId -> {
+            DocumentDetails details=new DocumentDetails();
+            details.setDocumentId(documentId);
+            return details;
+        }).collect(Collectors.toList());
+    }
+
+    private static InputStream failing(String message){
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException(message);
+            }
+        };
+    }
+
+    private static byte[] bytes(String content){
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ranjan.cognito.DocuSecure.to.Deadline;
+
+/**
+ * A slow read is hedged only while the budget allows, and the losing attempt is cancelled or its late answer discarded.
+ */
+class HedgedReadsTest {
+
+    private HedgedReads hedgedReads;
+
+    @AfterEach
+    void tearDown(){
+        hedgedReads.shutdown();
+    }
+
+    @Test
+    void slowReadIsHedgedAndTheLoserCancelled(){
+        hedgedReads=hedgedReads(1.0);
+        CompletableFuture<String> first=new CompletableFuture<>();
+        Attempts attempts=new Attempts(first, CompletableFuture.completedFuture("hedge"));
+
+        String value=hedgedReads.hedge(HedgedReads.GET_ITEM, Deadline.none(), attempts::next, discarded -> {}).join();
+
+        assertThat(value).isEqualTo("hedge");
+        assertThat(attempts.calls.get()).isEqualTo(2);
+        assertThat(first).isCancelled();
+        assertThat(hedgedReads.getSent()).isEqualTo(1);
+        assertThat(hedgedReads.getWon()).isEqualTo(1);
+    }
+
+    @Test
+    void lateAnswerOfTheLoserIsDiscarded(){
+        hedgedReads=hedgedReads(1.0);
+        //Stands for a read that already finished when the cancel reached it
+        CompletableFuture<String> first=new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning){
+                return false;
+            }
+        };
+        Attempts attempts=new Attempts(first, CompletableFuture.completedFuture("hedge"));
+        List<String> discarded=new CopyOnWriteArrayList<>();
+
+        String value=hedgedReads.hedge(HedgedReads.GET_ITEM, Deadline.none(), attempts::next, discarded::add).join();
+        first.complete("late");
+
+        assertThat(value).isEqualTo("hedge");
+        assertThat(discarded).containsExactly("late");
+    }
+
+    @Test
+    void noHedgeOverBudget(){
+        hedgedReads=hedgedReads(0);
+        CompletableFuture<String> first=new CompletableFuture<>();
+        Attempts attempts=new Attempts(first, CompletableFuture.completedFuture("hedge"));
+
+        CompletableFuture<String> result=hedgedReads.hedge(HedgedReads.GET_ITEM, Deadline.none(), attempts::next, discarded -> {});
+        awaitUntil(() -> hedgedReads.getSkipped()==1);
+        first.complete("first");
+
+        assertThat(result.join()).isEqualTo("first");
+        assertThat(attempts.calls.get()).isEqualTo(1);
+        assertThat(hedgedReads.getSent()).isZero();
+    }
+
+    @Test
+    void fastReadIsNotHedged() throws InterruptedException {
+        hedgedReads=hedgedReads(1.0);
+        Attempts attempts=new Attempts(CompletableFuture.completedFuture("first"), CompletableFuture.completedFuture("hedge"));
+
+        assertThat(hedgedReads.hedge(HedgedReads.GET_ITEM, Deadline.none(), attempts::next, discarded -> {}).join()).isEqualTo("first");
+        Thread.sleep(50);
+
+        assertThat(attempts.calls.get()).isEqualTo(1);
+        assertThat(hedgedReads.getSent()).isZero();
+        assertThat(hedgedReads.getSkipped()).isZero();
+    }
+
+    @Test
+    void cancellingTheReadCancelsEveryAttempt(){
+        hedgedReads=hedgedReads(1.0);
+        CompletableFuture<String> first=new CompletableFuture<>();
+        CompletableFuture<String> second=new CompletableFuture<>();
+        Attempts attempts=new Attempts(first, second);
+
+        CompletableFuture<String> result=hedgedReads.hedge(HedgedReads.GET_ITEM, Deadline.none(), attempts::next, discarded -> {});
+        awaitUntil(() -> hedgedReads.getSent()==1);
+        result.cancel(true);
+
+        assertThat(first).isCancelled();
+        assertThat(second).isCancelled();
+    }
+
+    private static HedgedReads hedgedReads(double maxExtraRatio){
+        HedgedReads hedgedReads=new HedgedReads();
+        ReflectionTestUtils.setField(hedgedReads, "enabled", true);
+        ReflectionTestUtils.setField(hedgedReads, "percentile", 0.95);
+        ReflectionTestUtils.setField(hedgedReads, "minDelay", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(hedgedReads, "initialDelay", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(hedgedReads, "minSamples", 100);
+        ReflectionTestUtils.setField(hedgedReads, "maxExtraRatio", maxExtraRatio);
+        ReflectionTestUtils.setField(hedgedReads, "burst", 1);
+        hedgedReads.init();
+        return hedgedReads;
+    }
+
+    private static void awaitUntil(BooleanSupplier condition){
+        long until=System.nanoTime()+Duration.ofSeconds(5).toNanos();
+        while(!condition.getAsBoolean()){
+            assertThat(System.nanoTime()).as("Timed out waiting for the hedge timer").isLessThan(until);
+            Thread.onSpinWait();
+        }
+    }
+
+    //Hands out the given futures, one per attempt
+    private static final class Attempts {
+
+        private final List<CompletableFuture<String>> futures;
+        private final AtomicInteger calls=new AtomicInteger();
+
+        @SafeVarargs
+        Attempts(CompletableFuture<String>... futures){
+            this.futures=List.of(futures);
+        }
+
+        CompletableFuture<String> next(){
+            return futures.get(calls.getAndIncrement());
+        }
+    }
+}
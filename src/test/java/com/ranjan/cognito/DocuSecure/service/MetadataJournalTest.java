@@ -0,0 +1,288 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.configuration.WorkerThreads;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+
+class MetadataJournalTest {
+
+    private static final String BUCKET="bucket";
+    private static final String USER_ID="user";
+    private static final AwsSessionCredentials CREDS=AwsSessionCredentials.create("key", "secret", "token");
+
+    @TempDir
+    Path directory;
+
+    private final AwsClientRegistry clientRegistry=mock(AwsClientRegistry.class);
+    private final DynamoDbClient dynamo=mock(DynamoDbClient.class);
+    private final ListingCache listingCache=mock(ListingCache.class);
+    private final BlobService blobService=mock(BlobService.class);
+    private final List<MetadataJournal> journals=new ArrayList<>();
+    private final WorkerThreads workerThreads=new WorkerThreads();
+
+    @BeforeEach
+    void setUp(){
+        ReflectionTestUtils.setField(workerThreads, "environment", new MockEnvironment());
+        when(clientRegistry.dynamo()).thenReturn(dynamo);
+        when(blobService.release(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        written();
+    }
+
+    @AfterEach
+    void tearDown(){
+        //Nothing more reaches the table, whatever is left stays in the journal
+        doThrow(SdkClientException.create("stopped")).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+        journals.forEach(MetadataJournal::shutdown);
+    }
+
+    @Test
+    void directoryIsRequired(){
+        MetadataJournal journal=journal(directory);
+        ReflectionTestUtils.setField(journal, "journalDirectory", "");
+        assertThatThrownBy(journal::init).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void replayIgnoresTornLastLine() throws IOException {
+        MetadataJournal journal=start();
+        journal.append(USER_ID, List.of(item("a")), CREDS);
+        journal.append(USER_ID, List.of(item("b")), CREDS);
+        try(Stream<Path> segments=Files.list(directory)){
+            Path segment=segments.findFirst().orElseThrow();
+            Files.writeString(segment, "1234abcd {\"op\":\"put\",\"user\":\"us", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+
+        MetadataJournal replayed=start();
+        assertThat(replayed.getPending()).isEqualTo(2);
+        assertThat(replayed.getParked()).isEqualTo(2);
+        assertThat(replayed.pendingItem(USER_ID, "b")).isEqualTo(item("b"));
+
+        //Appends after a replay go to a fresh segment rather than after the torn line
+        replayed.append(USER_ID, List.of(item("c")), CREDS);
+        assertThat(start().getPending()).isEqualTo(3);
+    }
+
+    @Test
+    void replayedRowsWaitForTheUser() throws IOException {
+        start().append(USER_ID, List.of(item("a")), CREDS);
+        MetadataJournal replayed=start();
+        replayed.flush();
+        verify(dynamo, never()).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        replayed.resume(USER_ID, CREDS);
+        replayed.flush();
+        assertThat(replayed.getPending()).isZero();
+        assertThat(replayed.getFlushed()).isEqualTo(1);
+        verify(listingCache).invalidate(USER_ID);
+        assertThat(start().getPending()).isZero();
+    }
+
+    @Test
+    void cancelWhileInFlightDeletesTheRowAgain() throws Exception {
+        MetadataJournal journal=start();
+        journal.append(USER_ID, List.of(item("a")), CREDS);
+        CountDownLatch writing=new CountDownLatch(1);
+        CountDownLatch release=new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writing.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return BatchWriteItemResponse.builder().build();
+        }).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        CompletableFuture<Void> flush=CompletableFuture.runAsync(journal::flush);
+        assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(journal.cancel(USER_ID, "a")).isEqualTo(item("a"));
+        assertThat(journal.pendingItem(USER_ID, "a")).isNull();
+        assertThat(journal.cancel(USER_ID, "a")).isNull();
+        release.countDown();
+        flush.get(10, TimeUnit.SECONDS);
+
+        verify(dynamo).deleteItem(argThat((DeleteItemRequest request) -> request.tableName().equals(DocumentItems.TABLE_NAME)
+                    && request.key().equals(DocumentItems.key(USER_ID, "a"))));
+        assertThat(journal.getPending()).isZero();
+        assertThat(start().getPending()).isZero();
+    }
+
+    @Test
+    void concurrentAppendsAreAllReplayed() throws Exception {
+        MetadataJournal journal=start();
+        List<CompletableFuture<Void>> appends=new ArrayList<>();
+        for(int thread=0;thread<8;thread++){
+            int first=thread*20;
+            appends.add(CompletableFuture.runAsync(() -> {
+                for(int i=first;i<first+20;i++){
+                    try{
+                        journal.append(USER_ID, List.of(item("row-"+i)), CREDS);
+                    }catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }));
+        }
+        CompletableFuture.allOf(appends.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        assertThat(journal.getPending()).isEqualTo(160);
+        assertThat(start().getPending()).isEqualTo(160);
+    }
+
+    @Test
+    void usersAreWrittenSideBySide() throws IOException {
+        MetadataJournal journal=start();
+        journal.append(USER_ID, List.of(item("a")), CREDS);
+        journal.append("other", List.of(item("b")), CREDS);
+        //Each write waits for the other user's, one after another neither would be written
+        CountDownLatch both=new CountDownLatch(2);
+        doAnswer(invocation -> {
+            both.countDown();
+            if(!both.await(10, TimeUnit.SECONDS)){
+                throw SdkClientException.create("written one at a time");
+            }
+            return BatchWriteItemResponse.builder().build();
+        }).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        journal.flush();
+        assertThat(journal.getPending()).isZero();
+        assertThat(journal.getFlushed()).isEqualTo(2);
+    }
+
+    @Test
+    void cancelBeforeFlushNeverWrites() throws IOException {
+        MetadataJournal journal=start();
+        journal.append(USER_ID, List.of(item("a")), CREDS);
+        journal.cancel(USER_ID, "a");
+        journal.flush();
+        verify(dynamo, never()).batchWriteItem(any(BatchWriteItemRequest.class));
+        assertThat(start().getPending()).isZero();
+    }
+
+    @Test
+    void expiredCredentialsParkTheRows() throws IOException {
+        MetadataJournal journal=start();
+        journal.append(USER_ID, List.of(item("a")), CREDS);
+        doThrow(rejected("ExpiredTokenException")).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+        journal.flush();
+        journal.flush();
+        verify(dynamo, times(1)).batchWriteItem(any(BatchWriteItemRequest.class));
+        assertThat(journal.getParked()).isEqualTo(1);
+
+        written();
+        journal.resume(USER_ID, AwsSessionCredentials.create("key", "secret", "fresh"));
+        journal.flush();
+        assertThat(journal.getPending()).isZero();
+        assertThat(journal.getDiscarded()).isZero();
+    }
+
+    @Test
+    void deniedRowsAreNotParked() throws IOException {
+        MetadataJournal journal=start();
+        journal.append(USER_ID, List.of(item("a")), CREDS);
+        doThrow(rejected("AccessDeniedException")).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+        journal.flush();
+
+        assertThat(journal.getParked()).isZero();
+        assertThat(journal.getPending()).isZero();
+        assertThat(journal.getDiscarded()).isEqualTo(1);
+    }
+
+    @Test
+    void rejectedRowsAreDiscardedAndReleased() throws IOException {
+        MetadataJournal journal=start();
+        Map<String,AttributeValue> deduplicated=item("a");
+        deduplicated.put("ContentHash", AttributeValue.fromS("hash"));
+        journal.append(USER_ID, List.of(deduplicated), CREDS);
+        doThrow(rejected("ValidationException")).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+        journal.flush();
+
+        assertThat(journal.getPending()).isZero();
+        assertThat(journal.getDiscarded()).isEqualTo(1);
+        verify(blobService).release(USER_ID, "hash", BUCKET, CREDS);
+        assertThat(start().getPending()).isZero();
+    }
+
+    private MetadataJournal start() throws IOException {
+        MetadataJournal journal=journal(directory);
+        journal.init();
+        journals.add(journal);
+        return journal;
+    }
+
+    private MetadataJournal journal(Path directory){
+        MetadataJournal journal=new MetadataJournal();
+        ReflectionTestUtils.setField(journal, "clientRegistry", clientRegistry);
+        ReflectionTestUtils.setField(journal, "listingCache", listingCache);
+        ReflectionTestUtils.setField(journal, "blobService", blobService);
+        ReflectionTestUtils.setField(journal, "workerThreads", workerThreads);
+        ReflectionTestUtils.setField(journal, "writeThreads", 2);
+        ReflectionTestUtils.setField(journal, "bucketName", BUCKET);
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "journalDirectory", directory.toString());
+        ReflectionTestUtils.setField(journal, "segmentSize", DataSize.ofMegabytes(8));
+        //Flushed by the tests only
+        ReflectionTestUtils.setField(journal, "flushInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(journal, "maxBackoff", Duration.ofMinutes(1));
+        return journal;
+    }
+
+    private void written(){
+        doReturn(BatchWriteItemResponse.builder().build()).when(dynamo).batchWriteItem(any(BatchWriteItemRequest.class));
+    }
+
+    private static DynamoDbException rejected(String errorCode){
+        return (DynamoDbException)DynamoDbException.builder()
+                    .statusCode(400)
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build())
+                    .build();
+    }
+
+    private static Map<String,AttributeValue> item(String documentId){
+        Map<String,AttributeValue> item=new HashMap<>(DocumentItems.key(USER_ID, documentId));
+        item.put("Filename", AttributeValue.fromS(documentId+".txt"));
+        item.put("FilePath", AttributeValue.fromS(USER_ID+"/"+documentId+".txt"));
+        return item;
+    }
+}
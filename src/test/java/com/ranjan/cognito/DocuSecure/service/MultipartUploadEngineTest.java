@@ -0,0 +1,132 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ranjan.cognito.DocuSecure.support.InMemoryS3;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Uploads are split into parts, failed parts are retried only while the failure is transient and every buffer is given back.
+ */
+class MultipartUploadEngineTest {
+
+    private static final int PART_SIZE=64*1024;
+    private static final String KEY=ServiceContext.USER_ID+"/engine.bin";
+
+    private ServiceContext context;
+    private MultipartUploadEngine engine;
+    private InMemoryS3 s3;
+    private AwsSessionCredentials creds;
+
+    @BeforeEach
+    void setUp(){
+        context=new ServiceContext(Map.of("docusecure.upload.partSize", "64KB", "docusecure.upload.bufferBudget", "256KB"));
+        engine=context.bean(MultipartUploadEngine.class);
+        s3=context.aws().getS3();
+        creds=context.credentials();
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void largeUploadIsSplitIntoParts() throws IOException {
+        byte[] content=ServiceContext.randomBytes(5*PART_SIZE/2);
+
+        upload(content);
+
+        assertThat(s3.calls("CreateMultipartUpload")).isEqualTo(1);
+        assertThat(s3.calls("UploadPart")).isEqualTo(3);
+        assertThat(s3.calls("PutObject")).isZero();
+        assertThat(stored()).isEqualTo(content);
+        assertThat(s3.pendingUploads()).isZero();
+        assertThat(engine.getBufferedBytes()).isZero();
+    }
+
+    @Test
+    void smallUploadIsOnePut() throws IOException {
+        byte[] content=ServiceContext.randomBytes(1000);
+
+        upload(content);
+
+        assertThat(s3.calls("PutObject")).isEqualTo(1);
+        assertThat(s3.calls("CreateMultipartUpload")).isZero();
+        assertThat(stored()).isEqualTo(content);
+        assertThat(engine.getBufferedBytes()).isZero();
+    }
+
+    @Test
+    void transientPartFailureIsRetried() throws IOException {
+        byte[] content=ServiceContext.randomBytes(PART_SIZE);
+        s3.failNext("UploadPart", S3Exception.builder().statusCode(503).message("Slow Down").build());
+
+        upload(content);
+
+        assertThat(s3.calls("UploadPart")).isEqualTo(2);
+        assertThat(stored()).isEqualTo(content);
+        assertThat(engine.getBufferedBytes()).isZero();
+    }
+
+    @Test
+    void deniedPartAbortsTheUpload(){
+        byte[] content=ServiceContext.randomBytes(PART_SIZE);
+        s3.failNext("UploadPart", S3Exception.builder().statusCode(403).message("Access Denied").build());
+
+        assertThatThrownBy(() -> upload(content))
+                    .isInstanceOf(S3Exception.class)
+                    .satisfies(error -> assertThat(((S3Exception)error).statusCode()).isEqualTo(403));
+
+        assertThat(s3.calls("UploadPart")).isEqualTo(1);
+        assertThat(s3.calls("AbortMultipartUpload")).isEqualTo(1);
+        assertThat(s3.pendingUploads()).isZero();
+        assertThat(s3.size()).isZero();
+        assertThat(engine.getBufferedBytes()).isZero();
+    }
+
+    @Test
+    void failedReadGivesTheBufferBack(){
+        //Fails while the first buffer is still growing
+        InputStream failing=new InputStream() {
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if(read++>PART_SIZE/2){
+                    throw new IOException("Client went away");
+                }
+                return 1;
+            }
+        };
+
+        assertThatThrownBy(() -> engine.upload(ServiceContext.BUCKET, KEY, "application/octet-stream", failing, creds))
+                    .isInstanceOf(IOException.class);
+
+        assertThat(s3.calls("PutObject")).isZero();
+        assertThat(engine.getBufferedBytes()).isZero();
+    }
+
+    private void upload(byte[] content) throws IOException {
+        engine.upload(ServiceContext.BUCKET, KEY, "application/octet-stream", new ByteArrayInputStream(content), creds);
+    }
+
+    private byte[] stored(){
+        return context.aws().s3Async().getObject(builder -> builder.bucket(ServiceContext.BUCKET).key(KEY).overrideConfiguration(AwsClientRegistry.credentials(creds)),
+                    AsyncResponseTransformer.toBytes()).join().asByteArray();
+    }
+}
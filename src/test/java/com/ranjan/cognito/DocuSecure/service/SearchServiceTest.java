@@ -0,0 +1,111 @@
+package com.ranjan.cognito.DocuSecure.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ranjan.cognito.DocuSecure.response.SearchHit;
+import com.ranjan.cognito.DocuSecure.support.ServiceContext;
+
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/**
+ * Rows written before the search attributes existed are found on the cold path and backfilled.
+ */
+class SearchServiceTest {
+
+    private ServiceContext context;
+    private AwsSessionCredentials creds;
+    private SearchService searchService;
+
+    @BeforeEach
+    void setUp(){
+        context=new ServiceContext(Map.of("docusecure.search.index.enabled", false));
+        creds=context.credentials();
+        searchService=context.bean(SearchService.class);
+    }
+
+    @AfterEach
+    void tearDown(){
+        context.close();
+    }
+
+    @Test
+    void legacyRowsAreReturnedAndBackfilled(){
+        legacyRow("old", "Report.PDF", null);
+        legacyRow("older", "notes.txt", 1_700_000_000_000L);
+        indexedRow("new", "new.txt");
+
+        List<SearchHit> unindexed=searchService.unindexed(ServiceContext.USER_ID, creds).join();
+        assertThat(unindexed).extracting(SearchHit::getFileId).containsExactlyInAnyOrder("old", "older");
+
+        waitForBackfill();
+        Map<String,AttributeValue> old=row("old");
+        assertThat(old.get("FilenameLower").s()).isEqualTo("report.pdf");
+        assertThat(Long.parseLong(old.get("UploadedAt").n())).isPositive();
+        Map<String,AttributeValue> older=row("older");
+        assertThat(older.get("FilenameLower").s()).isEqualTo("notes.txt");
+        assertThat(older.get("UploadedAt").n()).isEqualTo("1700000000000");
+        assertThat(row("new").get("UploadedAt").n()).isEqualTo("1");
+    }
+
+    @Test
+    void rowWithoutObjectDoesNotStopBackfill(){
+        Map<String,AttributeValue> orphan=new HashMap<>(DocumentItems.key(ServiceContext.USER_ID, "orphan"));
+        orphan.put("Filename", AttributeValue.fromS("orphan.txt"));
+        orphan.put("FilePath", AttributeValue.fromS(ServiceContext.USER_ID+"/orphan.txt"));
+        put(orphan);
+        legacyRow("kept", "kept.txt", null);
+
+        assertThat(searchService.unindexed(ServiceContext.USER_ID, creds).join()).hasSize(2);
+        waitForBackfill();
+        assertThat(row("orphan")).doesNotContainKey("FilenameLower");
+        assertThat(row("kept")).containsKey("FilenameLower");
+    }
+
+    private void waitForBackfill(){
+        long deadline=System.nanoTime()+10_000_000_000L;
+        while(!searchService.unindexed(ServiceContext.USER_ID, creds).join().isEmpty()){
+            assertThat(System.nanoTime()).as("backfill finished").isLessThan(deadline);
+            Thread.onSpinWait();
+        }
+    }
+
+    private void legacyRow(String documentId,String fileName,Long uploadedAt){
+        String path=ServiceContext.USER_ID+"/"+fileName;
+        context.aws().s3().putObject(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).bucket(ServiceContext.BUCKET).key(path), RequestBody.fromString(fileName));
+        Map<String,AttributeValue> item=new HashMap<>(DocumentItems.key(ServiceContext.USER_ID, documentId));
+        item.put("Filename", AttributeValue.fromS(fileName));
+        item.put("FileType", AttributeValue.fromS("application/octet-stream"));
+        item.put("FilePath", AttributeValue.fromS(path));
+        if(uploadedAt!=null){
+            item.put("UploadedAt", AttributeValue.fromN(Long.toString(uploadedAt)));
+        }
+        put(item);
+    }
+
+    private void indexedRow(String documentId,String fileName){
+        Map<String,AttributeValue> item=new HashMap<>(DocumentItems.key(ServiceContext.USER_ID, documentId));
+        item.put("Filename", AttributeValue.fromS(fileName));
+        item.put("FilenameLower", AttributeValue.fromS(fileName));
+        item.put("FilePath", AttributeValue.fromS(ServiceContext.USER_ID+"/"+fileName));
+        item.put("UploadedAt", AttributeValue.fromN("1"));
+        put(item);
+    }
+
+    private void put(Map<String,AttributeValue> item){
+        context.aws().dynamo().putItem(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).tableName(DocumentItems.TABLE_NAME).item(item));
+    }
+
+    private Map<String,AttributeValue> row(String documentId){
+        return context.aws().dynamo().getItem(builder -> builder.overrideConfiguration(AwsClientRegistry.credentials(creds)).tableName(DocumentItems.TABLE_NAME).key(DocumentItems.key(ServiceContext.USER_ID, documentId))).item();
+    }
+}
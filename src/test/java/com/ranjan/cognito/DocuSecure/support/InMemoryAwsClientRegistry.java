@@ -0,0 +1,151 @@
+package com.ranjan.cognito.DocuSecure.support;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ranjan.cognito.DocuSecure.service.AwsClientRegistry;
+
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityAsyncClient;
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityClient;
+import software.amazon.awssdk.services.cognitoidentity.model.Credentials;
+import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityRequest;
+import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityResponse;
+import software.amazon.awssdk.services.cognitoidentity.model.GetIdRequest;
+import software.amazon.awssdk.services.cognitoidentity.model.GetIdResponse;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+/**
+ * Client registry handing out the in-memory stand-ins instead of SDK clients, so the services run
+ * unchanged with no network. Cognito issues a fresh set of one hour credentials per exchange.
+ */
+public class InMemoryAwsClientRegistry extends AwsClientRegistry {
+
+    private final InMemoryS3 s3=new InMemoryS3();
+    private final InMemoryDynamoDb dynamoDb=new InMemoryDynamoDb();
+    private final AtomicLong exchanges=new AtomicLong();
+
+    private final CognitoIdentityClient cognito=new CognitoIdentityClient() {
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public GetIdResponse getId(GetIdRequest request) {
+            return GetIdResponse.builder().identityId(request.identityPoolId()+"-"+UUID.randomUUID()).build();
+        }
+
+        @Override
+        public GetCredentialsForIdentityResponse getCredentialsForIdentity(GetCredentialsForIdentityRequest request) {
+            return GetCredentialsForIdentityResponse.builder()
+                        .identityId(request.identityId())
+                        .credentials(issue())
+                        .build();
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final CognitoIdentityAsyncClient cognitoAsync=new CognitoIdentityAsyncClient() {
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public CompletableFuture<GetIdResponse> getId(GetIdRequest request) {
+            return CompletableFuture.completedFuture(cognito.getId(request));
+        }
+
+        @Override
+        public CompletableFuture<GetCredentialsForIdentityResponse> getCredentialsForIdentity(GetCredentialsForIdentityRequest request) {
+            return CompletableFuture.completedFuture(cognito.getCredentialsForIdentity(request));
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    //No SDK clients or pools to build or close
+    @Override
+    public void init(){
+    }
+
+    @Override
+    public void shutdown(){
+    }
+
+    @Override
+    public CognitoIdentityClient cognito(){
+        return cognito;
+    }
+
+    @Override
+    public CognitoIdentityAsyncClient cognitoAsync(){
+        return cognitoAsync;
+    }
+
+    @Override
+    public S3Client s3(){
+        return s3.client();
+    }
+
+    @Override
+    public DynamoDbClient dynamo(){
+        return dynamoDb.client();
+    }
+
+    @Override
+    public S3AsyncClient s3Async(){
+        return s3.asyncClient();
+    }
+
+    @Override
+    public DynamoDbAsyncClient dynamoAsync(){
+        return dynamoDb.asyncClient();
+    }
+
+    @Override
+    public S3Presigner presigner(){
+        throw new UnsupportedOperationException("Presigning needs real credentials");
+    }
+
+    public InMemoryS3 getS3() {
+        return s3;
+    }
+
+    public InMemoryDynamoDb getDynamoDb() {
+        return dynamoDb;
+    }
+
+    public long getExchanges() {
+        return exchanges.get();
+    }
+
+    public void clear(){
+        s3.clear();
+        dynamoDb.clear();
+    }
+
+    private Credentials issue(){
+        long exchange=exchanges.incrementAndGet();
+        return Credentials.builder()
+                    .accessKeyId("ASIABENCHMARK"+exchange)
+                    .secretKey("benchmark-secret-"+exchange)
+                    .sessionToken("benchmark-session-"+exchange)
+                    .expiration(Instant.now().plus(Duration.ofHours(1)))
+                    .build();
+    }
+}
@@ -0,0 +1,499 @@
+package com.ranjan.cognito.DocuSecure.support;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.ranjan.cognito.DocuSecure.service.DocumentItems;
+
+import software.amazon.awssdk.awscore.AwsRequest;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/**
+ * DynamoDB stand-in keeping the Docusecure and blob tables in sorted in-memory maps, with a blocking and a
+ * non-blocking client view. It understands the expressions the services write: equality key conditions, on
+ * the two search indexes also BETWEEN, {@code >=}, {@code <=} and begins_with on the index sort key,
+ * projections, {@code SET a = a + :v} and {@code SET a = if_not_exists(a, :v), ...} updates, and conditions
+ * and filters made of attribute_exists, attribute_not_exists, {@code =} and {@code >} joined by AND or OR.
+ * Queries page like DynamoDB does, bounded by the request limit or by {@link #PAGE_ITEMS} standing in for
+ * the 1 MB page, and the filter applies to the items read for a page.
+ * <p>
+ * Tests can make the next calls of an operation fail with {@link #failNext}, leave BatchWriteItem writes
+ * unprocessed with {@link #leaveUnprocessed} and count the calls made with {@link #calls}.
+ */
+public class InMemoryDynamoDb {
+
+    public static final int PAGE_ITEMS=1000;
+
+    private static final char SEPARATOR='\u0000';
+    private static final Pattern KEY_CONDITION=Pattern.compile("(\\S+?)\\s*=\\s*(:\\w+)");
+    private static final Pattern INDEX_CONDITION=Pattern.compile("(\\S+?)\\s*=\\s*(:\\w+)"
+                +"(?: AND (?:\\S+ BETWEEN (:\\w+) AND (:\\w+)|\\S+ (>=|<=) (:\\w+)|begins_with\\(\\S+, (:\\w+)\\)))?");
+    private static final Pattern INCREMENT=Pattern.compile("SET (\\S+) = (\\S+) ([+-]) (:\\w+)");
+    private static final Pattern IF_NOT_EXISTS=Pattern.compile("(\\S+) = if_not_exists\\((\\S+), (:\\w+)\\)");
+    private static final Pattern COMPARISON=Pattern.compile("(\\S+)\\s*(=|>)\\s*(:\\w+)");
+    private static final Pattern FUNCTION=Pattern.compile("(attribute_exists|attribute_not_exists)\\((\\S+)\\)");
+
+    private final Map<String,Table> tables=new ConcurrentHashMap<>();
+    //Operation name, as in the API, to the errors its next calls fail with
+    private final Map<String,Queue<RuntimeException>> faults=new ConcurrentHashMap<>();
+    private final Map<String,AtomicInteger> calls=new ConcurrentHashMap<>();
+    private final AtomicInteger unprocessed=new AtomicInteger();
+
+    private final DynamoDbClient client=new Client();
+    private final DynamoDbAsyncClient asyncClient=new AsyncClient();
+
+    public InMemoryDynamoDb(){
+        createTable(DocumentItems.TABLE_NAME, "CustomerId", "DocumentId");
+        createTable("DocusecureBlobs", "CustomerId", "ContentHash");
+        tables.get(DocumentItems.TABLE_NAME).indexes.put(DocumentItems.FILENAME_INDEX, "FilenameLower");
+        tables.get(DocumentItems.TABLE_NAME).indexes.put(DocumentItems.UPLOADED_AT_INDEX, "UploadedAt");
+    }
+
+    public void createTable(String name,String partitionKey,String sortKey){
+        tables.put(name, new Table(partitionKey, sortKey));
+    }
+
+    public DynamoDbClient client(){
+        return client;
+    }
+
+    public DynamoDbAsyncClient asyncClient(){
+        return asyncClient;
+    }
+
+    public int size(String tableName){
+        return table(tableName).items.size();
+    }
+
+    public void clear(){
+        tables.values().forEach(table->table.items.clear());
+    }
+
+    /**
+     * Fails the next call of {@code operation}, for instance {@code DeleteItem}, with the error. Errors queue up.
+     */
+    public void failNext(String operation,RuntimeException error){
+        faults.computeIfAbsent(operation, key->new ConcurrentLinkedQueue<>()).add(error);
+    }
+
+    /**
+     * Hands the next {@code writes} BatchWriteItem writes back as unprocessed instead of applying them.
+     */
+    public void leaveUnprocessed(int writes){
+        unprocessed.addAndGet(writes);
+    }
+
+    public int calls(String operation){
+        AtomicInteger count=calls.get(operation);
+        return count==null ? 0 : count.get();
+    }
+
+    //Requests reach the shared anonymous client, one the service did not sign as the user is refused as AWS would
+    private void call(String operation,AwsRequest request){
+        calls.computeIfAbsent(operation, key->new AtomicInteger()).incrementAndGet();
+        if(request.overrideConfiguration().flatMap(AwsRequestOverrideConfiguration::credentialsProvider).isEmpty()){
+            throw DynamoDbException.builder().statusCode(400).message("Request is missing Authentication Token").build();
+        }
+        Queue<RuntimeException> errors=faults.get(operation);
+        RuntimeException error=errors==null ? null : errors.poll();
+        if(error!=null){
+            throw error;
+        }
+    }
+
+    private Table table(String name){
+        Table table=tables.get(name);
+        if(table==null){
+            throw ResourceNotFoundException.builder().message("Requested resource not found: "+name).build();
+        }
+        return table;
+    }
+
+    private GetItemResponse getItem(GetItemRequest request){
+        call("GetItem", request);
+        Table table=table(request.tableName());
+        Map<String,AttributeValue> item=table.items.get(table.key(request.key()));
+        return item==null ? GetItemResponse.builder().build() : GetItemResponse.builder().item(item).build();
+    }
+
+    private PutItemResponse putItem(PutItemRequest request){
+        call("PutItem", request);
+        Table table=table(request.tableName());
+        String key=table.key(request.item());
+        synchronized(table){
+            Map<String,AttributeValue> existing=table.items.get(key);
+            check(request.conditionExpression(), existing, request.expressionAttributeNames(), request.expressionAttributeValues());
+            table.items.put(key, Map.copyOf(request.item()));
+            return request.returnValues()==ReturnValue.ALL_OLD && existing!=null
+                        ? PutItemResponse.builder().attributes(existing).build()
+                        : PutItemResponse.builder().build();
+        }
+    }
+
+    private UpdateItemResponse updateItem(UpdateItemRequest request){
+        call("UpdateItem", request);
+        Map<String,String> names=request.expressionAttributeNames();
+        Map<String,AttributeValue> values=request.expressionAttributeValues();
+        Matcher update=INCREMENT.matcher(request.updateExpression());
+        boolean increment=update.matches() && update.group(1).equals(update.group(2));
+        if(!increment && !request.updateExpression().startsWith("SET ")){
+            throw new UnsupportedOperationException("Unsupported update expression "+request.updateExpression());
+        }
+        Table table=table(request.tableName());
+        String key=table.key(request.key());
+        synchronized(table){
+            Map<String,AttributeValue> existing=table.items.get(key);
+            check(request.conditionExpression(), existing, names, values);
+            Map<String,AttributeValue> updated=new HashMap<>(existing==null ? request.key() : existing);
+            if(increment){
+                String attribute=name(update.group(1), names);
+                BigDecimal current=updated.containsKey(attribute) ? new BigDecimal(updated.get(attribute).n()) : BigDecimal.ZERO;
+                BigDecimal delta=new BigDecimal(values.get(update.group(4)).n());
+                updated.put(attribute, AttributeValue.fromN((update.group(3).equals("+") ? current.add(delta) : current.subtract(delta)).toPlainString()));
+            }else{
+                for(String assignment:request.updateExpression().substring("SET ".length()).split(",(?![^(]*\\))")){
+                    Matcher ifNotExists=IF_NOT_EXISTS.matcher(assignment.trim());
+                    if(!ifNotExists.matches() || !ifNotExists.group(1).equals(ifNotExists.group(2))){
+                        throw new UnsupportedOperationException("Unsupported update expression "+request.updateExpression());
+                    }
+                    updated.putIfAbsent(name(ifNotExists.group(1), names), values.get(ifNotExists.group(3)));
+                }
+            }
+            table.items.put(key, Map.copyOf(updated));
+            return request.returnValues()==ReturnValue.ALL_NEW
+                        ? UpdateItemResponse.builder().attributes(updated).build()
+                        : UpdateItemResponse.builder().build();
+        }
+    }
+
+    private DeleteItemResponse deleteItem(DeleteItemRequest request){
+        call("DeleteItem", request);
+        Table table=table(request.tableName());
+        String key=table.key(request.key());
+        synchronized(table){
+            Map<String,AttributeValue> existing=table.items.get(key);
+            check(request.conditionExpression(), existing, request.expressionAttributeNames(), request.expressionAttributeValues());
+            table.items.remove(key);
+            return request.returnValues()==ReturnValue.ALL_OLD && existing!=null
+                        ? DeleteItemResponse.builder().attributes(existing).build()
+                        : DeleteItemResponse.builder().build();
+        }
+    }
+
+    //Writes are applied unless leaveUnprocessed asked for them to be handed back
+    private BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request){
+        call("BatchWriteItem", request);
+        Map<String,List<WriteRequest>> left=new HashMap<>();
+        request.requestItems().forEach((tableName,writes)->{
+            Table table=table(tableName);
+            for(WriteRequest write:writes){
+                if(unprocessed.getAndUpdate(count->Math.max(0, count-1))>0){
+                    left.computeIfAbsent(tableName, key->new ArrayList<>()).add(write);
+                }else if(write.putRequest()!=null){
+                    table.items.put(table.key(write.putRequest().item()), Map.copyOf(write.putRequest().item()));
+                }else{
+                    table.items.remove(table.key(write.deleteRequest().key()));
+                }
+            }
+        });
+        return BatchWriteItemResponse.builder().unprocessedItems(left).build();
+    }
+
+    private QueryResponse query(QueryRequest request){
+        call("Query", request);
+        Table table=table(request.tableName());
+        if(request.indexName()!=null){
+            return indexQuery(request, table);
+        }
+        Matcher condition=KEY_CONDITION.matcher(request.keyConditionExpression());
+        if(!condition.matches() || !name(condition.group(1), request.expressionAttributeNames()).equals(table.partitionKey)){
+            throw new UnsupportedOperationException("Unsupported key condition "+request.keyConditionExpression());
+        }
+        String partition=request.expressionAttributeValues().get(condition.group(2)).s();
+        NavigableMap<String,Map<String,AttributeValue>> items=table.items.subMap(partition+SEPARATOR, true, partition+(char)(SEPARATOR+1), false);
+        if(request.hasExclusiveStartKey()){
+            items=items.tailMap(table.key(request.exclusiveStartKey()), false);
+        }
+        int limit=request.limit()==null ? PAGE_ITEMS : Math.min(request.limit(), PAGE_ITEMS);
+        List<Map<String,AttributeValue>> page=new ArrayList<>();
+        Map<String,AttributeValue> last=null;
+        int read=0;
+        for(Map<String,AttributeValue> item:items.values()){
+            if(read==limit){
+                break;
+            }
+            read++;
+            last=item;
+            if(request.filterExpression()==null || holds(request.filterExpression(), item, request.expressionAttributeNames(), request.expressionAttributeValues())){
+                page.add(project(item, request.projectionExpression(), request.expressionAttributeNames()));
+            }
+        }
+        QueryResponse.Builder response=QueryResponse.builder().items(page).count(page.size()).scannedCount(read);
+        if(last!=null && read==limit && items.higherKey(table.key(last))!=null){
+            response.lastEvaluatedKey(Map.of(table.partitionKey, last.get(table.partitionKey), table.sortKey, last.get(table.sortKey)));
+        }
+        return response.build();
+    }
+
+    //Sparse like a real index, items without the sort attribute are not in it
+    private QueryResponse indexQuery(QueryRequest request,Table table){
+        String sortAttribute=table.indexes.get(request.indexName());
+        Matcher condition=INDEX_CONDITION.matcher(request.keyConditionExpression());
+        if(sortAttribute==null){
+            throw ResourceNotFoundException.builder().message("Requested resource not found: "+request.indexName()).build();
+        }
+        if(!condition.matches()){
+            throw new UnsupportedOperationException("Unsupported key condition "+request.keyConditionExpression());
+        }
+        Map<String,AttributeValue> values=request.expressionAttributeValues();
+        String partition=values.get(condition.group(2)).s();
+        Comparator<Map<String,AttributeValue>> order=Comparator.<Map<String,AttributeValue>,AttributeValue>comparing(item->item.get(sortAttribute), InMemoryDynamoDb::compare)
+                    .thenComparing(item->item.get(table.sortKey).s());
+        if(Boolean.FALSE.equals(request.scanIndexForward())){
+            order=order.reversed();
+        }
+        Comparator<Map<String,AttributeValue>> sorted=order;
+        List<Map<String,AttributeValue>> items=table.items.subMap(partition+SEPARATOR, true, partition+(char)(SEPARATOR+1), false).values().stream()
+                    .filter(item->item.containsKey(sortAttribute) && inRange(item.get(sortAttribute), condition, values))
+                    .filter(item->!request.hasExclusiveStartKey() || sorted.compare(item, request.exclusiveStartKey())>0)
+                    .sorted(sorted)
+                    .collect(Collectors.toList());
+        int limit=request.limit()==null ? PAGE_ITEMS : Math.min(request.limit(), PAGE_ITEMS);
+        List<Map<String,AttributeValue>> read=items.subList(0, Math.min(limit, items.size()));
+        List<Map<String,AttributeValue>> page=read.stream()
+                    .filter(item->request.filterExpression()==null || holds(request.filterExpression(), item, request.expressionAttributeNames(), values))
+                    .map(item->project(item, request.projectionExpression(), request.expressionAttributeNames()))
+                    .collect(Collectors.toList());
+        QueryResponse.Builder response=QueryResponse.builder().items(page).count(page.size()).scannedCount(read.size());
+        if(items.size()>limit){
+            Map<String,AttributeValue> last=read.get(read.size()-1);
+            response.lastEvaluatedKey(Map.of(table.partitionKey, last.get(table.partitionKey), table.sortKey, last.get(table.sortKey), sortAttribute, last.get(sortAttribute)));
+        }
+        return response.build();
+    }
+
+    private static boolean inRange(AttributeValue value,Matcher condition,Map<String,AttributeValue> values){
+        if(condition.group(3)!=null){
+            return compare(value, values.get(condition.group(3)))>=0 && compare(value, values.get(condition.group(4)))<=0;
+        }
+        if(condition.group(5)!=null){
+            int compared=compare(value, values.get(condition.group(6)));
+            return condition.group(5).equals(">=") ? compared>=0 : compared<=0;
+        }
+        if(condition.group(7)!=null){
+            return value.s()!=null && value.s().startsWith(values.get(condition.group(7)).s());
+        }
+        return true;
+    }
+
+    private static int compare(AttributeValue value,AttributeValue other){
+        return value.n()!=null ? new BigDecimal(value.n()).compareTo(new BigDecimal(other.n())) : value.s().compareTo(other.s());
+    }
+
+    private static Map<String,AttributeValue> project(Map<String,AttributeValue> item,String projection,Map<String,String> names){
+        if(projection==null){
+            return item;
+        }
+        Map<String,AttributeValue> projected=new HashMap<>();
+        for(String attribute:projection.split(",")){
+            String name=name(attribute.trim(), names);
+            if(item.containsKey(name)){
+                projected.put(name, item.get(name));
+            }
+        }
+        return projected;
+    }
+
+    private static void check(String expression,Map<String,AttributeValue> item,Map<String,String> names,Map<String,AttributeValue> values){
+        if(expression!=null && !holds(expression, item, names, values)){
+            throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+        }
+    }
+
+    private static boolean holds(String expression,Map<String,AttributeValue> item,Map<String,String> names,Map<String,AttributeValue> values){
+        if(expression.contains(" OR ")){
+            for(String alternative:expression.split(" OR ")){
+                if(holds(alternative, item, names, values)){
+                    return true;
+                }
+            }
+            return false;
+        }
+        for(String term:expression.split(" AND ")){
+            if(!term(term.trim(), item, names, values)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean term(String term,Map<String,AttributeValue> item,Map<String,String> names,Map<String,AttributeValue> values){
+        Matcher function=FUNCTION.matcher(term);
+        if(function.matches()){
+            boolean exists=item!=null && item.containsKey(name(function.group(2), names));
+            return function.group(1).equals("attribute_exists")==exists;
+        }
+        Matcher comparison=COMPARISON.matcher(term);
+        if(!comparison.matches()){
+            throw new UnsupportedOperationException("Unsupported condition "+term);
+        }
+        AttributeValue actual=item==null ? null : item.get(name(comparison.group(1), names));
+        AttributeValue expected=values.get(comparison.group(3));
+        if(actual==null){
+            return false;
+        }
+        if(comparison.group(2).equals("=")){
+            return actual.n()!=null ? new BigDecimal(actual.n()).compareTo(new BigDecimal(expected.n()))==0 : actual.equals(expected);
+        }
+        return actual.n()!=null ? new BigDecimal(actual.n()).compareTo(new BigDecimal(expected.n()))>0 : actual.s().compareTo(expected.s())>0;
+    }
+
+    private static String name(String attribute,Map<String,String> names){
+        return attribute.startsWith("#") ? names.get(attribute) : attribute;
+    }
+
+    private static <T> CompletableFuture<T> async(Supplier<T> call){
+        try{
+            return CompletableFuture.completedFuture(call.get());
+        }catch(RuntimeException e){
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static final class Table {
+
+        private final String partitionKey;
+        private final String sortKey;
+        private final ConcurrentSkipListMap<String,Map<String,AttributeValue>> items=new ConcurrentSkipListMap<>();
+        //Index name to the index's sort attribute, the partition key is the table's
+        private final Map<String,String> indexes=new HashMap<>();
+
+        Table(String partitionKey,String sortKey){
+            this.partitionKey=partitionKey;
+            this.sortKey=sortKey;
+        }
+
+        String key(Map<String,AttributeValue> item){
+            return item.get(partitionKey).s()+SEPARATOR+item.get(sortKey).s();
+        }
+    }
+
+    private final class Client implements DynamoDbClient {
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public GetItemResponse getItem(GetItemRequest request) {
+            return InMemoryDynamoDb.this.getItem(request);
+        }
+
+        @Override
+        public PutItemResponse putItem(PutItemRequest request) {
+            return InMemoryDynamoDb.this.putItem(request);
+        }
+
+        @Override
+        public UpdateItemResponse updateItem(UpdateItemRequest request) {
+            return InMemoryDynamoDb.this.updateItem(request);
+        }
+
+        @Override
+        public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+            return InMemoryDynamoDb.this.deleteItem(request);
+        }
+
+        @Override
+        public QueryResponse query(QueryRequest request) {
+            return InMemoryDynamoDb.this.query(request);
+        }
+
+        @Override
+        public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+            return InMemoryDynamoDb.this.batchWriteItem(request);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final class AsyncClient implements DynamoDbAsyncClient {
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+            return async(()->InMemoryDynamoDb.this.getItem(request));
+        }
+
+        @Override
+        public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+            return async(()->InMemoryDynamoDb.this.putItem(request));
+        }
+
+        @Override
+        public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+            return async(()->InMemoryDynamoDb.this.updateItem(request));
+        }
+
+        @Override
+        public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+            return async(()->InMemoryDynamoDb.this.deleteItem(request));
+        }
+
+        @Override
+        public CompletableFuture<QueryResponse> query(QueryRequest request) {
+            return async(()->InMemoryDynamoDb.this.query(request));
+        }
+
+        @Override
+        public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+            return async(()->InMemoryDynamoDb.this.batchWriteItem(request));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.ranjan.cognito.DocuSecure.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.awscore.AwsRequest;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * S3 stand-in keeping objects in memory, with a blocking and a non-blocking client view.
+ * Only the calls the services make are implemented, anything else keeps the SDK default of throwing
+ * {@link UnsupportedOperationException}. Async calls complete on the calling thread. Tests can make the next
+ * blocking calls of an operation fail with {@link #failNext} and count the blocking calls made with {@link #calls}.
+ */
+public class InMemoryS3 {
+
+    private final Map<String,StoredObject> objects=new ConcurrentHashMap<>();
+    private final Map<String,PendingUpload> uploads=new ConcurrentHashMap<>();
+    private final AtomicLong versions=new AtomicLong();
+    //Operation name, as in the API, to the errors its next calls fail with
+    private final Map<String,Queue<RuntimeException>> faults=new ConcurrentHashMap<>();
+    private final Map<String,AtomicInteger> calls=new ConcurrentHashMap<>();
+
+    private final S3Client client=new Client();
+    private final S3AsyncClient asyncClient=new AsyncClient();
+
+    public S3Client client(){
+        return client;
+    }
+
+    public S3AsyncClient asyncClient(){
+        return asyncClient;
+    }
+
+    public int size(){
+        return objects.size();
+    }
+
+    /**
+     * Multipart uploads created and neither completed nor aborted.
+     */
+    public int pendingUploads(){
+        return uploads.size();
+    }
+
+    public void clear(){
+        objects.clear();
+        uploads.clear();
+    }
+
+    /**
+     * Fails the next call of {@code operation}, for instance {@code UploadPart}, with the error. Errors queue up.
+     */
+    public void failNext(String operation,RuntimeException error){
+        faults.computeIfAbsent(operation, key->new ConcurrentLinkedQueue<>()).add(error);
+    }
+
+    public int calls(String operation){
+        AtomicInteger count=calls.get(operation);
+        return count==null ? 0 : count.get();
+    }
+
+    private void call(String operation,AwsRequest request){
+        calls.computeIfAbsent(operation, key->new AtomicInteger()).incrementAndGet();
+        signed(request);
+        Queue<RuntimeException> errors=faults.get(operation);
+        RuntimeException error=errors==null ? null : errors.poll();
+        if(error!=null){
+            throw error;
+        }
+    }
+
+    private StoredObject put(String bucket,String key,String contentType,byte[] content){
+        StoredObject object=new StoredObject(content, contentType, "\"v"+versions.incrementAndGet()+"\"");
+        objects.put(bucket+"/"+key, object);
+        return object;
+    }
+
+    private StoredObject get(String bucket,String key){
+        StoredObject object=objects.get(bucket+"/"+key);
+        if(object==null){
+            throw NoSuchKeyException.builder().statusCode(404).message("The specified key does not exist: "+key).build();
+        }
+        return object;
+    }
+
+    private PendingUpload upload(String uploadId){
+        PendingUpload upload=uploads.get(uploadId);
+        if(upload==null){
+            throw NoSuchUploadException.builder().statusCode(404).message("The specified upload does not exist: "+uploadId).build();
+        }
+        return upload;
+    }
+
+    //Requests reach the shared anonymous client, one the service did not sign as the user is refused as AWS would
+    private static void signed(AwsRequest request){
+        if(request.overrideConfiguration().flatMap(AwsRequestOverrideConfiguration::credentialsProvider).isEmpty()){
+            throw S3Exception.builder().statusCode(403).message("Access Denied").build();
+        }
+    }
+
+    private static byte[] read(RequestBody body){
+        try(InputStream content=body.contentStreamProvider().newStream()){
+            return content.readAllBytes();
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(RuntimeException e){
+        return CompletableFuture.failedFuture(e);
+    }
+
+    private final class Client implements S3Client {
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request,RequestBody body) {
+            call("PutObject", request);
+            StoredObject object=put(request.bucket(), request.key(), request.contentType(), read(body));
+            return PutObjectResponse.builder().eTag(object.eTag).build();
+        }
+
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+            call("CreateMultipartUpload", request);
+            String uploadId=UUID.randomUUID().toString();
+            uploads.put(uploadId, new PendingUpload(request.contentType()));
+            return CreateMultipartUploadResponse.builder().bucket(request.bucket()).key(request.key()).uploadId(uploadId).build();
+        }
+
+        @Override
+        public UploadPartResponse uploadPart(UploadPartRequest request,RequestBody body) {
+            call("UploadPart", request);
+            upload(request.uploadId()).parts.put(request.partNumber(), read(body));
+            return UploadPartResponse.builder().eTag("\"part-"+request.partNumber()+"\"").build();
+        }
+
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            call("CompleteMultipartUpload", request);
+            PendingUpload upload=upload(request.uploadId());
+            ByteArrayOutputStream content=new ByteArrayOutputStream();
+            for(CompletedPart part:request.multipartUpload().parts()){
+                content.writeBytes(upload.parts.get(part.partNumber()));
+            }
+            uploads.remove(request.uploadId());
+            StoredObject object=put(request.bucket(), request.key(), upload.contentType, content.toByteArray());
+            return CompleteMultipartUploadResponse.builder().bucket(request.bucket()).key(request.key()).eTag(object.eTag).build();
+        }
+
+        @Override
+        public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+            call("AbortMultipartUpload", request);
+            uploads.remove(request.uploadId());
+            return AbortMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+            call("DeleteObject", request);
+            objects.remove(request.bucket()+"/"+request.key());
+            return DeleteObjectResponse.builder().build();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final class AsyncClient implements S3AsyncClient {
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+            try{
+                signed(request);
+                StoredObject object=get(request.bucket(), request.key());
+                return CompletableFuture.completedFuture(HeadObjectResponse.builder()
+                            .eTag(object.eTag)
+                            .lastModified(object.lastModified)
+                            .contentLength((long)object.content.length)
+                            .contentType(object.contentType)
+                            .build());
+            }catch(S3Exception e){
+                return failed(e);
+            }
+        }
+
+        /**
+         * Hands the stored bytes to the transformer the way the SDK does, so response transformers such as
+         * the blocking input stream run their real code.
+         */
+        @Override
+        public <T> CompletableFuture<T> getObject(GetObjectRequest request,AsyncResponseTransformer<GetObjectResponse,T> transformer) {
+            StoredObject object;
+            try{
+                signed(request);
+                object=get(request.bucket(), request.key());
+            }catch(S3Exception e){
+                return failed(e);
+            }
+            if(request.ifMatch()!=null && !request.ifMatch().equals(object.eTag)){
+                return failed(S3Exception.builder().statusCode(412).message("Precondition Failed").build());
+            }
+            int start=0;
+            int end=object.content.length-1;
+            String contentRange=null;
+            if(request.range()!=null){
+                //Single ranges only, as S3 itself: first-last, first- or -suffix
+                String[] bounds=request.range().substring("bytes=".length()).split("-", -1);
+                if(bounds[0].isEmpty()){
+                    start=Math.max(0, object.content.length-Integer.parseInt(bounds[1]));
+                }else{
+                    start=Integer.parseInt(bounds[0]);
+                    if(!bounds[1].isEmpty()){
+                        end=Math.min(Integer.parseInt(bounds[1]), end);
+                    }
+                }
+                if(start>=object.content.length){
+                    return failed(S3Exception.builder().statusCode(416).message("The requested range is not satisfiable").build());
+                }
+                contentRange="bytes "+start+"-"+end+"/"+object.content.length;
+            }
+            GetObjectResponse response=GetObjectResponse.builder()
+                        .eTag(object.eTag)
+                        .lastModified(object.lastModified)
+                        .contentLength((long)(end-start+1))
+                        .contentRange(contentRange)
+                        .contentType(object.contentType)
+                        .build();
+            CompletableFuture<T> result=transformer.prepare();
+            transformer.onResponse(response);
+            transformer.onStream(AsyncRequestBody.fromByteBufferUnsafe(ByteBuffer.wrap(object.content, start, end-start+1).slice()));
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+            try{
+                signed(request);
+            }catch(S3Exception e){
+                return failed(e);
+            }
+            objects.remove(request.bucket()+"/"+request.key());
+            return CompletableFuture.completedFuture(DeleteObjectResponse.builder().build());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class StoredObject {
+
+        private final byte[] content;
+        private final String contentType;
+        private final String eTag;
+        private final Instant lastModified=Instant.now();
+
+        StoredObject(byte[] content,String contentType,String eTag){
+            this.content=content;
+            this.contentType=contentType;
+            this.eTag=eTag;
+        }
+    }
+
+    private static final class PendingUpload {
+
+        private final String contentType;
+        private final Map<Integer,byte[]> parts=new ConcurrentHashMap<>();
+
+        PendingUpload(String contentType){
+            this.contentType=contentType;
+        }
+    }
+}
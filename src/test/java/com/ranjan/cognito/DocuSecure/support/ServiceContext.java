@@ -0,0 +1,118 @@
+package com.ranjan.cognito.DocuSecure.support;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+import com.ranjan.cognito.DocuSecure.cache.CredentialCache;
+import com.ranjan.cognito.DocuSecure.cache.DocumentFileCache;
+import com.ranjan.cognito.DocuSecure.cache.ListingCache;
+import com.ranjan.cognito.DocuSecure.cache.SearchIndex;
+import com.ranjan.cognito.DocuSecure.configuration.WorkerThreads;
+import com.ranjan.cognito.DocuSecure.metrics.DocumentMetrics;
+import com.ranjan.cognito.DocuSecure.service.AsyncAwsService;
+import com.ranjan.cognito.DocuSecure.service.AwsService;
+import com.ranjan.cognito.DocuSecure.service.BatchUploadService;
+import com.ranjan.cognito.DocuSecure.service.BlobService;
+import com.ranjan.cognito.DocuSecure.service.Bulkheads;
+import com.ranjan.cognito.DocuSecure.service.ChangeFeedService;
+import com.ranjan.cognito.DocuSecure.service.CompressionService;
+import com.ranjan.cognito.DocuSecure.service.EnvelopeEncryptionService;
+import com.ranjan.cognito.DocuSecure.service.HedgedReads;
+import com.ranjan.cognito.DocuSecure.service.LocalKeyProvider;
+import com.ranjan.cognito.DocuSecure.service.MetadataJournal;
+import com.ranjan.cognito.DocuSecure.service.MultipartUploadEngine;
+import com.ranjan.cognito.DocuSecure.service.SearchService;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * Runs the document services in a bare Spring context wired to {@link InMemoryAwsClientRegistry}.
+ * Only the service layer is started, no web server or security, and settings not overridden keep
+ * the defaults of their {@code @Value} declarations. Local state such as the document cache and the
+ * master keys gets its own temporary directory, removed on close.
+ */
+public class ServiceContext implements AutoCloseable {
+
+    public static final String BUCKET="docusecure-test";
+    public static final String USER_ID="test-user";
+    public static final String ID_TOKEN="test-id-token";
+    public static final String CONTROLLER="REST";
+
+    private final AnnotationConfigApplicationContext context;
+    private final Path directory;
+
+    public ServiceContext(Map<String,Object> overrides){
+        try{
+            directory=Files.createTempDirectory("docusecure-test");
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+        Map<String,Object> properties=new HashMap<>();
+        properties.put("aws.region", "eu-west-2");
+        properties.put("aws.web.identityPoolId", "eu-west-2:test-web");
+        properties.put("aws.web.userPoolProvider", "cognito-idp.eu-west-2.amazonaws.com/test-web");
+        properties.put("aws.rest.identityPoolId", "eu-west-2:test-rest");
+        properties.put("aws.rest.userPoolProvider", "cognito-idp.eu-west-2.amazonaws.com/test-rest");
+        properties.put("docusecure.bucketName", BUCKET);
+        properties.put("docusecure.download.cache.directory", directory.resolve("cache").toString());
+        properties.put("docusecure.encryption.keyFile", directory.resolve("master-keys.properties").toString());
+        properties.put("docusecure.encryption.createIfMissing", true);
+        properties.putAll(overrides);
+
+        context=new AnnotationConfigApplicationContext();
+        context.getBeanFactory().setConversionService(ApplicationConversionService.getSharedInstance());
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.register(InMemoryAwsClientRegistry.class, WorkerThreads.class, CredentialCache.class, ListingCache.class, SearchIndex.class, DocumentFileCache.class,
+                    DocumentMetrics.class, CompressionService.class, MultipartUploadEngine.class, BlobService.class, MetadataJournal.class, Bulkheads.class, HedgedReads.class,
+                    LocalKeyProvider.class, EnvelopeEncryptionService.class, AsyncAwsService.class, AwsService.class, BatchUploadService.class, SearchService.class, ChangeFeedService.class);
+        context.refresh();
+    }
+
+    public <T> T bean(Class<T> type){
+        return context.getBean(type);
+    }
+
+    public InMemoryAwsClientRegistry aws(){
+        return context.getBean(InMemoryAwsClientRegistry.class);
+    }
+
+    public AwsSessionCredentials credentials(){
+        return bean(AwsService.class).getTemporaryCredentials(ID_TOKEN, CONTROLLER);
+    }
+
+    public Path directory(){
+        return directory;
+    }
+
+    /**
+     * Incompressible content of the given size, the same for every call so deduplication can recognise it.
+     */
+    public static byte[] randomBytes(int size){
+        byte[] content=new byte[size];
+        new SplittableRandom(size).nextBytes(content);
+        return content;
+    }
+
+    @Override
+    public void close(){
+        context.close();
+        try{
+            FileSystemUtils.deleteRecursively(directory);
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+}
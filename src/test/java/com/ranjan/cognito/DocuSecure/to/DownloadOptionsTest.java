@@ -0,0 +1,94 @@
+package com.ranjan.cognito.DocuSecure.to;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpRange;
+
+class DownloadOptionsTest {
+
+    private static final String ETAG="\"abc\"";
+    private static final Instant MODIFIED=Instant.parse("2025-01-01T10:00:00.500Z");
+
+    @Test
+    void rangesApplyWithoutIfRange(){
+        assertThat(ranged().rangesApply(ETAG, MODIFIED)).isTrue();
+        assertThat(new DownloadOptions().rangesApply(ETAG, MODIFIED)).isFalse();
+    }
+
+    @Test
+    void ifRangeEtagMustMatchStrongly(){
+        DownloadOptions options=ranged();
+        options.setIfRangeEtag(ETAG);
+        assertThat(options.rangesApply(ETAG, MODIFIED)).isTrue();
+        assertThat(options.rangesApply("\"other\"", MODIFIED)).isFalse();
+        assertThat(options.rangesApply(null, MODIFIED)).isFalse();
+
+        options.setIfRangeEtag("W/"+ETAG);
+        assertThat(options.rangesApply(ETAG, MODIFIED)).isFalse();
+    }
+
+    @Test
+    void ifRangeDateMatchesToTheSecond(){
+        DownloadOptions options=ranged();
+        options.setIfRangeDate(Instant.parse("2025-01-01T10:00:00Z"));
+        assertThat(options.rangesApply(ETAG, MODIFIED)).isTrue();
+        assertThat(options.rangesApply(ETAG, MODIFIED.plusSeconds(1))).isFalse();
+        assertThat(options.rangesApply(ETAG, null)).isFalse();
+    }
+
+    @Test
+    void loneRangeNeedsNoObjectMetadata(){
+        assertThat(ranged().needsObjectMetadata()).isFalse();
+
+        DownloadOptions several=new DownloadOptions();
+        several.setRanges(HttpRange.parseRanges("bytes=0-9,20-29"));
+        assertThat(several.needsObjectMetadata()).isTrue();
+
+        DownloadOptions ifRange=ranged();
+        ifRange.setIfRangeEtag(ETAG);
+        assertThat(ifRange.needsObjectMetadata()).isTrue();
+    }
+
+    @Test
+    void withoutRangesKeepsValidators(){
+        DownloadOptions options=ranged();
+        options.setIfNoneMatch(List.of(ETAG));
+        options.setIfRangeEtag(ETAG);
+        options.setAcceptsDeflate(true);
+
+        DownloadOptions whole=options.withoutRanges();
+        assertThat(whole.hasRanges()).isFalse();
+        assertThat(whole.getIfRangeEtag()).isNull();
+        assertThat(whole.getIfNoneMatch()).containsExactly(ETAG);
+        assertThat(whole.isAcceptsDeflate()).isTrue();
+    }
+
+    @Test
+    void ifNoneMatchComparesWeakly(){
+        DownloadOptions options=new DownloadOptions();
+        options.setIfNoneMatch(List.of("W/"+ETAG));
+        assertThat(options.isNotModified(ETAG, MODIFIED)).isTrue();
+        assertThat(options.isNotModified("\"other\"", MODIFIED)).isFalse();
+
+        options.setIfNoneMatch(List.of("*"));
+        assertThat(options.isNotModified("\"other\"", MODIFIED)).isTrue();
+    }
+
+    @Test
+    void encodedEtagIsItsOwnStrongTag(){
+        assertThat(DownloadOptions.encodedEtag(ETAG, "deflate")).isEqualTo("\"abc-deflate\"");
+        assertThat(DownloadOptions.encodedEtag("W/"+ETAG, "deflate")).isEqualTo("W/\"abc-deflate\"");
+        assertThat(DownloadOptions.encodedEtag(ETAG, null)).isEqualTo(ETAG);
+        assertThat(DownloadOptions.encodedEtag(null, "deflate")).isNull();
+    }
+
+    private static DownloadOptions ranged(){
+        DownloadOptions options=new DownloadOptions();
+        options.setRanges(HttpRange.parseRanges("bytes=0-9"));
+        return options;
+    }
+}